@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.BitTools;
+
+/**
+ * Common parameters and data for all PH-Tree benchmarks.
+ * <p>
+ * Subclasses call {@link #setupData()} from their own {@code @Setup} method.
+ * 
+ * @author ztilmann
+ */
+@State(Scope.Benchmark)
+public abstract class BenchmarkState {
+
+	/** Number of pre-computed queries. Queries are executed round-robin. */
+	static final int N_QUERIES = 1024;
+
+	private static final long SEED_DATA = 0;
+	private static final long SEED_QUERY = 1;
+
+	@Param({"V13", "V16", "V16HD"})
+	public TreeType tree;
+
+	@Param({"3", "10"})
+	public int dim;
+
+	@Param({"CUBE", "CLUSTER"})
+	public Distribution distribution;
+
+	@Param({"10000", "1000000"})
+	public int size;
+
+	/** Data points. */
+	long[][] data;
+	/** Lower left corners of query windows. */
+	long[][] queryMin;
+	/** Upper right corners of query windows. */
+	long[][] queryMax;
+	/** Centers of query windows. */
+	long[][] queryCenter;
+	/** Radius for range queries, equal to half the edge length of query windows. */
+	double queryRadius;
+
+	/**
+	 * Create data points and queries.
+	 * Query windows are chosen such that they return on average 'expectedResults' 
+	 * entries for {@link Distribution#CUBE}.
+	 * @param expectedResults expected number of results for window queries
+	 */
+	void setupData(int expectedResults) {
+		data = distribution.generateKeys(size, dim, SEED_DATA);
+		queryCenter = Distribution.generateQueryCenters(data, N_QUERIES, SEED_QUERY);
+		queryMin = new long[N_QUERIES][dim];
+		queryMax = new long[N_QUERIES][dim];
+		double edgeLen = Math.pow(expectedResults / (double) size, 1. / dim);
+		queryRadius = edgeLen / 2;
+		for (int i = 0; i < N_QUERIES; i++) {
+			for (int d = 0; d < dim; d++) {
+				double c = BitTools.toDouble(queryCenter[i][d]);
+				queryMin[i][d] = BitTools.toSortableLong(c - queryRadius);
+				queryMax[i][d] = BitTools.toSortableLong(c + queryRadius);
+			}
+		}
+	}
+
+	<T> PhTree<T> createTree() {
+		return tree.create(dim);
+	}
+
+	PhTree<Integer> createAndFillTree() {
+		PhTree<Integer> t = createTree();
+		for (int i = 0; i < data.length; i++) {
+			t.put(data[i], i);
+		}
+		return t;
+	}
+}
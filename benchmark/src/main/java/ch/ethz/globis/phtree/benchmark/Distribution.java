@@ -0,0 +1,114 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.Random;
+
+import ch.ethz.globis.phtree.util.BitTools;
+
+/**
+ * Data sets for benchmarks. All coordinates are generated as 'double' in [0,1) and then 
+ * converted with {@link BitTools#toSortableLong(double)}, as {@code PhTreeF} does.
+ * 
+ * @author ztilmann
+ */
+public enum Distribution {
+
+	/**
+	 * CUBE: Uniformly distributed points in the unit cube.
+	 */
+	CUBE {
+		@Override
+		double[][] generate(int n, int dim, Random rnd) {
+			double[][] data = new double[n][dim];
+			for (double[] p : data) {
+				for (int d = 0; d < dim; d++) {
+					p[d] = rnd.nextDouble();
+				}
+			}
+			return data;
+		}
+	},
+
+	/**
+	 * CLUSTER: Points in (up to) 1000 clusters, with cluster centers evenly spaced along the 
+	 * diagonal of the unit cube. Points have a Gaussian distribution around their cluster 
+	 * center with sigma=0.0001.
+	 * This is similar to the CLUSTER data set in the PH-Tree paper.
+	 */
+	CLUSTER {
+		@Override
+		double[][] generate(int n, int dim, Random rnd) {
+			final double sigma = 0.0001;
+			int nClusters = Math.max(1, Math.min(1000, n / 100));
+			double[][] data = new double[n][dim];
+			for (int i = 0; i < n; i++) {
+				double center = (i % nClusters + 0.5) / nClusters;
+				double[] p = data[i];
+				for (int d = 0; d < dim; d++) {
+					double x = center + rnd.nextGaussian() * sigma;
+					p[d] = x < 0 ? 0 : (x >= 1 ? Math.nextDown(1.0) : x);
+				}
+			}
+			return data;
+		}
+	};
+
+	abstract double[][] generate(int n, int dim, Random rnd);
+
+	/**
+	 * @param n number of points
+	 * @param dim dimensionality
+	 * @param seed random seed
+	 * @return 'n' points of dimensionality 'dim'
+	 */
+	public long[][] generateKeys(int n, int dim, long seed) {
+		return toKeys(generate(n, dim, new Random(seed)));
+	}
+
+	/**
+	 * Generate query points. The query points are slightly shifted copies of data 
+	 * points, so that queries hit populated regions of the tree also for 
+	 * clustered data. 
+	 * @param data data points
+	 * @param n number of query points
+	 * @param seed random seed
+	 * @return 'n' query points
+	 */
+	public static long[][] generateQueryCenters(long[][] data, int n, long seed) {
+		Random rnd = new Random(seed);
+		int dim = data[0].length;
+		long[][] centers = new long[n][dim];
+		for (int i = 0; i < n; i++) {
+			long[] p = data[rnd.nextInt(data.length)];
+			for (int d = 0; d < dim; d++) {
+				double x = BitTools.toDouble(p[d]) + (rnd.nextDouble() - 0.5) * 0.0001;
+				centers[i][d] = BitTools.toSortableLong(x);
+			}
+		}
+		return centers;
+	}
+
+	private static long[][] toKeys(double[][] data) {
+		long[][] keys = new long[data.length][];
+		for (int i = 0; i < data.length; i++) {
+			keys[i] = BitTools.toSortableLong(data[i], new long[data[i].length]);
+		}
+		return keys;
+	}
+}
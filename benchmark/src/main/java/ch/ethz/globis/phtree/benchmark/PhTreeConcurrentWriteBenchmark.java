@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.util.BitTools;
+
+/**
+ * Benchmarks for concurrent writers.
+ * <p>
+ * The data set is sorted by its first coordinate and split into one slice per writer thread,
+ * i.e. the writers work mostly in disjoint regions of the tree.
+ * Each invocation lets all writers move all entries of their slice with update().
+ * The reported time is the time for updating the whole data set, the throughput
+ * is therefore 'size' divided by the reported time.
+ * Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeConcurrentWriteBenchmark -p writers=1,2,4,8
+ * </pre>
+ *
+ * @author ztilmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PhTreeConcurrentWriteBenchmark {
+
+	private static final long SEED_DATA = 0;
+
+	/**
+	 * The concurrency modes that can be benchmarked.
+	 */
+	public enum Concurrency {
+		/** A single writer at a time, see {@link PhTreeConfig#CONCURRENCY_COW}. */
+		COW(PhTreeConfig.CONCURRENCY_COW),
+		/** Concurrent writers, see {@link PhTreeConfig#CONCURRENCY_OL_COW}. */
+		OL_COW(PhTreeConfig.CONCURRENCY_OL_COW),
+		/** Concurrent writers on a {@code PhTree13}, see {@link PhTreeConfig#CONCURRENCY_HOH_COW}. */
+		HOH_COW(PhTreeConfig.CONCURRENCY_HOH_COW);
+
+		private final int type;
+
+		Concurrency(int type) {
+			this.type = type;
+		}
+	}
+
+	@Param({"COW", "OL_COW", "HOH_COW"})
+	public Concurrency concurrency;
+
+	@Param({"1", "2", "4", "8"})
+	public int writers;
+
+	@Param({"3", "10"})
+	public int dim;
+
+	@Param({"CUBE", "CLUSTER"})
+	public Distribution distribution;
+
+	@Param({"100000"})
+	public int size;
+
+	private long[][] data;
+	/** Target keys for update(). */
+	private long[][] moved;
+	private PhTree<Integer> tree;
+	private ExecutorService executor;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		data = distribution.generateKeys(size, dim, SEED_DATA);
+		Arrays.sort(data, Comparator.comparingLong(k -> k[0]));
+		moved = new long[data.length][dim];
+		double delta = Math.pow(1. / size, 1. / dim) / 10;
+		for (int i = 0; i < data.length; i++) {
+			for (int d = 0; d < dim; d++) {
+				moved[i][d] = BitTools.toSortableLong(BitTools.toDouble(data[i][d]) + delta);
+			}
+		}
+		executor = Executors.newFixedThreadPool(writers);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Setup(Level.Invocation)
+	public void setupTree() {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(concurrency.type);
+		tree = PhTree.create(cfg);
+		for (int i = 0; i < data.length; i++) {
+			tree.put(data[i], i);
+		}
+	}
+
+	@Benchmark
+	public PhTree<Integer> update() throws InterruptedException, ExecutionException {
+		PhTree<Integer> t = tree;
+		List<Future<?>> futures = new ArrayList<>(writers);
+		for (int w = 0; w < writers; w++) {
+			int start = (int) ((long) data.length * w / writers);
+			int end = (int) ((long) data.length * (w + 1) / writers);
+			futures.add(executor.submit(() -> {
+				for (int i = start; i < end; i++) {
+					t.update(data[i], moved[i]);
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		return t;
+	}
+}
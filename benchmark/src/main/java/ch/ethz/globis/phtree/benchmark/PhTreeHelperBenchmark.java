@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.globis.phtree.PhTreeHelper;
+
+/**
+ * Benchmarks for {@link PhTreeHelper#posInArray(long[], int)}.
+ * <p>
+ * {@code posInArrayLoop} is the bit-by-bit loop that {@code posInArray} uses for other 
+ * dimensions than 2, 3 and 4. Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeHelperBenchmark -p dim=2,3,4,8
+ * </pre>
+ * 
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhTreeHelperBenchmark {
+
+	private static final int N_KEYS = 1 << 10;
+
+	@Param({"2", "3", "4", "8"})
+	public int dim;
+
+	private long[][] keys;
+	private int pos = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random r = new Random(0);
+		keys = new long[N_KEYS][dim];
+		for (long[] key : keys) {
+			for (int d = 0; d < dim; d++) {
+				key[d] = r.nextLong();
+			}
+		}
+	}
+
+	private int nextPos() {
+		pos = (pos + 1) & (N_KEYS - 1);
+		return pos;
+	}
+
+	@Benchmark
+	public long posInArray() {
+		int p = nextPos();
+		return PhTreeHelper.posInArray(keys[p], p & 63);
+	}
+
+	@Benchmark
+	public long posInArrayLoop() {
+		int p = nextPos();
+		return posInArrayLoop(keys[p], p & 63);
+	}
+
+	private static long posInArrayLoop(long[] valSet, int postLen) {
+		long valMask = 1L << postLen;
+		long pos = 0;
+		for (int i = 0; i < valSet.length; i++) {
+			pos <<= 1;
+			pos |= (valMask & valSet[i]) >>> postLen;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.ethz.globis.phtree.PhDistanceF;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhKnnBatchResult;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhRangeQuery;
+
+/**
+ * Benchmarks for read-only operations: get, window queries, kNN and range queries.
+ * <p>
+ * Every invocation executes exactly one operation. Queries are taken round-robin from
+ * a set of pre-computed queries. Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeReadBenchmark -p tree=V13,V16 -p dim=3 -prof gc
+ * </pre>
+ * 
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhTreeReadBenchmark extends BenchmarkState {
+
+	/** Expected average result count of window queries for CUBE data. */
+	@Param({"100"})
+	public int windowResults;
+
+	/** 'k' for kNN queries. */
+	@Param({"10"})
+	public int k;
+
+	private PhTree<Integer> phTree;
+	private int pos = 0;
+	private int posData = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupData(windowResults);
+		phTree = createAndFillTree();
+	}
+
+	private int nextPos() {
+		pos = (pos + 1) & (N_QUERIES - 1);
+		return pos;
+	}
+
+	@Benchmark
+	public Integer get() {
+		posData = posData + 1 < data.length ? posData + 1 : 0;
+		return phTree.get(data[posData]);
+	}
+
+	@Benchmark
+	public void query(Blackhole bh) {
+		int i = nextPos();
+		PhQuery<Integer> q = phTree.query(queryMin[i], queryMax[i]);
+		while (q.hasNext()) {
+			bh.consume(q.nextEntryReuse());
+		}
+	}
+
+	@Benchmark
+	public List<PhEntry<Integer>> queryAll() {
+		int i = nextPos();
+		return phTree.queryAll(queryMin[i], queryMax[i]);
+	}
+
+	@Benchmark
+	public void nearestNeighbour(Blackhole bh) {
+		PhKnnQuery<Integer> q = phTree.nearestNeighbour(k, PhDistanceF.THIS, null, queryCenter[nextPos()]);
+		while (q.hasNext()) {
+			bh.consume(q.nextEntryReuse());
+		}
+	}
+
+	/**
+	 * Executes all {@link #N_QUERIES} kNN queries in one batch, i.e. the reported time is
+	 * for N_QUERIES queries.
+	 */
+	@Benchmark
+	public PhKnnBatchResult<Integer> nearestNeighbourBatch() {
+		return phTree.nearestNeighbourBatch(k, PhDistanceF.THIS, queryCenter, null);
+	}
+
+	@Benchmark
+	public void rangeQuery(Blackhole bh) {
+		PhRangeQuery<Integer> q = phTree.rangeQuery(queryRadius, PhDistanceF.THIS, queryCenter[nextPos()]);
+		while (q.hasNext()) {
+			bh.consume(q.nextEntryReuse());
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeSet;
+import ch.ethz.globis.phtree.PhTreeSet.PhIteratorSet;
+import ch.ethz.globis.phtree.util.BitTools;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Compares {@link PhTreeSet} with a {@code PhTree16<Object>} that stores the same value 
+ * for all keys: contains and window queries (average time per operation) and loading all 
+ * keys (time per data set). Use '-prof gc' to compare the allocation rates. Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeSetBenchmark -p dim=3,16 -prof gc
+ * </pre>
+ * 
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhTreeSetBenchmark {
+
+	private static final int N_QUERIES = 1024;
+
+	/** SET: {@link PhTreeSet}, OBJECT: {@code PhTree16<Object>}. */
+	@Param({"SET", "OBJECT"})
+	public String impl;
+
+	@Param({"3", "10", "16"})
+	public int dim;
+
+	@Param({"CUBE", "CLUSTER"})
+	public Distribution distribution;
+
+	@Param({"1000000"})
+	public int size;
+
+	private long[][] data;
+	private long[][] queryMin;
+	private long[][] queryMax;
+	private PhTreeSet setTree;
+	private PhTree16<Object> objectTree;
+	private int pos = 0;
+	private int posData = 0;
+	private long[] keyBuffer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		data = distribution.generateKeys(size, dim, 0);
+		long[][] centers = Distribution.generateQueryCenters(data, N_QUERIES, 1);
+		keyBuffer = new long[dim];
+		queryMin = new long[N_QUERIES][dim];
+		queryMax = new long[N_QUERIES][dim];
+		//about 100 results for CUBE data, see BenchmarkState
+		double radius = Math.pow(100. / size, 1. / dim) / 2;
+		for (int i = 0; i < N_QUERIES; i++) {
+			for (int d = 0; d < dim; d++) {
+				double c = BitTools.toDouble(centers[i][d]);
+				queryMin[i][d] = BitTools.toSortableLong(c - radius);
+				queryMax[i][d] = BitTools.toSortableLong(c + radius);
+			}
+		}
+		fill();
+	}
+
+	private void fill() {
+		setTree = null;
+		objectTree = null;
+		if ("SET".equals(impl)) {
+			setTree = PhTreeSet.create(dim);
+			for (int i = 0; i < data.length; i++) {
+				setTree.add(data[i]);
+			}
+		} else {
+			objectTree = new PhTree16<>(dim);
+			for (int i = 0; i < data.length; i++) {
+				objectTree.put(data[i], Boolean.TRUE);
+			}
+		}
+	}
+
+	@Benchmark
+	public boolean contains() {
+		posData = posData + 1 < data.length ? posData + 1 : 0;
+		if (setTree != null) {
+			return setTree.contains(data[posData]);
+		}
+		return objectTree.contains(data[posData]);
+	}
+
+	@Benchmark
+	public void query(Blackhole bh) {
+		pos = (pos + 1) & (N_QUERIES - 1);
+		long[] key = keyBuffer;
+		if (setTree != null) {
+			PhIteratorSet q = setTree.query(queryMin[pos], queryMax[pos]);
+			while (q.hasNext()) {
+				q.nextKey(key);
+				bh.consume(key);
+			}
+			return;
+		}
+		PhQuery<Object> q = objectTree.query(queryMin[pos], queryMax[pos]);
+		while (q.hasNext()) {
+			bh.consume(q.nextEntryReuse().getKey());
+		}
+	}
+
+	/**
+	 * Loads all 'size' keys into an empty tree, the reported time is per data set.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 5)
+	public void put() {
+		fill();
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+
+/**
+ * Benchmarks for large window queries: iterator vs sequential and parallel streams, 
+ * and count and aggregate queries.
+ * <p>
+ * Every invocation executes one query that returns about 'windowFraction' of all entries
+ * and sums up their values (or counts them). Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeStreamBenchmark -p tree=V16 -p size=1000000
+ * </pre>
+ *
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhTreeStreamBenchmark extends BenchmarkState {
+
+	/** Fraction of all entries that is returned by a window query for CUBE data. */
+	@Param({"0.5"})
+	public double windowFraction;
+
+	private PhTree<Integer> phTree;
+	private int pos = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupData((int) (size * windowFraction));
+		phTree = createAndFillTree();
+	}
+
+	private int nextPos() {
+		pos = (pos + 1) & (N_QUERIES - 1);
+		return pos;
+	}
+
+	@Benchmark
+	public long query() {
+		int i = nextPos();
+		PhQuery<Integer> q = phTree.query(queryMin[i], queryMax[i]);
+		long sum = 0;
+		while (q.hasNext()) {
+			sum += q.nextEntryReuse().getValue();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long stream() {
+		int i = nextPos();
+		return phTree.stream(queryMin[i], queryMax[i]).mapToLong(e -> e.getValue()).sum();
+	}
+
+	@Benchmark
+	public long streamParallel() {
+		int i = nextPos();
+		return phTree.stream(queryMin[i], queryMax[i]).parallel().mapToLong(e -> e.getValue()).sum();
+	}
+
+	@Benchmark
+	public long count() {
+		int i = nextPos();
+		return phTree.count(queryMin[i], queryMax[i]);
+	}
+
+	@Benchmark
+	public long aggregate() {
+		int i = nextPos();
+		return phTree.aggregate(queryMin[i], queryMax[i], new long[1], (s, k, v) -> s[0] += v)[0];
+	}
+}
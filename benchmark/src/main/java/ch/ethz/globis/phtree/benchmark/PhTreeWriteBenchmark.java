@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.BitTools;
+
+/**
+ * Benchmarks for modifying operations: put, bulkLoad (sequential and parallel), remove and update.
+ * <p>
+ * Each invocation applies the operation to all 'size' entries of the data set, 
+ * for example {@link #put()} loads all entries into an empty tree. 
+ * The reported time is therefore the time per data set, not per entry. 
+ * A fresh tree is created before every invocation (not measured).
+ * Example:
+ * <pre>
+ * java -jar target/benchmarks.jar PhTreeWriteBenchmark -p size=1000000 -prof gc
+ * </pre>
+ * 
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PhTreeWriteBenchmark extends BenchmarkState {
+
+	private PhTree<Integer> emptyTree;
+	private PhTree<Integer> fullTree;
+	/** Target keys for update(). */
+	private long[][] moved;
+	/** Values for bulkLoad(). */
+	private Integer[] values;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupData(1);
+		values = new Integer[data.length];
+		for (int i = 0; i < data.length; i++) {
+			values[i] = i;
+		}
+		moved = new long[data.length][dim];
+		double delta = Math.pow(1. / size, 1. / dim) / 10;
+		for (int i = 0; i < data.length; i++) {
+			for (int d = 0; d < dim; d++) {
+				moved[i][d] = BitTools.toSortableLong(BitTools.toDouble(data[i][d]) + delta);
+			}
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupTrees() {
+		emptyTree = createTree();
+		fullTree = createAndFillTree();
+	}
+
+	@Benchmark
+	public PhTree<Integer> put() {
+		PhTree<Integer> t = emptyTree;
+		for (int i = 0; i < data.length; i++) {
+			t.put(data[i], i);
+		}
+		return t;
+	}
+
+	@Benchmark
+	public PhTree<Integer> bulkLoad() {
+		PhTree<Integer> t = emptyTree;
+		t.bulkLoad(data, values);
+		return t;
+	}
+
+	@Benchmark
+	public PhTree<Integer> bulkLoadParallel() {
+		PhTree<Integer> t = emptyTree;
+		t.bulkLoad(data, values, ForkJoinPool.commonPool());
+		return t;
+	}
+
+	@Benchmark
+	public PhTree<Integer> remove() {
+		PhTree<Integer> t = fullTree;
+		for (int i = 0; i < data.length; i++) {
+			t.remove(data[i]);
+		}
+		return t;
+	}
+
+	@Benchmark
+	public PhTree<Integer> update() {
+		PhTree<Integer> t = fullTree;
+		for (int i = 0; i < data.length; i++) {
+			t.update(data[i], moved[i]);
+		}
+		return t;
+	}
+}
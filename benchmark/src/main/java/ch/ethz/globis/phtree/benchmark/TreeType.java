@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.function.IntFunction;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+
+/**
+ * The PH-Tree implementations that can be benchmarked.
+ * 
+ * @author ztilmann
+ */
+public enum TreeType {
+
+	/** Classic PH-Tree (PH1), used by {@link PhTree#create(int)} for dim &lt; 8. */
+	V13(PhTree13::new),
+	/** BST based PH-Tree (PH2), used by {@link PhTree#create(int)} for 8 &lt;= dim &lt;= 60. */
+	V16(PhTree16::new),
+	/** BST based PH-Tree for high dimensions, used by {@link PhTree#create(int)} for dim &gt; 60. */
+	V16HD(PhTree16HD::new);
+
+	private final IntFunction<PhTree<?>> constructor;
+
+	TreeType(IntFunction<PhTree<?>> constructor) {
+		this.constructor = constructor;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> PhTree<T> create(int dim) {
+		return (PhTree<T>) constructor.apply(dim);
+	}
+}
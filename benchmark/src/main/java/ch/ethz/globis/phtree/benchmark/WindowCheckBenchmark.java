@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
+
+/**
+ * Benchmarks for the window check of range queries, {@link LongArrayOps#checkRange}.
+ * <p>
+ * Half of the keys lie inside the window. {@code checkRangeLoop} is the scalar loop of the 
+ * Java 8 classes. On Java 17+, {@code checkRange} uses the Vector API if it is enabled:
+ * <pre>
+ * java -jar target/benchmarks.jar WindowCheckBenchmark -p dim=4,8,16,32,64 
+ *     -jvmArgsAppend "--add-modules jdk.incubator.vector"
+ * </pre>
+ * 
+ * @author ztilmann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WindowCheckBenchmark {
+
+	private static final int N_KEYS = 1 << 10;
+	private static final int RANGE = 1_000_000;
+
+	@Param({"4", "8", "16", "32", "64"})
+	public int dim;
+
+	private long[][] keys;
+	private long[] min;
+	private long[] max;
+	private int pos = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random r = new Random(0);
+		keys = new long[N_KEYS][dim];
+		for (long[] key : keys) {
+			for (int d = 0; d < dim; d++) {
+				key[d] = r.nextInt(RANGE);
+			}
+		}
+		//Every dimension has the same probability p of being inside, with p^dim = 0.5
+		double p = Math.pow(0.5, 1.0 / dim);
+		min = new long[dim];
+		max = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			max[d] = (long) (p * RANGE);
+		}
+	}
+
+	private int nextPos() {
+		pos = (pos + 1) & (N_KEYS - 1);
+		return pos;
+	}
+
+	@Benchmark
+	public boolean checkRange() {
+		return LongArrayOps.checkRange(keys[nextPos()], min, max);
+	}
+
+	@Benchmark
+	public boolean checkRangeLoop() {
+		return checkRangeLoop(keys[nextPos()], min, max);
+	}
+
+	private static boolean checkRangeLoop(long[] key, long[] min, long[] max) {
+		for (int i = 0; i < key.length; i++) {
+			long k = key[i];
+			if (k < min[i] || k > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.Externalizable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * A persistence provider that stores a {@code PhTree16} in a local file.
+ * <p>
+ * The file consists of fixed-size pages. Page 0 is the file header. Every node is stored
+ * as a record, which is a chain of one or more pages, the record ID is the ID of the first
+ * page. Free pages are kept in a linked list.
+ * <p>
+ * Pages are cached in a bounded LRU page cache, modified pages are written back when they
+ * are evicted from the cache or when the provider is flushed.
+ * {@link #statsGetPageReads()} and {@link #statsGetPageWrites()} report the number of
+ * pages that have been read from or written to the file.
+ * <p>
+ * The tree loads nodes on demand and keeps at most {@code maxLoadedNodes} nodes in memory
+ * (except during write operations, which may temporarily load more nodes).
+ * <p>
+ * Usage:
+ * <pre>
+ * PersistenceProviderFile file = new PersistenceProviderFile(path, PhValueCodec.INTEGER);
+ * PhTreeConfig cfg = new PhTreeConfig(dims);
+ * cfg.setPersistenceProvider(file);
+ * PhTree&lt;Integer&gt; tree = PhTree.create(cfg);
+ * ...
+ * file.close();
+ * //later
+ * PhTree&lt;Integer&gt; tree = new PersistenceProviderFile(path, PhValueCodec.INTEGER).loadTree();
+ * </pre>
+ * A file contains only one tree. Trees that use this provider support only
+ * {@link PhTreeConfig#CONCURRENCY_NONE} and must not be accessed concurrently, not even by
+ * multiple readers, because reading may load and evict nodes.
+ *
+ * @author ztilmann
+ */
+public class PersistenceProviderFile implements PersistenceProvider, Closeable {
+
+	/** Every node uses at least one page, most nodes are small. */
+	public static final int DEFAULT_PAGE_SIZE = 512;
+	public static final int DEFAULT_CACHE_PAGES = 16 * 1024;
+	public static final int DEFAULT_MAX_LOADED_NODES = 100_000;
+
+	private static final int MAGIC = 0x50485446;
+	private static final int VERSION = 1;
+	//Page header: next page (int) and number of used bytes (int)
+	private static final int PAGE_HEADER = 8;
+	//'next page' of the last page of a record, page 0 is always the file header
+	private static final int NO_PAGE = 0;
+
+	private static final class Page {
+		final byte[] data;
+		boolean dirty;
+		Page(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int pageSize;
+	private final PhValueCodec<?> valueCodec;
+	private final int maxLoadedNodes;
+	private final LinkedHashMap<Integer, Page> cache;
+
+	//file header
+	private int nPages;
+	private int freeHead;
+	private int metaRecord;
+	//tree metadata
+	private int treeDims;
+	private int treeSize;
+	private int treeRoot;
+
+	private int pageReads = 0;
+	private int pageWrites = 0;
+
+	//The tree that uses this provider and its node store
+	private PhTree<?> tree;
+	private Flushable treeStore;
+	//IDs of objects that were stored with registerNode()
+	private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<>();
+
+	/**
+	 * Open or create a file with default settings.
+	 * @param path the file
+	 * @param valueCodec codec for the values of the tree
+	 */
+	public PersistenceProviderFile(Path path, PhValueCodec<?> valueCodec) {
+		this(path, valueCodec, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES, DEFAULT_MAX_LOADED_NODES);
+	}
+
+	/**
+	 * Open or create a file.
+	 * @param path the file
+	 * @param valueCodec codec for the values of the tree
+	 * @param pageSize the page size in bytes, this is ignored for existing files
+	 * @param cachePages maximum number of pages in the page cache
+	 * @param maxLoadedNodes maximum number of nodes that a tree keeps in memory
+	 */
+	public PersistenceProviderFile(Path path, PhValueCodec<?> valueCodec, int pageSize,
+			int cachePages, int maxLoadedNodes) {
+		if (pageSize < 64 || cachePages < 1 || maxLoadedNodes < 1) {
+			throw new IllegalArgumentException("pageSize=" + pageSize + " cachePages=" +
+					cachePages + " maxLoadedNodes=" + maxLoadedNodes);
+		}
+		this.path = path;
+		this.valueCodec = valueCodec;
+		this.maxLoadedNodes = maxLoadedNodes;
+		try {
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() == 0) {
+				this.pageSize = pageSize;
+				this.nPages = 1;
+				writeHeader();
+			} else {
+				this.pageSize = readHeader();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.cache = new LinkedHashMap<Integer, Page>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+				if (size() <= cachePages) {
+					return false;
+				}
+				if (eldest.getValue().dirty) {
+					writePage(eldest.getKey(), eldest.getValue());
+				}
+				return true;
+			}
+		};
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(pageSize);
+		bb.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(nPages).putInt(freeHead)
+			.putInt(metaRecord);
+		bb.clear();
+		writeFully(bb, 0);
+	}
+
+	private int readHeader() throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(6 * 4);
+		readFully(bb, 0);
+		bb.flip();
+		if (bb.getInt() != MAGIC || bb.getInt() != VERSION) {
+			throw new IllegalStateException("Not a PH-Tree file: " + path);
+		}
+		int ps = bb.getInt();
+		nPages = bb.getInt();
+		freeHead = bb.getInt();
+		metaRecord = bb.getInt();
+		if (metaRecord != NO_PAGE) {
+			DataInputStream in = readRecord(metaRecord, ps);
+			treeDims = in.readInt();
+			treeSize = in.readInt();
+			treeRoot = in.readInt();
+		}
+		return ps;
+	}
+
+	private void readFully(ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, pos + bb.position()) < 0) {
+				throw new IOException("Unexpected end of file: " + path);
+			}
+		}
+	}
+
+	private void writeFully(ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			channel.write(bb, pos + bb.position());
+		}
+	}
+
+	private void writePage(int id, Page p) {
+		try {
+			writeFully(ByteBuffer.wrap(p.data), (long) id * pageSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		p.dirty = false;
+		pageWrites++;
+	}
+
+	private Page page(int id) {
+		Page p = cache.get(id);
+		if (p == null) {
+			p = new Page(new byte[pageSize]);
+			try {
+				readFully(ByteBuffer.wrap(p.data), (long) id * pageSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			pageReads++;
+			cache.put(id, p);
+		}
+		return p;
+	}
+
+	private int allocatePage() {
+		int id;
+		Page p;
+		if (freeHead != NO_PAGE) {
+			id = freeHead;
+			p = page(id);
+			freeHead = getInt(p.data, 0);
+		} else {
+			id = nPages++;
+			p = new Page(new byte[pageSize]);
+			cache.put(id, p);
+		}
+		putInt(p.data, 0, NO_PAGE);
+		putInt(p.data, 4, 0);
+		p.dirty = true;
+		return id;
+	}
+
+	private void freePages(int id) {
+		while (id != NO_PAGE) {
+			Page p = page(id);
+			int next = getInt(p.data, 0);
+			putInt(p.data, 0, freeHead);
+			p.dirty = true;
+			freeHead = id;
+			id = next;
+		}
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+				| ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+	}
+
+	private static void putInt(byte[] data, int pos, int v) {
+		data[pos] = (byte) (v >>> 24);
+		data[pos + 1] = (byte) (v >>> 16);
+		data[pos + 2] = (byte) (v >>> 8);
+		data[pos + 3] = (byte) v;
+	}
+
+	/**
+	 * Allocate a new empty record.
+	 * @return the record ID
+	 */
+	public int allocateRecord() {
+		return allocatePage();
+	}
+
+	/**
+	 * Overwrite a record.
+	 * @param id the record ID
+	 * @param data the new content of the record
+	 * @param len the length of the content
+	 */
+	public void writeRecord(int id, byte[] data, int len) {
+		int pageId = id;
+		int pos = 0;
+		while (true) {
+			Page p = page(pageId);
+			int n = Math.min(len - pos, pageSize - PAGE_HEADER);
+			System.arraycopy(data, pos, p.data, PAGE_HEADER, n);
+			putInt(p.data, 4, n);
+			p.dirty = true;
+			pos += n;
+			int next = getInt(p.data, 0);
+			if (pos >= len) {
+				if (next != NO_PAGE) {
+					putInt(p.data, 0, NO_PAGE);
+					freePages(next);
+				}
+				return;
+			}
+			if (next == NO_PAGE) {
+				next = allocatePage();
+				//The page may have been evicted from the cache
+				p = page(pageId);
+				putInt(p.data, 0, next);
+				p.dirty = true;
+			}
+			pageId = next;
+		}
+	}
+
+	/**
+	 * @param id the record ID
+	 * @return the content of the record
+	 */
+	public DataInputStream readRecord(int id) {
+		return readRecord(id, pageSize);
+	}
+
+	private DataInputStream readRecord(int id, int pageSize) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(pageSize);
+		int pageId = id;
+		while (pageId != NO_PAGE) {
+			byte[] data;
+			if (cache != null) {
+				data = page(pageId).data;
+			} else {
+				//while opening the file
+				data = new byte[pageSize];
+				try {
+					readFully(ByteBuffer.wrap(data), (long) pageId * pageSize);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				pageReads++;
+			}
+			bos.write(data, PAGE_HEADER, getInt(data, 4));
+			pageId = getInt(data, 0);
+		}
+		return new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+	}
+
+	/**
+	 * Free a record.
+	 * @param id the record ID
+	 */
+	public void freeRecord(int id) {
+		freePages(id);
+	}
+
+	/**
+	 * Remove all records.
+	 */
+	public void clear() {
+		cache.clear();
+		ids.clear();
+		nPages = 1;
+		freeHead = NO_PAGE;
+		metaRecord = NO_PAGE;
+		treeDims = 0;
+		treeSize = 0;
+		treeRoot = NO_PAGE;
+		try {
+			channel.truncate(pageSize);
+			writeHeader();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Called by trees that use this provider. Only one tree can use a provider.
+	 * @param tree The tree
+	 * @param treeStore Writes the modified nodes of the tree, it is flushed when the provider 
+	 * is flushed
+	 */
+	public void attach(PhTree<?> tree, Flushable treeStore) {
+		if (this.tree != null && this.tree != tree) {
+			throw new IllegalStateException("The file is already used by another tree: " + path);
+		}
+		this.tree = tree;
+		this.treeStore = treeStore;
+	}
+
+	/**
+	 * @return The value codec for trees that use this provider.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> PhValueCodec<T> getValueCodec() {
+		return (PhValueCodec<T>) valueCodec;
+	}
+
+	/**
+	 * @return The maximum number of nodes that a tree keeps in memory.
+	 */
+	public int getMaxLoadedNodes() {
+		return maxLoadedNodes;
+	}
+
+	/**
+	 * @return The number of dimensions of the stored tree, or 0 if no tree has been stored.
+	 */
+	public int getStoredDims() {
+		return treeDims;
+	}
+
+	/**
+	 * @return The number of entries of the stored tree.
+	 */
+	public int getStoredSize() {
+		return treeSize;
+	}
+
+	/**
+	 * @return The record ID of the root node of the stored tree, or 0 if the tree is empty.
+	 */
+	public int getStoredRoot() {
+		return treeRoot;
+	}
+
+	@Override
+	public Object registerNode(Externalizable o) {
+		int id = allocateRecord();
+		ids.put(o, id);
+		writeObject(id, o);
+		return id;
+	}
+
+	@Override
+	public void updateNode(Externalizable o) {
+		Integer id = ids.get(o);
+		if (id == null) {
+			throw new IllegalArgumentException("Object is not registered: " + o);
+		}
+		writeObject(id, o);
+	}
+
+	private void writeObject(int id, Externalizable o) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			o.writeExternal(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		writeRecord(id, bos.toByteArray(), bos.size());
+	}
+
+	/**
+	 * @param o the ID of an object that was stored with {@link #registerNode(Externalizable)}
+	 * @return An {@code ObjectInput} for {@link Externalizable#readExternal(java.io.ObjectInput)}.
+	 */
+	@Override
+	public Object loadNode(Object o) {
+		try {
+			return new ObjectInputStream(readRecord((Integer) o));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public String getDescription() {
+		return "FILE: " + path;
+	}
+
+	@Override
+	public int statsGetPageReads() {
+		return pageReads;
+	}
+
+	@Override
+	public int statsGetPageWrites() {
+		return pageWrites;
+	}
+
+	@Override
+	public void statsReset() {
+		pageReads = 0;
+		pageWrites = 0;
+	}
+
+	/**
+	 * Store a tree. If the tree uses this provider, this is equivalent to {@link #flush()}.
+	 * Otherwise the entries of the tree are copied into a new tree in this (empty) file.
+	 */
+	@Override
+	public void writeTree(PhTree<?> tree, int dims) {
+		if (tree == this.tree) {
+			flush();
+			return;
+		}
+		if (this.tree != null || metaRecord != NO_PAGE) {
+			throw new IllegalStateException("The file already contains a tree: " + path);
+		}
+		PhTree<Object> copy = create(dims);
+		@SuppressWarnings("unchecked")
+		PhExtent<Object> extent = ((PhTree<Object>) tree).queryExtent();
+		copy.bulkLoad(new Iterator<PhEntry<Object>>() {
+			@Override
+			public boolean hasNext() {
+				return extent.hasNext();
+			}
+
+			@Override
+			public PhEntry<Object> next() {
+				return extent.nextEntry();
+			}
+		});
+		flush();
+	}
+
+	@Override
+	public void updateTree(PhTree<?> tree, int dims, int nEntries, Object rootId) {
+		treeDims = dims;
+		treeSize = nEntries;
+		treeRoot = (Integer) rootId;
+		if (metaRecord == NO_PAGE) {
+			metaRecord = allocateRecord();
+		}
+		byte[] data = new byte[12];
+		putInt(data, 0, treeDims);
+		putInt(data, 4, treeSize);
+		putInt(data, 8, treeRoot);
+		writeRecord(metaRecord, data, data.length);
+	}
+
+	/**
+	 * @return the tree in this file, or 'null' if the file contains no tree.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> PhTree<T> loadTree() {
+		if (tree != null) {
+			return (PhTree<T>) tree;
+		}
+		if (metaRecord == NO_PAGE) {
+			return null;
+		}
+		return create(treeDims);
+	}
+
+	private <T> PhTree<T> create(int dims) {
+		PhTreeConfig cfg = new PhTreeConfig(dims);
+		cfg.setPersistenceProvider(this);
+		return new PhTree16<>(cfg);
+	}
+
+	/**
+	 * Write all modified nodes and pages to the file.
+	 */
+	@Override
+	public void flush() {
+		try {
+			if (treeStore != null) {
+				treeStore.flush();
+			}
+			Iterator<Map.Entry<Integer, Page>> it = cache.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Integer, Page> e = it.next();
+				if (e.getValue().dirty) {
+					writePage(e.getKey(), e.getValue());
+				}
+			}
+			writeHeader();
+			channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Flush and close the file.
+	 */
+	@Override
+	public void close() {
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,969 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * A write-ahead log (WAL) for an in-memory {@code PhTree16}, see
+ * {@link PhTreeConfig#setWriteAheadLog(PersistenceProviderWal)}.
+ * <p>
+ * Every write operation appends the resulting state of the modified key(s) to the log,
+ * i.e. either the new value or the removal of the key. This also makes operations with
+ * functions, such as {@code compute()}, replayable.
+ * When the tree is created, it is recovered by loading the latest snapshot
+ * (see {@link #checkpoint()}) and by replaying the log on top of it. A record that was
+ * only partially written before a crash ends the replay, it is cut off the log file.
+ * A damaged record anywhere else fails the recovery with an exception.
+ * <p>
+ * Durability:
+ * <ul>
+ * <li>With {@code syncOnWrite=true}, write operations return only after their log record
+ * has been written and synced to disk. Concurrent writers (in COW mode) share a
+ * single {@code fsync} ('group commit').</li>
+ * <li>With {@code syncOnWrite=false}, the log is synced by a background thread every
+ * {@code syncIntervalMillis} milliseconds, or by {@link #flush()}. A crash may lose
+ * the operations of the last interval.</li>
+ * </ul>
+ * In COW mode, readers may see an operation before its log record is synced.
+ * <p>
+ * Files in the directory:
+ * <ul>
+ * <li>{@code wal-<n>.log}: log files, a new file is started whenever the tree is opened
+ * and by every checkpoint.</li>
+ * <li>{@code snapshot-<n>.phs}: the tree before log file {@code n}, in the format of
+ * {@link PhTree16#writeSnapshot(Path, PhValueCodec)}. Checkpoints delete older files.</li>
+ * <li>{@code nodes-<n>.phn} and {@code checkpoint.phr}: with incremental checkpoints,
+ * see below.</li>
+ * </ul>
+ * Incremental checkpoints: Writing a snapshot of a large tree takes time proportional to the
+ * size of the tree. With {@code incrementalCheckpoints=true}, a checkpoint instead appends
+ * only the nodes that have been modified since the previous checkpoint (and their parent
+ * nodes) to an append-only node file. The checkpoint is completed by atomically replacing
+ * the root pointer file {@code checkpoint.phr}, which contains the position of the new root
+ * record, the end of the valid part of the node file and the number of the first log file
+ * that is not covered by the checkpoint. Records of a checkpoint that was interrupted by a
+ * crash are ignored. Once the node file has grown to twice its size after the last full
+ * checkpoint, the next checkpoint writes all nodes to a new node file and the old file is
+ * deleted, so the cost of compaction is amortized over the appended records.
+ * <p>
+ * Usage:
+ * <pre>
+ * PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+ * PhTreeConfig cfg = new PhTreeConfig(dims);
+ * cfg.setWriteAheadLog(wal);
+ * PhTree&lt;Integer&gt; tree = PhTree.create(cfg);  // recovers the tree if 'dir' contains one
+ * ...
+ * wal.checkpoint();  // from time to time, this limits the length of the log
+ * ...
+ * wal.close();
+ * </pre>
+ * Trees that use this log support {@link PhTreeConfig#CONCURRENCY_NONE} and
+ * {@link PhTreeConfig#CONCURRENCY_COW}.
+ *
+ * @author ztilmann
+ */
+public class PersistenceProviderWal implements Closeable {
+
+	public static final int DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+	private static final long MAGIC = 0x50485457414CL;
+	private static final int VERSION = 1;
+	private static final int LOG_HEADER = 16;
+	private static final byte PUT = 1;
+	private static final byte PUT_NULL = 2;
+	private static final byte REMOVE = 3;
+	private static final byte CLEAR = 4;
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".phs";
+	private static final String SNAPSHOT_TMP = "snapshot.tmp";
+	private static final String NODES_PREFIX = "nodes-";
+	private static final String NODES_SUFFIX = ".phn";
+	private static final String ROOT_FILE = "checkpoint.phr";
+	private static final String ROOT_TMP = "checkpoint.tmp";
+	//magic, version, dims, 5 longs (see RootPointer), checksum
+	private static final int ROOT_BYTES = 8 + 4 + 4 + 5 * 8 + 4;
+	//Compaction: the node file is rewritten when it is larger than this times its size after
+	//the last full checkpoint
+	private static final int COMPACTION_FACTOR = 2;
+	//Asynchronous mode: writers sync when this many bytes are pending
+	private static final int MAX_PENDING = 1 << 20;
+
+	/**
+	 * Writes and loads checkpoints of a tree.
+	 */
+	public interface Checkpointer {
+		/**
+		 * Write a snapshot of the tree.
+		 * @param snapshot the file
+		 * @param rotate This must be called while no write operation is in progress, the
+		 * snapshot must contain the state of the tree at this moment.
+		 * @throws IOException if writing fails
+		 */
+		void checkpoint(Path snapshot, Runnable rotate) throws IOException;
+
+		/**
+		 * Append the nodes that have been modified since the previous call to the node file.
+		 * @param nodes the node file
+		 * @param full 'true' if all nodes must be written, for example to a new node file
+		 * @param rotate see {@link #checkpoint(Path, Runnable)}
+		 * @return the position of the root record, or -1 if the tree is empty
+		 * @throws IOException if writing fails
+		 */
+		long checkpointNodes(FileChannel nodes, boolean full, Runnable rotate)
+				throws IOException;
+
+		/**
+		 * Load the tree from a node file that was written by
+		 * {@link #checkpointNodes(FileChannel, boolean, Runnable)}.
+		 * @param nodes the node file
+		 * @param rootPos the position of the root record, or -1 if the tree is empty
+		 * @throws IOException if reading fails
+		 */
+		void loadNodes(FileChannel nodes, long rootPos) throws IOException;
+	}
+
+	/** Content of the root pointer file of incremental checkpoints. */
+	private static final class RootPointer {
+		int dims;
+		//first log file that is not covered by the checkpoint
+		long logGen;
+		long nodesGen;
+		long rootPos;
+		//end of the valid records in the node file
+		long end;
+		//size of the node file after the last full checkpoint
+		long compacted;
+	}
+
+	/** Gives access to the buffer without copying it. */
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private final Path dir;
+	private final PhValueCodec<Object> valueCodec;
+	private final boolean syncOnWrite;
+	private final int syncIntervalMillis;
+	private final boolean incrementalCheckpoints;
+
+	//Guards the log buffer and 'appendedLsn'. Writers append their records to the buffer.
+	private final Object appendLock = new Object();
+	//Guards the log file. The thread that syncs writes the buffer of all writers.
+	private final Object syncLock = new Object();
+	private final Object checkpointLock = new Object();
+	private Buffer pending = new Buffer();
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+	private Buffer spare = new Buffer();
+	private final Buffer record = new Buffer();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	//Log sequence numbers, these count the bytes of all records since the log was opened
+	private long appendedLsn = 0;
+	private volatile long durableLsn = 0;
+	private volatile IOException failure;
+
+	private FileChannel channel;
+	private long generation;
+	private volatile boolean recovering = false;
+	private volatile boolean closed = false;
+	private Thread syncThread;
+
+	private int syncs = 0;
+	private int records = 0;
+
+	//The tree that uses this provider
+	private PhTree<Object> tree;
+	private Checkpointer checkpointer;
+	//Incremental checkpoints: the current node file, or 'null' if the next checkpoint must
+	//write all nodes to a new node file.
+	private FileChannel nodes;
+	private RootPointer nodesRoot;
+
+	/**
+	 * Open or create a log with group commit, see {@link PersistenceProviderWal}.
+	 * @param dir the directory for the log and snapshot files, it is created if necessary
+	 * @param valueCodec codec for the values of the tree
+	 */
+	public PersistenceProviderWal(Path dir, PhValueCodec<?> valueCodec) {
+		this(dir, valueCodec, true, DEFAULT_SYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Open or create a log with snapshot checkpoints, see {@link PersistenceProviderWal}.
+	 * @param dir the directory for the log and snapshot files, it is created if necessary
+	 * @param valueCodec codec for the values of the tree
+	 * @param syncOnWrite whether write operations wait until their log record is synced
+	 * @param syncIntervalMillis if 'syncOnWrite' is 'false', the log is synced in this
+	 * interval
+	 */
+	public PersistenceProviderWal(Path dir, PhValueCodec<?> valueCodec, boolean syncOnWrite,
+			int syncIntervalMillis) {
+		this(dir, valueCodec, syncOnWrite, syncIntervalMillis, false);
+	}
+
+	/**
+	 * Open or create a log, see {@link PersistenceProviderWal}.
+	 * @param dir the directory for the log and checkpoint files, it is created if necessary
+	 * @param valueCodec codec for the values of the tree
+	 * @param syncOnWrite whether write operations wait until their log record is synced
+	 * @param syncIntervalMillis if 'syncOnWrite' is 'false', the log is synced in this
+	 * interval
+	 * @param incrementalCheckpoints whether {@link #checkpoint()} writes only the modified
+	 * nodes instead of a snapshot of the whole tree
+	 */
+	@SuppressWarnings("unchecked")
+	public PersistenceProviderWal(Path dir, PhValueCodec<?> valueCodec, boolean syncOnWrite,
+			int syncIntervalMillis, boolean incrementalCheckpoints) {
+		if (!syncOnWrite && syncIntervalMillis < 1) {
+			throw new IllegalArgumentException("syncIntervalMillis=" + syncIntervalMillis);
+		}
+		this.dir = dir;
+		this.valueCodec = (PhValueCodec<Object>) valueCodec;
+		this.syncOnWrite = syncOnWrite;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.incrementalCheckpoints = incrementalCheckpoints;
+		try {
+			Files.createDirectories(dir);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// *****************************************
+	// Files
+	// *****************************************
+
+	private Path logFile(long gen) {
+		return dir.resolve(String.format("%s%010d%s", LOG_PREFIX, gen, LOG_SUFFIX));
+	}
+
+	private Path snapshotFile(long gen) {
+		return dir.resolve(String.format("%s%010d%s", SNAPSHOT_PREFIX, gen, SNAPSHOT_SUFFIX));
+	}
+
+	private Path nodesFile(long gen) {
+		return dir.resolve(String.format("%s%010d%s", NODES_PREFIX, gen, NODES_SUFFIX));
+	}
+
+	/**
+	 * @return The generations of all files with the given prefix, sorted
+	 */
+	private List<Long> list(String prefix, String suffix) throws IOException {
+		List<Long> gens = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				try {
+					gens.add(Long.parseLong(
+							name.substring(prefix.length(), name.length() - suffix.length())));
+				} catch (NumberFormatException e) {
+					//not our file
+				}
+			}
+		}
+		Collections.sort(gens);
+		return gens;
+	}
+
+	private long latestSnapshot() throws IOException {
+		List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		return snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+	}
+
+	private FileChannel openLog(long gen, int dims) throws IOException {
+		FileChannel ch = FileChannel.open(logFile(gen), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		ByteBuffer bb = ByteBuffer.allocate(LOG_HEADER);
+		bb.putLong(MAGIC).putInt(VERSION).putInt(dims).flip();
+		while (bb.hasRemaining()) {
+			ch.write(bb);
+		}
+		ch.force(false);
+		syncDir();
+		return ch;
+	}
+
+	private void syncDir() {
+		//Not supported on all platforms
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException e) {
+			//ignore
+		}
+	}
+
+	private void deleteBefore(long gen) throws IOException {
+		for (long g : list(LOG_PREFIX, LOG_SUFFIX)) {
+			if (g < gen) {
+				Files.deleteIfExists(logFile(g));
+			}
+		}
+		for (long g : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if (g < gen) {
+				Files.deleteIfExists(snapshotFile(g));
+			}
+		}
+	}
+
+	private RootPointer readRootPointer() throws IOException {
+		Path file = dir.resolve(ROOT_FILE);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (bb.capacity() != ROOT_BYTES || bb.getLong() != MAGIC || bb.getInt() != VERSION
+				|| bb.getInt(ROOT_BYTES - 4) != checksum(bb.array(), ROOT_BYTES - 4)) {
+			throw new IOException("Invalid checkpoint file: " + file);
+		}
+		RootPointer rp = new RootPointer();
+		rp.dims = bb.getInt();
+		rp.logGen = bb.getLong();
+		rp.nodesGen = bb.getLong();
+		rp.rootPos = bb.getLong();
+		rp.end = bb.getLong();
+		rp.compacted = bb.getLong();
+		return rp;
+	}
+
+	private void writeRootPointer(RootPointer rp) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(ROOT_BYTES);
+		bb.putLong(MAGIC).putInt(VERSION).putInt(rp.dims).putLong(rp.logGen)
+			.putLong(rp.nodesGen).putLong(rp.rootPos).putLong(rp.end).putLong(rp.compacted);
+		bb.putInt(checksum(bb.array(), ROOT_BYTES - 4));
+		Path tmp = dir.resolve(ROOT_TMP);
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			bb.flip();
+			while (bb.hasRemaining()) {
+				ch.write(bb);
+			}
+			ch.force(false);
+		}
+		Files.move(tmp, dir.resolve(ROOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		syncDir();
+	}
+
+	/**
+	 * Delete the node files of incremental checkpoints, except the current one.
+	 * @param all 'true' to delete also the current node file and the root pointer
+	 */
+	private void deleteNodeFiles(boolean all) throws IOException {
+		if (all) {
+			if (nodes != null) {
+				nodes.close();
+				nodes = null;
+			}
+			nodesRoot = null;
+			Files.deleteIfExists(dir.resolve(ROOT_FILE));
+		}
+		for (long g : list(NODES_PREFIX, NODES_SUFFIX)) {
+			if (nodesRoot == null || g != nodesRoot.nodesGen) {
+				Files.deleteIfExists(nodesFile(g));
+			}
+		}
+	}
+
+	// *****************************************
+	// Recovery
+	// *****************************************
+
+	/**
+	 * Called by trees that use this provider. Only one tree can use a provider.
+	 * The tree is recovered from the latest snapshot and the log.
+	 * @param tree The tree, it must be empty
+	 * @param checkpointer Writes snapshots of the tree, see {@link #checkpoint()}
+	 */
+	@SuppressWarnings("unchecked")
+	public void attach(PhTree<?> tree, Checkpointer checkpointer) {
+		if (this.tree != null) {
+			throw new IllegalStateException("The log is already used by another tree: " + dir);
+		}
+		this.tree = (PhTree<Object>) tree;
+		this.checkpointer = checkpointer;
+		recovering = true;
+		try {
+			long snapshot = latestSnapshot();
+			RootPointer rp = readRootPointer();
+			if (rp != null && rp.logGen > snapshot) {
+				checkDims(rp.dims);
+				nodes = FileChannel.open(nodesFile(rp.nodesGen), StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				//remove the records of an interrupted checkpoint
+				nodes.truncate(rp.end);
+				nodesRoot = rp;
+				checkpointer.loadNodes(nodes, rp.rootPos);
+				snapshot = rp.logGen;
+			} else if (snapshot >= 0) {
+				PhTree<Object> snap = PhTree.openSnapshot(snapshotFile(snapshot), valueCodec);
+				checkDims(snap.getDim());
+				PhExtent<Object> extent = snap.queryExtent();
+				this.tree.bulkLoad(new Iterator<PhEntry<Object>>() {
+					@Override
+					public boolean hasNext() {
+						return extent.hasNext();
+					}
+
+					@Override
+					public PhEntry<Object> next() {
+						return extent.nextEntry();
+					}
+				});
+			}
+			long maxGen = snapshot;
+			List<Long> logs = list(LOG_PREFIX, LOG_SUFFIX);
+			for (int i = 0; i < logs.size(); i++) {
+				long gen = logs.get(i);
+				if (gen >= snapshot) {
+					replay(logFile(gen), i == logs.size() - 1);
+				}
+				maxGen = Math.max(maxGen, gen);
+			}
+			deleteBefore(snapshot);
+			if (nodesRoot == null) {
+				deleteNodeFiles(true);
+			}
+			generation = maxGen + 1;
+			channel = openLog(generation, tree.getDim());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			recovering = false;
+		}
+		if (!syncOnWrite) {
+			syncThread = new Thread(this::syncLoop, "PhTree-WAL-sync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		}
+	}
+
+	private void checkDims(int dims) {
+		if (dims != tree.getDim()) {
+			throw new IllegalArgumentException(
+					"dims=" + tree.getDim() + " but the log contains a tree with dims=" + dims);
+		}
+	}
+
+	/**
+	 * Replays a log file. A damaged record at the end of the last log file is the result of 
+	 * a crash during a write, it is cut off the file. Any other damaged record means that
+	 * acknowledged writes would be lost, this fails with an exception.
+	 * @param file the log file
+	 * @param isLast whether this is the latest log file
+	 * @throws IOException if a record is damaged
+	 */
+	private void replay(Path file, boolean isLast) throws IOException {
+		int dims = tree.getDim();
+		long pos = LOG_HEADER;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a PH-Tree log: " + file);
+			}
+			checkDims(in.readInt());
+			byte[] data = new byte[64];
+			while (true) {
+				int len;
+				int checksum;
+				try {
+					len = in.readInt();
+					checksum = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (len < 1 || len > (1 << 30)) {
+					if (len == 0 && isZero(in)) {
+						break;
+					}
+					throw new IOException("Invalid log record at " + pos + ": " + file);
+				}
+				if (data.length < len) {
+					data = new byte[len];
+				}
+				try {
+					in.readFully(data, 0, len);
+				} catch (EOFException e) {
+					break;
+				}
+				if (checksum(data, len) != checksum) {
+					if (isZero(in)) {
+						break;
+					}
+					throw new IOException("Invalid log record at " + pos + ": " + file);
+				}
+				apply(new DataInputStream(new ByteArrayInputStream(data, 0, len)), dims);
+				pos += 8 + len;
+			}
+		} catch (EOFException e) {
+			//The header is incomplete
+			if (!isLast) {
+				throw new IOException("Invalid log header: " + file, e);
+			}
+			Files.delete(file);
+			return;
+		}
+		//Incomplete or damaged record at the end of the file
+		if (pos < Files.size(file)) {
+			if (!isLast) {
+				throw new IOException("Invalid log record at " + pos + ": " + file);
+			}
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ch.truncate(pos);
+				ch.force(true);
+			}
+		}
+	}
+
+	/**
+	 * @return 'true' if the rest of the stream contains only zeros
+	 */
+	private static boolean isZero(DataInputStream in) throws IOException {
+		int b;
+		while ((b = in.read()) == 0) {
+			//skip
+		}
+		return b < 0;
+	}
+
+	private static int checksum(byte[] data, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, len);
+		return (int) crc.getValue();
+	}
+
+	private void apply(DataInputStream in, int dims) throws IOException {
+		byte op = in.readByte();
+		if (op == CLEAR) {
+			tree.clear();
+			return;
+		}
+		long[] key = new long[dims];
+		for (int d = 0; d < dims; d++) {
+			key[d] = in.readLong();
+		}
+		switch (op) {
+		case PUT: tree.put(key, valueCodec.read(in)); break;
+		case PUT_NULL: tree.put(key, null); break;
+		case REMOVE: tree.remove(key); break;
+		default: throw new IOException("Invalid log record: " + op);
+		}
+	}
+
+	/**
+	 * @return 'true' while the tree is recovered. The tree does not log operations during
+	 * recovery.
+	 */
+	public boolean isRecovering() {
+		return recovering;
+	}
+
+	// *****************************************
+	// Logging
+	// *****************************************
+
+	/**
+	 * Log that a key has the given value.
+	 * @param key the key
+	 * @param value the value
+	 * @return the log sequence number of the record, see {@link #commit(long)}
+	 */
+	public long logPut(long[] key, Object value) {
+		if (recovering) {
+			return 0;
+		}
+		synchronized (appendLock) {
+			try {
+				record.reset();
+				recordOut.writeByte(value == null ? PUT_NULL : PUT);
+				for (long k : key) {
+					recordOut.writeLong(k);
+				}
+				if (value != null) {
+					valueCodec.write(value, recordOut);
+				}
+				return append();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Log that a key is not in the tree.
+	 * @param key the key
+	 * @return the log sequence number of the record, see {@link #commit(long)}
+	 */
+	public long logRemove(long[] key) {
+		if (recovering) {
+			return 0;
+		}
+		synchronized (appendLock) {
+			try {
+				record.reset();
+				recordOut.writeByte(REMOVE);
+				for (long k : key) {
+					recordOut.writeLong(k);
+				}
+				return append();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Log that the tree has been cleared.
+	 * @return the log sequence number of the record, see {@link #commit(long)}
+	 */
+	public long logClear() {
+		if (recovering) {
+			return 0;
+		}
+		synchronized (appendLock) {
+			try {
+				record.reset();
+				recordOut.writeByte(CLEAR);
+				return append();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private long append() throws IOException {
+		if (closed) {
+			throw new IllegalStateException("The log is closed: " + dir);
+		}
+		pendingOut.writeInt(record.size());
+		pendingOut.writeInt(checksum(record.buffer(), record.size()));
+		pendingOut.write(record.buffer(), 0, record.size());
+		appendedLsn += 8 + record.size();
+		records++;
+		return appendedLsn;
+	}
+
+	/**
+	 * Called by the tree after a write operation. With {@code syncOnWrite=true}, this waits
+	 * until the log is synced up to the given log sequence number.
+	 * @param lsn the log sequence number of the last record of the operation
+	 */
+	public void commit(long lsn) {
+		if (syncOnWrite || lsn - durableLsn > MAX_PENDING) {
+			sync(lsn);
+		}
+	}
+
+	/**
+	 * Write and sync all records up to the given log sequence number. Records of other
+	 * writers are written and synced with it.
+	 */
+	private void sync(long lsn) {
+		if (durableLsn >= lsn) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (failure != null) {
+				throw new UncheckedIOException(failure);
+			}
+			if (durableLsn >= lsn) {
+				//another writer synced our record
+				return;
+			}
+			Buffer data;
+			long upTo;
+			synchronized (appendLock) {
+				data = pending;
+				upTo = appendedLsn;
+				pending = spare;
+				pendingOut = new DataOutputStream(pending);
+			}
+			if (data.size() == 0) {
+				spare = data;
+				durableLsn = upTo;
+				return;
+			}
+			try {
+				ByteBuffer bb = ByteBuffer.wrap(data.buffer(), 0, data.size());
+				while (bb.hasRemaining()) {
+					channel.write(bb);
+				}
+				channel.force(false);
+				syncs++;
+			} catch (IOException e) {
+				failure = e;
+				throw new UncheckedIOException(e);
+			}
+			data.reset();
+			spare = data;
+			durableLsn = upTo;
+		}
+	}
+
+	private void syncLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(syncIntervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				flush();
+			} catch (UncheckedIOException e) {
+				//reported to writers
+			}
+		}
+	}
+
+	/**
+	 * Start a new log file, this syncs the current log file.
+	 */
+	private long rotate() {
+		synchronized (syncLock) {
+			sync(Long.MAX_VALUE);
+			try {
+				channel.close();
+				generation++;
+				channel = openLog(generation, tree.getDim());
+			} catch (IOException e) {
+				failure = e;
+				throw new UncheckedIOException(e);
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * Write a checkpoint of the tree and delete the log files and checkpoints that are no
+	 * longer needed for recovery. This writes either a snapshot of the tree or, with 
+	 * incremental checkpoints, the nodes that have been modified since the last checkpoint. 
+	 * In COW mode, this can be called concurrently with other operations, write operations 
+	 * are blocked only while the log file is switched.
+	 */
+	public void checkpoint() {
+		if (tree == null) {
+			throw new IllegalStateException("No tree uses this log: " + dir);
+		}
+		synchronized (checkpointLock) {
+			try {
+				if (incrementalCheckpoints) {
+					checkpointNodes();
+					return;
+				}
+				Path tmp = dir.resolve(SNAPSHOT_TMP);
+				long[] gen = new long[1];
+				checkpointer.checkpoint(tmp, () -> gen[0] = rotate());
+				Files.move(tmp, snapshotFile(gen[0]), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				syncDir();
+				deleteBefore(gen[0]);
+				deleteNodeFiles(true);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void checkpointNodes() throws IOException {
+		boolean full = nodes == null 
+				|| nodes.size() > COMPACTION_FACTOR * Math.max(nodesRoot.compacted, 4096);
+		FileChannel ch = nodes;
+		long nodesGen = full ? generation : nodesRoot.nodesGen;
+		if (full) {
+			ch = FileChannel.open(nodesFile(nodesGen), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		RootPointer rp = new RootPointer();
+		boolean success = false;
+		try {
+			long[] gen = new long[1];
+			rp.rootPos = checkpointer.checkpointNodes(ch, full, () -> gen[0] = rotate());
+			ch.force(false);
+			rp.dims = tree.getDim();
+			rp.logGen = gen[0];
+			rp.nodesGen = nodesGen;
+			rp.end = ch.size();
+			rp.compacted = full ? rp.end : nodesRoot.compacted;
+			writeRootPointer(rp);
+			success = true;
+		} finally {
+			if (!success) {
+				//The nodes may refer to records that are not in the checkpoint
+				if (ch != nodes) {
+					ch.close();
+				}
+				deleteNodeFiles(false);
+				if (nodes != null) {
+					nodes.close();
+					nodes = null;
+				}
+			}
+		}
+		if (full && nodes != null) {
+			nodes.close();
+		}
+		nodes = ch;
+		nodesRoot = rp;
+		deleteBefore(rp.logGen);
+		deleteNodeFiles(false);
+	}
+
+	/**
+	 * @return The value codec for trees that use this provider.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> PhValueCodec<T> getValueCodec() {
+		return (PhValueCodec<T>) valueCodec;
+	}
+
+	/**
+	 * @return The number of times the log has been synced to disk.
+	 */
+	public int statsGetSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * @return The number of log records.
+	 */
+	public int statsGetRecords() {
+		return records;
+	}
+
+	/**
+	 * Reset the statistics counters.
+	 */
+	public void statsReset() {
+		syncs = 0;
+		records = 0;
+	}
+
+	/**
+	 * @return the tree of this log, or 'null' if the directory contains no tree.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> PhTree<T> loadTree() {
+		if (tree != null) {
+			return (PhTree<T>) tree;
+		}
+		int dims = getStoredDims();
+		if (dims == 0) {
+			return null;
+		}
+		PhTreeConfig cfg = new PhTreeConfig(dims);
+		cfg.setWriteAheadLog(this);
+		return new PhTree16<>(cfg);
+	}
+
+	/**
+	 * @return The number of dimensions of the stored tree, or 0 if the directory contains
+	 * no tree.
+	 */
+	public int getStoredDims() {
+		try {
+			long snapshot = latestSnapshot();
+			RootPointer rp = readRootPointer();
+			if (rp != null && rp.logGen > snapshot) {
+				return rp.dims;
+			}
+			if (snapshot >= 0) {
+				return PhTree.openSnapshot(snapshotFile(snapshot), valueCodec).getDim();
+			}
+			for (long gen : list(LOG_PREFIX, LOG_SUFFIX)) {
+				try (DataInputStream in = new DataInputStream(Files.newInputStream(logFile(gen)))) {
+					if (in.readLong() == MAGIC && in.readInt() == VERSION) {
+						return in.readInt();
+					}
+				} catch (EOFException e) {
+					//incomplete header
+				}
+			}
+			return 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write and sync all log records.
+	 */
+	public void flush() {
+		if (channel != null) {
+			sync(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Flush and close the log.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		if (syncThread != null) {
+			syncThread.interrupt();
+			try {
+				syncThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (syncLock) {
+			flush();
+			closed = true;
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				if (nodes != null) {
+					nodes.close();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@
  */
 package ch.ethz.globis.phtree;
 
+import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
 
 /**
  * Filter for window queries.
@@ -33,12 +34,7 @@ public class PhFilterWindow implements PhFilter {
 
 	@Override
 	public boolean isValid(long[] key) {
-		for (int i = 0; i < key.length; i++) {
-			if (key[i] < min[i] || key[i] > max[i]) {
-				return false;
-			}
-		}
-		return true;
+		return LongArrayOps.checkRange(key, min, max);
 	}
 
 	@Override
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+
+/**
+ * Result buffer of a batch of kNN queries, see
+ * {@link PhTree#nearestNeighbourBatch(int, PhDistance, long[][], ForkJoinPool)}.
+ * <p>
+ * The results are stored in flat arrays. For query 'q' (the index of the center point),
+ * the i-th neighbour (0 &lt;= i &lt; {@link #count(int)}) is stored at position {@code q*k+i}
+ * in {@link #getDistances()} and {@link #getValues()} and its key starts at position
+ * {@code (q*k+i)*dims} in {@link #getKeys()}.
+ * The neighbours of a query are sorted by distance.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class PhKnnBatchResult<T> {
+
+	/** Number of consecutive (in z-order) queries that are executed by one task. */
+	private static final int CHUNK_SIZE = 256;
+
+	/**
+	 * Executes single kNN queries. An executor is used by only one thread,
+	 * it should reuse its query object.
+	 *
+	 * @param <T> value type
+	 */
+	@FunctionalInterface
+	public interface QueryExecutor<T> {
+		/**
+		 * @param center the center point
+		 * @return The query result. The result is read before the next call.
+		 */
+		PhKnnQuery<T> query(long[] center);
+	}
+
+	private final int k;
+	private final int dims;
+	private final int[] counts;
+	private final long[] keys;
+	private final double[] distances;
+	private final Object[] values;
+
+	private PhKnnBatchResult(int nQueries, int k, int dims) {
+		if ((long) nQueries * k * dims > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Result too large: queries=" + nQueries + 
+					" k=" + k + " dims=" + dims);
+		}
+		this.k = k;
+		this.dims = dims;
+		this.counts = new int[nQueries];
+		this.keys = new long[nQueries * k * dims];
+		this.distances = new double[nQueries * k];
+		this.values = new Object[nQueries * k];
+	}
+
+	/**
+	 * Execute a batch of kNN queries. The queries are executed in z-order of their center
+	 * points, such that consecutive queries access mostly the same nodes.
+	 * This is used by implementations of {@link PhTree}.
+	 * @param k number of neighbours per query
+	 * @param dims number of dimensions
+	 * @param centers the center points
+	 * @param pool the pool for parallel execution, or 'null'
+	 * @param executors creates one executor per thread or task
+	 * @return The result buffer.
+	 * @param <T> value type
+	 */
+	public static <T> PhKnnBatchResult<T> execute(int k, int dims, long[][] centers,
+			ForkJoinPool pool, Supplier<QueryExecutor<T>> executors) {
+		int n = centers.length;
+		PhKnnBatchResult<T> result = new PhKnnBatchResult<>(n, Math.max(k, 0), dims);
+		if (k <= 0 || n == 0) {
+			return result;
+		}
+		int[] order = zOrder(centers);
+		if (pool == null || n <= CHUNK_SIZE) {
+			result.execute(order, 0, n, centers, executors.get());
+			return result;
+		}
+		int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		pool.submit(() -> IntStream.range(0, nChunks).parallel().forEach(c ->
+			result.execute(order, c * CHUNK_SIZE, Math.min(n, (c + 1) * CHUNK_SIZE),
+					centers, executors.get())
+		)).join();
+		return result;
+	}
+
+	private void execute(int[] order, int from, int to, long[][] centers, QueryExecutor<T> executor) {
+		for (int i = from; i < to; i++) {
+			int q = order[i];
+			long[] center = centers[q];
+			if (center.length != dims) {
+				throw new IllegalArgumentException("center.length=" + center.length + " dims=" + dims);
+			}
+			PhKnnQuery<T> query = executor.query(center);
+			int pos = q * k;
+			int n = 0;
+			while (n < k && query.hasNext()) {
+				PhEntryDist<T> e = query.nextEntryReuse();
+				System.arraycopy(e.getKey(), 0, keys, (pos + n) * dims, dims);
+				distances[pos + n] = e.dist();
+				values[pos + n] = PhTreeHelper.unmaskNull(e.getValue());
+				n++;
+			}
+			counts[q] = n;
+		}
+	}
+
+	/**
+	 * @return The positions of the center points in z-order.
+	 */
+	private static int[] zOrder(long[][] centers) {
+		Integer[] order = new Integer[centers.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> compareZ(centers[i1], centers[i2]));
+		int[] ret = new int[order.length];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = order[i];
+		}
+		return ret;
+	}
+
+	/**
+	 * Compare keys in z-order, for every bit, dimension 0 is most significant.
+	 * Negative values are ordered before positive values.
+	 */
+	private static int compareZ(long[] k1, long[] k2) {
+		int maxBit = -1;
+		int maxDim = -1;
+		for (int d = 0; d < k1.length && d < k2.length; d++) {
+			long diff = k1[d] ^ k2[d];
+			if (diff != 0) {
+				int bit = 63 - Long.numberOfLeadingZeros(diff);
+				if (bit > maxBit) {
+					maxBit = bit;
+					maxDim = d;
+				}
+			}
+		}
+		if (maxDim < 0) {
+			return 0;
+		}
+		boolean isOne = (((k1[maxDim] ^ Long.MIN_VALUE) >>> maxBit) & 1L) != 0;
+		return isOne ? 1 : -1;
+	}
+
+	/**
+	 * @return The number of queries.
+	 */
+	public int size() {
+		return counts.length;
+	}
+
+	/**
+	 * @return The requested number of neighbours per query.
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @param query the query
+	 * @return The number of neighbours that were found for the query. This is less than 'k'
+	 * if the tree contains less than 'k' entries.
+	 */
+	public int count(int query) {
+		return counts[query];
+	}
+
+	/**
+	 * @param query the query
+	 * @param i the neighbour
+	 * @return The distance of the i-th neighbour of the query.
+	 */
+	public double dist(int query, int i) {
+		return distances[query * k + i];
+	}
+
+	/**
+	 * @param query the query
+	 * @param i the neighbour
+	 * @return The value of the i-th neighbour of the query.
+	 */
+	@SuppressWarnings("unchecked")
+	public T value(int query, int i) {
+		return (T) values[query * k + i];
+	}
+
+	/**
+	 * @param query the query
+	 * @param i the neighbour
+	 * @param d the dimension
+	 * @return The d-th coordinate of the key of the i-th neighbour of the query.
+	 */
+	public long key(int query, int i, int d) {
+		return keys[(query * k + i) * dims + d];
+	}
+
+	/**
+	 * @param query the query
+	 * @param i the neighbour
+	 * @param key the array to which the key of the i-th neighbour is written
+	 * @return the 'key' array
+	 */
+	public long[] key(int query, int i, long[] key) {
+		System.arraycopy(keys, (query * k + i) * dims, key, 0, dims);
+		return key;
+	}
+
+	/**
+	 * @param query the query
+	 * @param i the neighbour
+	 * @return A new array with the key of the i-th neighbour of the query.
+	 */
+	public long[] key(int query, int i) {
+		return key(query, i, new long[dims]);
+	}
+
+	/**
+	 * @return The flat array with the number of results per query.
+	 */
+	public int[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * @return The flat array of all keys.
+	 */
+	public long[] getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return The flat array of all distances.
+	 */
+	public double[] getDistances() {
+		return distances;
+	}
+
+	/**
+	 * @return The flat array of all values.
+	 */
+	public Object[] getValues() {
+		return values;
+	}
+}
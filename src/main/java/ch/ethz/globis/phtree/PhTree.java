@@ -19,15 +19,21 @@
  */
 package ch.ethz.globis.phtree;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 import ch.ethz.globis.phtree.util.PhIteratorBase;
 import ch.ethz.globis.phtree.util.PhMapper;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.v13.PhTree13;
 import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16.PhTree16Snapshot;
 import ch.ethz.globis.phtree.v16hd.PhTree16HD;
 
 /**
@@ -125,6 +131,70 @@ public interface PhTree<T> {
 		throw new UnsupportedOperationException("This is only supported in V13, V16 and V16HD.");
 	}
 
+	/**
+	 * @return a stream of all entries in the tree. Trees that support it, such as 
+	 * {@code PhTree16}, return streams that can be processed in parallel, for example with
+	 * {@code tree.stream().parallel()}.
+	 */
+	default Stream<PhEntry<T>> stream() {
+		return PhTreeHelper.stream(queryExtent());
+	}
+
+	/**
+	 * Performs a rectangular window query, see {@link #query(long[], long[])}. 
+	 * Trees that support it, such as {@code PhTree16}, return streams that can be 
+	 * processed in parallel, for example with {@code tree.stream(min, max).parallel()}.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return a stream of all entries in the query window.
+	 */
+	default Stream<PhEntry<T>> stream(long[] min, long[] max) {
+		return PhTreeHelper.stream(query(min, max));
+	}
+
+	/**
+	 * Counts the entries in a rectangular window, see {@link #query(long[], long[])}. 
+	 * Trees that support it, such as {@code PhTree16}, count sub-nodes that lie completely 
+	 * inside the window without visiting their entries.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return the number of entries in the query window.
+	 */
+	default long count(long[] min, long[] max) {
+		PhQuery<T> q = query(min, max);
+		long n = 0;
+		while (q.hasNext()) {
+			q.nextEntryReuse();
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Aggregates the entries in a rectangular window, see {@link #query(long[], long[])}. 
+	 * The aggregator is called for every entry in the window, no {@link PhEntry} or key 
+	 * objects are created. Example:
+	 * <pre>
+	 * LongSummaryStatistics stats = 
+	 *     tree.aggregate(min, max, new LongSummaryStatistics(), (s, key, value) -&gt; s.accept(value));
+	 * </pre>
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param accumulator the accumulator, for example a {@code LongSummaryStatistics}
+	 * @param aggregator the function that adds an entry to the accumulator 
+	 * @return the accumulator
+	 * @param <A> accumulator type
+	 */
+	default <A> A aggregate(long[] min, long[] max, A accumulator, 
+			PhAggregator<? super T, A> aggregator) {
+		PhQuery<T> q = query(min, max);
+		while (q.hasNext()) {
+			PhEntry<T> e = q.nextEntryReuse();
+			aggregator.add(accumulator, e.getKey(), PhTreeHelper.unmaskNull(e.getValue()));
+		}
+		return accumulator;
+	}
+
 	/**
 	 * 
 	 * @return the number of dimensions of the tree
@@ -151,13 +221,53 @@ public interface PhTree<T> {
 	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
 	 * several points have the same distance.
 	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
-	 * @param dims the dimension filter, can be {@code null}
+	 * @param dims the dimension filter, can be {@code null}. Only entries that pass the filter
+	 * are returned.
 	 * @param key the center point
 	 * @return The query iterator.
 	 */
 	PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist, PhFilter dims,
 			long... key);
 
+	/**
+	 * Execute many kNN queries at once, see 
+	 * {@link #nearestNeighbourBatch(int, PhDistance, long[][], ForkJoinPool)}.
+	 * @param k number of neighbours per query
+	 * @param centers the center points
+	 * @return The result buffer.
+	 */
+	default PhKnnBatchResult<T> nearestNeighbourBatch(int k, long[][] centers) {
+		return nearestNeighbourBatch(k, null, centers, null);
+	}
+
+	/**
+	 * Execute many kNN queries at once. The queries are executed in z-order of the center
+	 * points and every thread reuses its query object. The results are returned in 
+	 * flat arrays, see {@link PhKnnBatchResult}.
+	 * @param k number of neighbours per query
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param centers the center points
+	 * @param pool the pool for parallel execution, can be {@code null} 
+	 * @return The result buffer.
+	 */
+	default PhKnnBatchResult<T> nearestNeighbourBatch(int k, PhDistance dist, long[][] centers, 
+			ForkJoinPool pool) {
+		PhDistance d = dist == null ? PhDistanceL.THIS : dist;
+		return PhKnnBatchResult.execute(k, getDim(), centers, pool, 
+				() -> new PhKnnBatchResult.QueryExecutor<T>() {
+					private PhKnnQuery<T> q;
+
+					@Override
+					public PhKnnQuery<T> query(long[] center) {
+						if (q == null) {
+							q = nearestNeighbour(k, d, null, center);
+							return q;
+						}
+						return q.reset(k, d, center);
+					}
+				});
+	}
+
 	/**
 	 * Find all entries within a given distance from a center point.
 	 * @param dist Maximum distance
@@ -232,6 +342,20 @@ public interface PhTree<T> {
 	 * @param <T> the type of the values
 	 */
 	static <T> PhTree<T> create(PhTreeConfig cfg) {
+		if ((cfg.getConcurrencyType() == PhTreeConfig.CONCURRENCY_COW || 
+				cfg.getConcurrencyType() == PhTreeConfig.CONCURRENCY_OL_COW) && cfg.getDim() <= 60) {
+			//Only PhTree16 supports COW and OL_COW
+			return new PhTree16<>(cfg);
+		}
+		if ((cfg.getPersistenceProvider() instanceof PersistenceProviderFile || 
+				cfg.getWriteAheadLog() != null) && cfg.getDim() <= 60) {
+			//Only PhTree16 supports PersistenceProviderFile and PersistenceProviderWal
+			return new PhTree16<>(cfg);
+		}
+		if (cfg.getConcurrencyType() == PhTreeConfig.CONCURRENCY_HOH_COW && cfg.getDim() <= 60) {
+			//Only PhTree13 supports HOH_COW
+			return new PhTree13<>(cfg);
+		}
 		if (cfg.getDim() > 60) {
 			return new PhTree16HD<>(cfg);
 		} else if (cfg.getDim() >= 8) {
@@ -240,6 +364,33 @@ public interface PhTree<T> {
 		return new PhTree13<>(cfg);
 	}
 
+	/**
+	 * Open a read-only snapshot that was written with {@link PhTree16#writeSnapshot(Path)}.
+	 * 
+	 * @param path the snapshot file
+	 * @return PhTree
+	 * @param <T> the type of the values
+	 * @throws IOException if the file cannot be opened or is not a snapshot
+	 */
+	static <T> PhTree<T> openSnapshot(Path path) throws IOException {
+		return PhTree16Snapshot.open(path, PhValueCodec.<T>serializable());
+	}
+
+	/**
+	 * Open a read-only snapshot that was written with 
+	 * {@link PhTree16#writeSnapshot(Path, PhValueCodec)}. The file is mapped into memory,
+	 * opening is therefore independent of the size of the tree.
+	 * 
+	 * @param path the snapshot file
+	 * @param codec the codec that was used to write the snapshot
+	 * @return PhTree
+	 * @param <T> the type of the values
+	 * @throws IOException if the file cannot be opened or is not a snapshot
+	 */
+	static <T> PhTree<T> openSnapshot(Path path, PhValueCodec<T> codec) throws IOException {
+		return PhTree16Snapshot.open(path, codec);
+	}
+
 	/**
 	 * Interface for iterators that can reuse entries to avoid garbage collection. 
 	 * 
@@ -317,11 +468,72 @@ public interface PhTree<T> {
 		PhKnnQuery<T> reset(int nMin, PhDistance dist, long... center);
 	}
 
+	/**
+	 * Aggregation function for {@link PhTree#aggregate(long[], long[], Object, PhAggregator)}.
+	 * 
+	 * @param <T> the type of the values
+	 * @param <A> the type of the accumulator
+	 */
+	@FunctionalInterface
+	interface PhAggregator<T, A> {
+
+		/**
+		 * Add an entry to the accumulator.
+		 * @param accumulator the accumulator
+		 * @param key the key of the entry. This may be an internal array of the tree, it
+		 * must not be modified and is only valid during the call. 
+		 * @param value the value of the entry
+		 */
+		void add(A accumulator, long[] key, T value);
+	}
+
 	/**
 	 * Clear the tree.
 	 */
 	void clear();
 
+	/**
+	 * Insert many entries at once. The result is the same as calling {@link #put(long[], Object)}
+	 * for every entry in the given order, i.e. for duplicate keys the last value is stored.
+	 * Some trees, such as {@code PhTree16}, can build an empty tree much faster with this 
+	 * method than with individual calls to {@code put()}.
+	 * @param keys the keys
+	 * @param values the values, this must have the same length as 'keys'
+	 */
+	default void bulkLoad(long[][] keys, T[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException(
+					"keys.length=" + keys.length + " values.length=" + values.length);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			put(keys[i], values[i]);
+		}
+	}
+
+	/**
+	 * Same as {@link #bulkLoad(long[][], Object[])}, but trees that support it, such as 
+	 * {@code PhTree16}, use the threads of the given pool to build independent subtrees 
+	 * in parallel. Other trees ignore the pool.
+	 * @param keys the keys
+	 * @param values the values, this must have the same length as 'keys'
+	 * @param pool the pool, for example {@link ForkJoinPool#commonPool()}
+	 */
+	default void bulkLoad(long[][] keys, T[] values, ForkJoinPool pool) {
+		bulkLoad(keys, values);
+	}
+
+	/**
+	 * Same as {@link #bulkLoad(long[][], Object[])}. Streams can be loaded with 
+	 * {@code tree.bulkLoad(stream.iterator())}.
+	 * @param entries the entries
+	 */
+	default void bulkLoad(Iterator<? extends PhEntry<T>> entries) {
+		while (entries.hasNext()) {
+			PhEntry<T> e = entries.next();
+			put(e.getKey(), e.getValue());
+		}
+	}
+
 
 	// Overrides of JDK8 Map extension methods
 
@@ -8,13 +8,27 @@ package ch.ethz.globis.phtree;
 
 public class PhTreeConfig {
 
-	/** Concurrency via copy on write. */
+	/** No concurrency support. */
 	public static final int CONCURRENCY_NONE = 0;
-	/** Concurrency via copy on write. */
+	/** 
+	 * Concurrency via copy on write. Writers are serialized and modify private copies of the 
+	 * nodes on their path, readers are lock-free and see a consistent snapshot of the tree. 
+	 * Supported by {@code PhTree16}. 
+	 */
 	public static final int CONCURRENCY_COW = 1;
-	/** Concurrency via copy on write and optimistic locking. */
+	/** 
+	 * Concurrency via copy on write and optimistic locking. Writers lock and copy only the 
+	 * nodes that they modify, writers in disjoint subtrees can proceed in parallel. 
+	 * Readers are lock-free.
+	 * Supported by {@code PhTree16}. 
+	 */
 	public static final int CONCURRENCY_OL_COW = 2;
-	/** Concurrency via copy on write and hand over hand locking. */
+	/** 
+	 * Concurrency via copy on write and hand over hand locking. Writers lock-couple down 
+	 * their path and copy only the nodes that they modify, writers in different subtrees 
+	 * can proceed in parallel. Readers are lock-free.
+	 * Supported by {@code PhTree13}. 
+	 */
 	public static final int CONCURRENCY_HOH_COW = 3;
 	
 	private int dimUser;
@@ -22,6 +36,8 @@ public class PhTreeConfig {
 	private boolean[] unique; 
 	private int concurrencyType = CONCURRENCY_NONE;
 	private PersistenceProvider persProvider = PersistenceProvider.NONE;
+	private PersistenceProviderWal wal = null;
+	private PoolProvider poolProvider = PoolProvider.TREE;
 	
 	public PhTreeConfig(int dim) {
 		this.dimUser = dim;
@@ -85,4 +101,33 @@ public class PhTreeConfig {
 	public PersistenceProvider getPersistenceProvider() {
 		return persProvider;
 	}
+
+	/**
+	 * Set a write-ahead log. The tree logs all write operations and is recovered from the log
+	 * when it is created.
+	 * Supported by {@code PhTree16} with {@link #CONCURRENCY_NONE} and {@link #CONCURRENCY_COW}.
+	 * @param wal the log, or 'null' for no log
+	 */
+	public void setWriteAheadLog(PersistenceProviderWal wal) {
+		this.wal = wal;
+	}
+
+	public PersistenceProviderWal getWriteAheadLog() {
+		return wal;
+	}
+
+	/**
+	 * Set the provider of the object and array pools, the default is {@link PoolProvider#TREE}.
+	 * Trees with concurrent writers (OL_COW, HOH_COW) use {@link PoolProvider#THREAD_LOCAL} 
+	 * instead of providers that are not thread-safe.
+	 * Supported by {@code PhTree13}, {@code PhTree16} and {@code PhTree16HD}. 
+	 * @param poolProvider the pool provider
+	 */
+	public void setPoolProvider(PoolProvider poolProvider) {
+		this.poolProvider = poolProvider;
+	}
+
+	public PoolProvider getPoolProvider() {
+		return poolProvider;
+	}
 }
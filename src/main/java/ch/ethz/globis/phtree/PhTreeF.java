@@ -53,8 +53,12 @@ public class PhTreeF<T> {
 	}
 
 	protected PhTreeF(PhTree<T> tree) {
+		this(tree, new PreProcessorPointF.IEEE());
+	}
+
+	protected PhTreeF(PhTree<T> tree, PreProcessorPointF pre) {
 		this.pht = tree;
-		this.pre = new PreProcessorPointF.IEEE();
+		this.pre = pre;
 	}
 
 	/**
@@ -92,6 +96,18 @@ public class PhTreeF<T> {
 		return new PhTreeF<>(tree);
 	}
 
+	/**
+	 * Create a new PhTreeF as a wrapper around an existing PhTree.
+	 * 
+	 * @param tree another tree
+	 * @param pre The preprocessor to be used
+	 * @return PhTreeF
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeF<T> wrap(PhTree<T> tree, PreProcessorPointF pre) {
+		return new PhTreeF<>(tree, pre);
+	}
+
 	/**
 	 * @return the number of entries in the tree
 	 */
@@ -6,6 +6,13 @@
  */
 package ch.ethz.globis.phtree;
 
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import ch.ethz.globis.phtree.PhTree.PhIterator;
 
 /**
  *
@@ -157,6 +164,22 @@ public abstract class PhTreeHelper {
         //Following formula was for inverse ordering of current ordering...
         //pos = sum (i=1..n, len/2^i) = sum (..., 2^(n-i))
 
+    	//Unrolled for 2D, 3D and 4D: no loop and no loop-carried shift of 'pos'
+    	switch (valSet.length) {
+    	case 2:
+    		return (((valSet[0] >>> postLen) & 1L) << 1) | ((valSet[1] >>> postLen) & 1L);
+    	case 3:
+    		return (((valSet[0] >>> postLen) & 1L) << 2) | (((valSet[1] >>> postLen) & 1L) << 1)
+    				| ((valSet[2] >>> postLen) & 1L);
+    	case 4:
+    		return (((valSet[0] >>> postLen) & 1L) << 3) | (((valSet[1] >>> postLen) & 1L) << 2)
+    				| (((valSet[2] >>> postLen) & 1L) << 1) | ((valSet[3] >>> postLen) & 1L);
+    	default:
+    		return posInArrayLoop(valSet, postLen);
+    	}
+    }
+
+    private static long posInArrayLoop(long[] valSet, int postLen) {
     	long valMask = 1L << postLen;
     	
         long pos = 0;
@@ -237,6 +260,27 @@ public abstract class PhTreeHelper {
 		return value == PhTreeHelper.NULL ? null : (T) value;
 	}
 
+	/**
+	 * Creates a sequential stream from a query iterator. The stream returns new entries 
+	 * (see {@link PhIterator#nextEntry()}) and cannot be split for parallel execution.
+	 * @param it the iterator
+	 * @return a stream
+	 * @param <T> value type
+	 */
+	public static <T> Stream<PhEntry<T>> stream(PhIterator<T> it) {
+		Iterator<PhEntry<T>> iter = new Iterator<PhEntry<T>>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
 
-}
+			@Override
+			public PhEntry<T> next() {
+				return it.nextEntry();
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, 
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+	}
 
+}
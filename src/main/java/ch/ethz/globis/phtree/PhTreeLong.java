@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v16.PhTree16Long;
+
+/**
+ * k-dimensional index with primitive {@code long} values, for example row ids.
+ * <p>
+ * In contrast to {@code PhTree<Long>}, values are not stored as objects.
+ * Iterators return values with {@link PhIteratorLong#nextValueLong()}.
+ *
+ * @author ztilmann
+ */
+public interface PhTreeLong {
+
+	/**
+	 * @return The number of entries in the tree
+	 */
+	int size();
+
+	/**
+	 * @return The number of dimensions of the tree
+	 */
+	int getDim();
+
+	/**
+	 * @return PH-Tree statistics
+	 */
+	PhTreeStats getStats();
+
+	/**
+	 * Insert an entry associated with a k dimensional key.
+	 * Any previous value of the key is replaced.
+	 * @param key the key to store the value to store
+	 * @param value the value
+	 * @return {@code true} if the key was not present in the tree before
+	 */
+	boolean put(long[] key, long value);
+
+	/**
+	 * @param key key
+	 * @return {@code true} if the key exists in the tree
+	 */
+	boolean contains(long... key);
+
+	/**
+	 * @param key the key
+	 * @param defaultValue the value to return if the key does not exist
+	 * @return the value associated with the key or 'defaultValue' if the key does not exist
+	 */
+	long getOrDefault(long[] key, long defaultValue);
+
+	/**
+	 * Remove the entry associated with a k dimensional key.
+	 * @param key the key to remove
+	 * @return {@code true} if the key was found and removed
+	 */
+	boolean remove(long... key);
+
+	/**
+	 * Update the key of an entry. Any previous entry with the new key is replaced.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return {@code true} if the old key was found
+	 */
+	boolean update(long[] oldKey, long[] newKey);
+
+	/**
+	 * @return an iterator over all elements in the tree
+	 */
+	PhIteratorLong queryExtent();
+
+	/**
+	 * Performs a rectangular window query. The parameters are the min and max keys which
+	 * contain the minimum respectively the maximum keys in every dimension.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return Result iterator.
+	 */
+	PhIteratorLong query(long[] min, long[] max);
+
+	/**
+	 * Locate nearest neighbours for a given point in space, using the euclidean distance.
+	 * The results are returned in order of increasing distance.
+	 * @param nMin number of entries to be returned. More entries may or may not be returned
+	 * when several points have the same distance.
+	 * @param key the center point
+	 * @return The query iterator.
+	 */
+	PhIteratorLong nearestNeighbour(int nMin, long... key);
+
+	/**
+	 * Clear the tree.
+	 */
+	void clear();
+
+	/**
+	 * @return a tree representation of the tree.
+	 */
+	String toStringTree();
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeLong
+	 */
+	static PhTreeLong create(int dim) {
+		return new PhTree16Long(dim);
+	}
+
+	/**
+	 * Iterator with primitive values. Iterators become invalid when the tree is modified.
+	 */
+	interface PhIteratorLong {
+
+		/**
+		 * @return {@code true} if there is another entry
+		 */
+		boolean hasNext();
+
+		/**
+		 * @return the value of the next entry
+		 */
+		long nextValueLong();
+
+		/**
+		 * Returns the value of the next entry and copies its key into 'key'. This
+		 * does not create a key array.
+		 * @param key the array for the key of the entry
+		 * @return the value of the next entry
+		 */
+		long nextValueLong(long[] key);
+
+		/**
+		 * @return the key of the next entry
+		 */
+		long[] nextKey();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v16.PhTree16Set;
+
+/**
+ * k-dimensional index of keys without values, i.e. a set of points.
+ * <p>
+ * In contrast to {@code PhTree<Object>} or {@code PhTreeNV}, there are no value objects
+ * and iterators return keys without creating {@code PhEntry} objects.
+ *
+ * @author ztilmann
+ */
+public interface PhTreeSet {
+
+	/**
+	 * @return The number of keys in the tree
+	 */
+	int size();
+
+	/**
+	 * @return The number of dimensions of the tree
+	 */
+	int getDim();
+
+	/**
+	 * @return PH-Tree statistics
+	 */
+	PhTreeStats getStats();
+
+	/**
+	 * @param key the key to add
+	 * @return {@code true} if the key was not present in the tree before
+	 */
+	boolean add(long... key);
+
+	/**
+	 * @param key key
+	 * @return {@code true} if the key exists in the tree
+	 */
+	boolean contains(long... key);
+
+	/**
+	 * @param key the key to remove
+	 * @return {@code true} if the key was found and removed
+	 */
+	boolean remove(long... key);
+
+	/**
+	 * Replace a key with a new key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return {@code true} if the old key was found
+	 */
+	boolean update(long[] oldKey, long[] newKey);
+
+	/**
+	 * @return an iterator over all keys in the tree
+	 */
+	PhIteratorSet queryExtent();
+
+	/**
+	 * Performs a rectangular window query. The parameters are the min and max keys which
+	 * contain the minimum respectively the maximum keys in every dimension.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return Result iterator.
+	 */
+	PhIteratorSet query(long[] min, long[] max);
+
+	/**
+	 * Locate nearest neighbours for a given point in space, using the euclidean distance.
+	 * The results are returned in order of increasing distance.
+	 * @param nMin number of keys to be returned. More keys may or may not be returned
+	 * when several points have the same distance.
+	 * @param key the center point
+	 * @return The query iterator.
+	 */
+	PhIteratorSet nearestNeighbour(int nMin, long... key);
+
+	/**
+	 * Clear the tree.
+	 */
+	void clear();
+
+	/**
+	 * @return a tree representation of the tree.
+	 */
+	String toStringTree();
+
+	/**
+	 * Create a new set with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeSet
+	 */
+	static PhTreeSet create(int dim) {
+		return new PhTree16Set(dim);
+	}
+
+	/**
+	 * Iterator over keys. Iterators become invalid when the tree is modified.
+	 */
+	interface PhIteratorSet {
+
+		/**
+		 * @return {@code true} if there is another key
+		 */
+		boolean hasNext();
+
+		/**
+		 * @return the next key
+		 */
+		long[] nextKey();
+
+		/**
+		 * Copies the next key into 'key'. This does not create any objects.
+		 * @param key the array for the key
+		 */
+		void nextKey(long[] key);
+	}
+}
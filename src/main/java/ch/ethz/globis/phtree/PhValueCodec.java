@@ -0,0 +1,133 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Encodes and decodes values of a tree, for example for storing them in a file.
+ * Values are never 'null' when they are passed to a codec.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public interface PhValueCodec<T> {
+
+	/**
+	 * Codec for {@link Integer} values.
+	 */
+	PhValueCodec<Integer> INTEGER = new PhValueCodec<Integer>() {
+		@Override
+		public void write(Integer value, DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	/**
+	 * Codec for {@link Long} values.
+	 */
+	PhValueCodec<Long> LONG = new PhValueCodec<Long>() {
+		@Override
+		public void write(Long value, DataOutput out) throws IOException {
+			out.writeLong(value);
+		}
+
+		@Override
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+	};
+
+	/**
+	 * Codec for {@link String} values.
+	 */
+	PhValueCodec<String> STRING = new PhValueCodec<String>() {
+		@Override
+		public void write(String value, DataOutput out) throws IOException {
+			out.writeUTF(value);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			return in.readUTF();
+		}
+	};
+
+	/**
+	 * Codec for any {@link Serializable} value. This uses Java serialization for every value,
+	 * which is slow and requires a lot of space.
+	 */
+	PhValueCodec<Object> SERIALIZABLE = new PhValueCodec<Object>() {
+		@Override
+		public void write(Object value, DataOutput out) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+				oos.writeObject(value);
+			}
+			out.writeInt(bos.size());
+			out.write(bos.toByteArray());
+		}
+
+		@Override
+		public Object read(DataInput in) throws IOException {
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+				return ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+	};
+
+	/**
+	 * @return {@link #SERIALIZABLE} for any value type
+	 * @param <T> value type
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> PhValueCodec<T> serializable() {
+		return (PhValueCodec<T>) SERIALIZABLE;
+	}
+
+	/**
+	 * @param value the value, not 'null'
+	 * @param out the output
+	 * @throws IOException if writing fails
+	 */
+	void write(T value, DataOutput out) throws IOException;
+
+	/**
+	 * @param in the input
+	 * @return the value
+	 * @throws IOException if reading fails
+	 */
+	T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Interface for pool providers. Pool providers decide which object and array pools
+ * (for nodes, {@code long[]}, {@code Object[]}, ...) are used by a tree.
+ * <p>
+ * A tree requests its pools once, as a set of pools of a tree specific type. It then uses
+ * the returned accessor every time it needs a pool.
+ *
+ * @author ztilmann
+ */
+public interface PoolProvider {
+
+	/**
+	 * The default pool provider. Every tree has its own pools, they are not thread-safe.
+	 */
+	public static final PoolProvider TREE = new PoolProviderTree();
+
+	/**
+	 * Every thread has its own pools, they are shared by all trees of the same type.
+	 * This avoids lock contention between threads and allows many trees (for example
+	 * trees that are built concurrently) to recycle each other's objects.
+	 * <p>
+	 * The pools of a thread are kept until the thread ends.
+	 */
+	public static final PoolProvider THREAD_LOCAL = new PoolProviderThreadLocal();
+
+	/**
+	 * Pools are owned by a single tree.
+	 */
+	public static class PoolProviderTree implements PoolProvider {
+		@Override
+		public <P> Supplier<P> getPools(Class<P> type, Supplier<P> constructor) {
+			P pools = constructor.get();
+			return () -> pools;
+		}
+
+		@Override
+		public boolean isThreadSafe() {
+			return false;
+		}
+
+		@Override
+		public String getDescription() {
+			return "TREE";
+		}
+	}
+
+	/**
+	 * Pools are owned by a thread and shared by all trees of the same type.
+	 */
+	public static class PoolProviderThreadLocal implements PoolProvider {
+		private final ConcurrentHashMap<Class<?>, ThreadLocal<?>> pools = new ConcurrentHashMap<>();
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P> Supplier<P> getPools(Class<P> type, Supplier<P> constructor) {
+			ThreadLocal<P> local = (ThreadLocal<P>) pools.computeIfAbsent(type,
+					t -> ThreadLocal.withInitial(constructor));
+			return local::get;
+		}
+
+		@Override
+		public boolean isThreadSafe() {
+			return true;
+		}
+
+		@Override
+		public String getDescription() {
+			return "THREAD_LOCAL";
+		}
+	}
+
+	/**
+	 * @param type The type of the pool set. Providers may share pool sets of the same type
+	 * between trees, the pool set must therefore not contain any tree specific state.
+	 * @param constructor Creates a new pool set
+	 * @param <P> The type of the pool set
+	 * @return An accessor that returns the pool set that should be used by the current thread.
+	 */
+	public <P> Supplier<P> getPools(Class<P> type, Supplier<P> constructor);
+
+	/**
+	 * @return 'true' if the pools can be used by concurrent writers.
+	 */
+	public boolean isThreadSafe();
+
+	public String getDescription();
+}
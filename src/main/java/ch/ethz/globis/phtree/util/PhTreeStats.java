@@ -17,6 +17,11 @@ public final class PhTreeStats {
 	public int nAHC; //AHC nodes (formerly Nodes with AHC-postfix representation)
 	public int nNtNodes; //NtNodes (formerly Nodes with sub-HC representation)
 	public int nNT; //nodes with NT representation
+	public int nDense; //nodes with dense representation (PhTree16)
+	public int nDenseEntries; //entries in nodes with dense representation (PhTree16)
+	public int nDenseSlots; //slots of the hypercubes of nodes with dense representation (PhTree16)
+	public long nSwitchToDense; //switches from BST to dense representation (PhTree16)
+	public long nSwitchToBst; //switches from dense to BST representation (PhTree16)
 	public int nTotalChildren;
 	public long size;  //calculated size in bytes
 	public int q_totalDepth;
@@ -40,7 +45,11 @@ public final class PhTreeStats {
 		r.appendLn("  nNodes = " + nNodes);
 		r.appendLn("  avgNodeDepth = " + (double)q_totalDepth/(double)nNodes); 
 		//            "  noPostChildren=" + q_nPostFix1 + "\n" +
-		r.appendLn("  AHC=" + nAHC + "  NI=" + nNT + "  nNtNodes=" + nNtNodes);
+		r.appendLn("  AHC=" + nAHC + "  NI=" + nNT + "  nNtNodes=" + nNtNodes + "  dense=" + nDense);
+		if (nDense > 0 || nSwitchToDense > 0) {
+			r.appendLn("  denseEntries/slots=" + nDenseEntries + "/" + nDenseSlots + 
+					"  switchToDense=" + nSwitchToDense + "  switchToBst=" + nSwitchToBst);
+		}
 		double apl = getAvgPostlen(r);
 		r.appendLn("  avgPostLen = " + apl + " (" + (bitWidth-apl) + ")");
 
@@ -90,6 +99,40 @@ public final class PhTreeStats {
 		return nNT;
 	}
 
+	public int getDenseCount() {
+		return nDense;
+	}
+
+	/**
+	 * @return Number of entries in nodes with dense representation.
+	 */
+	public int getDenseEntryCount() {
+		return nDenseEntries;
+	}
+
+	/**
+	 * @return Number of slots (2^dims per node) of nodes with dense representation.
+	 */
+	public int getDenseSlotCount() {
+		return nDenseSlots;
+	}
+
+	/**
+	 * @return Number of times that a node switched to the dense representation 
+	 * because it reached the threshold.
+	 */
+	public long getSwitchToDenseCount() {
+		return nSwitchToDense;
+	}
+
+	/**
+	 * @return Number of times that a dense node switched back to the BST representation 
+	 * because it fell below the threshold.
+	 */
+	public long getSwitchToBstCount() {
+		return nSwitchToBst;
+	}
+
 	public long getCalculatedMemSize() {
 		return size;
 	}
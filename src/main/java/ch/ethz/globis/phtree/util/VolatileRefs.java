@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Release/acquire access to elements of Object[].
+ * <p>
+ * Lock-free writers use {@link #setRelease(Object[], int, Object)} to publish a new
+ * sub-node into a node that is visible to readers. Readers use
+ * {@link #getAcquire(Object[], int)} to follow references, so they see the sub-node only
+ * after all writes that initialized it.
+ * <p>
+ * This version uses {@code sun.misc.Unsafe}, the same as {@code AtomicReferenceArray} in
+ * Java 8. If it is not available, both methods synchronize on the array.
+ * The jar contains a Java 17 version of this class that uses a {@code VarHandle}, see
+ * {@code src/main/java17}. Both versions must have the same API.
+ *
+ * @author ztilmann
+ */
+public final class VolatileRefs {
+
+	private static final MethodHandle PUT_ORDERED;
+	private static final MethodHandle GET_VOLATILE;
+	private static final long BASE;
+	private static final int SHIFT;
+
+	static {
+		MethodHandle put = null;
+		MethodHandle get = null;
+		long base = 0;
+		int shift = 0;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Object unsafe = f.get(null);
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			base = (int) c.getMethod("arrayBaseOffset", Class.class).invoke(unsafe, Object[].class);
+			int scale = (int) c.getMethod("arrayIndexScale", Class.class).invoke(unsafe, Object[].class);
+			shift = 31 - Integer.numberOfLeadingZeros(scale);
+			put = l.findVirtual(c, "putOrderedObject",
+					MethodType.methodType(void.class, Object.class, long.class, Object.class))
+					.bindTo(unsafe);
+			get = l.findVirtual(c, "getObjectVolatile",
+					MethodType.methodType(Object.class, Object.class, long.class))
+					.bindTo(unsafe);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			put = null;
+			get = null;
+		}
+		PUT_ORDERED = put;
+		GET_VOLATILE = get;
+		BASE = base;
+		SHIFT = shift;
+	}
+
+	private VolatileRefs() {
+		// static methods only
+	}
+
+	private static long offset(Object[] a, int i) {
+		if (i < 0 || i >= a.length) {
+			throw new ArrayIndexOutOfBoundsException(i);
+		}
+		return BASE + ((long) i << SHIFT);
+	}
+
+	/**
+	 * Writes {@code a[i] = value}. All previous writes of this thread become visible before
+	 * the new value.
+	 * @param a array
+	 * @param i index
+	 * @param value new value
+	 */
+	public static void setRelease(Object[] a, int i, Object value) {
+		if (PUT_ORDERED == null) {
+			synchronized (a) {
+				a[i] = value;
+			}
+			return;
+		}
+		try {
+			PUT_ORDERED.invokeExact((Object) a, offset(a, i), value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param a array
+	 * @param i index
+	 * @return {@code a[i]}. Writes that were visible to the writer of the value before it
+	 * wrote the value with {@link #setRelease(Object[], int, Object)} are visible after this
+	 * call.
+	 */
+	public static Object getAcquire(Object[] a, int i) {
+		if (GET_VOLATILE == null) {
+			synchronized (a) {
+				return a[i];
+			}
+		}
+		try {
+			return (Object) GET_VOLATILE.invokeExact((Object) a, offset(a, i));
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+/**
+ * Window checks of kd-keys, used by range queries and {@code PhFilterWindow}.
+ * <p>
+ * The jar contains a Java 17 version of this class that compares keys with the Vector API
+ * ({@code jdk.incubator.vector}) if the JVM runs with 
+ * {@code --add-modules jdk.incubator.vector}, see {@code src/main/java17}. 
+ * Both versions must have the same API and return the same results.
+ *
+ * @author ztilmann
+ */
+public final class WindowOps {
+
+	private WindowOps() {
+		// static methods only
+	}
+
+	/**
+	 * Check whether a key lies inside a window. 
+	 * @param key The key
+	 * @param min Lower corner of the window (inclusive)
+	 * @param max Upper corner of the window (inclusive)
+	 * @return 'true' if the key lies inside the window 
+	 */
+	public static boolean checkRange(long[] key, long[] min, long[] max) {
+		for (int i = 0; i < key.length; i++) {
+			long k = key[i];
+			if (k < min[i] || k > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -8,6 +8,7 @@ package ch.ethz.globis.phtree.util.unsynced;
 
 import ch.ethz.globis.phtree.PhTreeHelper;
 import ch.ethz.globis.phtree.util.BitTools;
+import ch.ethz.globis.phtree.util.WindowOps;
 import ch.ethz.globis.phtree.v16hd.BitsHD;
 
 import static ch.ethz.globis.phtree.PhTreeHelper.DEBUG;
@@ -553,14 +554,16 @@ public class LongArrayOps {
     }
 
 	
+    /**
+     * Check whether a key lies inside a window. 
+     * @param candidate The key
+     * @param rangeMin Lower corner of the window (inclusive)
+     * @param rangeMax Upper corner of the window (inclusive)
+     * @return 'true' if the key lies inside the window 
+     * @see WindowOps#checkRange(long[], long[], long[])
+     */
     public static boolean checkRange(long[] candidate, long[] rangeMin, long[] rangeMax) {
-		for (int i = 0; i < candidate.length; i++) {
-			long k = candidate[i];
-			if (k < rangeMin[i] || k > rangeMax[i]) {
-				return false;
-			}
-		}
-		return true;
+    	return WindowOps.checkRange(candidate, rangeMin, rangeMax);
 	}
 
 	
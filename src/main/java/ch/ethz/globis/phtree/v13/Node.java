@@ -22,7 +22,9 @@ package ch.ethz.globis.phtree.v13;
 import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.util.VolatileRefs;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.BiFunction;
 
 
@@ -73,6 +75,11 @@ public class Node {
 	private byte postLenStored = 0;
 	private byte infixLenStored = 0; //prefix size
 
+	//HOH_COW: Writer lock, 1 = locked. Nodes that have been replaced by a copy may remain locked.
+	private volatile int hohLock = 0;
+	private static final AtomicIntegerFieldUpdater<Node> HOH_LOCK = 
+			AtomicIntegerFieldUpdater.newUpdater(Node.class, "hohLock");
+
 	
 	static final int IK_WIDTH(int dims) { return dims; } //post index key width
 
@@ -97,6 +104,45 @@ public class Node {
 		return new Node();
 	}
 
+	/**
+	 * HOH_COW: Lock the node, waits until the node is available.
+	 */
+	void hohLock() {
+		while (!HOH_LOCK.compareAndSet(this, 0, 1)) {
+			Thread.yield();
+		}
+	}
+
+	void hohUnlock() {
+		hohLock = 0;
+	}
+
+	/**
+	 * @param key The key
+	 * @return The sub-node at the position of the key, regardless of whether its infix 
+	 * matches the key, or 'null' if there is no sub-node.
+	 */
+	Node getSubNode(long[] key) {
+		long hcPos = posInArray(key, getPostLen());
+		int pin = getPosition(hcPos, key.length);
+		if (pin < 0) {
+			return null;
+		}
+		Object v = VolatileRefs.getAcquire(values, pin);
+		return v instanceof Node ? (Node) v : null;
+	}
+
+	/**
+	 * Replace the sub-node at the position of the key with a copy of the sub-node.
+	 * This is a release store, so lock-free readers see a complete copy.
+	 * @param key The key
+	 * @param newSub The copy
+	 */
+	void replaceSubNode(long[] key, Node newSub) {
+		long hcPos = posInArray(key, getPostLen());
+		VolatileRefs.setRelease(values, getPosition(hcPos, key.length), newSub);
+	}
+
 	private void initNode(int infixLenClassic, int postLenClassic, int dims, PhTree13<?> tree) {
 		this.infixLenStored = (byte) (infixLenClassic + 1);
 		this.postLenStored = (byte) (postLenClassic + 1);
@@ -223,7 +269,7 @@ public class Node {
 		int offs;
 		int dims = keyToMatch.length;
 		if (isAHC()) {
-			v = values[(int) hcPos];
+			v = VolatileRefs.getAcquire(values, (int) hcPos);
 			if (v == null) {
 				//not found
 				return null;
@@ -236,7 +282,7 @@ public class Node {
 				//not found
 				return null;
 			}
-			v = values[pin];
+			v = VolatileRefs.getAcquire(values, pin);
 			offs = pinToOffsBitsDataLHC(pin, getBitPosIndex(), dims);
 		}
 		if (v instanceof Node) {
@@ -555,7 +601,8 @@ public class Node {
 		if (val2 instanceof Node) {
 			getInfixOfSub(pin2, pos2, newPost);
 	
-			Node sub2 = (Node) val2;
+			//sub2 is not on the path of the current operation
+			Node sub2 = tree.copyOnWrite((Node) val2);
 			int newInfixLen = getInfixLen() + 1 + sub2.getInfixLen();
 			sub2.setInfixLen(newInfixLen);
 
@@ -578,7 +625,7 @@ public class Node {
 	 * @return The sub node or null.
 	 */
 	private Object getEntryByPIN(int posInNode, long hcPos, long[] postBuf) {
-		Object o = values[posInNode];
+		Object o = VolatileRefs.getAcquire(values, posInNode);
 		if (o instanceof Node) {
 			getInfixOfSub(posInNode, hcPos, postBuf);
 		} else {
@@ -616,7 +663,7 @@ public class Node {
 	 * @return The sub node or null.
 	 */
 	Object getEntryPIN(int posInNode, long hcPos, long[] subNodePrefix, long[] outKey) {
-		Object o = values[posInNode];
+		Object o = VolatileRefs.getAcquire(values, posInNode);
 		if (o == null) {
 			return null;
 		}
@@ -856,7 +903,7 @@ public class Node {
 	 */
 	Object checkAndGetEntryPIN(int pin, long hcPos, long[] inOutPrefix, long[] outKey,
 			long[] rangeMin, long[] rangeMax) {
-		Object o = values[pin]; 
+		Object o = VolatileRefs.getAcquire(values, pin);
 		if (o == null) {
 			return null;
 		}
@@ -91,13 +91,15 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 		this.stack.size = 0;
 		this.isFinished = false;
 		
-		if (pht.getRoot() == null) {
+		//read root only once, it may change concurrently (HOH)
+		Node root = pht.getRoot();
+		if (root == null) {
 			//empty index
 			isFinished = true;
 			return this;
 		}
 		
-		stack.prepareAndPush(pht.getRoot());
+		stack.prepareAndPush(root);
 		findNextElement();
 		return this;
 	}
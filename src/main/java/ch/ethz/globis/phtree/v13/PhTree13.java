@@ -20,10 +20,14 @@
 package ch.ethz.globis.phtree.v13;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhDistanceL;
@@ -34,6 +38,7 @@ import ch.ethz.globis.phtree.PhRangeQuery;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.PhTreeConfig;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PoolProvider;
 import ch.ethz.globis.phtree.util.*;
 import ch.ethz.globis.phtree.util.unsynced.LongArrayPool;
 import ch.ethz.globis.phtree.util.unsynced.ObjectArrayPool;
@@ -116,51 +121,93 @@ public class PhTree13<T> implements PhTree<T> {
 
 	private Node root = null;
 
-	private final ObjectPool<Node> nodePool;
-	private final ObjectArrayPool<Object> refPool;
-	private final LongArrayPool bitPool;
+	//Object and array pools, see PhTreeConfig.setPoolProvider()
+	private final Supplier<Pools> pools;
+
+	//Hand-over-hand locking with copy-on-write, see PhTreeConfig.CONCURRENCY_HOH_COW
+	private final boolean isHOH;
+	//HOH: Latest published version of the tree. This is what readers see.
+	private volatile Node hohRoot = null;
+	//HOH: Lock for 'hohRoot', 1 = locked. This acts as lock of the parent of the root node.
+	private volatile int hohRootLock = 0;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<PhTree13> HOH_ROOT_LOCK = 
+			AtomicIntegerFieldUpdater.newUpdater(PhTree13.class, "hohRootLock");
+	//HOH: Write state of each writer thread
+	private final ThreadLocal<WriterContext> hohContext;
+	private final LongAdder hohNEntries;
 
+	/**
+	 * @return The root node as seen by readers. In HOH mode this is the latest published
+	 * version of the tree, i.e. readers should read it only once per operation.
+	 */
 	Node getRoot() {
-		return root;
+		return isHOH ? hohRoot : root;
 	}
 
 	public PhTree13(int dim) {
-		this.dims = dim;
-		this.nodePool = ObjectPool.create(Node::createEmpty);
-		this.refPool = ObjectArrayPool.create();
-		this.bitPool = LongArrayPool.create();
-		debugCheck();
+		this(dim, PhTreeConfig.CONCURRENCY_NONE, PoolProvider.TREE);
 	}
 
 	public PhTree13(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
-		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
-			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
+		this(cnf.getDimActual(), cnf.getConcurrencyType(), cnf.getPoolProvider());
+	}
+
+	private PhTree13(int dim, int concurrencyType, PoolProvider poolProvider) {
+		this.dims = dim;
+		switch (concurrencyType) {
+		case PhTreeConfig.CONCURRENCY_NONE:
+			isHOH = false;
+			hohContext = null;
+			hohNEntries = null;
+			break;
+		case PhTreeConfig.CONCURRENCY_HOH_COW:
+			isHOH = true;
+			hohContext = ThreadLocal.withInitial(WriterContext::new);
+			hohNEntries = new LongAdder();
+			break;
+		default:
+			throw new UnsupportedOperationException("type= " + concurrencyType);
+		}
+		if (isHOH && !poolProvider.isThreadSafe()) {
+			poolProvider = PoolProvider.THREAD_LOCAL;
 		}
+		this.pools = poolProvider.getPools(Pools.class, Pools::new);
+		debugCheck();
 	}
 
 	void increaseNrEntries() {
+		if (isHOH) {
+			hohContext.get().nEntriesDelta++;
+			return;
+		}
 		nEntries++;
 	}
 
 	void decreaseNrEntries() {
+		if (isHOH) {
+			hohContext.get().nEntriesDelta--;
+			return;
+		}
 		nEntries--;
 	}
 
 	@Override
 	public int size() {
-		return nEntries;
+		return isHOH ? hohNEntries.intValue() : nEntries;
 	}
 
 	@Override
 	public PhTreeStats getStats() {
-		if (getRoot() == null) {
+		//read root only once, it may change concurrently (HOH)
+		Node r = getRoot();
+		if (r == null) {
 			return new PhTreeStats(DEPTH_64);
 		}
-		return getStats(0, getRoot(), new PhTreeStats(DEPTH_64));
+		return getStats(0, r, r, new PhTreeStats(DEPTH_64));
 	}
 
-	private PhTreeStats getStats(int currentDepth, Node node, PhTreeStats stats) {
+	private PhTreeStats getStats(int currentDepth, Node node, Node root, PhTreeStats stats) {
 		stats.nNodes++;
 		if (node.isAHC()) {
 			stats.nAHC++;
@@ -175,7 +222,7 @@ public class PhTree13<T> implements PhTree<T> {
 
 		for (Object o: node.values()) {
 			if (o instanceof Node) {
-				getStats(currentDepth + 1, (Node) o, stats);
+				getStats(currentDepth + 1, (Node) o, root, stats);
 			} else if (o != null) {
 				stats.q_nPostFixN[currentDepth]++;
 			}
@@ -188,11 +235,11 @@ public class PhTree13<T> implements PhTree<T> {
 		int nChildren = node.getEntryCount();
 		stats.size += 16 + align8(Bits.arraySizeInByte(node.ba()));
 		stats.size += node.values() != null ? 16 + align8(node.values().length * REF) : 0;
-		if (nChildren == 1 && (node != getRoot()) && nEntries > 1) {
+		if (nChildren == 1 && (node != root) && size() > 1) {
 			//This should not happen! Except for a root node if the tree has <2 entries.
 			System.err.println("WARNING: found lonely node...");
 		}
-		if (nChildren == 0 && (node != getRoot())) {
+		if (nChildren == 0 && (node != root)) {
 			//This should not happen! Except for a root node if the tree has <2 entries.
 			System.err.println("WARNING: found ZOMBIE node...");
 		}
@@ -213,16 +260,23 @@ public class PhTree13<T> implements PhTree<T> {
 	}
 
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T put(long[] key, T value) {
+		if (isHOH) {
+			return hohWrite(key, null, 0, start -> putFrom(start, key, value));
+		}
+		return putFrom(getRoot(), key, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T putFrom(Node start, long[] key, T value) {
 		Object nonNullValue = value == null ? PhTreeHelper.NULL : value;
-		if (getRoot() == null) {
+		if (start == null) {
 			insertRoot(key, nonNullValue);
 			return null;
 		}
 
-		Object o = getRoot();
+		Object o = start;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
 			o = currentNode.doInsertIfMatching(key, nonNullValue, this);
@@ -248,10 +302,14 @@ public class PhTree13<T> implements PhTree<T> {
 	}
 
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T get(long... key) {
-		Object o = getRoot();
+		return getFrom(getRoot(), key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T getFrom(Node start, long... key) {
+		Object o = start;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
 			o = currentNode.doIfMatching(key, true, null, null, null, this);
@@ -265,10 +323,17 @@ public class PhTree13<T> implements PhTree<T> {
 	 * @param key key to insert
 	 * @return true if the value was found
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public T remove(long... key) {
-		Object o = getRoot();
+		if (isHOH) {
+			return hohWrite(key, null, 1, start -> removeFrom(start, key));
+		}
+		return removeFrom(getRoot(), key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T removeFrom(Node start, long... key) {
+		Object o = start;
 		Node parentNode = null;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -278,13 +343,20 @@ public class PhTree13<T> implements PhTree<T> {
 		return (T) o;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T update(long[] oldKey, long[] newKey) {
+		if (isHOH) {
+			return hohWrite(oldKey, newKey, 1, start -> updateFrom(start, oldKey, newKey));
+		}
+		return updateFrom(getRoot(), oldKey, newKey);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T updateFrom(Node start, long[] oldKey, long[] newKey) {
 		Node[] stack = new Node[64];
 		int stackSize = 0;
 		
-		Object o = getRoot();
+		Object o = start;
 		Node parentNode = null;
 		final int[] insertRequired = new int[]{NO_INSERT_REQUIRED};
 		while (o instanceof Node) {
@@ -332,14 +404,21 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T putIfAbsent(long[] key, T value) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 0, start -> putIfAbsentFrom(start, key, value));
+		}
+		return putIfAbsentFrom(getRoot(), key, value);
+	}
+
+	private T putIfAbsentFrom(Node start, long[] key, T value) {
+		if (start == null) {
 			insertRoot(key, maskNull(value));
 			return null;
 		}
 
-		T o = get(key);
+		T o = getFrom(start, key);
 		if (o == null) {
-			put(key, value);
+			putFrom(start, key, value);
 		}
 		return o;
 	}
@@ -353,18 +432,25 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public boolean replace(long[] key, T oldValue, T newValue) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 0, start -> replaceFrom(start, key, oldValue, newValue));
+		}
+		return replaceFrom(getRoot(), key, oldValue, newValue);
+	}
+
+	private boolean replaceFrom(Node start, long[] key, T oldValue, T newValue) {
+		if (start == null) {
 			return false;
 		}
 
-		Object o = getRoot();
+		Object o = start;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
 			o = currentNode.doIfMatching(key, true, null, null, null, this);
 		}
 
 		if (o != null && Objects.equals(o, oldValue)) {
-			put(key, newValue);
+			putFrom(start, key, newValue);
 			return true;
 		}
 		return false;
@@ -372,18 +458,25 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T replace(long[] key, T value) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 0, start -> replaceFrom(start, key, value));
+		}
+		return replaceFrom(getRoot(), key, value);
+	}
+
+	private T replaceFrom(Node start, long[] key, T value) {
+		if (start == null) {
 			return null;
 		}
 
-		Object o = getRoot();
+		Object o = start;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
 			o = currentNode.doIfMatching(key, true, null, null, null, this);
 		}
 
 		if (o != null) {
-			put(key, value);
+			putFrom(start, key, value);
 			return PhTreeHelper.unmaskNull(o);
 		}
 		return null;
@@ -391,7 +484,14 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T computeIfAbsent(long[] key, Function<long[], ? extends T> mappingFunction) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 0, start -> computeIfAbsentFrom(start, key, mappingFunction));
+		}
+		return computeIfAbsentFrom(getRoot(), key, mappingFunction);
+	}
+
+	private T computeIfAbsentFrom(Node start, long[] key, Function<long[], ? extends T> mappingFunction) {
+		if (start == null) {
 			T newValue = mappingFunction.apply(key);
 			if (newValue != null) {
 				insertRoot(key, maskNull(newValue));
@@ -399,25 +499,33 @@ public class PhTree13<T> implements PhTree<T> {
 			return newValue;
 		}
 
-		T currentValue = get(key);
+		T currentValue = getFrom(start, key);
 		if (currentValue == null) {
 			T newValue = mappingFunction.apply(key);
 			if (newValue != null) {
-				put(key, newValue);
+				putFrom(start, key, newValue);
 			}
 			return newValue;
 		}
 		return currentValue;
 	}
 
-    @SuppressWarnings("unchecked")
 	@Override
 	public T computeIfPresent(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 1, start -> computeIfPresentFrom(start, key, remappingFunction));
+		}
+		return computeIfPresentFrom(getRoot(), key, remappingFunction);
+	}
+
+    @SuppressWarnings("unchecked")
+	private T computeIfPresentFrom(Node start, long[] key, 
+			BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (start == null) {
 			return null;
 		}
 
-        Object o = getRoot();
+        Object o = start;
         Node parentNode = null;
         while (o instanceof Node) {
             Node currentNode = (Node) o;
@@ -427,10 +535,17 @@ public class PhTree13<T> implements PhTree<T> {
         return (T) o;
 	}
 
-    @SuppressWarnings("unchecked")
 	@Override
 	public T compute(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
-		if (getRoot() == null) {
+		if (isHOH) {
+			return hohWrite(key, null, 1, start -> computeFrom(start, key, remappingFunction));
+		}
+		return computeFrom(getRoot(), key, remappingFunction);
+	}
+
+    @SuppressWarnings("unchecked")
+	private T computeFrom(Node start, long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (start == null) {
 			T newValue = remappingFunction.apply(key, null);
 			if (newValue != null) {
 				insertRoot(key, maskNull(newValue));
@@ -438,7 +553,7 @@ public class PhTree13<T> implements PhTree<T> {
 			return newValue;
 		}
 
-        Object o = getRoot();
+        Object o = start;
         Node parentNode = null;
         while (o instanceof Node) {
             Node currentNode = (Node) o;
@@ -461,8 +576,9 @@ public class PhTree13<T> implements PhTree<T> {
 	@Override
 	public String toStringPlain() {
 		StringBuilderLn sb = new StringBuilderLn();
-		if (getRoot() != null) {
-			toStringPlain(sb, getRoot(), new long[dims]);
+		Node r = getRoot();
+		if (r != null) {
+			toStringPlain(sb, r, new long[dims]);
 		}
 		return sb.toString();
 	}
@@ -487,8 +603,9 @@ public class PhTree13<T> implements PhTree<T> {
 	@Override
 	public String toStringTree() {
 		StringBuilderLn sb = new StringBuilderLn();
-		if (getRoot() != null) {
-			toStringTree(sb, 0, getRoot(), new long[dims], true);
+		Node r = getRoot();
+		if (r != null) {
+			toStringTree(sb, 0, r, new long[dims], true);
 		}
 		return sb.toString();
 	}
@@ -606,7 +723,9 @@ public class PhTree13<T> implements PhTree<T> {
 					" / " + max.length + "  DIM=" + dims);
 		}
 		
-		if (getRoot() == null) {
+		//read root only once, it may change concurrently (HOH)
+		Node r = getRoot();
+		if (r == null) {
 			return new ArrayList<>();
 		}
 		
@@ -618,7 +737,7 @@ public class PhTree13<T> implements PhTree<T> {
 				() -> new PhEntry<>(new long[dims], null));
 		
 		NodeIteratorListReuse<T, R> it = new NodeIteratorListReuse<>(dims, list);
-		return it.resetAndRun(getRoot(), min, max, maxResults);
+		return it.resetAndRun(r, min, max, maxResults);
 	}
 
 	@Override
@@ -672,6 +791,10 @@ public class PhTree13<T> implements PhTree<T> {
 	 */
 	@Override
 	public void clear() {
+		if (isHOH) {
+			hohClear();
+			return;
+		}
 		root = null;
 		nEntries = 0;
 	}
@@ -697,16 +820,352 @@ public class PhTree13<T> implements PhTree<T> {
 		//return (r <= v) ? -1 : r;
 	}
 
+	/**
+	 * Executes a write operation in HOH_COW mode.
+	 * <p>
+	 * The writer traverses the tree with hand-over-hand locking, i.e. it locks a node before
+	 * releasing the lock of its ancestors. It keeps only the few lowest nodes locked that may
+	 * be modified by the operation, plus their parent. Writers therefore block each other 
+	 * only while traversing the same nodes, not during the whole operation.
+	 * The locked nodes that may be modified are replaced with private copies and the 
+	 * operation is executed on the copies. Finally, the copy of the topmost node is swapped 
+	 * into its (locked) parent. Readers never lock or wait, they see every node either 
+	 * before or after a write operation. 
+	 * 
+	 * @param key The key of the operation
+	 * @param key2 Optional second key, for example the new key of an update
+	 * @param levelsUp Number of levels above the node that contains 'key' that may be 
+	 * modified. This is 1 for operations that may remove entries, because removal may merge 
+	 * a node into its parent. 
+	 * @param op The write operation. Its argument is the node where the operation must start.
+	 * @return The result of the operation
+	 */
+	private <R> R hohWrite(long[] key, long[] key2, int levelsUp, Function<Node, R> op) {
+		WriterContext ctx = hohContext.get();
+		try {
+			Node start = hohLockAndCopy(ctx, key, key2, levelsUp);
+			R result = op.apply(start);
+			hohPublish(ctx, key, start);
+			return result;
+		} finally {
+			//If the operation failed, the copies are simply discarded.
+			ctx.unlockAll(this);
+			ctx.reset();
+		}
+	}
+
+	/**
+	 * HOH: Traverse and lock the path(s) and replace the nodes that may be modified with copies.
+	 * @return A private copy of the node where the operation must start.
+	 */
+	private Node hohLockAndCopy(WriterContext ctx, long[] key, long[] key2, int levelsUp) {
+		ctx.lockRoot(this);
+		Node r = hohRoot;
+		if (r == null) {
+			ctx.start = 0;
+			return Node.createNode(dims, 0, DEPTH_64-1, this);
+		}
+
+		//Traverse the path of 'key'. The start node of the operation is at most 
+		//'levelsUp+1' levels above the current node, so we can unlock all nodes above
+		//its parent. For update(), this works only as long as both keys share the path.
+		Node[] path1 = ctx.path1;
+		r.hohLock();
+		path1[0] = r;
+		ctx.n1 = 1;
+		ctx.common2 = 1;
+		int j1;
+		//j2 >= 0 if the path of 'key2' ends in the shared part of the paths
+		int j2 = -1;
+		boolean isOnPath2 = key2 != null;
+		while (true) {
+			Node node = path1[ctx.n1 - 1];
+			Node sub = node.getSubNode(key);
+			if (sub == null) {
+				j1 = ctx.n1 - 1;
+				break;
+			}
+			boolean isSubOnPath2 = isOnPath2 && node.getSubNode(key2) == sub;
+			sub.hohLock();
+			path1[ctx.n1++] = sub;
+			if (key2 == null || isSubOnPath2) {
+				ctx.unlockPath1Above(this, ctx.n1 - 1 - 2 - levelsUp);
+			}
+			if (isSubOnPath2) {
+				ctx.common2 = ctx.n1;
+				isOnPath2 = node.doIfMatching(key2, true, null, null, null, this) == sub;
+				if (!isOnPath2) {
+					//infix does not match
+					j2 = ctx.n1 - 2;
+				}
+			} else {
+				isOnPath2 = false;
+			}
+			if (node.doIfMatching(key, true, null, null, null, this) != sub) {
+				//infix does not match
+				j1 = ctx.n1 - 2;
+				break;
+			}
+		}
+		int s = Math.max(0, j1 - levelsUp);
+
+		if (key2 != null) {
+			//Traverse the path of 'key2'. The nodes that are shared with path 1 are already 
+			//locked. We must not start at the root, because the upper nodes of the shared
+			//part may already be unlocked (and replaced by concurrent writers).
+			Node[] path2 = ctx.path2;
+			System.arraycopy(path1, 0, path2, 0, ctx.common2);
+			ctx.n2 = ctx.common2;
+			while (j2 < 0) {
+				Node node = path2[ctx.n2 - 1];
+				Node sub = node.getSubNode(key2);
+				if (sub == null) {
+					j2 = ctx.n2 - 1;
+					break;
+				}
+				sub.hohLock();
+				path2[ctx.n2++] = sub;
+				if (node.doIfMatching(key2, true, null, null, null, this) != sub) {
+					j2 = ctx.n2 - 2;
+				}
+			}
+			s = Math.max(0, Math.min(s, Math.min(j2, ctx.common2 - 1)));
+		}
+		if (s == 0 ? !ctx.isRootLocked : s - 1 < ctx.lo1) {
+			throw new IllegalStateException("s=" + s + " lo=" + ctx.lo1);
+		}
+		ctx.unlockPath1Above(this, s - 1);
+		ctx.start = s;
+
+		Node start = copyOnWrite(path1[s]);
+		copyPath(start, key, ctx.n1 - s - 1);
+		if (key2 != null) {
+			copyPath(start, key2, ctx.n2 - s - 1);
+		}
+		return start;
+	}
+
+	/**
+	 * Replace nodes below 'start' with copies.
+	 * @param start The first node, this must be a copy.
+	 * @param key The key that defines the path
+	 * @param maxNodes The number of nodes to be copied
+	 */
+	private void copyPath(Node start, long[] key, int maxNodes) {
+		Node node = start;
+		for (int i = 0; i < maxNodes; i++) {
+			Node sub = node.getSubNode(key);
+			if (sub == null) {
+				return;
+			}
+			Node copy = copyOnWrite(sub);
+			node.replaceSubNode(key, copy);
+			node = copy;
+		}
+	}
+
+	/**
+	 * This must be called by write operations before modifying a node that may not be on 
+	 * the path(s) that were copied by {@link #hohWrite(long[], long[], int, Function)}.
+	 * The caller must replace any reference to the node with the returned copy. 
+	 * @param node The node to be modified
+	 * @return The node itself if it can be modified directly, otherwise a private copy of the node.
+	 */
+	Node copyOnWrite(Node node) {
+		if (!isHOH) {
+			return node;
+		}
+		WriterContext ctx = hohContext.get();
+		if (ctx.isCopy(node)) {
+			return node;
+		}
+		if (!ctx.isLocked(node)) {
+			//Not on the locked path, e.g. a node that is pulled up during a merge.
+			//We hold the lock of the parent, so this cannot cause a deadlock.
+			node.hohLock();
+			ctx.addLocked(node);
+		}
+		Node copy = new Node(node, this);
+		ctx.addCopy(copy);
+		return copy;
+	}
+
+	private void hohPublish(WriterContext ctx, long[] key, Node start) {
+		hohNEntries.add(ctx.nEntriesDelta);
+		start.hohUnlock();
+		//Volatile write or release store: readers that load the reference see complete nodes.
+		if (ctx.start == 0) {
+			hohRoot = start;
+		} else {
+			ctx.path1[ctx.start - 1].replaceSubNode(key, start);
+		}
+	}
+
+	/**
+	 * HOH: Lock the root and then all nodes of the tree. The nodes remain locked forever.
+	 * Concurrent writers are waited for, later writers will start from the (new) root.
+	 */
+	private void hohClear() {
+		WriterContext ctx = hohContext.get();
+		ctx.lockRoot(this);
+		try {
+			if (hohRoot != null) {
+				hohLockForever(hohRoot);
+			}
+			hohRoot = null;
+			hohNEntries.reset();
+		} finally {
+			ctx.unlockAll(this);
+			ctx.reset();
+		}
+	}
+
+	private static void hohLockForever(Node node) {
+		node.hohLock();
+		for (Object v : node.values()) {
+			if (v instanceof Node) {
+				hohLockForever((Node) v);
+			}
+		}
+	}
+
+	/**
+	 * State of a write operation in HOH_COW mode. Every writer thread has its own instance.
+	 */
+	static final class WriterContext {
+		//Nodes that were copied by the current write operation. These are private to the writer.
+		private Node[] copies = new Node[DEPTH_64];
+		private int nCopies = 0;
+
+		//Path of the first key, the nodes [lo1, n1) are locked
+		private final Node[] path1 = new Node[DEPTH_64 + 1];
+		private int lo1 = 0;
+		private int n1 = 0;
+		//Path of the second key, the nodes [common2, n2) are locked
+		private final Node[] path2 = new Node[DEPTH_64 + 1];
+		private int common2 = 0;
+		private int n2 = 0;
+		//Other locked nodes
+		private Node[] locked = new Node[4];
+		private int nLocked = 0;
+		private boolean isRootLocked = false;
+		//Position of the start node in path1 
+		private int start;
+		private int nEntriesDelta = 0;
+
+		void lockRoot(PhTree13<?> tree) {
+			while (!HOH_ROOT_LOCK.compareAndSet(tree, 0, 1)) {
+				Thread.yield();
+			}
+			isRootLocked = true;
+		}
+
+		/**
+		 * Unlock all nodes of path1 above 'keepFrom'. 'keepFrom == 0' unlocks only the root lock.
+		 */
+		void unlockPath1Above(PhTree13<?> tree, int keepFrom) {
+			if (keepFrom >= 0 && isRootLocked) {
+				tree.hohRootLock = 0;
+				isRootLocked = false;
+			}
+			for (; lo1 < keepFrom; lo1++) {
+				path1[lo1].hohUnlock();
+			}
+		}
+
+		boolean isCopy(Node node) {
+			for (int i = 0; i < nCopies; i++) {
+				if (copies[i] == node) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void addCopy(Node node) {
+			if (nCopies == copies.length) {
+				copies = Arrays.copyOf(copies, nCopies * 2);
+			}
+			copies[nCopies++] = node;
+		}
+
+		boolean isLocked(Node node) {
+			for (int i = lo1; i < n1; i++) {
+				if (path1[i] == node) {
+					return true;
+				}
+			}
+			for (int i = common2; i < n2; i++) {
+				if (path2[i] == node) {
+					return true;
+				}
+			}
+			for (int i = 0; i < nLocked; i++) {
+				if (locked[i] == node) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void addLocked(Node node) {
+			if (nLocked == locked.length) {
+				locked = Arrays.copyOf(locked, nLocked * 2);
+			}
+			locked[nLocked++] = node;
+		}
+
+		void unlockAll(PhTree13<?> tree) {
+			for (int i = lo1; i < n1; i++) {
+				path1[i].hohUnlock();
+			}
+			for (int i = common2; i < n2; i++) {
+				path2[i].hohUnlock();
+			}
+			for (int i = 0; i < nLocked; i++) {
+				locked[i].hohUnlock();
+			}
+			if (isRootLocked) {
+				tree.hohRootLock = 0;
+			}
+		}
+
+		void reset() {
+			Arrays.fill(copies, 0, nCopies, null);
+			nCopies = 0;
+			Arrays.fill(path1, 0, n1, null);
+			Arrays.fill(path2, 0, n2, null);
+			Arrays.fill(locked, 0, nLocked, null);
+			lo1 = 0;
+			n1 = 0;
+			common2 = 0;
+			n2 = 0;
+			nLocked = 0;
+			isRootLocked = false;
+			nEntriesDelta = 0;
+		}
+	}
+
+	/**
+	 * The object and array pools of a tree. The pools may be shared with other trees, 
+	 * see {@link PoolProvider}.
+	 */
+	static final class Pools {
+		private final ObjectPool<Node> nodePool = ObjectPool.create(Node::createEmpty);
+		private final ObjectArrayPool<Object> refPool = ObjectArrayPool.create();
+		private final LongArrayPool bitPool = LongArrayPool.create();
+	}
+
 	ObjectPool<Node> nodePool() {
-		return nodePool;
+		return pools.get().nodePool;
 	}
 
 	ObjectArrayPool<Object> objPool() {
-		return refPool;
+		return pools.get().refPool;
 	}
 
 	LongArrayPool longPool() {
-		return bitPool;
+		return pools.get().bitPool;
 	}
 }
 
@@ -19,41 +19,41 @@
  */
 package ch.ethz.globis.phtree.v13SynchedPool;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.util.unsynced.ObjectPool;
 
 /**
  * Reference pooling and management for Node instances.
+ * <p>
+ * Every thread has its own pool, so concurrent threads (for example threads that 
+ * build different trees) do not contend for a lock. 
  * 
  * @author ztilmann
  */
 public class NodePool {
 
-	private static final Node[] POOL =
-			new Node[PhTreeHelper.MAX_OBJECT_POOL_SIZE];
-	private static int poolSize;
+	private static final ThreadLocal<ObjectPool<Node>> POOL = ThreadLocal.withInitial(
+			() -> ObjectPool.create(PhTreeHelper.MAX_OBJECT_POOL_SIZE, Node::createEmpty));
 	/** Nodes currently used outside the pool. */
-	private static int activeNodes = 0;
+	private static final LongAdder activeNodes = new LongAdder();
 
 	private NodePool() {
 		// empty
 	}
 
-	static synchronized Node getNode() {
-		activeNodes++;
-		if (poolSize == 0) {
-			return Node.createEmpty();
-		}
-		return POOL[--poolSize];
+	static Node getNode() {
+		activeNodes.increment();
+		return POOL.get().get();
 	}
 
-	static synchronized void offer(Node node) {
-		activeNodes--;
-		if (poolSize < POOL.length) {
-			POOL[poolSize++] = node;
-		}
+	static void offer(Node node) {
+		activeNodes.decrement();
+		POOL.get().offer(node);
 	}
 
 	public static int getActiveNodes() {
-		return activeNodes;
+		return activeNodes.intValue();
 	}
 }
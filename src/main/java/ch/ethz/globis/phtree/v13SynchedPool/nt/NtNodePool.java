@@ -8,42 +8,40 @@
  */
 package ch.ethz.globis.phtree.v13SynchedPool.nt;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import ch.ethz.globis.phtree.PhTreeHelper;
-import ch.ethz.globis.phtree.util.Refs;
+import ch.ethz.globis.phtree.util.unsynced.ObjectPool;
 
 /**
  * Manipulation methods and pool for NtNodes.
+ * <p>
+ * Every thread has its own pool, so concurrent threads do not contend for a lock. 
  * 
  * @author ztilmann
  */
 public class NtNodePool {
 
-	private static final NtNode<?>[] POOL =
-			Refs.newArray(NtNode.class, PhTreeHelper.MAX_OBJECT_POOL_SIZE);
-	private static int poolSize;
+	private static final ThreadLocal<ObjectPool<NtNode<?>>> POOL = ThreadLocal.withInitial(
+			() -> ObjectPool.create(PhTreeHelper.MAX_OBJECT_POOL_SIZE, NtNode::createEmptyNode));
 	/** Nodes currently used outside the pool. */
-	private static int activeNodes = 0;
+	private static final LongAdder activeNodes = new LongAdder();
 
 	private NtNodePool() {
 		// empty
 	}
 
-	static synchronized NtNode<?> getNode() {
-		activeNodes++;
-		if (poolSize == 0) {
-			return NtNode.createEmptyNode();
-		}
-		return POOL[--poolSize];
+	static NtNode<?> getNode() {
+		activeNodes.increment();
+		return POOL.get().get();
 	}
 
-	public static synchronized void offer(NtNode<?> node) {
-		activeNodes--;
-		if (poolSize < POOL.length) {
-			POOL[poolSize++] = node;
-		}
+	public static void offer(NtNode<?> node) {
+		activeNodes.decrement();
+		POOL.get().offer(node);
 	}
 	
 	public static int getActiveNodes() {
-		return activeNodes;
+		return activeNodes.intValue();
 	}
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+
+/**
+ * Bulk loading for {@link PhTree16}.
+ * <p>
+ * The tree is built top-down by partitioning the entries: the entries of a node are sorted
+ * by their hc-position, the entries with the same hc-position form a contiguous range
+ * which becomes a sub-node. This results in z-order, where the entries of every subtree 
+ * form a contiguous range and the entries of a node are sorted by their hc-position.
+ * Every node is created directly with its final entries, and every BST page with its 
+ * final size, without traversing the tree and without splitting pages.
+ * <p>
+ * Sub-nodes are independent of each other. In parallel mode, sub-nodes with many entries
+ * are built as separate tasks on a {@code ForkJoinPool}. This starts at the highest level 
+ * that has more than one sub-node, which is often not the root node, because the 
+ * leading bits of all keys are often equal.
+ *
+ * @author ztilmann
+ */
+class BulkLoader {
+
+	/** Sorts entries by their hc-position, which is stored in the entries' key. */
+	private static final Comparator<BSTEntry> HC_POS = (e1, e2) -> Long.compare(e1.getKey(), e2.getKey());
+
+	/** Counting sort is used for ranges with at least 2^dim entries, up to this dimensionality. */
+	private static final int MAX_DIM_COUNTING_SORT = 16;
+
+	/** Parallel mode: Minimum number of entries for building a sub-node in a separate task. */
+	static final int PARALLEL_THRESHOLD = 10_000;
+
+	private final PhTree16<?> tree;
+	private final boolean parallel;
+	private int nEntries = 0;
+	//buffers for counting sort
+	private BSTEntry[] buffer;
+	private int[] counts;
+
+	BulkLoader(PhTree16<?> tree, boolean parallel) {
+		this.tree = tree;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Create a task that builds a node and its subtree, see {@link #build}.
+	 * After the task completes, {@link #size()} returns the number of entries in the subtree.
+	 * The task may fork sub-tasks.
+	 */
+	RecursiveTask<Node> task(BSTEntry[] entries, int from, int to, int infixLen, int postLen) {
+		return new RecursiveTask<Node>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Node compute() {
+				return build(entries, from, to, infixLen, postLen);
+			}
+		};
+	}
+
+	/**
+	 * Build a node and its subtree. The entries are modified: The hc-position of the entries
+	 * is set, and the range is overwritten with the entries of the node.
+	 * If there are entries with equal keys, only the last entry (in the original order) is kept.
+	 * @param entries The entries
+	 * @param from The first entry
+	 * @param to The end of the range (exclusive)
+	 * @param infixLen The infix length of the new node
+	 * @param postLen The postfix length of the new node
+	 * @return The new node.
+	 */
+	Node build(BSTEntry[] entries, int from, int to, int infixLen, int postLen) {
+		Node node = Node.createNode(tree.getDim(), infixLen, postLen, 
+				from < to ? entries[from].getKdKey() : null, tree);
+		int nEntriesBefore = nEntries;
+		for (int i = from; i < to; i++) {
+			BSTEntry e = entries[i];
+			e.set(posInArray(e.getKdKey(), postLen), e.getKdKey(), e.getValue());
+		}
+		sort(entries, from, to);
+
+		//The node entries are written to the beginning of the range. This never overwrites
+		//entries that have not been processed yet.
+		//In parallel mode, sub-tasks may still be working on their range, so the node
+		//entries are collected in a separate array.
+		boolean fork = parallel && to - from > PARALLEL_THRESHOLD;
+		BSTEntry[] nodeEntries = fork ? new BSTEntry[16] : entries;
+		int nodeFrom = fork ? 0 : from;
+		ArrayList<SubTask> subTasks = null;
+		int nNodeEntries = 0;
+		int i = from;
+		while (i < to) {
+			long hcPos = entries[i].getKey();
+			long[] first = entries[i].getKdKey();
+			long diff = 0;
+			int end = i + 1;
+			for (; end < to && entries[end].getKey() == hcPos; end++) {
+				long[] k = entries[end].getKdKey();
+				for (int d = 0; d < k.length; d++) {
+					diff |= first[d] ^ k[d];
+				}
+			}
+			if (fork && nNodeEntries == nodeEntries.length) {
+				nodeEntries = Arrays.copyOf(nodeEntries, nNodeEntries * 2);
+			}
+			BSTEntry e;
+			if (diff == 0) {
+				//single entry or equal keys
+				e = entries[end - 1];
+				nEntries++;
+			} else {
+				int mcb = Long.SIZE - Long.numberOfLeadingZeros(diff);
+				long[] kdKey = tree.longPool().arrayClone(first);
+				e = tree.bstPool().getEntry();
+				if (fork && end - i >= PARALLEL_THRESHOLD) {
+					//the value is set after the sub-task completes
+					e.set(hcPos, kdKey, null);
+					if (subTasks == null) {
+						subTasks = new ArrayList<>();
+					}
+					BulkLoader subLoader = new BulkLoader(tree, true);
+					subTasks.add(new SubTask(e, subLoader, 
+							subLoader.task(entries, i, end, postLen - mcb, mcb - 1).fork()));
+				} else {
+					Node sub = build(entries, i, end, postLen - mcb, mcb - 1);
+					e.set(hcPos, kdKey, sub);
+				}
+			}
+			nodeEntries[nodeFrom + nNodeEntries++] = e;
+			i = end;
+		}
+		if (subTasks != null) {
+			for (SubTask t : subTasks) {
+				t.entry.setValue(t.task.join());
+				nEntries += t.loader.size();
+			}
+		}
+		node.bstBulkLoad(nodeEntries, nodeFrom, nNodeEntries, tree);
+		node.setSubtreeEntryCount(nEntries - nEntriesBefore);
+		return node;
+	}
+
+	/**
+	 * Sort entries by their hc-position. This is a stable sort, entries with equal keys 
+	 * remain in their original order.
+	 */
+	private void sort(BSTEntry[] entries, int from, int to) {
+		int dim = tree.getDim();
+		int n = to - from;
+		if (dim > MAX_DIM_COUNTING_SORT || n < (1 << dim)) {
+			Arrays.sort(entries, from, to, HC_POS);
+			return;
+		}
+		if (counts == null) {
+			counts = new int[(1 << dim) + 1];
+		} else {
+			Arrays.fill(counts, 0);
+		}
+		if (buffer == null || buffer.length < n) {
+			buffer = new BSTEntry[n];
+		}
+		for (int i = from; i < to; i++) {
+			counts[(int) entries[i].getKey() + 1]++;
+		}
+		for (int i = 1; i < counts.length; i++) {
+			counts[i] += counts[i - 1];
+		}
+		for (int i = from; i < to; i++) {
+			BSTEntry e = entries[i];
+			buffer[counts[(int) e.getKey()]++] = e;
+		}
+		System.arraycopy(buffer, 0, entries, from, n);
+		Arrays.fill(buffer, 0, n, null);
+	}
+
+	private static class SubTask {
+		final BSTEntry entry;
+		final BulkLoader loader;
+		final ForkJoinTask<Node> task;
+
+		SubTask(BSTEntry entry, BulkLoader loader, ForkJoinTask<Node> task) {
+			this.entry = entry;
+			this.loader = loader;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * @return The number of entries that have been added to the tree by {@link #build}.
+	 */
+	int size() {
+		return nEntries;
+	}
+}
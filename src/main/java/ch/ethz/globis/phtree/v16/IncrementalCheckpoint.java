@@ -0,0 +1,241 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ch.ethz.globis.phtree.PersistenceProviderWal;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Writes and reads the append-only node file of the incremental checkpoints of
+ * {@link PersistenceProviderWal}.
+ * <p>
+ * Every node is stored as one record: the record length (int), the postfix length (byte),
+ * the number of entries (int) and the entries. An entry consists of the hc-position, the
+ * kd-key, a type byte and either the value or the position of the record of the sub-node.
+ * The infix length of a sub-node is not stored, it follows from the postfix lengths.
+ * <p>
+ * A checkpoint appends records only for nodes that have been modified since the previous
+ * checkpoint, see {@link Node#markDirty()}. Write operations mark all nodes on the path
+ * to the modified key(s). Since a modified node is written to a new position, its parent
+ * must be written as well; marking the whole path guarantees this and allows the writer
+ * to skip every subtree whose root is clean. The I/O of a checkpoint is therefore
+ * proportional to the number of modified nodes, not to the size of the tree.
+ *
+ * @author ztilmann
+ */
+final class IncrementalCheckpoint {
+
+	/** Position of an empty tree. */
+	static final long NO_NODE = -1;
+
+	private static final byte VALUE = 0;
+	private static final byte NULL = 1;
+	private static final byte NODE = 2;
+
+	/** Gives access to the buffer without copying it. */
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private final FileChannel channel;
+	private final PhValueCodec<Object> codec;
+	private final boolean full;
+	private final Buffer buffer = new Buffer();
+	private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+	private final Buffer record = new Buffer();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	//Position of the end of 'buffer' in the file
+	private long pos;
+
+	@SuppressWarnings("unchecked")
+	private IncrementalCheckpoint(FileChannel channel, PhValueCodec<?> codec, boolean full)
+			throws IOException {
+		this.channel = channel;
+		this.codec = (PhValueCodec<Object>) codec;
+		this.full = full;
+		this.pos = channel.size();
+	}
+
+	/**
+	 * Append the modified nodes of a tree to a node file.
+	 * @param root the root node or 'null'
+	 * @param channel the node file, records are appended at its end
+	 * @param codec the value codec
+	 * @param full 'true' to write all nodes, e.g. to a new file
+	 * @return the position of the root record or {@link #NO_NODE}
+	 * @throws IOException if writing fails
+	 */
+	static long write(Node root, FileChannel channel, PhValueCodec<?> codec, boolean full)
+			throws IOException {
+		if (root == null) {
+			return NO_NODE;
+		}
+		IncrementalCheckpoint w = new IncrementalCheckpoint(channel, codec, full);
+		long rootPos = w.writeNode(root);
+		w.flushBuffer();
+		return rootPos;
+	}
+
+	private long writeNode(Node node) throws IOException {
+		if (!full && node.ckptPos() >= 0) {
+			return node.ckptPos();
+		}
+		//sub-nodes first, the record refers to their positions
+		long[] subPos = new long[node.getEntryCount()];
+		int nSub = 0;
+		BSTIteratorAll iter = node.iterator();
+		while (iter.hasNextEntry()) {
+			Object v = iter.nextEntry().getValue();
+			if (v instanceof Node) {
+				subPos[nSub++] = writeNode((Node) v);
+			}
+		}
+
+		record.reset();
+		recordOut.writeByte(node.getPostLen());
+		recordOut.writeInt(node.getEntryCount());
+		nSub = 0;
+		iter = node.iterator();
+		while (iter.hasNextEntry()) {
+			BSTEntry e = iter.nextEntry();
+			recordOut.writeLong(e.getKey());
+			for (long k : e.getKdKey()) {
+				recordOut.writeLong(k);
+			}
+			Object v = e.getValue();
+			if (v instanceof Node) {
+				recordOut.writeByte(NODE);
+				recordOut.writeLong(subPos[nSub++]);
+			} else if (v == PhTreeHelper.NULL) {
+				recordOut.writeByte(NULL);
+			} else {
+				recordOut.writeByte(VALUE);
+				codec.write(v, recordOut);
+			}
+		}
+
+		long nodePos = pos;
+		bufferOut.writeInt(record.size());
+		buffer.write(record.buffer(), 0, record.size());
+		pos += 4 + record.size();
+		if (buffer.size() >= 64 * 1024) {
+			flushBuffer();
+		}
+		node.ckptClean(nodePos);
+		return nodePos;
+	}
+
+	private void flushBuffer() throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buffer.buffer(), 0, buffer.size());
+		long filePos = pos - buffer.size();
+		while (bb.hasRemaining()) {
+			channel.write(bb, filePos + bb.position());
+		}
+		buffer.reset();
+	}
+
+	/**
+	 * Read a tree from a node file. The nodes are considered clean, i.e. the next
+	 * incremental checkpoint writes only nodes that are modified after loading.
+	 * @param tree the tree
+	 * @param channel the node file
+	 * @param rootPos the position of the root record or {@link #NO_NODE}
+	 * @param codec the value codec
+	 * @return the root node or 'null'
+	 * @throws IOException if reading fails
+	 */
+	static Node read(PhTree16<?> tree, FileChannel channel, long rootPos, PhValueCodec<?> codec)
+			throws IOException {
+		if (rootPos == NO_NODE) {
+			return null;
+		}
+		return readNode(tree, channel, rootPos, PhTree16.DEPTH_64, codec);
+	}
+
+	private static Node readNode(PhTree16<?> tree, FileChannel channel, long pos,
+			int parentPostLen, PhValueCodec<?> codec) throws IOException {
+		ByteBuffer lenBuf = ByteBuffer.allocate(4);
+		readFully(channel, lenBuf, pos);
+		int len = lenBuf.getInt(0);
+		if (len < 5 || pos + 4 + len > channel.size()) {
+			throw new IOException("Invalid node record at " + pos + ": len=" + len);
+		}
+		ByteBuffer data = ByteBuffer.allocate(len);
+		readFully(channel, data, pos + 4);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array()));
+
+		int dims = tree.getDim();
+		int postLen = in.readByte();
+		int n = in.readInt();
+		BSTEntry[] entries = new BSTEntry[n];
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			long hcPos = in.readLong();
+			long[] kdKey = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				kdKey[d] = in.readLong();
+			}
+			Object value;
+			byte type = in.readByte();
+			if (type == NODE) {
+				Node sub = readNode(tree, channel, in.readLong(), postLen, codec);
+				size += sub.getSubtreeEntryCount();
+				value = sub;
+			} else if (type == NULL) {
+				value = PhTreeHelper.NULL;
+				size++;
+			} else if (type == VALUE) {
+				value = codec.read(in);
+				size++;
+			} else {
+				throw new IOException("Invalid node record at " + pos + ": type=" + type);
+			}
+			BSTEntry e = tree.bstPool().getEntry();
+			e.set(hcPos, kdKey, value);
+			entries[i] = e;
+		}
+		Node node = Node.createNode(dims, parentPostLen - postLen - 1, postLen, 
+				n > 0 ? entries[0].getKdKey() : null, tree);
+		node.bstBulkLoad(entries, 0, n, tree);
+		node.setSubtreeEntryCount(size);
+		node.ckptClean(pos);
+		return node;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer bb, long pos)
+			throws IOException {
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, pos + bb.position()) < 0) {
+				throw new IOException("Unexpected end of node file at " + pos);
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.BiFunction;
 
 import ch.ethz.globis.phtree.PhEntry;
@@ -41,11 +42,24 @@ import ch.ethz.globis.phtree.v16.bst.BSTreePage;
  */
 public class Node {
 
-	private byte maxLeafN;// = 100;//10;//340;
+	/** Max dimensionality of nodes with dense representation, the hypercube has 2^dims slots. */
+	static final int DENSE_MAX_DIM = 16;
+	/** Bytes of a reference (compressed oops). */
+	private static final int REF_BYTES = 4;
+
+	private short maxLeafN;// = 100;//10;//340;
 	/** Max number of keys in inner page (there can be max+1 page-refs) */
 	private byte maxInnerN;// = 100;//11;//509;
+	//Dense representation: Nodes that contain many of their 2^dims quadrants store their 
+	//entries in a hypercube page, a direct-address array indexed by hc-position, instead 
+	//of a BST. Lookups require no search. This corresponds to the AHC representation in 
+	//PhTree13, see shouldSwitchToDense().
+	private boolean isDense;
 
 	private int entryCnt = 0;
+	//Number of entries in this node and all sub-nodes, see PhTree16.count(). 
+	//This is not maintained in OL_COW mode.
+	private int subtreeEntryCnt = 0;
 
 	/**
 	 * postLenStored: Stored bits, including the hc address.
@@ -54,19 +68,69 @@ public class Node {
 	 */
 	private byte postLenStored = 0;
 	private byte infixLenStored = 0; //prefix size
+	//The bits above the postfix (and hc-bit) that are the same for all entries, the other 
+	//bits are 0. This never changes, infixes only get shorter or longer by moving the node.
+	//The BST leaf pages store only the postfixes of the entries.
+	private long[] prefix;
 
 	//Nested tree index
 	private BSTreePage root;
 
+	//OL_COW: Version for optimistic locking, odd values indicate that the node is locked.
+	//Nodes that have been replaced by a copy remain locked forever.
+	private volatile int olVersion = 0;
+	private static final AtomicIntegerFieldUpdater<Node> OL_VERSION = 
+			AtomicIntegerFieldUpdater.newUpdater(Node.class, "olVersion");
+
+	//Persistent trees: The BST pages ('root') are 'null' if the node is not loaded, 
+	//see NodeStore.
+	private NodeStore store;
+	private int storeId;
+	private boolean dirty;
+	//CLOCK bit for unloading nodes
+	private boolean referenced;
+	//Trees with incremental checkpoints: position of the latest record of the node in the 
+	//checkpoint file, or -1. See IncrementalCheckpoint.
+	private long ckptPos;
+
 	
     Node() {
 		// For pooling only
 	}
 
-	private void initNode(int infixLenClassic, int postLenClassic, int dims, PhTree16<?> tree) {
+	private void initNode(int infixLenClassic, int postLenClassic, int dims, long[] prefixKey, 
+			PhTree16<?> tree) {
+		initHeader(infixLenClassic, postLenClassic, dims);
+		initPrefix(prefixKey, dims);
+		this.root = bstCreateRoot(tree);
+	}
+
+	private void initPrefix(long[] prefixKey, int dims) {
+		prefix = new long[dims];
+		int postLen = getPostLen();
+		if (prefixKey != null && postLen < 63) {
+			long mask = (-1L) << (postLen + 1);
+			for (int d = 0; d < dims; d++) {
+				prefix[d] = prefixKey[d] & mask;
+			}
+		}
+	}
+
+	private void initHeader(int infixLenClassic, int postLenClassic, int dims) {
 		this.infixLenStored = (byte) (infixLenClassic + 1);
 		this.postLenStored = (byte) (postLenClassic + 1);
 		this.entryCnt = 0;
+		this.subtreeEntryCnt = 0;
+		this.store = null;
+		this.storeId = 0;
+		this.dirty = false;
+		this.referenced = false;
+		this.ckptPos = -1;
+		this.isDense = false;
+		initPageSizes(dims);
+	}
+
+	private void initPageSizes(int dims) {
 		//The idea is to have at most one level of inner pages for d<=12
 		//The inner pages are all slightly larger the strictly necessary because the fill rate of leaves is < 100%
 		switch (dims) {
@@ -84,20 +148,185 @@ public class Node {
 		case 12: maxLeafN = 64; maxInnerN = 70+1; break;
 		default: maxLeafN = 100; maxInnerN = 100; break;
 		}
-		this.root = bstCreateRoot(tree);
 	}
 
 	public static Node createNode(int dims, int infixLenClassic, int postLenClassic, PhTree16<?> tree) {
+		return createNode(dims, infixLenClassic, postLenClassic, null, tree);
+	}
+
+	/**
+	 * @param dims dimensions
+	 * @param infixLenClassic infix length
+	 * @param postLenClassic postfix length
+	 * @param prefixKey Any key of an entry of the new node, or 'null' for the root node
+	 * @param tree tree
+	 * @return the new node
+	 */
+	public static Node createNode(int dims, int infixLenClassic, int postLenClassic, long[] prefixKey, 
+			PhTree16<?> tree) {
+		Node n = tree.nodePool().get();
+		n.initNode(infixLenClassic, postLenClassic, dims, prefixKey, tree);
+		if (tree.nodeStore() != null) {
+			tree.nodeStore().register(n);
+		}
+		return n;
+	}
+
+	/**
+	 * Creates a node that is stored but not loaded.
+	 * @param store the node store
+	 * @param storeId the record ID of the node
+	 * @param infixLenClassic infix length
+	 * @param postLenClassic postfix length
+	 * @param entryCnt number of entries
+	 * @param subtreeEntryCnt number of entries in the subtree
+	 * @param tree tree
+	 * @return the new node
+	 */
+	static Node createStub(NodeStore store, int storeId, int infixLenClassic, int postLenClassic, 
+			int entryCnt, int subtreeEntryCnt, PhTree16<?> tree) {
 		Node n = tree.nodePool().get();
-		n.initNode(infixLenClassic, postLenClassic, dims, tree);
+		n.initHeader(infixLenClassic, postLenClassic, tree.getDim());
+		n.root = null;
+		n.entryCnt = entryCnt;
+		n.subtreeEntryCnt = subtreeEntryCnt;
+		n.store = store;
+		n.storeId = storeId;
 		return n;
 	}
 
+	void storeInit(NodeStore store, int storeId) {
+		this.store = store;
+		this.storeId = storeId;
+		this.dirty = true;
+		this.referenced = true;
+	}
+
+	int storeId() {
+		return storeId;
+	}
+
+	boolean isDirty() {
+		return dirty;
+	}
+
+	void storeClean() {
+		dirty = false;
+	}
+
+	/**
+	 * Mark a node as modified since the last incremental checkpoint.
+	 */
+	void markDirty() {
+		dirty = true;
+	}
+
+	/**
+	 * @return The position of the latest checkpoint record of this node, or -1 if the node
+	 * has been modified since then (or has never been written).
+	 */
+	long ckptPos() {
+		return dirty ? -1 : ckptPos;
+	}
+
+	/**
+	 * @param pos The position of the checkpoint record of the node.
+	 */
+	void ckptClean(long pos) {
+		ckptPos = pos;
+		dirty = false;
+	}
+
+	boolean isReferenced() {
+		return referenced;
+	}
+
+	void clearReferenced() {
+		referenced = false;
+	}
+
+	/**
+	 * @return The BST root page without loading the node.
+	 */
+	BSTreePage loadedRoot() {
+		return root;
+	}
+
+	/**
+	 * Fill the BST of an unloaded node.
+	 * @param entries the entries, sorted by their hc-position
+	 * @param n number of entries
+	 * @param tree tree
+	 */
+	void loadContent(BSTEntry[] entries, int n, PhTree16<?> tree) {
+		initPrefix(n > 0 ? entries[0].getKdKey() : null, tree.getDim());
+		isDense = shouldSwitchToDense(n, tree.getDim());
+		root = BSTreePage.bulkLoad(this, bstCreateRoot(tree), entries, 0, n, tree);
+		entryCnt = n;
+		dirty = false;
+	}
+
+	/**
+	 * Unload a stored node. The pages are not returned to the pool, they may still be used 
+	 * by iterators.
+	 */
+	void unloadContent() {
+		root = null;
+		dirty = false;
+	}
+
+	/**
+	 * Creates a copy of this node for copy-on-write. The BST pages are copied,
+	 * the prefix and the values (including sub-nodes) are shared with this node.
+	 * @param tree tree
+	 * @return A copy of this node.
+	 */
+	Node copy(PhTree16<?> tree) {
+		Node n = tree.nodePool().get();
+		n.maxLeafN = maxLeafN;
+		n.maxInnerN = maxInnerN;
+		n.isDense = isDense;
+		n.entryCnt = entryCnt;
+		n.subtreeEntryCnt = subtreeEntryCnt;
+		n.postLenStored = postLenStored;
+		n.infixLenStored = infixLenStored;
+		n.prefix = prefix;
+		n.root = root.copy(n, null, new BSTreePage[1]);
+		//The copy is about to be modified
+		n.dirty = true;
+		n.ckptPos = -1;
+		return n;
+	}
+
+	int olVersion() {
+		return olVersion;
+	}
+
+	/**
+	 * @param version The expected version
+	 * @return 'true' if the node was unlocked, had the expected version and is now locked.
+	 */
+	boolean olTryLock(int version) {
+		return (version & 1) == 0 && OL_VERSION.compareAndSet(this, version, version + 1);
+	}
+
+	void olUnlock(int newVersion) {
+		olVersion = newVersion;
+	}
+
+	void olInitVersion() {
+		olVersion = 0;
+	}
+
 	private void discardNode(PhTree16<?> tree) {
 		entryCnt = 0;
 		getRoot().clear();
 		tree.bstPool().reportFreeNode(root);
 		root = null;
+		if (store != null) {
+			store.discard(this);
+			store = null;
+		}
 		tree.nodePool().offer(this);
 	}
 	
@@ -135,11 +364,14 @@ public class Node {
 		long hcPos = posInArray(keyToMatch, getPostLen());
 
 		if (getOnly) {
-			BSTEntry e = getEntry(hcPos, keyToMatch);
-			return e != null ? e.getValue() : null;
+			return getValue(hcPos, keyToMatch);
 		}
 		Object v = removeEntry(hcPos, keyToMatch, insertRequired, tree);
 		if (v != null && !(v instanceof Node)) {
+			if (insertRequired != null && !insertRequired.isInsertRequired()) {
+				//The key was replaced in place, the entry has not been removed.
+				return v;
+			}
 			//Found and removed entry.
 			tree.decreaseNrEntries();
 			if (getEntryCount() == 1) {
@@ -169,38 +401,34 @@ public class Node {
         //determine length of infix
         int newLocalInfLen = getPostLen() - mcb;
         int newPostLen = mcb - 1;
-        Node newNode = createNode(key1.length, newLocalInfLen, newPostLen, tree);
+        Node newNode = createNode(key1.length, newLocalInfLen, newPostLen, key1, tree);
 
 		long posSub1 = posInArray(key1, newPostLen);
         long posSub2 = posInArray(key2, newPostLen);
-		BSTEntry e1 = newNode.createEntry(posSub1, key1, val1, tree);
-		BSTEntry e2 = newNode.createEntry(posSub2, key2, val2, tree);
+		newNode.adjustSubInfix(val1);
+		newNode.adjustSubInfix(val2);
         if (posSub1 < posSub2) {
-        	newNode.root.init(e1, e2);
+        	newNode.root.init(posSub1, key1, val1, posSub2, key2, val2);
         } else {
-			newNode.root.init(e2, e1);
+			newNode.root.init(posSub2, key2, val2, posSub1, key1, val1);
         }
         newNode.entryCnt = 2;
+        newNode.subtreeEntryCnt = subtreeEntryCount(val1) + subtreeEntryCount(val2);
         return newNode;
     }
 
 	/**
-	 * Writes a complete entry.
+	 * Adjusts the infix of a value that becomes a sub-node of this node.
 	 * This should only be used for new nodes.
 	 *
-	 * @param hcPos HC pos
-	 * @param newKey new key
 	 * @param value new value
 	 */
-	private BSTEntry createEntry(long hcPos, long[] newKey, Object value, PhTree16<?> tree) {
+	private void adjustSubInfix(Object value) {
 		if (value instanceof Node) {
 			Node node = (Node) value;
 			int newSubInfixLen = postLenStored() - node.postLenStored() - 1;
 			node.setInfixLen(newSubInfixLen);
 		}
-		BSTEntry e = tree.bstPool().getEntry();
-		e.set(hcPos, newKey, value);
-		return e;
 	}
 
 	/**
@@ -250,27 +478,28 @@ public class Node {
 		//the local node because it contains at most one other entry and it is not the root node.
 
 		//We know that there is only a leaf node with only a single entry, so...
-		BSTEntry nte = root.getFirstValue();
+		int pos = root.getFirstPos();
+		Object value = root.getValue(pos);
+		long[] kdKey = root.getKdKey(pos, tree.longPool().getArray(key.length));
 		
 		long posInParent = PhTreeHelper.posInArray(key, parent.getPostLen());
-		if (nte.getValue() instanceof Node) {
-			long[] newPost = nte.getKdKey();
+		if (value instanceof Node) {
 			//connect sub to parent
-			Node sub2 = (Node) nte.getValue();
+			//sub2 is not on the path of the current operation
+			Node sub2 = tree.copyOnWrite((Node) value);
 			int newInfixLen = getInfixLen() + 1 + sub2.getInfixLen();
 			sub2.setInfixLen(newInfixLen);
 
 			//update parent, the position is the same
-			//we use newPost as Infix
+			//we use the kd-key as Infix
 			//Replace sub!
-			parent.replaceEntry(posInParent, newPost, sub2);
+			parent.replaceEntry(posInParent, kdKey, sub2);
 		} else {
 			//this is also a post
 			//Replace post!
-			parent.replaceEntry(posInParent, nte.getKdKey(), nte.getValue());
+			parent.replaceEntry(posInParent, kdKey, value);
 		}
-
-		//TODO return old key/BSTEntry to pool
+		tree.longPool().offer(kdKey);
 		
 		discardNode(tree);
 	}
@@ -333,16 +562,18 @@ public class Node {
 	@SuppressWarnings("unchecked")
 	<T> boolean checkAndGetEntry(BSTEntry candidate, PhEntry<T> result, long[] rangeMin, long[] rangeMax) {
 		Object value = candidate.getValue();
+		long[] kdKey = candidate.getKdKey();
 		if (value instanceof Node) {
 			Node sub = (Node) value;
-			if (!checkInfix(sub.getInfixLen(), candidate.getKdKey(), rangeMin, rangeMax)) {
+			if (!checkInfix(sub.getInfixLen(), kdKey, rangeMin, rangeMax)) {
 				return false;
 			}
-			result.setKeyInternal(candidate.getKdKey());
+			//The kd-key of the candidate is reused by the iterator
+			System.arraycopy(kdKey, 0, result.getKey(), 0, kdKey.length);
 			result.setNodeInternal(sub);
 			return true;
-		} else if (LongArrayOps.checkRange(candidate.getKdKey(), rangeMin, rangeMax)) {
-			result.setKeyInternal(candidate.getKdKey());
+		} else if (LongArrayOps.checkRange(kdKey, rangeMin, rangeMax)) {
+			System.arraycopy(kdKey, 0, result.getKey(), 0, kdKey.length);
 			result.setValueInternal((T) value);
 			return true;
 		} else {
@@ -377,6 +608,26 @@ public class Node {
 		tree.increaseNrEntries();
 	}
 
+	/**
+	 * @return Number of entries in this node and all its sub-nodes. This is not maintained 
+	 * in OL_COW mode, see {@link PhTree16#hasSubtreeCounts()}. 
+	 */
+	int getSubtreeEntryCount() {
+		return subtreeEntryCnt;
+	}
+
+	void setSubtreeEntryCount(int n) {
+		subtreeEntryCnt = n;
+	}
+
+	void addSubtreeEntryCount(int delta) {
+		subtreeEntryCnt += delta;
+	}
+
+	private static int subtreeEntryCount(Object value) {
+		return value instanceof Node ? ((Node) value).subtreeEntryCnt : 1;
+	}
+
 
 	public int getInfixLen() {
 		return infixLenStored() - 1;
@@ -394,6 +645,13 @@ public class Node {
         return postLenStored - 1;
     }
 
+	/**
+	 * @return The bits of the keys of this node above the hc-bit, the other bits are 0.
+	 */
+	public long[] getPrefix() {
+		return prefix;
+	}
+
 	int postLenStored() {
 		return postLenStored;
 	}
@@ -415,38 +673,139 @@ public class Node {
 	}
 
 
-    public final BSTEntry bstGetOrCreate(long key, PhTree16<?> tree) {
+    /**
+     * Insert a new entry or replace the kd-key and value of an existing entry.
+     * @param key hc-position
+     * @param kdKey kd-key
+     * @param value value
+     */
+    public final void bstPut(long key, long[] kdKey, Object value) {
         BSTreePage page = getRoot();
-        if (page.isLeaf()) {
-            BSTEntry e = page.getOrCreate(key, null, -1, this);
-            if (e.getKdKey() == null && e.getValue() instanceof BSTreePage) {
-                BSTreePage newPage = (BSTreePage) e.getValue();
-                root = BSTreePage.create(this, null, page, newPage, tree);
-                e.setValue(null);
-            }
-            return e;
+        int posInParent = -1;
+        while (!page.isLeaf()) {
+            posInParent = page.binarySearchInnerNode(key);
+            page = page.getSubPages()[posInParent];
         }
-
-        Object o = page;
-        while (o instanceof BSTreePage && !((BSTreePage)o).isLeaf()) {
-            o = ((BSTreePage)o).getOrCreate(key, this);
+        int pos = page.binarySearch(key);
+        if (pos >= 0) {
+            page.setKdKey(pos, kdKey);
+            page.setValue(pos, value);
+        } else {
+            page.insert(key, pos, kdKey, value, posInParent, this);
         }
-        return (BSTEntry)o;
     }
 
 
+	/**
+	 * Bulk loading: Fill the (empty) BST of this node with the given entries. 
+	 * @param entries the entries, sorted by their hc-position
+	 * @param from position of the first entry
+	 * @param n number of entries
+	 * @param tree tree
+	 */
+	void bstBulkLoad(BSTEntry[] entries, int from, int n, PhTree16<?> tree) {
+		isDense = shouldSwitchToDense(n, tree.getDim());
+		root = BSTreePage.bulkLoad(this, root, entries, from, n, tree);
+		entryCnt = n;
+	}
+
+
+	/**
+	 * A node switches to the dense representation if the hypercube page does not need 
+	 * more memory than the BST leaf pages. The switches are counted in {@link PhTreeStats}.
+	 */
+	private boolean shouldSwitchToDense(int nEntries, int dims) {
+		if (!PhTree16.DENSE_ENABLED || dims > DENSE_MAX_DIM) {
+			return false;
+		}
+		return nEntries >= denseMinEntries(dims, getPostLen());
+	}
+
+	private boolean shouldSwitchToBst(int nEntries, int dims) {
+		return nEntries < denseMaxEntriesForBst(dims, getPostLen());
+	}
+
+	/**
+	 * Minimum number of entries for the dense representation. The hypercube page needs a 
+	 * value reference and the postfix for each of the 2^dims slots, the BST leaf pages 
+	 * need the hc-position, the value reference and the postfix for each entry. 
+	 * This ignores the unused capacity and the inner pages of the BST.
+	 * @param dims dimensions
+	 * @param postLen postfix length of the node
+	 * @return The number of entries at which a node switches to the dense representation.
+	 */
+	static int denseMinEntries(int dims, int postLen) {
+		long postBytes = 8L * ((dims * postLen + 63) >>> 6);
+		long sizeHC = (REF_BYTES + postBytes) << dims;
+		return (int) ((sizeHC + 8 + REF_BYTES + postBytes - 1) / (8 + REF_BYTES + postBytes));
+	}
+
+	/**
+	 * Dense nodes switch back to the BST with less than 2/3 of the entries that are required 
+	 * for switching to the dense representation. The gap avoids switching back and forth.
+	 * @param dims dimensions
+	 * @param postLen postfix length of the node
+	 * @return The number of entries below which a dense node switches back to the BST.
+	 */
+	static int denseMaxEntriesForBst(int dims, int postLen) {
+		return denseMinEntries(dims, postLen) * 2 / 3;
+	}
+
+	/**
+	 * Switch between dense and BST representation if the number of entries passed
+	 * the respective threshold.
+	 */
+	private void adaptRepresentation(PhTree16<?> tree) {
+		int dims = prefix.length;
+		if (isDense) {
+			if (shouldSwitchToBst(entryCnt, dims)) {
+				isDense = false;
+				bstRebuild(tree);
+				tree.statDenseSwitch(false);
+			}
+		} else if (shouldSwitchToDense(entryCnt, dims)) {
+			isDense = true;
+			bstRebuild(tree);
+			tree.statDenseSwitch(true);
+		}
+	}
+
+	/**
+	 * Rebuild the BST with the current page sizes.
+	 */
+	private void bstRebuild(PhTree16<?> tree) {
+		int n = entryCnt;
+		BSTEntry[] entries = new BSTEntry[n];
+		BSTIteratorAll iter = iterator();
+		for (int i = 0; i < n; i++) {
+			BSTEntry e = iter.nextEntry();
+			entries[i] = new BSTEntry(e.getKey(), e.getKdKey().clone(), e.getValue());
+		}
+		getRoot().clear();
+		tree.bstPool().reportFreeNode(root);
+		root = BSTreePage.bulkLoad(this, bstCreateRoot(tree), entries, 0, n, tree);
+	}
+
+	/**
+	 * @return 'true' if the node has a hypercube page instead of a BST, see {@link BSTreePage}.
+	 */
+	public boolean isDense() {
+		return isDense;
+	}
+
+
     public final void bstSetRoot(BSTreePage newRoot) {
 	    this.root = newRoot;
     }
 
 
-    public BSTEntry bstRemove(long key, long[] kdKey, PhTree16.UpdateInfo ui, PhTree16<?> tree) {
+    public Object bstRemove(long key, long[] kdKey, PhTree16.UpdateInfo ui, PhTree16<?> tree) {
 		final BSTreePage rootPage = getRoot();
 		if (rootPage.isLeaf()) {
 			return rootPage.remove(key, kdKey, this, ui);
 		}
 
-		BSTEntry result = rootPage.findAndRemove(key, kdKey, this, ui);
+		Object result = rootPage.findAndRemove(key, kdKey, this, ui);
 		if (rootPage.getNKeys() == 0) {
 			root = rootPage.getFirstSubPage();
 			root.setParent(null);
@@ -476,22 +835,42 @@ public class Node {
     }
 
 
-    public BSTEntry bstGet(long key) {
-        BSTreePage page = getRoot();
-        while (page != null && !page.isLeaf()) {
-            page = page.findSubPage(key);
-        }
+    public Object bstGet(long key) {
+        BSTreePage page = bstFindLeaf(key);
         if (page == null) {
             return null;
         }
         return page.getValueFromLeaf(key);
     }
 
+    /**
+     * @return The leaf page that contains the key if the key exists.
+     */
+    private BSTreePage bstFindLeaf(long key) {
+        BSTreePage page = getRoot();
+        while (page != null && !page.isLeaf()) {
+            page = page.findSubPage(key);
+        }
+        return page;
+    }
+
 	public BSTreePage bstCreatePage(BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor, PhTree16<?> tree) {
 		return BSTreePage.create(this, parent, isLeaf, leftPredecessor, tree);
 	}
 
+    /**
+     * @return The BST root page. Stored nodes are loaded if necessary.
+     */
     public BSTreePage getRoot() {
+        if (store != null) {
+            referenced = true;
+            if (root == null) {
+                store.load(this);
+            }
+            if (store.isWriting()) {
+                dirty = true;
+            }
+        }
         return root;
     }
 
@@ -501,7 +880,7 @@ public class Node {
 
     public String toStringTree() {
         StringBuilderLn sb = new StringBuilderLn();
-        if (root != null) {
+        if (getRoot() != null) {
             root.toStringTree(sb, "");
         }
         return sb.toString();
@@ -540,7 +919,7 @@ public class Node {
 	
 	public BSTStats getStats() {
 		BSTStats stats = new BSTStats();
-		if (root != null) {
+		if (getRoot() != null) {
 			root.getStats(stats);
 		}
 		return stats;
@@ -575,77 +954,84 @@ public class Node {
 	 * @return see above
 	 */
 	Object addEntry(long hcPos, long[] kdKey, Object value, PhTree16<?> tree) {
-		//Uses bstGetOrCreate() -> 
-		//- get or create entry
-		//- if value==null -> new entry, just set key,value
-		//- if not null: decide to replacePos (exact match) or replaceWithSub 
-		BSTEntry be = bstGetOrCreate(hcPos, tree);
-		if (be.getKdKey() == null) {
+		//- find the leaf page and the position of the entry
+		//- if the entry does not exist -> insert new entry
+		//- if it exists: decide to replacePos (exact match) or replaceWithSub 
+		BSTreePage page = getRoot();
+		int posInParent = -1;
+		while (!page.isLeaf()) {
+			posInParent = page.binarySearchInnerNode(hcPos);
+			page = page.getSubPages()[posInParent];
+		}
+		int pos = page.binarySearch(hcPos);
+		if (pos < 0) {
 			//new!
-			be.set(hcPos, kdKey, value);
+			page.insert(hcPos, pos, kdKey, value, posInParent, this);
+			adaptRepresentation(tree);
 			return null;
 		} 
 		
 		//exists!!
-		return handleCollision(be, kdKey, value, tree);
+		return handleCollision(page, pos, kdKey, value, tree);
 	}
 
 
-    private Object handleCollision(BSTEntry existingE, long[] kdKey, Object value, PhTree16<?> tree) {
+    private Object handleCollision(BSTreePage page, int pos, long[] kdKey, Object value, PhTree16<?> tree) {
         //We have two entries in the same location (local hcPos).
         //Now we need to compare the kdKeys.
         //If they are identical, we either replace the VALUE or return the SUB-NODE
         // (that's actually the same, simply return the VALUE)
         //If the kdKey differs, we have to split, insert a newSubNode and return null.
 
-        Object localVal = existingE.getValue();
+        Object localVal = page.getValue(pos);
         if (localVal instanceof Node) {
             Node subNode = (Node) localVal;
             if (subNode.getInfixLen() > 0) {
                 long mask = calcInfixMask(subNode.getPostLen());
-                return insertSplit(existingE, kdKey, value, mask, tree);
+                return insertSplit(page, pos, kdKey, value, mask, tree);
             }
             //No infix conflict, just traverse subnode
             return localVal;
         } else {
             if (getPostLen() > 0) {
-                return insertSplit(existingE, kdKey, value, -1L, tree);
+                return insertSplit(page, pos, kdKey, value, -1L, tree);
             }
             //perfect match -> replace value
-            existingE.set(existingE.getKey(), kdKey, value);
+            page.setValue(pos, value);
             return localVal;
         }
     }
 
 
-    private Object insertSplit(BSTEntry currentEntry, long[] newKey, Object newValue, long mask, PhTree16<?> tree) {
+    private Object insertSplit(BSTreePage page, int pos, long[] newKey, Object newValue, long mask, 
+    		PhTree16<?> tree) {
+		Object currentValue = page.getValue(pos);
 		if (mask == 0) {
 			//There won't be any split, no need to check.
-			return currentEntry.getValue();
+			return currentValue;
 		}
-		long[] localKdKey = currentEntry.getKdKey();
-		Object currentValue = currentEntry.getValue();
-		int maxConflictingBits = Node.calcConflictingBits(newKey, localKdKey, mask);
+		int maxConflictingBits = page.calcConflictingBits(pos, newKey, mask);
 		if (maxConflictingBits == 0) {
 			if (!(currentValue instanceof Node)) {
 				//replace value
-				currentEntry.set(currentEntry.getKey(), newKey, newValue);
+				page.setValue(pos, newValue);
 			}
 			//return previous value
 			return currentValue;
 		}
 
+		long[] localKdKey = page.getKdKey(pos, tree.longPool().getArray(newKey.length));
 		Node newNode = createNode(newKey, newValue, localKdKey, currentValue, maxConflictingBits, tree);
+		tree.longPool().offer(localKdKey);
 
-		//replace value
-		currentEntry.set(currentEntry.getKey(), tree.longPool().arrayClone(localKdKey), newNode);
+		//replace value, the postfix remains unchanged
+		page.setValue(pos, newNode);
 		//entry did not exist
         return null;
 	}
 	
 	private void replaceEntry(long hcPos, long[] kdKey, Object value) {
-		BSTEntry be = bstGet(hcPos);
-		be.set(hcPos, kdKey, value);
+		bstPut(hcPos, kdKey, value);
 	}
 
 	Object removeEntry(long hcPos, long[] keyToMatch, Node parent, PhTree16<?> tree) {
@@ -662,7 +1048,11 @@ public class Node {
 
     <T> Object computeEntry(long hcPos, long[] keyToMatch, Node parent, PhTree16<?> tree,
                             boolean doIfAbsent, BiFunction<long[], ? super T, ? extends T> mappingFunction) {
+        int nBefore = entryCnt;
         Object v = bstCompute(hcPos, keyToMatch, tree,  doIfAbsent, mappingFunction);
+        if (entryCnt != nBefore) {
+            adaptRepresentation(tree);
+        }
         //Check for removed elements
         if (getEntryCount() == 1) {
             mergeIntoParentNt(keyToMatch, parent, tree);
@@ -686,7 +1076,11 @@ public class Node {
      */
     private Object removeEntry(long hcPos, long[] key, UpdateInfo ui, PhTree16<?> tree) {
         //Only remove value-entries, node-entries are simply returned without removing them
-        BSTEntry prev = bstRemove(hcPos, key, ui, tree);
+        int nBefore = entryCnt;
+        Object prev = bstRemove(hcPos, key, ui, tree);
+        if (entryCnt != nBefore) {
+            adaptRepresentation(tree);
+        }
         //return values:
         // - null -> not found / remove failed
         // - Node -> recurse node
@@ -698,12 +1092,13 @@ public class Node {
         //  - No match: no delete, return null
         //  - Match Node: no delete, return Node
         //  - Match Value: delete, return value
-        return prev == null ? null : prev.getValue();
+        return prev;
     }
 
-    public REMOVE_OP bstInternalRemoveCallback(BSTEntry currentEntry, long[] key, UpdateInfo ui) {
-        if (matches(currentEntry, key)) {
-            if (currentEntry.getValue() instanceof Node) {
+    public REMOVE_OP bstInternalRemoveCallback(BSTreePage page, int pos, long[] key, UpdateInfo ui) {
+        Object value = page.getValue(pos);
+        if (matches(page, pos, value, key)) {
+            if (value instanceof Node) {
                 return REMOVE_OP.KEEP_RETURN;
             }
             if (ui != null) {
@@ -711,9 +1106,8 @@ public class Node {
                 int bitPosOfDiff = Node.calcConflictingBits(key, ui.newKey, -1L);
                 if (bitPosOfDiff <= getPostLen()) {
                     //replace
-                    //simply replace kdKey!!
-                    //Replacing the long[] should be correct (and fastest, and avoiding GC)
-                    currentEntry.set(currentEntry.getKey(), ui.newKey, currentEntry.getValue());
+                    //simply replace the postfix!!
+                    page.setKdKey(pos, ui.newKey);
                     return REMOVE_OP.KEEP_RETURN;
                 } else {
                     ui.insertRequired = bitPosOfDiff;
@@ -725,60 +1119,58 @@ public class Node {
     }
 
 
-    BSTEntry getEntry(long hcPos, long[] keyToMatch) {
-        BSTEntry be = bstGet(hcPos);
-        if (be == null) {
+    /**
+     * @param hcPos hc pos
+     * @param keyToMatch key, or 'null' if the key should not be checked
+     * @return The value (T or Node) of the entry or 'null' if there is no matching entry.
+     */
+    Object getValue(long hcPos, long[] keyToMatch) {
+        BSTreePage page = bstFindLeaf(hcPos);
+        if (page == null) {
+            return null;
+        }
+        int pos = page.binarySearch(hcPos);
+        if (pos < 0) {
             return null;
         }
-        if (keyToMatch != null && !matches(be, keyToMatch)) {
+        Object value = page.getValue(pos);
+        if (keyToMatch != null && !matches(page, pos, value, keyToMatch)) {
             return null;
         }
-        return be;
+        return value;
+    }
+
+
+    /**
+     * Replace the value of an existing entry with a release store.
+     * @param hcPos hc pos
+     * @param value The new value (T or Node)
+     */
+    void setValue(long hcPos, Object value) {
+        BSTreePage page = bstFindLeaf(hcPos);
+        page.setValue(page.binarySearch(hcPos), value);
     }
 
 
-    public boolean matches(BSTEntry be, long[] keyToMatch) {
+    private boolean matches(BSTreePage page, int pos, Object value, long[] keyToMatch) {
         //This is always 0, unless we decide to put several keys into a single array
-        if (be.getValue() instanceof Node) {
-            Node sub = (Node) be.getValue();
-            //TODO 2019 is this vectorizable?
+        if (value instanceof Node) {
+            Node sub = (Node) value;
             if (sub.getInfixLen() > 0) {
                 final long mask = calcInfixMask(sub.getPostLen());
-                return checkKdKey(be.getKdKey(), keyToMatch, mask);
+                return page.calcConflictingBits(pos, keyToMatch, mask) == 0;
             }
             return true;
         }
 
-        return checkKdKey(be.getKdKey(), keyToMatch);
+        return page.calcConflictingBits(pos, keyToMatch, -1L) == 0;
     }
 
-    private static boolean checkKdKey(long[] allKeys, long[] keyToMatch, long mask) {
-        for (int i = 0; i < keyToMatch.length; i++) {
-            if (((allKeys[i] ^ keyToMatch[i]) & mask) != 0) {
-                return false;
-            }
-        }
-        return true;
-    }
 
-    private static boolean checkKdKey(long[] allKeys, long[] keyToMatch) {
-        for (int i = 0; i < keyToMatch.length; i++) {
-            //TODO 2019
-//            if (allKeys[i] != keyToMatch[i]) {
-//                return false;
-//            }
-            if ((allKeys[i] ^ keyToMatch[i]) != 0) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-
-	void getStats(PhTreeStats stats, List<BSTEntry> entries) {
+	void getStats(PhTreeStats stats, List<Object> values) {
 		BSTIteratorAll iter = iterator();
 		while (iter.hasNextEntry()) {
-			entries.add(iter.nextEntry());
+			values.add(iter.nextEntry().getValue());
 		}
 		BSTStats bstStats = getStats();
 		//nInner
@@ -787,6 +1179,11 @@ public class Node {
 		stats.nNT += bstStats.nNodesLeaf;
 		//Capacity inner
 		stats.nNtNodes += bstStats.capacityLeaf;
+		if (isDense) {
+			stats.nDense++;
+			stats.nDenseEntries += entryCnt;
+			stats.nDenseSlots += 1 << prefix.length;
+		}
 	}
 	
 		
@@ -797,6 +1194,10 @@ public class Node {
 		KEEP_RETURN_NULL
 	}
 
+    /**
+     * An entry for bulk loading and for iterators. The BST pages do not store BSTEntry
+     * objects, iterators reuse their entry and kd-key.
+     */
     public static class BSTEntry {
         private long key;
         private long[] kdKey;
@@ -81,13 +81,14 @@ public class NodeIteratorFullNoGC<T> {
 			if (checker != null && !checker.isValid(sub.postLenStored()+1, kdKey)) {
 				return false;
 			}
-			result.setKeyInternal(kdKey);
+			//The kd-key of the entry is reused by the iterator
+			System.arraycopy(kdKey, 0, result.getKey(), 0, kdKey.length);
 			result.setNodeInternal(sub);
 		} else {
 			if (checker != null && !checker.isValid(kdKey)) {
 				return false;
 			}
-			result.setKeyInternal(kdKey);
+			System.arraycopy(kdKey, 0, result.getKey(), 0, kdKey.length);
 			//ensure that 'node' is set to null
 			result.setValueInternal((T) value);
 		}
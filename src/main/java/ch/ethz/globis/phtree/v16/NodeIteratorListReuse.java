@@ -98,7 +98,9 @@ public class NodeIteratorListReuse<T, R> {
 		private void readValue(BSTEntry candidate) {
 			//TODO avoid getting/assigning element? -> Most entries fail!
 			PhEntry<T> result = results.phGetTempEntry();
-			result.setKeyInternal(candidate.getKdKey());
+			//The kd-key of the candidate is reused by the iterator
+			long[] kdKey = candidate.getKdKey();
+			System.arraycopy(kdKey, 0, result.getKey(), 0, kdKey.length);
 			result.setValueInternal((T) candidate.getValue());
 			results.phOffer(result);
 		}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+import ch.ethz.globis.phtree.PersistenceProviderFile;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Loads and stores the nodes of a {@link PhTree16} with a {@link PersistenceProviderFile}.
+ * <p>
+ * Every node is stored in one record. A record contains the entries of the node. For
+ * sub-nodes, the record contains the record ID of the sub-node and its header (infix length,
+ * postfix length, entry counts), so that queries can check the infix of a sub-node without
+ * loading it.
+ * <p>
+ * Nodes that are not loaded have no BST pages ('stubs'), they are loaded when their
+ * pages are accessed, see {@link Node#getRoot()}.
+ * If too many nodes are loaded, nodes are unloaded with a CLOCK policy. Unloading a node
+ * does not return its pages to the pools, because iterators may still use them.
+ * <p>
+ * Write operations are executed with {@link #write(Supplier)}. Every node that is accessed
+ * during a write operation is considered modified. Nodes are not unloaded during write
+ * operations, because the write operation may hold references to their pages.
+ *
+ * @author ztilmann
+ */
+final class NodeStore implements Flushable {
+
+	private static final byte VALUE = 0;
+	private static final byte NULL = 1;
+	private static final byte NODE = 2;
+
+	/** Gives access to the buffer without copying it. */
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private final PhTree16<?> tree;
+	private final PersistenceProviderFile file;
+	private final PhValueCodec<Object> codec;
+	private final int maxLoadedNodes;
+	//Loaded nodes by record ID, in CLOCK order
+	private final LinkedHashMap<Integer, Node> loaded = new LinkedHashMap<>();
+	private final Buffer buffer = new Buffer();
+	private final DataOutputStream out = new DataOutputStream(buffer);
+	private boolean writing = false;
+
+	NodeStore(PhTree16<?> tree, PersistenceProviderFile file) {
+		this.tree = tree;
+		this.file = file;
+		this.codec = file.getValueCodec();
+		this.maxLoadedNodes = file.getMaxLoadedNodes();
+		file.attach(tree, this);
+	}
+
+	/**
+	 * Execute a write operation.
+	 * @param op the write operation
+	 * @return the result of the operation
+	 * @param <R> result type
+	 */
+	<R> R write(Supplier<R> op) {
+		if (writing) {
+			//nested, e.g. bulkLoad() -> put()
+			return op.get();
+		}
+		writing = true;
+		try {
+			return op.get();
+		} finally {
+			writing = false;
+			evict(maxLoadedNodes);
+		}
+	}
+
+	boolean isWriting() {
+		return writing;
+	}
+
+	/**
+	 * Assign a record to a new node.
+	 * @param node the node
+	 */
+	void register(Node node) {
+		int id = file.allocateRecord();
+		node.storeInit(this, id);
+		loaded.put(id, node);
+	}
+
+	/**
+	 * Load the entries of a node.
+	 * @param node the node
+	 */
+	void load(Node node) {
+		if (!writing) {
+			evict(maxLoadedNodes - 1);
+		}
+		int id = node.storeId();
+		Node other = loaded.remove(id);
+		if (other != null && other != node) {
+			//Another instance of the same node, this happens only if iterators keep unloaded
+			//pages. We load a new copy and unload the other instance.
+			unload(other);
+		}
+		int dims = tree.getDim();
+		BSTEntry[] entries;
+		int n;
+		try (DataInputStream in = file.readRecord(id)) {
+			n = in.readInt();
+			entries = new BSTEntry[n];
+			for (int i = 0; i < n; i++) {
+				long hcPos = in.readLong();
+				long[] kdKey = new long[dims];
+				for (int d = 0; d < dims; d++) {
+					kdKey[d] = in.readLong();
+				}
+				Object value;
+				byte type = in.readByte();
+				if (type == NODE) {
+					int subId = in.readInt();
+					int infixLen = in.readByte();
+					int postLen = in.readByte();
+					int entryCnt = in.readInt();
+					int subtreeEntryCnt = in.readInt();
+					value = loaded.get(subId);
+					if (value == null) {
+						value = Node.createStub(this, subId, infixLen, postLen, entryCnt,
+								subtreeEntryCnt, tree);
+					}
+				} else if (type == NULL) {
+					value = PhTreeHelper.NULL;
+				} else {
+					value = codec.read(in);
+				}
+				BSTEntry e = tree.bstPool().getEntry();
+				e.set(hcPos, kdKey, value);
+				entries[i] = e;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		node.loadContent(entries, n, tree);
+		loaded.put(id, node);
+	}
+
+	private void store(Node node) {
+		buffer.reset();
+		try {
+			out.writeInt(node.getEntryCount());
+			BSTIteratorAll iter = new BSTIteratorAll().reset(node.loadedRoot());
+			while (iter.hasNextEntry()) {
+				BSTEntry e = iter.nextEntry();
+				out.writeLong(e.getKey());
+				for (long k : e.getKdKey()) {
+					out.writeLong(k);
+				}
+				Object v = e.getValue();
+				if (v instanceof Node) {
+					Node sub = (Node) v;
+					out.writeByte(NODE);
+					out.writeInt(sub.storeId());
+					out.writeByte(sub.getInfixLen());
+					out.writeByte(sub.getPostLen());
+					out.writeInt(sub.getEntryCount());
+					out.writeInt(sub.getSubtreeEntryCount());
+				} else if (v == PhTreeHelper.NULL) {
+					out.writeByte(NULL);
+				} else {
+					out.writeByte(VALUE);
+					codec.write(v, out);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		file.writeRecord(node.storeId(), buffer.buffer(), buffer.size());
+		node.storeClean();
+	}
+
+	private void unload(Node node) {
+		if (node.isDirty()) {
+			store(node);
+		}
+		node.unloadContent();
+	}
+
+	/**
+	 * Unload nodes until at most 'max' nodes are loaded. Recently accessed nodes get a
+	 * second chance, the root node is never unloaded.
+	 */
+	private void evict(int max) {
+		Node root = tree.getRoot();
+		int budget = 3 * loaded.size() + 2;
+		Iterator<Node> it = loaded.values().iterator();
+		List<Node> referenced = new ArrayList<>();
+		while (loaded.size() > max && budget-- > 0) {
+			if (!it.hasNext()) {
+				//move referenced nodes to the end, this starts the next round
+				for (Node n : referenced) {
+					loaded.put(n.storeId(), n);
+				}
+				referenced.clear();
+				it = loaded.values().iterator();
+				continue;
+			}
+			Node n = it.next();
+			if (n == root) {
+				continue;
+			}
+			it.remove();
+			if (n.isReferenced()) {
+				n.clearReferenced();
+				referenced.add(n);
+			} else {
+				unload(n);
+			}
+		}
+		for (Node n : referenced) {
+			loaded.put(n.storeId(), n);
+		}
+	}
+
+	/**
+	 * Remove a node that has been discarded by the tree.
+	 * @param node the node
+	 */
+	void discard(Node node) {
+		loaded.remove(node.storeId());
+		file.freeRecord(node.storeId());
+	}
+
+	/**
+	 * @return the number of loaded nodes
+	 */
+	int loadedNodes() {
+		return loaded.size();
+	}
+
+	/**
+	 * Remove all nodes.
+	 */
+	void clear() {
+		loaded.clear();
+		file.clear();
+	}
+
+	/**
+	 * Write all modified nodes and the tree metadata.
+	 */
+	@Override
+	public void flush() {
+		for (Node n : loaded.values()) {
+			if (n.isDirty()) {
+				store(n);
+			}
+		}
+		Node root = tree.getRoot();
+		file.updateTree(tree, tree.getDim(), tree.size(), root == null ? 0 : root.storeId());
+	}
+}
@@ -95,13 +95,28 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 		this.stack.size = 0;
 		this.isFinished = false;
 		
-		if (pht.getRoot() == null) {
+		//read root only once, it may change concurrently (COW)
+		Node root = pht.getRoot();
+		if (root == null) {
 			//empty index
 			isFinished = true;
 			return this;
 		}
 		
-		stack.prepareAndPush(pht.getRoot());
+		stack.prepareAndPush(root);
+		findNextElement();
+		return this;
+	}
+
+	/**
+	 * Reset the iterator to iterate only over the subtree of the given node.
+	 * @param node The node
+	 * @return this
+	 */
+	PhIteratorFullNoGC<T> resetFrom(Node node) {
+		this.stack.size = 0;
+		this.isFinished = false;
+		stack.prepareAndPush(node);
 		findNextElement();
 		return this;
 	}
@@ -22,23 +22,18 @@ import java.util.NoSuchElementException;
  * <p>
  * Implementation after Hjaltason and Samet (with some deviations: no MinDist or MaxDist used).
  * G. R. Hjaltason and H. Samet., "Distance browsing in spatial databases.", ACM TODS 24(2):265--318. 1999
+ * <p>
+ * An optional {@link PhFilter} is applied during traversal: sub-nodes are pruned with
+ * {@link PhFilter#isValid(int, long[])} and entries are checked with {@link PhFilter#isValid(long[])}
+ * before they are considered as candidates.
  *
  * @param <T> value type
  */
 public class PhIteratorKnn<T> implements PhKnnQuery<T> {
 
     private final PhTree16<T> pht;
-    private final PhFilter filterFn = new PhFilter() {
-        @Override
-        public boolean isValid(long[] key) {
-            return true;
-        }
-
-        @Override
-        public boolean isValid(int bitsToIgnore, long[] prefix) {
-            return true;
-        }
-    };
+    /** Optional filter, can be {@code null}. */
+    private final PhFilter filterFn;
     private final NodeIteratorFullNoGC<T> nodeIter;
     private final PhEntry<T> tempResult;
     MinMaxHeapPool<NodeDistT> queueN = MinMaxHeapPool.create((t1, t2) -> t1.dist < t2.dist, NodeDistT::new);
@@ -51,8 +46,10 @@ public class PhIteratorKnn<T> implements PhKnnQuery<T> {
     private int remaining;
     private long[] center;
     private double currentDistance;
+    private final long[] distBuffer;
 
-    PhIteratorKnn(PhTree16<T> pht, int minResults, long[] center, PhDistance distFn) {
+    PhIteratorKnn(PhTree16<T> pht, int minResults, long[] center, PhDistance distFn, PhFilter filter) {
+        this.filterFn = filter;
         this.distFn = distFn;
         this.pht = pht;
         this.queueV = MinMaxHeapPool.create((t1, t2) -> t1.dist() < t2.dist(), () -> new PhEntryDist<>(new long[pht.getDim()], null, 0));
@@ -60,6 +57,7 @@ public class PhIteratorKnn<T> implements PhKnnQuery<T> {
         this.resultFree = new PhEntryDist<>(new long[pht.getDim()], null, 0);
         this.resultToReturn = new PhEntryDist<>(new long[pht.getDim()], null, 0);
         this.tempResult = new PhEntry<>(new long[pht.getDim()], null);
+        this.distBuffer = new long[pht.getDim()];
         reset(minResults, distFn, center);
     }
 
@@ -184,7 +182,7 @@ public class PhIteratorKnn<T> implements PhKnnQuery<T> {
     private double distToNode(long[] prefix, int bitsToIgnore) {
         long maskMin = (-1L) << bitsToIgnore;
         long maskMax = ~maskMin;
-        long[] buf = new long[prefix.length];
+        long[] buf = distBuffer;
         for (int i = 0; i < buf.length; i++) {
             //if v is outside the node, return distance to the closest edge,
             //otherwise return v itself (assume possible distance=0)
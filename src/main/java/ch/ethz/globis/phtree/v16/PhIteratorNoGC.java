@@ -101,13 +101,33 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 		this.stack.size = 0;
 		this.isFinished = false;
 		
-		if (pht.getRoot() == null) {
+		//read root only once, it may change concurrently (COW)
+		Node root = pht.getRoot();
+		if (root == null) {
 			//empty index
 			isFinished = true;
 			return this;
 		}
 		
-		stack.prepareAndPush(pht.getRoot(), null);
+		stack.prepareAndPush(root, null);
+		findNextElement();
+		return this;
+	}
+
+	/**
+	 * Reset the query to iterate only over the subtree of the given node.
+	 * @param node The node
+	 * @param prefix The kd-key of the entry that references the node, or 'null' for the root
+	 * @param rangeMin min values
+	 * @param rangeMax max values
+	 * @return this
+	 */
+	PhIteratorNoGC<T> resetFrom(Node node, long[] prefix, long[] rangeMin, long[] rangeMax) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.stack.size = 0;
+		this.isFinished = false;
+		stack.prepareAndPush(node, prefix);
 		findNextElement();
 		return this;
 	}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.unmaskNull;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree.PhAggregator;
+import ch.ethz.globis.phtree.util.Refs;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Count and aggregate queries for {@link PhTree16}.
+ * <p>
+ * The query traverses the tree recursively without creating {@link PhEntry} objects or copying
+ * keys. Sub-nodes that lie completely inside the query window are traversed without any range
+ * checks. For counting, such sub-nodes are not traversed at all if the tree maintains
+ * subtree entry counts, see {@link PhTree16#hasSubtreeCounts()}.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+final class PhQueryAggregate<T> {
+
+	private final PhTree16<T> pht;
+	//one iterator and result per depth
+	private final NodeIteratorNoGC<T>[] iterators;
+	private final BSTIteratorAll[] iteratorsAll;
+	private final PhEntry<T>[] results;
+	private long[] rangeMin;
+	private long[] rangeMax;
+	//'null' for counting
+	private PhAggregator<? super T, Object> aggregator;
+	private Object accumulator;
+
+	@SuppressWarnings("unchecked")
+	PhQueryAggregate(PhTree16<T> pht) {
+		this.pht = pht;
+		this.iterators = Refs.newArray(NodeIteratorNoGC.class, PhTree16.DEPTH_64);
+		this.iteratorsAll = new BSTIteratorAll[PhTree16.DEPTH_64];
+		this.results = Refs.newArray(PhEntry.class, PhTree16.DEPTH_64);
+	}
+
+	/**
+	 * @param min min values
+	 * @param max max values
+	 * @return The number of entries in the query window.
+	 */
+	long count(long[] min, long[] max) {
+		this.aggregator = null;
+		this.accumulator = null;
+		return run(min, max);
+	}
+
+	/**
+	 * @param min min values
+	 * @param max max values
+	 * @param accumulator the accumulator
+	 * @param aggregator the aggregation function
+	 * @return the accumulator
+	 * @param <A> accumulator type
+	 */
+	@SuppressWarnings("unchecked")
+	<A> A aggregate(long[] min, long[] max, A accumulator, PhAggregator<? super T, A> aggregator) {
+		this.aggregator = (PhAggregator<? super T, Object>) aggregator;
+		this.accumulator = accumulator;
+		try {
+			run(min, max);
+		} finally {
+			this.aggregator = null;
+			this.accumulator = null;
+		}
+		return accumulator;
+	}
+
+	private long run(long[] min, long[] max) {
+		this.rangeMin = min;
+		this.rangeMax = max;
+		//read root only once, it may change concurrently (COW)
+		Node root = pht.getRoot();
+		if (root == null) {
+			return 0;
+		}
+		for (int d = 0; d < min.length; d++) {
+			if (min[d] != Long.MIN_VALUE || max[d] != Long.MAX_VALUE) {
+				return traverse(root, null, 0);
+			}
+		}
+		return traverseAll(root, 0);
+	}
+
+	/**
+	 * Traverse a node that overlaps with the query window.
+	 */
+	private long traverse(Node node, long[] prefix, int depth) {
+		NodeIteratorNoGC<T> ni = iterators[depth];
+		if (ni == null) {
+			ni = new NodeIteratorNoGC<>(pht.getDim());
+			iterators[depth] = ni;
+		}
+		PhEntry<T> result = results[depth];
+		if (result == null) {
+			result = new PhEntry<>(new long[pht.getDim()], null);
+			results[depth] = result;
+		}
+		ni.init(rangeMin, rangeMax, node, null, prefix);
+		long n = 0;
+		while (ni.increment(result)) {
+			if (result.hasNodeInternal()) {
+				Node sub = (Node) result.getNodeInternal();
+				long[] subPrefix = result.getKey();
+				if (isInside(subPrefix, sub.getPostLen())) {
+					n += traverseAll(sub, depth + 1);
+				} else {
+					n += traverse(sub, subPrefix, depth + 1);
+				}
+			} else {
+				if (aggregator != null) {
+					aggregator.add(accumulator, result.getKey(), unmaskNull(result.getValue()));
+				}
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Traverse a node that is completely inside the query window.
+	 */
+	private long traverseAll(Node node, int depth) {
+		if (aggregator == null && pht.hasSubtreeCounts()) {
+			return node.getSubtreeEntryCount();
+		}
+		BSTIteratorAll iter = iteratorsAll[depth];
+		if (iter == null) {
+			iter = new BSTIteratorAll();
+			iteratorsAll[depth] = iter;
+		}
+		iter.reset(node.getRoot());
+		long n = 0;
+		while (iter.hasNextEntry()) {
+			BSTEntry e = iter.nextEntry();
+			Object v = e.getValue();
+			if (v instanceof Node) {
+				n += traverseAll((Node) v, depth + 1);
+			} else {
+				if (aggregator != null) {
+					aggregator.add(accumulator, e.getKdKey(), unmaskNull(v));
+				}
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param prefix the kd-key of the entry that references the sub-node
+	 * @param postLen the postfix length of the sub-node, this is always smaller than 63
+	 * @return 'true' if the sub-node lies completely inside the query window
+	 */
+	private boolean isInside(long[] prefix, int postLen) {
+		long mask = (-1L) << (postLen + 1);
+		for (int d = 0; d < prefix.length; d++) {
+			if ((prefix[d] & mask) < rangeMin[d] || (prefix[d] | ~mask) > rangeMax[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -20,15 +20,13 @@
 package ch.ethz.globis.phtree.v16;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhEntryDist;
 import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.util.MinHeapPool;
 import ch.ethz.globis.phtree.v16.Node.BSTEntry;
 import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
 
@@ -41,23 +39,29 @@ import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
  *
  * Additional modification by using HC-Address for estimating distance, actual distance is 
  * calculated only when required. 
+ * <p>
+ * The queues are pooled heaps, a query that is reused with 
+ * {@link #reset(int, PhDistance, long...)} does not allocate any objects. 
  * 
  * @param <T> value type
  */
 public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 
-	private static final PhDEComp COMP = new PhDEComp();
-
 	private final int dims;
 	private PhTree16<T> pht;
 	private PhDistance distance;
 	private long[] center;
 	private final ArrayList<PhEntryDist<T>> results = new ArrayList<>(); 
-	private final ArrayList<PhEntryDist<Object>> pool = new ArrayList<>(); 
-	private final PriorityQueue<PhEntryDist<Object>> queueEst = new PriorityQueue<>(COMP);
-	private final PriorityQueue<PhEntryDist<Object>> queueLx = new PriorityQueue<>(COMP);
+	private int nResults;
+	private int resultPos;
+	private final MinHeapPool<Candidate> queueEst = 
+			MinHeapPool.create((t1, t2) -> t1.dist < t2.dist, Candidate::new);
+	private final MinHeapPool<Candidate> queueLx = 
+			MinHeapPool.create((t1, t2) -> t1.dist < t2.dist, Candidate::new);
 	private final BSTIteratorAll iterNode = new BSTIteratorAll();
-	private Iterator<PhEntryDist<T>> iterResult;
+	private final long[] rootKey;
+	private final long[] distBuffer;
+	private final double[] distances;
 
 
 	/**
@@ -67,11 +71,14 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 	public PhQueryKnnHSZ(PhTree16<T> pht) {
 		this.dims = pht.getDim();
 		this.pht = pht;
+		this.rootKey = new long[dims];
+		this.distBuffer = new long[dims];
+		this.distances = new double[dims];
 	}
 
 	@Override
 	public long[] nextKey() {
-		return nextEntryReuse().getKey();
+		return nextEntryReuse().getKey().clone();
 	}
 
 	@Override
@@ -81,18 +88,20 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 
 	@Override
 	public PhEntryDist<T> nextEntry() {
-		return iterResult.next();
+		return new PhEntryDist<>(nextEntryReuse());
 	} 
 
 	@Override
 	public PhEntryDist<T> nextEntryReuse() {
-		//Reusing happens only via pooling
-		return iterResult.next();
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return results.get(resultPos++);
 	}
 
 	@Override
 	public boolean hasNext() {
-		return iterResult.hasNext();
+		return resultPos < nResults;
 	}
 
 	@Override
@@ -104,24 +113,21 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 	public PhKnnQuery<T> reset(int nMin, PhDistance dist, long... center) {
 		this.distance = dist == null ? this.distance : dist;
 		this.center = center;
-		
-		//TODO pool entries??/
 		this.queueEst.clear();
 		this.queueLx.clear();
-		this.results.clear();
-		
+		this.nResults = 0;
+		this.resultPos = 0;
 		
-		if (nMin <= 0 || pht.size() == 0) {
-			iterResult = Collections.emptyIterator();
+		//read root only once, it may change concurrently (COW)
+		Node root = pht.getRoot();
+		if (nMin <= 0 || root == null || pht.size() == 0) {
 			return this;
 		}
 		
 		//Initialize queue
-		PhEntryDist<Object> rootE = createEntry(new long[dims], pht.getRoot(), 0);
-		this.queueLx.add(rootE);
+		queueLx.push(createEntry(queueLx, rootKey, root, 0));
 		
 		search(nMin);
-		iterResult = results.iterator();
 		return this;
 	}
 
@@ -133,16 +139,16 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 	private void validateLxQueue(int k) {
 		//Check with estimated distance. Ensure that there is no candidate in queueEst that may be
 		//closer that the first candidate in queueLx.
-		while (!queueEst.isEmpty() && (queueLx.isEmpty() || queueEst.peek().dist() <= queueLx.peek().dist())) {
+		while (!queueEst.isEmpty() && (queueLx.isEmpty() || queueEst.peekMin().dist <= queueLx.peekMin().dist)) {
 			//move to queueLx
-			PhEntryDist<Object> entry = queueEst.poll();
-			entry.setDist(calcLxDistance(entry));
-			queueLx.add( entry ); 
+			Candidate entry = queueEst.peekMin();
+			Candidate lx = createEntry(queueLx, entry.key, entry.val, calcLxDistance(entry));
+			queueEst.popMin();
+			queueLx.push(lx); 
 		}
 	}
 	
 
-	@SuppressWarnings("unchecked")
 	private void search(int k) {
 		//Optimizations that DON'T work:
 		//
@@ -159,14 +165,17 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 			//ensure that 1st LX entry is valid
 			validateLxQueue(k);
 
-			//process 1st entry
-			PhEntryDist<Object> candidate = queueLx.poll();
+			//process 1st entry, the heap reuses it for the next push()
+			Candidate candidate = queueLx.peekMin();
+			Object val = candidate.val;
+			long[] candidateKey = candidate.key;
+			double candidateDist = candidate.dist;
+			queueLx.popMin();
 			
-			Object val = candidate.getValue();
 			if (!(val instanceof Node)) {
 				//data entry
-				results.add((PhEntryDist<T>) candidate);
-				if (results.size() >= k) {
+				addResult(candidateKey, val, candidateDist);
+				if (nResults >= k) {
 					return;
 				}
 			} else {
@@ -177,17 +186,16 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 					//Use estimated distances
 
 					//current minimum (after candidate is removed)
-					double currentMin = queueLx.isEmpty() ? Double.POSITIVE_INFINITY : queueLx.peek().dist();
+					double currentMin = queueLx.isEmpty() ? Double.POSITIVE_INFINITY : queueLx.peekMin().dist;
 					
 					//Calculate how many permutations are at most possible -> distances
-					double[] distances = new double[dims];
-					distance.knnCalcDistances(center, candidate.getKey(), node.getPostLen() + 1, distances);
+					distance.knnCalcDistances(center, candidateKey, node.getPostLen() + 1, distances);
 
 					long relativeQuadrantOfCenter;
-					if (candidate.dist() <= 0) {
+					if (candidateDist <= 0) {
 						relativeQuadrantOfCenter = PhTreeHelper.posInArray(center, node.getPostLen());
 					} else {
-						relativeQuadrantOfCenter = calcRelativeQuadrants(node, candidate.getKey());
+						relativeQuadrantOfCenter = calcRelativeQuadrants(node, candidateKey);
 					}
 
 					while (iterNode.hasNextEntry()) {
@@ -196,39 +204,45 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 
 						if (d <= currentMin) {
 							//add directly to Lx queue
-							PhEntryDist<Object> newLx = createLxEntry(e2);
-							queueLx.add(newLx);
-							currentMin = currentMin < newLx.dist() ? currentMin : newLx.dist();
+							Candidate newLx = createLxEntry(e2);
+							queueLx.push(newLx);
+							currentMin = currentMin < newLx.dist ? currentMin : newLx.dist;
 						} else {
-							queueEst.add( createEntry(e2.getKdKey(), e2.getValue(), d) );
+							queueEst.push(createEntry(queueEst, e2.getKdKey(), e2.getValue(), d));
 						}
 					}
 				} else {
 					//Add directly to main queue
 					while (iterNode.hasNextEntry()) {
 						BSTEntry e2 = iterNode.nextEntry();
-						PhEntryDist<Object> subE = createLxEntry(e2);
-						queueLx.add( subE ); 
+						queueLx.push(createLxEntry(e2)); 
 					}
 				}
-				pool.add(candidate);
 			}				
 		}
 	}
 
 	
-	private double calcLxDistance(PhEntryDist<Object> e) {
+	@SuppressWarnings("unchecked")
+	private void addResult(long[] key, Object val, double dist) {
+		if (nResults == results.size()) {
+			results.add(new PhEntryDist<>(new long[dims], null, 0));
+		}
+		results.get(nResults++).setCopyKey(key, (T) val, dist);
+	}
+
+	private double calcLxDistance(Candidate e) {
 		double d;
-		if (e.getValue() instanceof Node) {
-			Node sub = (Node) e.getValue();
-			d = distToNode(e.getKey(), sub.getPostLen() + 1);
+		if (e.val instanceof Node) {
+			Node sub = (Node) e.val;
+			d = distToNode(e.key, sub.getPostLen() + 1);
 		} else {
-			d = distance.dist(center, e.getKey());
+			d = distance.dist(center, e.key);
 		}
 		return d;
 	}
 	
-	private PhEntryDist<Object> createLxEntry(BSTEntry e) {
+	private Candidate createLxEntry(BSTEntry e) {
 		//calculate distance
 		double d;
 		if (e.getValue() instanceof Node) {
@@ -239,17 +253,23 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 		}
 
 		//create and return entry
-		return createEntry(e.getKdKey(), e.getValue(), d);
+		return createEntry(queueLx, e.getKdKey(), e.getValue(), d);
 	}
 	
 	
-	private PhEntryDist<Object> createEntry(long[] key, Object val, double dist) {
-		if (pool.isEmpty()) {
-			return new PhEntryDist<>(key, val, dist);
+	/**
+	 * @param queue the queue that the entry will be pushed to
+	 */
+	private static Candidate createEntry(MinHeapPool<Candidate> queue, long[] key, Object val, 
+			double dist) {
+		Candidate e = queue.getObject();
+		//The key is reused by the node iterator, so we need a copy
+		if (e.key == null) {
+			e.key = new long[key.length];
 		}
-		PhEntryDist<Object> e = pool.remove(pool.size() - 1);
-		e.setKeyInternal(key);
-		e.set(val, dist);
+		System.arraycopy(key, 0, e.key, 0, key.length);
+		e.val = val;
+		e.dist = dist;
 		return e;
 	}
 	
@@ -281,7 +301,7 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 	private double distToNode(long[] prefix, int bitsToIgnore) {
 		long maskMin = (-1L) << bitsToIgnore;
 		long maskMax = ~maskMin;
-		long[] buf = new long[prefix.length];
+		long[] buf = distBuffer;
 		for (int i = 0; i < buf.length; i++) {
 			//if v is outside the node, return distance to closest edge,
 			//otherwise return v itself (assume possible distance=0)
@@ -294,13 +314,13 @@ public class PhQueryKnnHSZ<T> implements PhKnnQuery<T> {
 	}
 
 	
-	private static class PhDEComp implements Comparator<PhEntryDist<?>> {
-	    @Override
-		public int compare(PhEntryDist<?> a, PhEntryDist<?> b) {
-	    	double d1 = a.dist();
-	    	double d2 = b.dist();
-            return d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
-	    }
+	/**
+	 * A node or entry. The key is a copy of the kd-key of the entry, the array is reused.
+	 */
+	private static class Candidate {
+		double dist;
+		long[] key;
+		Object val;
 	}
 
 }
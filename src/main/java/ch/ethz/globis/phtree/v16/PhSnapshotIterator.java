@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+
+/**
+ * Window query and extent iterator for {@link PhTree16Snapshot} and {@link PhTree16OffHeap}.
+ * <p>
+ * The iterator keeps one stack frame per node on the current path. In every node, the
+ * entries are traversed in hc-position order, starting with the first position that can
+ * match the lower limit of the query.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+final class PhSnapshotIterator<T> implements PhExtent<T>, PhQuery<T> {
+
+	private final PhTree16Flat<T> tree;
+	private final int dims;
+	private final PhFilter checker;
+	private long[] rangeMin;
+	private long[] rangeMax;
+
+	//Stack, one frame per node
+	private final long[] sNode = new long[PhTree16.DEPTH_64 + 1];
+	private final int[] sN = new int[PhTree16.DEPTH_64 + 1];
+	private final int[] sCap = new int[PhTree16.DEPTH_64 + 1];
+	private final int[] sPos = new int[PhTree16.DEPTH_64 + 1];
+	private final long[] sMaskLower = new long[PhTree16.DEPTH_64 + 1];
+	private final long[] sMaskUpper = new long[PhTree16.DEPTH_64 + 1];
+	private int depth;
+
+	private final long[] buffer;
+	private final PhEntry<T> resultReuse;
+	private long nextKdPos;
+	private long nextRef;
+	private boolean isFinished;
+
+	PhSnapshotIterator(PhTree16Flat<T> tree, PhFilter checker) {
+		this.tree = tree;
+		this.dims = tree.getDim();
+		this.checker = checker;
+		this.buffer = new long[dims];
+		this.resultReuse = new PhEntry<>(new long[dims], null);
+	}
+
+	@Override
+	public PhSnapshotIterator<T> reset() {
+		long[] min = new long[dims];
+		long[] max = new long[dims];
+		Arrays.fill(min, Long.MIN_VALUE);
+		Arrays.fill(max, Long.MAX_VALUE);
+		return reset(min, max);
+	}
+
+	@Override
+	public PhSnapshotIterator<T> reset(long[] min, long[] max) {
+		this.rangeMin = min;
+		this.rangeMax = max;
+		this.depth = -1;
+		this.isFinished = false;
+		long root = tree.root();
+		if (root == 0) {
+			isFinished = true;
+			return this;
+		}
+		for (int d = 0; d < dims; d++) {
+			if (min[d] > max[d]) {
+				isFinished = true;
+				return this;
+			}
+		}
+		Arrays.fill(buffer, 0);
+		push(root, buffer);
+		findNext();
+		return this;
+	}
+
+	private void push(long node, long[] prefix) {
+		depth++;
+		int n = tree.entryCount(node);
+		calcLimits(tree.postLen(node), prefix);
+		sNode[depth] = node;
+		sN[depth] = n;
+		sCap[depth] = tree.capacity(node);
+		sPos[depth] = tree.find(node, n, sMaskLower[depth]);
+	}
+
+	private void findNext() {
+		while (depth >= 0) {
+			long node = sNode[depth];
+			int n = sN[depth];
+			int cap = sCap[depth];
+			long maskLower = sMaskLower[depth];
+			long maskUpper = sMaskUpper[depth];
+			int pos = sPos[depth];
+			boolean pushed = false;
+			while (pos < n) {
+				long hcPos = tree.hcPos(node, pos);
+				if (hcPos > maskUpper) {
+					break;
+				}
+				int i = pos++;
+				if (((hcPos | maskLower) & maskUpper) != hcPos) {
+					continue;
+				}
+				long kdPos = tree.kdPos(node, cap, i);
+				long ref = tree.ref(node, cap, i);
+				if (ref > 0) {
+					int subPostLen = tree.postLen(ref);
+					tree.readKey(kdPos, buffer);
+					if (checkInfix(subPostLen, buffer) && (checker == null ||
+							subPostLen >= PhTree16.DEPTH_64 - 1 ||
+							checker.isValid(subPostLen + 1, buffer))) {
+						sPos[depth] = pos;
+						push(ref, buffer);
+						pushed = true;
+						break;
+					}
+				} else {
+					tree.readKey(kdPos, buffer);
+					if (checkRange(buffer) && (checker == null || checker.isValid(buffer))) {
+						sPos[depth] = pos;
+						nextKdPos = kdPos;
+						nextRef = ref;
+						return;
+					}
+				}
+			}
+			if (!pushed) {
+				depth--;
+			}
+		}
+		isFinished = true;
+	}
+
+	private boolean checkInfix(int subPostLen, long[] kdKey) {
+		long mask = (-1L) << (subPostLen + 1);
+		for (int d = 0; d < dims; d++) {
+			if ((kdKey[d] & mask) > rangeMax[d] || (kdKey[d] | ~mask) < rangeMin[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean checkRange(long[] kdKey) {
+		for (int d = 0; d < dims; d++) {
+			if (kdKey[d] < rangeMin[d] || kdKey[d] > rangeMax[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * See NodeIteratorNoGC.calcLimits().
+	 */
+	private void calcLimits(int postLen, long[] prefix) {
+		long maskHcBit = 1L << postLen;
+		long maskVT = (-1L) << postLen;
+		long lowerLimit = 0;
+		long upperLimit = 0;
+		//to prevent problems with signed long when using 64 bit
+		if (maskHcBit >= 0) { //i.e. postLen < 63
+			for (int i = 0; i < dims; i++) {
+				lowerLimit <<= 1;
+				upperLimit <<= 1;
+				long nodeBisection = (prefix[i] | maskHcBit) & maskVT;
+				if (rangeMin[i] >= nodeBisection) {
+					lowerLimit |= 1L;
+				}
+				if (rangeMax[i] >= nodeBisection) {
+					upperLimit |= 1L;
+				}
+			}
+		} else {
+			//special treatment for signed longs, see NodeIteratorNoGC
+			for (int i = 0; i < dims; i++) {
+				lowerLimit <<= 1;
+				upperLimit <<= 1;
+				if (rangeMin[i] < 0) {
+					upperLimit |= 1L;
+				}
+				if (rangeMax[i] < 0) {
+					lowerLimit |= 1L;
+				}
+			}
+		}
+		sMaskLower[depth] = lowerLimit;
+		sMaskUpper[depth] = upperLimit;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !isFinished;
+	}
+
+	private void checkNext() {
+		if (isFinished) {
+			throw new NoSuchElementException();
+		}
+	}
+
+	@Override
+	public T next() {
+		return nextValue();
+	}
+
+	@Override
+	public T nextValue() {
+		checkNext();
+		T v = tree.value(nextRef);
+		findNext();
+		return v;
+	}
+
+	@Override
+	public long[] nextKey() {
+		checkNext();
+		long[] key = new long[dims];
+		tree.readKey(nextKdPos, key);
+		findNext();
+		return key;
+	}
+
+	@Override
+	public PhEntry<T> nextEntry() {
+		checkNext();
+		long[] key = new long[dims];
+		tree.readKey(nextKdPos, key);
+		PhEntry<T> e = new PhEntry<>(key, tree.value(nextRef));
+		findNext();
+		return e;
+	}
+
+	@Override
+	public PhEntry<T> nextEntryReuse() {
+		checkNext();
+		tree.readKey(nextKdPos, resultReuse.getKey());
+		resultReuse.setValueInternal(tree.value(nextRef));
+		findNext();
+		return resultReuse;
+	}
+}
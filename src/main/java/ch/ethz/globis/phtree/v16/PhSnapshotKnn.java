@@ -0,0 +1,182 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+
+/**
+ * kNN query for {@link PhTree16Snapshot} and {@link PhTree16OffHeap}, see {@link PhQueryKnnHS}.
+ * <p>
+ * Candidates in the queue only reference the node memory, keys and values are
+ * read only for results.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+final class PhSnapshotKnn<T> implements PhKnnQuery<T> {
+
+	private static final class Candidate implements Comparable<Candidate> {
+		final double dist;
+		//node or value reference
+		final long ref;
+		//position of the kd-key
+		final long kdPos;
+
+		Candidate(double dist, long ref, long kdPos) {
+			this.dist = dist;
+			this.ref = ref;
+			this.kdPos = kdPos;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return Double.compare(dist, o.dist);
+		}
+	}
+
+	private final PhTree16Flat<T> tree;
+	private final int dims;
+	//can be null
+	private final PhFilter filter;
+	private PhDistance distance;
+	private long[] center;
+	private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+	private final ArrayList<PhEntryDist<T>> results = new ArrayList<>();
+	private final long[] kdBuffer;
+	private final long[] distBuffer;
+	private Iterator<PhEntryDist<T>> iterResult;
+
+	PhSnapshotKnn(PhTree16Flat<T> tree) {
+		this(tree, null);
+	}
+
+	PhSnapshotKnn(PhTree16Flat<T> tree, PhFilter filter) {
+		this.tree = tree;
+		this.filter = filter;
+		this.dims = tree.getDim();
+		this.kdBuffer = new long[dims];
+		this.distBuffer = new long[dims];
+	}
+
+	@Override
+	public long[] nextKey() {
+		return nextEntryReuse().getKey();
+	}
+
+	@Override
+	public T nextValue() {
+		return nextEntryReuse().getValue();
+	}
+
+	@Override
+	public PhEntryDist<T> nextEntry() {
+		return iterResult.next();
+	}
+
+	@Override
+	public PhEntryDist<T> nextEntryReuse() {
+		return iterResult.next();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return iterResult.hasNext();
+	}
+
+	@Override
+	public T next() {
+		return nextValue();
+	}
+
+	@Override
+	public PhKnnQuery<T> reset(int nMin, PhDistance dist, long... center) {
+		this.distance = dist == null ? this.distance : dist;
+		this.center = center;
+		this.queue.clear();
+		this.results.clear();
+		long root = tree.root();
+		if (nMin <= 0 || root == 0) {
+			iterResult = Collections.emptyIterator();
+			return this;
+		}
+		queue.add(new Candidate(0, root, 0));
+		search(nMin);
+		iterResult = results.iterator();
+		return this;
+	}
+
+	private void search(int k) {
+		while (!queue.isEmpty()) {
+			Candidate c = queue.poll();
+			if (c.ref <= 0) {
+				//data entry
+				long[] key = new long[dims];
+				tree.readKey(c.kdPos, key);
+				results.add(new PhEntryDist<>(key, tree.value(c.ref), c.dist));
+				if (results.size() >= k) {
+					return;
+				}
+				continue;
+			}
+			long node = c.ref;
+			int n = tree.entryCount(node);
+			int cap = tree.capacity(node);
+			for (int i = 0; i < n; i++) {
+				long kdPos = tree.kdPos(node, cap, i);
+				long ref = tree.ref(node, cap, i);
+				tree.readKey(kdPos, kdBuffer);
+				double d;
+				if (ref > 0) {
+					if (filter != null && !filter.isValid(tree.postLen(ref) + 1, kdBuffer)) {
+						continue;
+					}
+					d = distToNode(kdBuffer, tree.postLen(ref) + 1);
+				} else {
+					if (filter != null && !filter.isValid(kdBuffer)) {
+						continue;
+					}
+					d = distance.dist(center, kdBuffer);
+				}
+				queue.add(new Candidate(d, ref, kdPos));
+			}
+		}
+	}
+
+	private double distToNode(long[] prefix, int bitsToIgnore) {
+		long maskMin = (-1L) << bitsToIgnore;
+		long maskMax = ~maskMin;
+		long[] buf = distBuffer;
+		for (int i = 0; i < buf.length; i++) {
+			//if v is outside the node, return distance to closest edge,
+			//otherwise return v itself (assume possible distance=0)
+			long min = prefix[i] & maskMin;
+			long max = prefix[i] | maskMax;
+			buf[i] = min > center[i] ? min : (max < center[i] ? max : center[i]);
+		}
+		return distance.dist(center, buf);
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.unmaskNull;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+
+/**
+ * Spliterator for window queries and extents of {@link PhTree16}.
+ * <p>
+ * The spliterator holds a list of pending items in z-order. An item is either a sub-node
+ * (a subtree) or an entry. Splitting hands over the first half of the items.
+ * If there is only one item left and it is a node, the node is first replaced with its
+ * (matching) sub-nodes and entries. Sub-nodes are disjoint sub-quadrants of the query window,
+ * so they can be traversed independently.
+ * Subtrees are traversed with the normal query iterators.
+ * <p>
+ * The spliterator reads the root of the tree only once. With COW or OL_COW trees, it
+ * therefore returns a consistent snapshot, even when the tree is modified concurrently.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class PhSpliterator<T> implements Spliterator<PhEntry<T>> {
+
+	private final PhTree16<T> pht;
+	//'null' for extents
+	private final long[] rangeMin;
+	private final long[] rangeMax;
+
+	//Pending items: Node or PhEntry
+	private Object[] items;
+	//The kd-keys of the entries that reference the Node items
+	private long[][] prefixes;
+	private int pos;
+	private int end;
+	private long estimatedSize;
+
+	//Subtree that is currently traversed
+	private PhIterator<T> current;
+	private PhIteratorNoGC<T> query;
+	private PhIteratorFullNoGC<T> extent;
+
+	/**
+	 * @param pht The tree
+	 * @param rangeMin The lower query limit, or 'null' for all entries
+	 * @param rangeMax The upper query limit, or 'null' for all entries
+	 */
+	PhSpliterator(PhTree16<T> pht, long[] rangeMin, long[] rangeMax) {
+		this.pht = pht;
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		//read root only once, it may change concurrently (COW)
+		Node root = pht.getRoot();
+		this.items = new Object[] {root};
+		this.prefixes = new long[1][];
+		this.pos = 0;
+		this.end = root == null ? 0 : 1;
+		this.estimatedSize = root == null ? 0 : pht.size();
+	}
+
+	private PhSpliterator(PhSpliterator<T> parent, int pos, int end, long estimatedSize) {
+		this.pht = parent.pht;
+		this.rangeMin = parent.rangeMin;
+		this.rangeMax = parent.rangeMax;
+		this.items = parent.items;
+		this.prefixes = parent.prefixes;
+		this.pos = pos;
+		this.end = end;
+		this.estimatedSize = estimatedSize;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean tryAdvance(Consumer<? super PhEntry<T>> action) {
+		while (true) {
+			if (current != null) {
+				if (current.hasNext()) {
+					action.accept(copy(current.nextEntryReuse()));
+					return true;
+				}
+				current = null;
+			}
+			if (pos >= end) {
+				return false;
+			}
+			Object item = items[pos];
+			long[] prefix = prefixes[pos];
+			pos++;
+			if (item instanceof Node) {
+				current = iterator((Node) item, prefix);
+			} else {
+				action.accept((PhEntry<T>) item);
+				return true;
+			}
+		}
+	}
+
+	private PhIterator<T> iterator(Node node, long[] prefix) {
+		if (rangeMin == null) {
+			if (extent == null) {
+				extent = new PhIteratorFullNoGC<>(pht, null);
+			}
+			return extent.resetFrom(node);
+		}
+		if (query == null) {
+			query = new PhIteratorNoGC<>(pht, null);
+		}
+		return query.resetFrom(node, prefix, rangeMin, rangeMax);
+	}
+
+	private static <T> PhEntry<T> copy(PhEntry<T> e) {
+		long[] key = e.getKey();
+		return new PhEntry<>(Arrays.copyOf(key, key.length), unmaskNull(e.getValue()));
+	}
+
+	@Override
+	public Spliterator<PhEntry<T>> trySplit() {
+		if (current != null || pht.nodeStore() != null) {
+			//we are already traversing a subtree, or the tree is persistent and not thread-safe
+			return null;
+		}
+		while (end - pos == 1 && items[pos] instanceof Node) {
+			expand();
+		}
+		if (end - pos < 2) {
+			return null;
+		}
+		int mid = (pos + end) >>> 1;
+		long prefixSize = estimatedSize >>> 1;
+		PhSpliterator<T> prefix = new PhSpliterator<>(this, pos, mid, prefixSize);
+		pos = mid;
+		estimatedSize -= prefixSize;
+		return prefix;
+	}
+
+	/**
+	 * Replace the single remaining node with its matching sub-nodes and entries.
+	 */
+	private void expand() {
+		Node node = (Node) items[pos];
+		long[] prefix = prefixes[pos];
+		int n = 0;
+		Object[] newItems = new Object[8];
+		long[][] newPrefixes = new long[8][];
+		PhEntry<T> result = new PhEntry<>(new long[pht.getDim()], null);
+		NodeIteratorNoGC<T> ni = null;
+		NodeIteratorFullNoGC<T> niFull = null;
+		if (rangeMin == null) {
+			niFull = new NodeIteratorFullNoGC<>();
+			niFull.init(node, null);
+		} else {
+			ni = new NodeIteratorNoGC<>(pht.getDim());
+			ni.init(rangeMin, rangeMax, node, null, prefix);
+		}
+		while (ni != null ? ni.increment(result) : niFull.increment(result)) {
+			if (n == newItems.length) {
+				newItems = Arrays.copyOf(newItems, n * 2);
+				newPrefixes = Arrays.copyOf(newPrefixes, n * 2);
+			}
+			if (result.hasNodeInternal()) {
+				newItems[n] = result.getNodeInternal();
+				newPrefixes[n] = result.getKey().clone();
+			} else {
+				newItems[n] = copy(result);
+			}
+			n++;
+		}
+		items = newItems;
+		prefixes = newPrefixes;
+		pos = 0;
+		end = n;
+	}
+
+	@Override
+	public long estimateSize() {
+		return estimatedSize;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+}
@@ -25,11 +25,25 @@ import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 import static ch.ethz.globis.phtree.PhTreeHelper.maskNull;
 import static ch.ethz.globis.phtree.PhTreeHelper.unmaskNull;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import ch.ethz.globis.phtree.*;
 import ch.ethz.globis.phtree.util.PhMapper;
@@ -98,6 +112,8 @@ public class PhTree16<T> implements PhTree<T> {
 
 	//Enable HC incrementer / iteration
 	public static final boolean HCI_ENABLED = true; 
+	//Enable dense nodes, see Node.isDense()
+	static final boolean DENSE_ENABLED = true;
 	
 	static final int DEPTH_64 = 64;
 	
@@ -114,22 +130,146 @@ public class PhTree16<T> implements PhTree<T> {
 
 	private Node root = null;
 
-	private final ObjectPool<Node> nodePool;
-	private final ObjectPool<UpdateInfo> uiPool;
-    private final LongArrayPool bitPool;
-    private final BSTPool bstPool;
+	//Object and array pools, see PhTreeConfig.setPoolProvider()
+	private final PoolProvider poolProvider;
+	//This is replaced with thread-local pools during parallel bulk loading
+	private Supplier<Pools> pools;
+
+	//Copy-on-write, see PhTreeConfig.CONCURRENCY_COW
+	private final boolean isCOW;
+	//Copy-on-write with optimistic locking, see PhTreeConfig.CONCURRENCY_OL_COW
+	private final boolean isOL;
+	//COW/OL: Latest published version of the tree. This is what readers see.
+	private volatile Node cowRoot = null;
+	private volatile int cowNEntries = 0;
+	//COW: Serializes writers
+	private final Lock writeLock;
+	//COW: State of the current write operation
+	private final WriterContext cowContext;
+	//OL: Write state of each writer thread
+	private final ThreadLocal<WriterContext> olContext;
+	private final LongAdder olNEntries;
+	//OL: Version of the 'cowRoot' field. Odd values indicate that the root is locked.
+	private volatile int olRootVersion = 0;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<PhTree16> OL_ROOT_VERSION = 
+			AtomicIntegerFieldUpdater.newUpdater(PhTree16.class, "olRootVersion");
+	//NONE/COW: Path of the current write operation, for updating the subtree entry counts.
+	//This is 'null' in OL_COW mode, where the counts are not maintained.
+	private final Node[] writePath;
+	//Switches of nodes between BST and dense representation, see PhTreeStats.
+	//Aborted writes in OL_COW mode may be counted as well.
+	private final LongAdder statSwitchToDense = new LongAdder();
+	private final LongAdder statSwitchToBst = new LongAdder();
+	//Persistent trees: Loads and stores nodes, see PersistenceProviderFile. 'null' otherwise.
+	private final NodeStore store;
+	//Trees with a write-ahead log, see PersistenceProviderWal. 'null' otherwise.
+	private final PersistenceProviderWal wal;
+	//PhTree16Long: 'Long' values are stored as primitives in the BST pages, see hasLongValues().
+	private final boolean longValues;
+	//OL: Internal signal for restarting a write operation
+	private static final RuntimeException OL_RETRY = new RuntimeException("OL retry", null, false, false) {
+		private static final long serialVersionUID = 1L;
+	};
 
+	/**
+	 * @return The root node as seen by readers. In COW/OL mode this is the latest published
+	 * version of the tree, i.e. readers should read it only once per operation.
+	 */
     Node getRoot() {
-		return root;
+		return (isCOW || isOL) ? cowRoot : root;
 	}
 
 	public PhTree16(int dim) {
+		this(dim, PhTreeConfig.CONCURRENCY_NONE, PoolProvider.TREE, PersistenceProvider.NONE, null, 
+				false);
+	}
+
+	/**
+	 * Tree with primitive values for {@link PhTree16Long}, see {@link #hasLongValues()}.
+	 * @param dim dimensions
+	 * @param longValues whether values are stored as primitives
+	 */
+	PhTree16(int dim, boolean longValues) {
+		this(dim, PhTreeConfig.CONCURRENCY_NONE, PoolProvider.TREE, PersistenceProvider.NONE, null, 
+				longValues);
+	}
+
+	/**
+	 * Trees with a {@link PersistenceProviderFile} support only 
+	 * {@link PhTreeConfig#CONCURRENCY_NONE}. If the file contains a tree, the tree is opened.
+	 * Trees with a write-ahead log ({@link PhTreeConfig#setWriteAheadLog(PersistenceProviderWal)})
+	 * support only {@link PhTreeConfig#CONCURRENCY_NONE} and 
+	 * {@link PhTreeConfig#CONCURRENCY_COW}. The tree is recovered from the log.
+	 * @param cnf configuration
+	 * @throws IllegalArgumentException if the persistence provider or the write-ahead log do not
+	 * support the concurrency type, or if both are set
+	 */
+	public PhTree16(PhTreeConfig cnf) {
+		this(cnf.getDimActual(), cnf.getConcurrencyType(), cnf.getPoolProvider(), 
+				cnf.getPersistenceProvider(), cnf.getWriteAheadLog(), false);
+	}
+
+	private PhTree16(int dim, int concurrencyType, PoolProvider poolProvider, 
+			PersistenceProvider persistenceProvider, PersistenceProviderWal wal, 
+			boolean longValues) {
+		switch (concurrencyType) {
+		case PhTreeConfig.CONCURRENCY_NONE:
+			isCOW = false;
+			isOL = false;
+			writeLock = null;
+			cowContext = null;
+			olContext = null;
+			olNEntries = null;
+			break;
+		case PhTreeConfig.CONCURRENCY_COW:
+			isCOW = true;
+			isOL = false;
+			writeLock = new ReentrantLock();
+			cowContext = new WriterContext(false);
+			olContext = null;
+			olNEntries = null;
+			break;
+		case PhTreeConfig.CONCURRENCY_OL_COW:
+			isCOW = false;
+			isOL = true;
+			writeLock = null;
+			cowContext = null;
+			olContext = ThreadLocal.withInitial(() -> new WriterContext(true));
+			olNEntries = new LongAdder();
+			break;
+		default:
+			throw new UnsupportedOperationException("type= " + concurrencyType);
+		}
 		dims = dim;
-		this.nodePool = ObjectPool.create(Node::new);
-		this.uiPool = ObjectPool.create(UpdateInfo::new);
-        this.bitPool = LongArrayPool.create();
-        this.bstPool = BSTPool.create();
+		this.longValues = longValues;
+		if (isOL && !poolProvider.isThreadSafe()) {
+			poolProvider = PoolProvider.THREAD_LOCAL;
+		}
+		this.poolProvider = poolProvider;
+		this.pools = poolProvider.getPools(Pools.class, Pools::new);
+		this.writePath = isOL ? null : new Node[DEPTH_64];
 		debugCheck();
+		if (wal != null) {
+			if (isOL) {
+				throw new IllegalArgumentException("PersistenceProviderWal does not support "
+						+ concurrencyName(concurrencyType));
+			}
+			if (persistenceProvider instanceof PersistenceProviderFile) {
+				throw new IllegalArgumentException(
+						"PersistenceProviderWal cannot be combined with PersistenceProviderFile");
+			}
+		}
+		this.wal = wal;
+		if (persistenceProvider instanceof PersistenceProviderFile) {
+			if (concurrencyType != PhTreeConfig.CONCURRENCY_NONE) {
+				throw new IllegalArgumentException("PersistenceProviderFile does not support "
+						+ concurrencyName(concurrencyType));
+			}
+			this.store = open((PersistenceProviderFile) persistenceProvider);
+		} else {
+			this.store = null;
+		}
 
 		switch (dims) {
 		case 1: maxLeafN = 2; maxInnerN = 2; break;
@@ -146,34 +286,151 @@ public class PhTree16<T> implements PhTree<T> {
 		case 12: maxLeafN = 64; maxInnerN = 64+1; break;
 		default: maxLeafN = 100; maxInnerN = 100; break;
 		}
+		if (wal != null) {
+			wal.attach(this, new WalCheckpointer());
+		}
 	}
 
-	public PhTree16(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
-		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
-			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
+	private static String concurrencyName(int concurrencyType) {
+		switch (concurrencyType) {
+		case PhTreeConfig.CONCURRENCY_NONE: return "CONCURRENCY_NONE";
+		case PhTreeConfig.CONCURRENCY_COW: return "CONCURRENCY_COW";
+		case PhTreeConfig.CONCURRENCY_OL_COW: return "CONCURRENCY_OL_COW";
+		case PhTreeConfig.CONCURRENCY_HOH_COW: return "CONCURRENCY_HOH_COW";
+		default: return "concurrency type " + concurrencyType;
+		}
+	}
+
+	private NodeStore open(PersistenceProviderFile file) {
+		if (file.getStoredDims() != 0 && file.getStoredDims() != dims) {
+			throw new IllegalArgumentException(
+					"dims=" + dims + " but the file contains a tree with dims=" + file.getStoredDims());
+		}
+		NodeStore nodeStore = new NodeStore(this, file);
+		if (file.getStoredRoot() != 0) {
+			nEntries = file.getStoredSize();
+			root = Node.createStub(nodeStore, file.getStoredRoot(), 0, DEPTH_64-1, 0, nEntries, this);
+			root.getRoot();
 		}
+		return nodeStore;
+	}
+
+	/**
+	 * Install a root node that has been built outside the tree, see 
+	 * {@link PhTreeSerializer}. The tree must be empty and use CONCURRENCY_NONE.
+	 * @param newRoot the root node
+	 * @param size the number of entries
+	 */
+	void setRoot(Node newRoot, int size) {
+		root = newRoot;
+		nEntries = size;
+		if (isCOW) {
+			cowPublish();
+		}
+	}
+
+	/**
+	 * @return The node store of a persistent tree, or 'null'.
+	 */
+	NodeStore nodeStore() {
+		return store;
 	}
 
 	void increaseNrEntries() {
+		if (isOL) {
+			olContext.get().nEntriesDelta++;
+			return;
+		}
 		nEntries++;
 	}
 
 	void decreaseNrEntries() {
+		if (isOL) {
+			olContext.get().nEntriesDelta--;
+			return;
+		}
 		nEntries--;
 	}
 
+	/**
+	 * @param toDense 'true' if a node switched to the dense representation, 'false' if it 
+	 * switched back to the BST representation 
+	 */
+	void statDenseSwitch(boolean toDense) {
+		(toDense ? statSwitchToDense : statSwitchToBst).increment();
+	}
+
+	/**
+	 * Subtree entry counts are maintained by all write operations, except in OL_COW mode.
+	 * Maintaining them in OL_COW mode would require locking the root for every write. 
+	 * @return 'true' if nodes know the number of entries in their subtree.
+	 */
+	boolean hasSubtreeCounts() {
+		return writePath != null;
+	}
+
+	/**
+	 * Add a node to the path of the current write operation. 
+	 * @param node the node
+	 * @param pathLen the current length of the path
+	 * @return the new length of the path
+	 */
+	private int pushPath(Node node, int pathLen) {
+		if (writePath != null) {
+			writePath[pathLen] = node;
+		}
+		return pathLen + 1;
+	}
+
+	/**
+	 * Update the subtree entry counts of all nodes on a path.
+	 * @param path the path
+	 * @param pathLen the length of the path
+	 * @param delta the number of entries that have been added (or removed) below the path
+	 */
+	private void updateSubtreeCounts(Node[] path, int pathLen, int delta) {
+		if (delta == 0 || !hasSubtreeCounts()) {
+			return;
+		}
+		for (int i = 0; i < pathLen; i++) {
+			path[i].addSubtreeEntryCount(delta);
+		}
+	}
+
 	@Override
 	public int size() {
-		return nEntries;
+		if (isOL) {
+			return olNEntries.intValue();
+		}
+		return isCOW ? cowNEntries : nEntries;
 	}
 
 	@Override
 	public PhTreeStats getStats() {
-		if (getRoot() == null) {
-			return new PhTreeStats(DEPTH_64);
+		PhTreeStats stats = new PhTreeStats(DEPTH_64);
+		stats.nSwitchToDense = statSwitchToDense.sum();
+		stats.nSwitchToBst = statSwitchToBst.sum();
+		Node root = getRoot();
+		if (root == null) {
+			return stats;
 		}
-		return getStats(0, getRoot(), new PhTreeStats(DEPTH_64));
+		return getStats(0, root, stats);
+	}
+
+	/**
+	 * Best HC incrementer ever. 
+	 * @param v current value
+	 * @param min min mask
+	 * @param max max mask
+	 * @return next valid value or min.
+	 */
+	public static long inc(long v, long min, long max) {
+		//first, fill all 'invalid' bits with '1' (bits that can have only one value).
+		long r = v | (~max);
+		//increment. The '1's in the invalid bits will cause bitwise overflow to the next valid bit.
+		r++;
+		//remove invalid bits.
+		return (r & max) | min;
 	}
 
 	private PhTreeStats getStats(int currentDepth, Node node, PhTreeStats stats) {
@@ -186,11 +443,11 @@ public class PhTree16<T> implements PhTree<T> {
 		currentDepth += node.getInfixLen();
 		stats.q_totalDepth += currentDepth;
 
-		List<BSTEntry> entries = new ArrayList<>();
+		List<Object> entries = new ArrayList<>();
 		node.getStats(stats, entries);
-		for (BSTEntry child: entries) {
-			if (child.getValue() instanceof Node) {
-				Node sub = (Node) child.getValue();
+		for (Object child: entries) {
+			if (child instanceof Node) {
+				Node sub = (Node) child;
 				if (sub.getInfixLen() + 1 + sub.getPostLen() != node.getPostLen()) {
 					throw new IllegalStateException();
 				}
@@ -210,7 +467,7 @@ public class PhTree16<T> implements PhTree<T> {
 		//count children
 		int nChildren = node.getEntryCount();
 		stats.size += 16;
-		if (nChildren == 1 && (node != getRoot()) && nEntries > 1) {
+		if (nChildren == 1 && (node != getRoot()) && size() > 1) {
 			//This should not happen! Except for a root node if the tree has <2 entries.
 			System.err.println("WARNING: found lonely node...");
 		}
@@ -226,20 +483,40 @@ public class PhTree16<T> implements PhTree<T> {
 		return stats;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T put(long[] key, T value) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> putFrom(root, key, value));
+		}
+		if (isOL) {
+			return olWrite(key, null, 0, start -> putFrom(start, key, value));
+		}
+		if (store != null) {
+			return store.write(() -> putFrom(root, key, value));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> putFrom(root, key, value));
+		}
+		return putFrom(root, key, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T putFrom(Node start, long[] key, T value) {
 		Object nonNullValue = maskNull(value);
-		if (getRoot() == null) {
+		if (start == null) {
 			insertRoot(key, nonNullValue);
 			return null;
 		}
 
-		Object o = getRoot();
+		int n0 = nEntries;
+		int pathLen = 0;
+		Object o = start;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			o = currentNode.doInsertIfMatching(key, nonNullValue, this);
 		}
+		updateSubtreeCounts(writePath, pathLen, nEntries - n0);
 		return (T) o;
     }
 
@@ -247,6 +524,7 @@ public class PhTree16<T> implements PhTree<T> {
         root = Node.createNode(dims, 0, DEPTH_64-1, this);
         long pos = posInArray(key, root.getPostLen());
         root.addEntry(pos, key, value, this);
+        root.setSubtreeEntryCount(1);
         increaseNrEntries();
     }
 
@@ -278,16 +556,37 @@ public class PhTree16<T> implements PhTree<T> {
 	 * @param key key to insert
 	 * @return true if the value was found
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public T remove(long... key) {
-		Object o = getRoot();
+		if (isCOW) {
+			return cowWrite(key, null, () -> removeFrom(root, key));
+		}
+		if (isOL) {
+			return olWrite(key, null, 1, start -> removeFrom(start, key));
+		}
+		if (store != null) {
+			return store.write(() -> removeFrom(root, key));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> removeFrom(root, key));
+		}
+		return removeFrom(root, key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T removeFrom(Node start, long... key) {
+		int n0 = nEntries;
+		int pathLen = 0;
+		Object o = start;
 		Node parentNode = null;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			o = currentNode.doIfMatching(key, false, parentNode, null, this);
 			parentNode = currentNode;
 		}
+		//This may include a node that was merged into its parent, this has no effect.
+		updateSubtreeCounts(writePath, pathLen, nEntries - n0);
 		return (T) o;
 	}
 
@@ -296,19 +595,40 @@ public class PhTree16<T> implements PhTree<T> {
 		int insertRequired = NO_INSERT_REQUIRED;
 		UpdateInfo init(long[] newKey) {
 			this.newKey = newKey;
+			this.insertRequired = NO_INSERT_REQUIRED;
 			return this;
 		}
+		boolean isInsertRequired() {
+			return insertRequired != NO_INSERT_REQUIRED;
+		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public T update(long[] oldKey, long[] newKey) {
+		if (isCOW) {
+			return cowWrite(oldKey, newKey, () -> updateFrom(root, oldKey, newKey));
+		}
+		if (isOL) {
+			return olWrite(oldKey, newKey, 1, start -> updateFrom(start, oldKey, newKey));
+		}
+		if (store != null) {
+			return store.write(() -> updateFrom(root, oldKey, newKey));
+		}
+		if (wal != null) {
+			return walWrite(oldKey, newKey, () -> updateFrom(root, oldKey, newKey));
+		}
+		return updateFrom(root, oldKey, newKey);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T updateFrom(Node start, long[] oldKey, long[] newKey) {
 		Node[] stack = new Node[64];
 		int stackSize = 0;
 		
-		Object o = getRoot();
+		Object o = start;
 		Node parentNode = null;
-		final UpdateInfo ui = uiPool.get().init(newKey);
+		final UpdateInfo ui = uiPool().get().init(newKey);
+		int n0 = nEntries;
 		
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -316,7 +636,11 @@ public class PhTree16<T> implements PhTree<T> {
 			o = currentNode.doIfMatching(oldKey, false, parentNode, ui, this);
 			parentNode = currentNode;
 		}
+		//Update counts before any node on the path is reused for the insertion
+		updateSubtreeCounts(stack, stackSize, nEntries - n0);
 		
+		//The node stores 'null' as PhTreeHelper.NULL, reinsert the masked value
+		Object storedValue = o;
 		Object value = o == PhTreeHelper.NULL ? null : o;
 
 		//traverse the tree from bottom to top
@@ -329,17 +653,21 @@ public class PhTree16<T> implements PhTree<T> {
 			}
 			while (stackSize > 0) {
 				if (stack[--stackSize].getPostLen()+1 >= ui.insertRequired) {
+					n0 = nEntries;
 					o = stack[stackSize];
 					while (o instanceof Node) {
 						Node currentNode = (Node) o;
-						o = currentNode.doInsertIfMatching(newKey, value, this);
+						//The path consists of the nodes above the current node and the new path
+						stack[stackSize++] = currentNode;
+						o = currentNode.doInsertIfMatching(newKey, storedValue, this);
 					}
+					updateSubtreeCounts(stack, stackSize, nEntries - n0);
 					ui.insertRequired = NO_INSERT_REQUIRED;
 					break;
 				}
 			}
 		}		
-		uiPool.offer(ui);
+		uiPool().offer(ui);
 		return (T) value;
 	}
 
@@ -354,22 +682,41 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T putIfAbsent(long[] key, T value) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> putIfAbsentFrom(root, key, value));
+		}
+		if (isOL) {
+			return olWrite(key, null, 0, start -> putIfAbsentFrom(start, key, value));
+		}
+		if (store != null) {
+			return store.write(() -> putIfAbsentFrom(root, key, value));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> putIfAbsentFrom(root, key, value));
+		}
+		return putIfAbsentFrom(root, key, value);
+	}
+
+	private T putIfAbsentFrom(Node start, long[] key, T value) {
+		if (start == null) {
 			insertRoot(key, maskNull(value));
 			return null;
 		}
 
-		Object o = getRoot();
+		Object o = start;
+		int pathLen = 0;
 		while (true) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			long hcPos = posInArray(key, currentNode.getPostLen());
-			BSTEntry e = currentNode.getEntry(hcPos, key);
-			if (e == null) {
+			Object v = currentNode.getValue(hcPos, key);
+			if (v == null) {
 				increaseNrEntries();
 				currentNode.addEntry(hcPos, key, maskNull(value), this);
+				updateSubtreeCounts(writePath, pathLen, 1);
 				return null;
 			}
-			o = e.getValue();
+			o = v;
 			if (!(o instanceof Node)) {
 				return unmaskNull(o);
 			}
@@ -385,22 +732,37 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public boolean replace(long[] key, T oldValue, T newValue) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> replaceFrom(root, key, oldValue, newValue));
+		}
+		if (isOL) {
+			return olWrite(key, null, 0, start -> replaceFrom(start, key, oldValue, newValue));
+		}
+		if (store != null) {
+			return store.write(() -> replaceFrom(root, key, oldValue, newValue));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> replaceFrom(root, key, oldValue, newValue));
+		}
+		return replaceFrom(root, key, oldValue, newValue);
+	}
+
+	private boolean replaceFrom(Node start, long[] key, T oldValue, T newValue) {
+		if (start == null) {
 			return false;
 		}
 
-		Object o = getRoot();
+		Object o = start;
 		while (true) {
 			Node currentNode = (Node) o;
 			long hcPos = posInArray(key, currentNode.getPostLen());
-			BSTEntry e = currentNode.getEntry(hcPos, key);
-			if (e == null) {
+			o = currentNode.getValue(hcPos, key);
+			if (o == null) {
 				return false;
 			}
-			o = e.getValue();
 			if (!(o instanceof Node)) {
 				if (Objects.equals(maskNull(oldValue), o)) {
-					e.setValue(maskNull(newValue));
+					currentNode.setValue(hcPos, maskNull(newValue));
 					return true;
 				}
 				return false;
@@ -410,21 +772,36 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T replace(long[] key, T value) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> replaceFrom(root, key, value));
+		}
+		if (isOL) {
+			return olWrite(key, null, 0, start -> replaceFrom(start, key, value));
+		}
+		if (store != null) {
+			return store.write(() -> replaceFrom(root, key, value));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> replaceFrom(root, key, value));
+		}
+		return replaceFrom(root, key, value);
+	}
+
+	private T replaceFrom(Node start, long[] key, T value) {
+		if (start == null) {
 			return null;
 		}
 
-		Object o = getRoot();
+		Object o = start;
 		while (true) {
 			Node currentNode = (Node) o;
 			long hcPos = posInArray(key, currentNode.getPostLen());
-			BSTEntry e = currentNode.getEntry(hcPos, key);
-			if (e == null) {
+			o = currentNode.getValue(hcPos, key);
+			if (o == null) {
 				return null;
 			}
-			o = e.getValue();
 			if (!(o instanceof Node)) {
-				e.setValue(maskNull(value));
+				currentNode.setValue(hcPos, maskNull(value));
 				return unmaskNull(o);
 			}
 		}
@@ -432,7 +809,23 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T computeIfAbsent(long[] key, Function<long[], ? extends T> mappingFunction) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> computeIfAbsentFrom(root, key, mappingFunction));
+		}
+		if (isOL) {
+			return olWrite(key, null, 0, start -> computeIfAbsentFrom(start, key, mappingFunction));
+		}
+		if (store != null) {
+			return store.write(() -> computeIfAbsentFrom(root, key, mappingFunction));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> computeIfAbsentFrom(root, key, mappingFunction));
+		}
+		return computeIfAbsentFrom(root, key, mappingFunction);
+	}
+
+	private T computeIfAbsentFrom(Node start, long[] key, Function<long[], ? extends T> mappingFunction) {
+		if (start == null) {
 			T newValue = mappingFunction.apply(key);
 			if (newValue != null) {
 				insertRoot(key, maskNull(newValue));
@@ -440,50 +833,89 @@ public class PhTree16<T> implements PhTree<T> {
 			return newValue;
 		}
 
-		Object o = getRoot();
+		Object o = start;
+		int pathLen = 0;
 		while (true) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			long hcPos = posInArray(key, currentNode.getPostLen());
-			BSTEntry e = currentNode.getEntry(hcPos, key);
-			if (e == null) {
+			Object v = currentNode.getValue(hcPos, key);
+			if (v == null) {
 				T newValue = mappingFunction.apply(key);
 				if (newValue != null) {
 					increaseNrEntries();
 					currentNode.addEntry(hcPos, key, maskNull(newValue), this);
+					updateSubtreeCounts(writePath, pathLen, 1);
 				}
 				return newValue;
 			}
-			o = e.getValue();
+			o = v;
 			if (!(o instanceof Node)) {
 				return unmaskNull(o);
 			}
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T computeIfPresent(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> computeIfPresentFrom(root, key, remappingFunction));
+		}
+		if (isOL) {
+			return olWrite(key, null, 1, start -> computeIfPresentFrom(start, key, remappingFunction));
+		}
+		if (store != null) {
+			return store.write(() -> computeIfPresentFrom(root, key, remappingFunction));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> computeIfPresentFrom(root, key, remappingFunction));
+		}
+		return computeIfPresentFrom(root, key, remappingFunction);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T computeIfPresentFrom(Node start, long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (start == null) {
 			return null;
 		}
 
-		Object o = getRoot();
+		int n0 = nEntries;
+		int pathLen = 0;
+		Object o = start;
 		Node parentNode = null;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			long hcPos = posInArray(key, currentNode.getPostLen());
 			o = currentNode.computeEntry(hcPos, key, parentNode, this, false, remappingFunction);
 			parentNode = currentNode;
 			// Node: recurse
 			// Otherwise: return value
 		}
+		updateSubtreeCounts(writePath, pathLen, nEntries - n0);
 		return (T) o;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public T compute(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
-		if (getRoot() == null) {
+		if (isCOW) {
+			return cowWrite(key, null, () -> computeFrom(root, key, remappingFunction));
+		}
+		if (isOL) {
+			return olWrite(key, null, 1, start -> computeFrom(start, key, remappingFunction));
+		}
+		if (store != null) {
+			return store.write(() -> computeFrom(root, key, remappingFunction));
+		}
+		if (wal != null) {
+			return walWrite(key, null, () -> computeFrom(root, key, remappingFunction));
+		}
+		return computeFrom(root, key, remappingFunction);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T computeFrom(Node start, long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (start == null) {
 			T newValue = remappingFunction.apply(key, null);
 			if (newValue != null) {
 				insertRoot(key, maskNull(newValue));
@@ -491,16 +923,20 @@ public class PhTree16<T> implements PhTree<T> {
 			return newValue;
 		}
 
-		Object o = getRoot();
+		int n0 = nEntries;
+		int pathLen = 0;
+		Object o = start;
 		Node parentNode = null;
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
+			pathLen = pushPath(currentNode, pathLen);
 			long hcPos = posInArray(key, currentNode.getPostLen());
 			o = currentNode.computeEntry(hcPos, key, parentNode, this, true, remappingFunction);
 			parentNode = currentNode;
             // Node: recurse
             // Otherwise: return value
 		}
+		updateSubtreeCounts(writePath, pathLen, nEntries - n0);
 		return (T) o;
 	}
 
@@ -509,6 +945,7 @@ public class PhTree16<T> implements PhTree<T> {
 	public String toString() {
 		return this.getClass().getSimpleName() + 
 				" HCI-on=" + HCI_ENABLED +  
+				" dense-on=" + DENSE_ENABLED +  
 				" BstSize=" + maxInnerN + "/" + maxLeafN +  
 				" DEBUG=" + PhTreeHelper.DEBUG;
 	}
@@ -516,8 +953,9 @@ public class PhTree16<T> implements PhTree<T> {
 	@Override
 	public String toStringPlain() {
 		StringBuilderLn sb = new StringBuilderLn();
-		if (getRoot() != null) {
-			toStringPlain(sb, getRoot());
+		Node root = getRoot();
+		if (root != null) {
+			toStringPlain(sb, root);
 		}
 		return sb.toString();
 	}
@@ -537,11 +975,39 @@ public class PhTree16<T> implements PhTree<T> {
 	}
 
 
+	/**
+	 * Write a read-only snapshot of the tree to a file. Values are written with
+	 * {@link PhValueCodec#SERIALIZABLE}.
+	 * @param path the file, an existing file is overwritten
+	 * @throws IOException if writing fails
+	 * @see #writeSnapshot(Path, PhValueCodec)
+	 */
+	public void writeSnapshot(Path path) throws IOException {
+		writeSnapshot(path, PhValueCodec.SERIALIZABLE);
+	}
+
+	/**
+	 * Write a read-only snapshot of the tree to a file. The snapshot can be opened with
+	 * {@link PhTree#openSnapshot(Path, PhValueCodec)}, which maps the file into memory and
+	 * answers queries directly from the mapped file, see {@link PhTree16Snapshot}.
+	 * <p>
+	 * In COW and OL_COW mode, the snapshot contains the latest published version of the tree
+	 * and may be written concurrently with other operations.
+	 * @param path the file, an existing file is overwritten
+	 * @param codec the codec for the values
+	 * @throws IOException if writing fails
+	 */
+	public void writeSnapshot(Path path, PhValueCodec<? super T> codec) throws IOException {
+		SnapshotWriter.write(this, getRoot(), path, codec);
+	}
+
+
 	@Override
 	public String toStringTree() {
 		StringBuilderLn sb = new StringBuilderLn();
-		if (getRoot() != null) {
-			toStringTree(sb, 0, getRoot(), new long[dims], true);
+		Node root = getRoot();
+		if (root != null) {
+			toStringTree(sb, 0, root, new long[dims], true);
 		}
 		return sb.toString();
 	}
@@ -610,6 +1076,53 @@ public class PhTree16<T> implements PhTree<T> {
 		return q;
 	}
 
+	/**
+	 * The stream can be processed in parallel, see {@link PhSpliterator}.
+	 */
+	@Override
+	public Stream<PhEntry<T>> stream() {
+		return StreamSupport.stream(new PhSpliterator<>(this, null, null), false);
+	}
+
+	/**
+	 * The stream can be processed in parallel, see {@link PhSpliterator}.
+	 */
+	@Override
+	public Stream<PhEntry<T>> stream(long[] min, long[] max) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		return StreamSupport.stream(new PhSpliterator<>(this, min, max), false);
+	}
+
+	/**
+	 * Sub-nodes that lie completely inside the query window are counted without traversing 
+	 * them, see {@link PhQueryAggregate}.
+	 */
+	@Override
+	public long count(long[] min, long[] max) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		return new PhQueryAggregate<>(this).count(min, max);
+	}
+
+	/**
+	 * Sub-nodes that lie completely inside the query window are traversed without 
+	 * range checks, see {@link PhQueryAggregate}.
+	 */
+	@Override
+	public <A> A aggregate(long[] min, long[] max, A accumulator, 
+			PhAggregator<? super T, A> aggregator) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		return new PhQueryAggregate<>(this).aggregate(min, max, accumulator, aggregator);
+	}
+
 	/**
 	 * Performs a rectangular window query. The parameters are the min and max keys which 
 	 * contain the minimum respectively the maximum keys in every dimension.
@@ -656,7 +1169,8 @@ public class PhTree16<T> implements PhTree<T> {
 					" / " + max.length + "  DIM=" + dims);
 		}
 		
-		if (getRoot() == null) {
+		Node root = getRoot();
+		if (root == null) {
 			return new ArrayList<>();
 		}
 		
@@ -674,7 +1188,7 @@ public class PhTree16<T> implements PhTree<T> {
 				() -> new PhEntry<>(new long[dims], null));
 		
 		NodeIteratorListReuse<T, R> it = new NodeIteratorListReuse<>(list);
-		return it.resetAndRun(getRoot(), min, max, maxResults);
+		return it.resetAndRun(root, min, max, maxResults);
 	}
 
 	@Override
@@ -703,11 +1217,27 @@ public class PhTree16<T> implements PhTree<T> {
 	@Override
 	public PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist,
 			PhFilter dimsFilter, long... center) {
-		return new PhIteratorKnn<>(this, nMin, center, dist); // TODO filter?!?!
+		return new PhIteratorKnn<>(this, nMin, center, dist == null ? PhDistanceL.THIS : dist, dimsFilter);
 		// return new PhQueryKnnHS<>(this).reset(nMin, dist, center);
 		//return new PhQueryKnnHSZ<T>(this).reset(nMin, dist, center);
 	}
 
+	/**
+	 * Every thread (or task) reuses a {@link PhQueryKnnHS} instance, including the 
+	 * result entries of previous queries.
+	 */
+	@Override
+	public PhKnnBatchResult<T> nearestNeighbourBatch(int k, PhDistance dist, long[][] centers, 
+			ForkJoinPool pool) {
+		PhDistance d = dist == null ? PhDistanceL.THIS : dist;
+		//Persistent trees are not thread-safe, not even for readers
+		ForkJoinPool p = store == null ? pool : null;
+		return PhKnnBatchResult.execute(k, dims, centers, p, () -> {
+			PhQueryKnnHS<T> q = new PhQueryKnnHS<>(this);
+			return center -> q.reset(k, d, center);
+		});
+	}
+
 	@Override
 	public PhRangeQuery<T> rangeQuery(double dist, long... center) {
 		return rangeQuery(dist, null, center);
@@ -731,19 +1261,728 @@ public class PhTree16<T> implements PhTree<T> {
 	 */
 	@Override
 	public void clear() {
+		if (isCOW) {
+			long lsn = 0;
+			writeLock.lock();
+			try {
+				root = null;
+				nEntries = 0;
+				if (wal != null) {
+					lsn = wal.logClear();
+				}
+				cowPublish();
+			} finally {
+				writeLock.unlock();
+			}
+			if (wal != null) {
+				wal.commit(lsn);
+			}
+			return;
+		}
+		if (isOL) {
+			olClear();
+			return;
+		}
+		if (store != null) {
+			store.clear();
+		}
 		root = null;
 		nEntries = 0;
+		if (wal != null) {
+			wal.commit(wal.logClear());
+		}
+	}
+
+	/**
+	 * Insert many entries at once. If the tree is empty, the tree is built bottom-up, 
+	 * see {@link BulkLoader}. Otherwise, or in OL_COW mode, the entries are inserted with 
+	 * {@link #put(long[], Object)}.
+	 * <p>
+	 * The key arrays are stored in the tree, just like with {@code put()}.
+	 */
+	@Override
+	public void bulkLoad(long[][] keys, T[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException(
+					"keys.length=" + keys.length + " values.length=" + values.length);
+		}
+		BSTEntry[] entries = new BSTEntry[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			entries[i] = bulkEntry(keys[i], values[i]);
+		}
+		bulkLoad(entries, entries.length, null);
+	}
+
+	/**
+	 * Parallel version of {@link #bulkLoad(long[][], Object[])}. Sub-nodes with many entries
+	 * are built as separate tasks on the given pool. If the pools of this tree are not 
+	 * thread-safe, the tree uses thread-local pools while loading, 
+	 * see {@link PoolProvider#THREAD_LOCAL}.
+	 */
+	@Override
+	public void bulkLoad(long[][] keys, T[] values, ForkJoinPool pool) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException(
+					"keys.length=" + keys.length + " values.length=" + values.length);
+		}
+		if (isOL || store != null || keys.length < BulkLoader.PARALLEL_THRESHOLD) {
+			bulkLoad(keys, values);
+			return;
+		}
+		if (isCOW) {
+			writeLock.lock();
+		}
+		Supplier<Pools> treePools = pools;
+		try {
+			if (root != null) {
+				bulkLoad(keys, values);
+				return;
+			}
+			if (!poolProvider.isThreadSafe()) {
+				pools = PoolProvider.THREAD_LOCAL.getPools(Pools.class, Pools::new);
+			}
+			BSTEntry[] entries = new BSTEntry[keys.length];
+			pool.submit(() -> IntStream.range(0, keys.length).parallel().forEach(
+					i -> entries[i] = bulkEntry(keys[i], values[i]))).join();
+			bulkLoad(entries, entries.length, pool);
+		} finally {
+			pools = treePools;
+			if (isCOW) {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void bulkLoad(Iterator<? extends PhEntry<T>> entries) {
+		BSTEntry[] list = new BSTEntry[16];
+		int n = 0;
+		while (entries.hasNext()) {
+			PhEntry<T> e = entries.next();
+			if (n == list.length) {
+				list = Arrays.copyOf(list, n * 2);
+			}
+			list[n++] = bulkEntry(e.getKey(), e.getValue());
+		}
+		bulkLoad(list, n, null);
+	}
+
+	private BSTEntry bulkEntry(long[] key, T value) {
+		if (key.length != dims) {
+			throw new IllegalArgumentException("key.length=" + key.length + " dims=" + dims);
+		}
+		BSTEntry e = bstPool().getEntry();
+		e.set(0, key, maskNull(value));
+		return e;
+	}
+
+	/**
+	 * @param pool The pool for parallel loading or 'null'
+	 */
+	@SuppressWarnings("unchecked")
+	private void bulkLoad(BSTEntry[] entries, int n, ForkJoinPool pool) {
+		if (store != null && !store.isWriting()) {
+			store.write(() -> {
+				bulkLoad(entries, n, null);
+				return null;
+			});
+			return;
+		}
+		if (isCOW) {
+			writeLock.lock();
+		}
+		long lsn = 0;
+		try {
+			if (!isOL && root == null) {
+				if (n > 0) {
+					BulkLoader loader = new BulkLoader(this, pool != null);
+					if (pool == null) {
+						root = loader.build(entries, 0, n, 0, DEPTH_64-1);
+					} else {
+						root = pool.invoke(loader.task(entries, 0, n, 0, DEPTH_64-1));
+					}
+					nEntries = loader.size();
+					if (wal != null && !wal.isRecovering()) {
+						lsn = walLogAll(root);
+					}
+				}
+				if (isCOW) {
+					cowPublish();
+				}
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				put(entries[i].getKdKey(), (T) unmaskNull(entries[i].getValue()));
+			}
+		} finally {
+			if (isCOW) {
+				writeLock.unlock();
+			}
+			if (lsn != 0) {
+				wal.commit(lsn);
+			}
+		}
+	}
+
+	/**
+	 * Executes a write operation on a tree with a write-ahead log (NONE mode). 
+	 * See {@link #cowWrite(long[], long[], Supplier)} for COW mode.
+	 * @param key The key of the operation
+	 * @param key2 Optional second key, for example the new key of an update
+	 * @param op The write operation
+	 * @return The result of the operation
+	 */
+	private <R> R walWrite(long[] key, long[] key2, Supplier<R> op) {
+		R result = op.get();
+		wal.commit(walLog(key, key2));
+		return result;
+	}
+
+	/**
+	 * Logs the state of the key(s) after a write operation: either the value or the 
+	 * absence of the key. This must be called before the modified tree is published.
+	 * @return The log sequence number of the last record
+	 */
+	private long walLog(long[] key, long[] key2) {
+		long lsn = walLogKey(key);
+		return key2 == null ? lsn : walLogKey(key2);
+	}
+
+	private long walLogKey(long[] key) {
+		Object o = root;
+		while (o instanceof Node) {
+			Node node = (Node) o;
+			//Every node on the path may have been modified, see IncrementalCheckpoint 
+			node.markDirty();
+			o = node.doIfMatching(key, true, null, null, this);
+		}
+		return o == null ? wal.logRemove(key) : wal.logPut(key, unmaskNull(o));
+	}
+
+	private long walLogAll(Node node) {
+		long lsn = 0;
+		BSTIteratorAll iter = node.iterator();
+		while (iter.hasNextEntry()) {
+			BSTEntry e = iter.nextEntry();
+			if (e.getValue() instanceof Node) {
+				lsn = walLogAll((Node) e.getValue());
+			} else {
+				lsn = wal.logPut(e.getKdKey(), unmaskNull(e.getValue()));
+			}
+		}
+		return lsn;
+	}
+
+	/**
+	 * Writes checkpoints for {@link PersistenceProviderWal#checkpoint()}. In COW mode, writers 
+	 * are blocked only while the log is rotated, the checkpoint is written from the 
+	 * (immutable) root of that moment.
+	 */
+	private class WalCheckpointer implements PersistenceProviderWal.Checkpointer {
+		@Override
+		public void checkpoint(Path path, Runnable rotate) throws IOException {
+			SnapshotWriter.write(PhTree16.this, rotate(rotate), path, wal.getValueCodec());
+		}
+
+		@Override
+		public long checkpointNodes(FileChannel nodes, boolean full, Runnable rotate) 
+				throws IOException {
+			return IncrementalCheckpoint.write(rotate(rotate), nodes, wal.getValueCodec(), full);
+		}
+
+		@Override
+		public void loadNodes(FileChannel nodes, long rootPos) throws IOException {
+			Node r = IncrementalCheckpoint.read(PhTree16.this, nodes, rootPos, 
+					wal.getValueCodec());
+			setRoot(r, r == null ? 0 : r.getSubtreeEntryCount());
+		}
+
+		private Node rotate(Runnable rotate) {
+			if (isCOW) {
+				writeLock.lock();
+				try {
+					rotate.run();
+					return root;
+				} finally {
+					writeLock.unlock();
+				}
+			}
+			rotate.run();
+			return root;
+		}
+	}
+
+	/**
+	 * Executes a write operation in COW mode. 
+	 * Writers are serialized. The write operation is executed on private copies of all nodes 
+	 * on the path(s) to the given key(s). 
+	 * The modified tree is published atomically once the operation completes. 
+	 * If the operation fails, the modifications are discarded. 
+	 * @param key The key of the operation
+	 * @param key2 Optional second key, for example the new key of an update
+	 * @param op The write operation
+	 * @return The result of the operation
+	 */
+	private <R> R cowWrite(long[] key, long[] key2, Supplier<R> op) {
+		writeLock.lock();
+		boolean success = false;
+		R result;
+		long lsn = 0;
+		try {
+			if (root != null) {
+				root = copyOnWrite(root);
+				copyPath(root, key, Integer.MAX_VALUE);
+				if (key2 != null) {
+					copyPath(root, key2, Integer.MAX_VALUE);
+				}
+			}
+			result = op.get();
+			if (wal != null) {
+				lsn = walLog(key, key2);
+			}
+			success = true;
+		} finally {
+			cowContext.clearCopies();
+			if (success) {
+				cowPublish();
+			} else {
+				//roll back
+				root = cowRoot;
+				nEntries = cowNEntries;
+			}
+			writeLock.unlock();
+		}
+		if (wal != null) {
+			//group commit: wait for the log after releasing the lock
+			wal.commit(lsn);
+		}
+		return result;
+	}
+
+	private void cowPublish() {
+		cowNEntries = nEntries;
+		//volatile write, this makes all previous writes visible to readers
+		cowRoot = root;
+	}
+
+	/**
+	 * Replaces nodes on the path to the given key with private copies.
+	 * The path ends with the node that contains the key, or with the node where 
+	 * the key would be inserted, or after 'maxNodes' nodes.
+	 * @param start A private copy of the first node of the path
+	 * @param key The key
+	 * @param maxNodes Maximum number of nodes to copy, not including 'start'
+	 */
+	private void copyPath(Node start, long[] key, int maxNodes) {
+		Node node = start;
+		for (int i = 0; i < maxNodes; i++) {
+			long hcPos = posInArray(key, node.getPostLen());
+			Object v = node.getValue(hcPos, null);
+			if (!(v instanceof Node)) {
+				return;
+			}
+			Node sub = copyOnWrite((Node) v);
+			node.setValue(hcPos, sub);
+			node = sub;
+		}
+	}
+
+	/**
+	 * This must be called by write operations before modifying a node that may not be on 
+	 * the path(s) that were copied by {@link #cowWrite(long[], long[], Supplier)} or 
+	 * {@link #olWrite(long[], long[], int, Function)}.
+	 * The caller must replace any reference to the node with the returned copy. 
+	 * @param node The node to be modified
+	 * @return The node itself if it can be modified directly, otherwise a private copy of the node.
+	 */
+	Node copyOnWrite(Node node) {
+		if (!isCOW && !isOL) {
+			return node;
+		}
+		WriterContext ctx = isOL ? olContext.get() : cowContext;
+		if (ctx.isCopy(node)) {
+			return node;
+		}
+		if (isOL && !ctx.isLocked(node)) {
+			//Not on the locked path, e.g. a node that is pulled up during a merge
+			int version = node.olVersion();
+			if (!node.olTryLock(version)) {
+				throw OL_RETRY;
+			}
+			ctx.addLocked(node, version);
+		}
+		Node copy = node.copy(this);
+		ctx.addCopy(copy);
+		return copy;
+	}
+
+	/**
+	 * Executes a write operation in OL_COW mode.
+	 * <p>
+	 * The writer first reads the path(s) to the key(s) without locking. It then locks the 
+	 * (few) nodes at the bottom of the path that may be modified by the operation, plus their 
+	 * parent. A node is locked by incrementing its version from the version that was seen 
+	 * during the first traversal; this fails if the node has been modified since, in which 
+	 * case the operation is restarted.
+	 * The locked nodes are replaced with private copies and the operation is executed on the 
+	 * copies. Finally, the copy of the topmost node is swapped into the parent and the 
+	 * parent is unlocked. Nodes that have been replaced remain locked forever.
+	 * <p>
+	 * Writers in disjoint subtrees do not share any locks and can proceed in parallel.
+	 * Readers never lock or wait. A published node is never modified, except for 
+	 * references to sub-nodes being replaced with their (complete) copies.
+	 * 
+	 * @param key The key of the operation
+	 * @param key2 Optional second key, for example the new key of an update
+	 * @param levelsUp Number of levels above the node that contains 'key' that may be 
+	 * modified. This is 1 for operations that may remove entries, because removal may merge 
+	 * a node into its parent. 
+	 * @param op The write operation. Its argument is the node where the operation must start.
+	 * @return The result of the operation
+	 */
+	private <R> R olWrite(long[] key, long[] key2, int levelsUp, Function<Node, R> op) {
+		WriterContext ctx = olContext.get();
+		for (int nRetry = 0; ; nRetry++) {
+			if (nRetry > 2) {
+				Thread.yield();
+			}
+			boolean success = false;
+			try {
+				Node start = olLockAndCopy(ctx, key, key2, levelsUp);
+				if (start != null) {
+					R result = op.apply(start);
+					olPublish(ctx, key, start);
+					success = true;
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (e != OL_RETRY) {
+					throw e;
+				}
+			} finally {
+				if (!success) {
+					olRelease(ctx);
+				}
+			}
+		}
+	}
+
+	/**
+	 * OL: Read the path(s), lock the nodes that may be modified and replace them with copies.
+	 * @return A private copy of the node where the operation must start, or 'null' if 
+	 * the operation must be restarted.
+	 */
+	private Node olLockAndCopy(WriterContext ctx, long[] key, long[] key2, int levelsUp) {
+		int rootVersion = olRootVersion;
+		Node r = cowRoot;
+		if (r == null) {
+			if (!ctx.lockRoot(this, rootVersion)) {
+				return null;
+			}
+			return Node.createNode(dims, 0, DEPTH_64-1, this);
+		}
+		Node[] path1 = ctx.path1;
+		int j = ctx.readPath(r, key, path1, ctx.version1);
+		int n1 = ctx.pathLen;
+		int s = Math.max(0, j - levelsUp);
+		int n2 = 0;
+		if (key2 != null) {
+			int j2 = ctx.readPath(r, key2, ctx.path2, ctx.version2);
+			n2 = ctx.pathLen;
+			int common = 0;
+			while (common < n1 && common < n2 && path1[common] == ctx.path2[common]) {
+				common++;
+			}
+			s = Math.max(0, Math.min(s, Math.min(j2, common - 1)));
+		}
+
+		//lock parent, then all nodes of the path(s) from 's' downwards
+		if (s == 0) {
+			if (!ctx.lockRoot(this, rootVersion) || cowRoot != r) {
+				return null;
+			}
+		} else if (!ctx.lockParent(path1[s-1], ctx.version1[s-1])) {
+			return null;
+		}
+		for (int i = s; i < n1; i++) {
+			if (!ctx.tryLock(path1[i], ctx.version1[i])) {
+				return null;
+			}
+		}
+		for (int i = s; i < n2; i++) {
+			if (!ctx.isLocked(ctx.path2[i]) && !ctx.tryLock(ctx.path2[i], ctx.version2[i])) {
+				return null;
+			}
+		}
+
+		Node start = copyOnWrite(path1[s]);
+		copyPath(start, key, n1 - s - 1);
+		if (key2 != null) {
+			copyPath(start, key2, n2 - s - 1);
+		}
+		return start;
+	}
+
+	private void olPublish(WriterContext ctx, long[] key, Node start) {
+		olNEntries.add(ctx.nEntriesDelta);
+		if (ctx.parent == null) {
+			//volatile write
+			cowRoot = start;
+		} else {
+			//Release store: readers that load the reference (with acquire) see complete nodes.
+			start.olInitVersion();
+			Node parent = ctx.parent;
+			parent.setValue(posInArray(key, parent.getPostLen()), start);
+		}
+		//The replaced nodes remain locked, only the parent is unlocked.
+		ctx.unlockParent(this, true);
+		ctx.reset();
+	}
+
+	private void olRelease(WriterContext ctx) {
+		ctx.unlockAll();
+		ctx.unlockParent(this, false);
+		ctx.reset();
+	}
+
+	/**
+	 * OL: Lock the root and then all nodes of the tree. The nodes remain locked forever.
+	 * Concurrent writers are waited for, later writers will find only locked nodes and restart 
+	 * from the (new) root.
+	 */
+	private void olClear() {
+		int rootVersion;
+		do {
+			rootVersion = olRootVersion;
+			if ((rootVersion & 1) != 0) {
+				Thread.yield();
+			}
+		} while ((rootVersion & 1) != 0 || 
+				!OL_ROOT_VERSION.compareAndSet(this, rootVersion, rootVersion + 1));
+		if (cowRoot != null) {
+			olLockForever(cowRoot);
+		}
+		cowRoot = null;
+		olNEntries.reset();
+		olRootVersion = rootVersion + 2;
+	}
+
+	private static void olLockForever(Node node) {
+		while (!node.olTryLock(node.olVersion())) {
+			Thread.yield();
+		}
+		BSTIteratorAll iter = node.iterator();
+		while (iter.hasNextEntry()) {
+			Object v = iter.nextEntry().getValue();
+			if (v instanceof Node) {
+				olLockForever((Node) v);
+			}
+		}
+	}
+
+	/**
+	 * State of a write operation in COW or OL_COW mode. 
+	 * In OL_COW mode, every writer thread has its own instance.
+	 */
+	static final class WriterContext {
+		//Nodes that were copied by the current write operation. These are private to the writer.
+		private Node[] copies = new Node[DEPTH_64];
+		private int nCopies = 0;
+
+		//OL: Nodes locked by the current write operation and their version before locking
+		private Node[] locked = new Node[DEPTH_64];
+		private int[] lockedVersion = new int[DEPTH_64];
+		private int nLocked = 0;
+		//OL: The parent of the topmost locked node, 'null' if the root is locked
+		private Node parent;
+		private int parentVersion;
+		private boolean isRootLocked = false;
+		private int rootVersion;
+		private int nEntriesDelta = 0;
+		//OL: Paths of the current write operation
+		private final Node[] path1;
+		private final int[] version1;
+		private final Node[] path2;
+		private final int[] version2;
+		private int pathLen;
+
+		WriterContext(boolean isOL) {
+			if (isOL) {
+				path1 = new Node[DEPTH_64 + 1];
+				version1 = new int[DEPTH_64 + 1];
+				path2 = new Node[DEPTH_64 + 1];
+				version2 = new int[DEPTH_64 + 1];
+			} else {
+				path1 = null;
+				version1 = null;
+				path2 = null;
+				version2 = null;
+			}
+		}
+
+		/**
+		 * OL: Read the path to a key. The path ends with the node that contains the key 
+		 * (or where the key would be inserted) or with the first node whose infix does not match
+		 * the key. The version of each node is read before its content.
+		 * The length of the path is stored in 'pathLen'.
+		 * @return The index of the deepest node whose prefix matches the key.
+		 */
+		int readPath(Node root, long[] key, Node[] path, int[] versions) {
+			Node node = root;
+			versions[0] = node.olVersion();
+			path[0] = node;
+			int n = 1;
+			while (true) {
+				long hcPos = posInArray(key, node.getPostLen());
+				Object v = node.getValue(hcPos, null);
+				if (!(v instanceof Node)) {
+					pathLen = n;
+					return n - 1;
+				}
+				Node sub = (Node) v;
+				versions[n] = sub.olVersion();
+				path[n++] = sub;
+				if (node.getValue(hcPos, key) != sub) {
+					pathLen = n;
+					return n - 2;
+				}
+				node = sub;
+			}
+		}
+
+		boolean isCopy(Node node) {
+			for (int i = 0; i < nCopies; i++) {
+				if (copies[i] == node) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void addCopy(Node node) {
+			if (nCopies == copies.length) {
+				copies = Arrays.copyOf(copies, nCopies * 2);
+			}
+			copies[nCopies++] = node;
+		}
+
+		void clearCopies() {
+			Arrays.fill(copies, 0, nCopies, null);
+			nCopies = 0;
+		}
+
+		boolean isLocked(Node node) {
+			for (int i = 0; i < nLocked; i++) {
+				if (locked[i] == node) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void addLocked(Node node, int version) {
+			if (nLocked == locked.length) {
+				locked = Arrays.copyOf(locked, nLocked * 2);
+				lockedVersion = Arrays.copyOf(lockedVersion, nLocked * 2);
+			}
+			lockedVersion[nLocked] = version;
+			locked[nLocked++] = node;
+		}
+
+		boolean tryLock(Node node, int version) {
+			if (!node.olTryLock(version)) {
+				return false;
+			}
+			addLocked(node, version);
+			return true;
+		}
+
+		boolean lockParent(Node node, int version) {
+			if (!node.olTryLock(version)) {
+				return false;
+			}
+			parent = node;
+			parentVersion = version;
+			return true;
+		}
+
+		boolean lockRoot(PhTree16<?> tree, int version) {
+			if ((version & 1) != 0 || !OL_ROOT_VERSION.compareAndSet(tree, version, version + 1)) {
+				return false;
+			}
+			isRootLocked = true;
+			rootVersion = version;
+			return true;
+		}
+
+		/**
+		 * Unlock the parent or root. 
+		 * @param modified whether the parent/root has been modified
+		 */
+		void unlockParent(PhTree16<?> tree, boolean modified) {
+			int inc = modified ? 2 : 0;
+			if (parent != null) {
+				parent.olUnlock(parentVersion + inc);
+			}
+			if (isRootLocked) {
+				tree.olRootVersion = rootVersion + inc;
+			}
+		}
+
+		/**
+		 * Unlock all nodes, restoring their previous version.
+		 */
+		void unlockAll() {
+			for (int i = 0; i < nLocked; i++) {
+				locked[i].olUnlock(lockedVersion[i]);
+			}
+		}
+
+		void reset() {
+			clearCopies();
+			Arrays.fill(locked, 0, nLocked, null);
+			nLocked = 0;
+			parent = null;
+			isRootLocked = false;
+			nEntriesDelta = 0;
+			Arrays.fill(path1, null);
+			Arrays.fill(path2, null);
+		}
+	}
+
+	/**
+	 * The object and array pools of a tree. The pools may be shared with other trees, 
+	 * see {@link PoolProvider}.
+	 */
+	static final class Pools {
+		private final ObjectPool<Node> nodePool = ObjectPool.create(Node::new);
+		private final ObjectPool<UpdateInfo> uiPool = ObjectPool.create(UpdateInfo::new);
+		private final LongArrayPool bitPool = LongArrayPool.create();
+		private final BSTPool bstPool = BSTPool.create();
 	}
 
     ObjectPool<Node> nodePool() {
-        return nodePool;
+        return pools.get().nodePool;
+    }
+
+    private ObjectPool<UpdateInfo> uiPool() {
+        return pools.get().uiPool;
     }
 
     public LongArrayPool longPool() {
-        return bitPool;
+        return pools.get().bitPool;
     }
 
     public BSTPool bstPool() {
-        return bstPool;
+        return pools.get().bstPool;
     }
+
+	/**
+	 * Trees with long values store {@code Long} values as primitives in the BST pages, 
+	 * there is no object per value. See {@link PhTree16Long}.
+	 * @return 'true' if this is the tree of a {@link PhTree16Long}
+	 */
+	public boolean hasLongValues() {
+		return longValues;
+	}
 }
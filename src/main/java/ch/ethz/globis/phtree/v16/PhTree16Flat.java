@@ -0,0 +1,385 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhFilterDistance;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.PhMapper;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.util.StringBuilderLn;
+
+/**
+ * Base class of PH-Trees whose nodes are stored as flat arrays of longs outside the Java
+ * heap, see {@link PhTree16Snapshot} and {@link PhTree16OffHeap}.
+ * Nodes are addressed by their offset (in longs) instead of by references.
+ * <p>
+ * Node layout:
+ * <pre>
+ * header (postLen | infixLen &lt;&lt; 8 | sizeClass &lt;&lt; 16 | nEntries &lt;&lt; 32)
+ * hcPos[capacity]           sorted, replaces the BST of the node
+ * kdKey[capacity * dims]
+ * ref[capacity]             &gt;0: offset of sub-node (in longs),
+ *                           -1: 'null' value,
+ *                           &lt;-1: value reference, see {@link #value(long)}
+ * </pre>
+ * Only the first {@code nEntries} entries of each array are used. The capacity is
+ * {@code nEntries} if the size class is 0 (snapshots). Otherwise it is the number of entries
+ * that fit into a block of the size class, see {@link PhTree16OffHeap}.
+ * The memory is split into chunks of {@code 2^chunkShift} longs, a node never spans
+ * two chunks. Offset 0 is never a node, a root of 0 denotes an empty tree.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+abstract class PhTree16Flat<T> implements PhTree<T> {
+
+	static final long NULL_REF = -1;
+	//lookup() result
+	static final long NOT_FOUND = 0;
+
+	final int dims;
+	private final int chunkShift;
+	private final long chunkMask;
+	LongBuffer[] longs;
+
+	PhTree16Flat(int dims, LongBuffer[] longs, int chunkShift) {
+		this.dims = dims;
+		this.longs = longs;
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1L << chunkShift) - 1;
+	}
+
+	static long header(int postLen, int infixLen, int nEntries) {
+		return header(postLen, infixLen, 0, nEntries);
+	}
+
+	static long header(int postLen, int infixLen, int sizeClass, int nEntries) {
+		return postLen | ((long) infixLen << 8) | ((long) sizeClass << 16) | 
+				((long) nEntries << 32);
+	}
+
+	/**
+	 * @return the offset of the root node, or 0 if the tree is empty
+	 */
+	abstract long root();
+
+	/**
+	 * @param ref a value reference
+	 * @return the value
+	 */
+	abstract T value(long ref);
+
+	/**
+	 * @return the number of bytes used by the tree
+	 */
+	abstract long storageSize();
+
+	// *****************************************
+	// Node access
+	// *****************************************
+
+	final long word(long pos) {
+		return longs[(int) (pos >>> chunkShift)].get((int) (pos & chunkMask));
+	}
+
+	final void setWord(long pos, long value) {
+		longs[(int) (pos >>> chunkShift)].put((int) (pos & chunkMask), value);
+	}
+
+	final int postLen(long node) {
+		return (int) (word(node) & 0xFF);
+	}
+
+	final int infixLen(long node) {
+		return (int) ((word(node) >>> 8) & 0xFF);
+	}
+
+	final int entryCount(long node) {
+		return (int) (word(node) >>> 32);
+	}
+
+	final int nodeSizeClass(long node) {
+		return (int) ((word(node) >>> 16) & 0xFF);
+	}
+
+	/**
+	 * @return the number of entries that the arrays of the node can hold
+	 */
+	final int capacity(long node) {
+		int sizeClass = nodeSizeClass(node);
+		if (sizeClass == 0) {
+			return entryCount(node);
+		}
+		return (PhTree16OffHeap.classSize(sizeClass) - 1) / (dims + 2);
+	}
+
+	final long hcPos(long node, int i) {
+		return word(node + 1 + i);
+	}
+
+	final long kdPos(long node, int cap, int i) {
+		return node + 1 + cap + (long) i * dims;
+	}
+
+	final long refPos(long node, int cap, int i) {
+		return node + 1 + cap + (long) cap * dims + i;
+	}
+
+	final long ref(long node, int cap, int i) {
+		return word(refPos(node, cap, i));
+	}
+
+	final void readKey(long kdPos, long[] key) {
+		for (int d = 0; d < dims; d++) {
+			key[d] = word(kdPos + d);
+		}
+	}
+
+	/**
+	 * @return the position of the first entry with an hc-position &gt;= 'hcPos'
+	 */
+	final int find(long node, int n, long hcPos) {
+		int low = 0;
+		int high = n;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (hcPos(node, mid) < hcPos) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	final boolean matches(long kdPos, long[] key, long mask) {
+		for (int d = 0; d < dims; d++) {
+			if (((word(kdPos + d) ^ key[d]) & mask) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	final void checkKey(long[] key) {
+		if (key.length != dims) {
+			throw new IllegalArgumentException("key.length=" + key.length + " dims=" + dims);
+		}
+	}
+
+	/**
+	 * @return the value reference of the key or {@link #NOT_FOUND}
+	 */
+	final long lookup(long[] key) {
+		checkKey(key);
+		long node = root();
+		while (node != 0) {
+			int n = entryCount(node);
+			long hcPos = posInArray(key, postLen(node));
+			int i = find(node, n, hcPos);
+			if (i >= n || hcPos(node, i) != hcPos) {
+				return NOT_FOUND;
+			}
+			int cap = capacity(node);
+			long ref = ref(node, cap, i);
+			if (ref > 0) {
+				//sub-node: check infix
+				if (!matches(kdPos(node, cap, i), key, (-1L) << (postLen(ref) + 1))) {
+					return NOT_FOUND;
+				}
+				node = ref;
+			} else {
+				return matches(kdPos(node, cap, i), key, -1L) ? ref : NOT_FOUND;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	// *****************************************
+	// PhTree
+	// *****************************************
+
+	@Override
+	public int getDim() {
+		return dims;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return PhTree16.DEPTH_64;
+	}
+
+	@Override
+	public boolean contains(long... key) {
+		return lookup(key) != NOT_FOUND;
+	}
+
+	@Override
+	public T get(long... key) {
+		long ref = lookup(key);
+		return ref == NOT_FOUND ? null : value(ref);
+	}
+
+	@Override
+	public PhExtent<T> queryExtent() {
+		return new PhSnapshotIterator<>(this, null).reset();
+	}
+
+	@Override
+	public PhQuery<T> query(long[] min, long[] max) {
+		return query(min, max, null);
+	}
+
+	@Override
+	public PhQuery<T> query(long[] min, long[] max, PhFilter filter) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +
+					" / " + max.length + "  DIM=" + dims);
+		}
+		return new PhSnapshotIterator<>(this, filter).reset(min, max);
+	}
+
+	@Override
+	public List<PhEntry<T>> queryAll(long[] min, long[] max) {
+		return queryAll(min, max, Integer.MAX_VALUE, null, PhMapper.PVENTRY());
+	}
+
+	@Override
+	public <R> List<R> queryAll(long[] min, long[] max, int maxResults, PhFilter filter,
+			PhMapper<T, R> mapper) {
+		List<R> list = new ArrayList<>();
+		PhQuery<T> q = query(min, max, filter);
+		while (q.hasNext() && list.size() < maxResults) {
+			list.add(mapper.map(q.nextEntry()));
+		}
+		return list;
+	}
+
+	@Override
+	public PhKnnQuery<T> nearestNeighbour(int nMin, long... key) {
+		return new PhSnapshotKnn<>(this).reset(nMin, PhDistanceL.THIS, key);
+	}
+
+	@Override
+	public PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist, PhFilter dims, long... key) {
+		return new PhSnapshotKnn<>(this, dims).reset(nMin, dist == null ? PhDistanceL.THIS : dist, key);
+	}
+
+	@Override
+	public PhRangeQuery<T> rangeQuery(double dist, long... center) {
+		return rangeQuery(dist, null, center);
+	}
+
+	@Override
+	public PhRangeQuery<T> rangeQuery(double dist, PhDistance optionalDist, long... center) {
+		PhFilterDistance filter = new PhFilterDistance();
+		if (optionalDist == null) {
+			optionalDist = PhDistanceL.THIS;
+		}
+		filter.set(center, optionalDist, dist);
+		PhQuery<T> q = new PhSnapshotIterator<>(this, filter);
+		PhRangeQuery<T> qr = new PhRangeQuery<>(q, this, optionalDist, filter);
+		qr.reset(dist, center);
+		return qr;
+	}
+
+	@Override
+	public PhTreeStats getStats() {
+		PhTreeStats stats = new PhTreeStats(PhTree16.DEPTH_64);
+		long root = root();
+		if (root != 0) {
+			getStats(root, 0, stats);
+		}
+		stats.size = storageSize();
+		return stats;
+	}
+
+	private void getStats(long node, int depth, PhTreeStats stats) {
+		int n = entryCount(node);
+		stats.nNodes++;
+		stats.infixHist[infixLen(node)]++;
+		stats.nodeDepthHist[depth]++;
+		stats.nodeSizeLogHist[32 - Integer.numberOfLeadingZeros(n)]++;
+		stats.nTotalChildren += n;
+		depth += infixLen(node);
+		int cap = capacity(node);
+		for (int i = 0; i < n; i++) {
+			long ref = ref(node, cap, i);
+			if (ref > 0) {
+				getStats(ref, depth + 1, stats);
+			} else {
+				stats.q_nPostFixN[depth]++;
+			}
+		}
+	}
+
+	@Override
+	public String toStringPlain() {
+		StringBuilderLn sb = new StringBuilderLn();
+		PhExtent<T> extent = queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<T> e = extent.nextEntryReuse();
+			sb.appendLn(Arrays.toString(e.getKey()) + " v=" + e.getValue());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		long root = root();
+		if (root != 0) {
+			toStringTree(sb, root, 0, new long[dims]);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, long node, int depth, long[] key) {
+		int n = entryCount(node);
+		char[] indent = new char[depth * 2];
+		Arrays.fill(indent, ' ');
+		String ind = new String(indent);
+		sb.appendLn(ind + "n: d=" + depth + " postLen=" + postLen(node) + " infixLen=" +
+				infixLen(node) + " n=" + n);
+		int cap = capacity(node);
+		for (int i = 0; i < n; i++) {
+			readKey(kdPos(node, cap, i), key);
+			long ref = ref(node, cap, i);
+			if (ref > 0) {
+				sb.appendLn(ind + "+ " + hcPos(node, i) + " " + Arrays.toString(key));
+				toStringTree(sb, ref, depth + 1, key);
+			} else {
+				sb.appendLn(ind + "- " + hcPos(node, i) + " " + Arrays.toString(key) +
+						" v=" + value(ref));
+			}
+		}
+	}
+}
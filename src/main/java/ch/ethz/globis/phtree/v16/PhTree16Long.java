@@ -0,0 +1,197 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeLong;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * A {@link PhTreeLong} based on {@link PhTree16}.
+ * <p>
+ * The values are stored as primitives in the BST pages of the nodes, see 
+ * {@link PhTree16#hasLongValues()}. There are no objects per entry, values are only boxed 
+ * when they are passed through the API of the {@link PhTree16}.
+ *
+ * @author ztilmann
+ */
+public class PhTree16Long implements PhTreeLong {
+
+	private final PhTree16<Long> tree;
+
+	/**
+	 * Create a tree.
+	 * @param dims number of dimensions
+	 */
+	public PhTree16Long(int dims) {
+		this.tree = new PhTree16<>(dims, true);
+	}
+
+	@Override
+	public int size() {
+		return tree.size();
+	}
+
+	@Override
+	public int getDim() {
+		return tree.getDim();
+	}
+
+	@Override
+	public PhTreeStats getStats() {
+		return tree.getStats();
+	}
+
+	@Override
+	public boolean put(long[] key, long value) {
+		checkKey(key);
+		return tree.put(key, value) == null;
+	}
+
+	@Override
+	public boolean contains(long... key) {
+		checkKey(key);
+		return tree.contains(key);
+	}
+
+	@Override
+	public long getOrDefault(long[] key, long defaultValue) {
+		checkKey(key);
+		Long v = tree.get(key);
+		return v == null ? defaultValue : v;
+	}
+
+	@Override
+	public boolean remove(long... key) {
+		checkKey(key);
+		return tree.remove(key) != null;
+	}
+
+	@Override
+	public boolean update(long[] oldKey, long[] newKey) {
+		checkKey(oldKey);
+		checkKey(newKey);
+		return tree.update(oldKey, newKey) != null;
+	}
+
+	@Override
+	public PhIteratorLong queryExtent() {
+		return new WindowIterator(tree.queryExtent());
+	}
+
+	@Override
+	public PhIteratorLong query(long[] min, long[] max) {
+		return new WindowIterator(tree.query(min, max));
+	}
+
+	@Override
+	public PhIteratorLong nearestNeighbour(int nMin, long... key) {
+		checkKey(key);
+		return new KnnIterator(tree.nearestNeighbour(nMin, key));
+	}
+
+	@Override
+	public void clear() {
+		tree.clear();
+	}
+
+	@Override
+	public String toStringTree() {
+		return tree.toStringTree();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " dims=" + getDim() + " size=" + size();
+	}
+
+	private void checkKey(long[] key) {
+		if (key.length != tree.getDim()) {
+			throw new IllegalArgumentException("key.length=" + key.length + " dims=" + tree.getDim());
+		}
+	}
+
+	private static final class WindowIterator implements PhIteratorLong {
+
+		private final PhIterator<Long> iter;
+
+		WindowIterator(PhIterator<Long> iter) {
+			this.iter = iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public long nextValueLong() {
+			return iter.nextValue();
+		}
+
+		@Override
+		public long nextValueLong(long[] key) {
+			PhEntry<Long> e = iter.nextEntryReuse();
+			System.arraycopy(e.getKey(), 0, key, 0, key.length);
+			return e.getValue();
+		}
+
+		@Override
+		public long[] nextKey() {
+			return iter.nextKey();
+		}
+	}
+
+	/**
+	 * The kNN results are collected before iteration. Only the 'nMin' result values are
+	 * boxed.
+	 */
+	private static final class KnnIterator implements PhIteratorLong {
+
+		private final PhKnnQuery<Long> iter;
+
+		KnnIterator(PhKnnQuery<Long> iter) {
+			this.iter = iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public long nextValueLong() {
+			return iter.nextValue();
+		}
+
+		@Override
+		public long nextValueLong(long[] key) {
+			PhEntryDist<Long> e = iter.nextEntryReuse();
+			System.arraycopy(e.getKey(), 0, key, 0, key.length);
+			return e.getValue();
+		}
+
+		@Override
+		public long[] nextKey() {
+			return iter.nextKey();
+		}
+	}
+}
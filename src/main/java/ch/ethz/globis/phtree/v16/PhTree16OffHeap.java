@@ -0,0 +1,610 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A PH-Tree that stores its nodes outside the Java heap.
+ * <p>
+ * The nodes are stored in the flat layout of {@link PhTree16Flat} (which is also used by
+ * {@link PhTree16Snapshot}) in direct {@link ByteBuffer} slabs of {@code 2^slabShift} longs.
+ * Nodes are addressed by their offset in the slabs, keys are stored inline in their node.
+ * Only the values remain on the heap, in a single array. The garbage collector therefore
+ * sees a handful of objects, independent of the number of entries, where a
+ * {@link PhTree16} has several objects per entry ({@code Node}, BST pages, BST entries
+ * and key arrays).
+ * <p>
+ * Memory is managed by a slab allocator: blocks are allocated by bumping a pointer and
+ * freed blocks are kept in free lists per size class (exact sizes for small nodes, four
+ * classes per power of two for large nodes). Slabs are never returned to the OS, except by
+ * {@link #clear()}.
+ * <p>
+ * The entries of a node are kept in sorted arrays instead of a BST. The arrays of a node
+ * use the whole block of its size class, so there is room for up to 25% more entries.
+ * Inserting or removing an entry shifts the following entries in place. The node is
+ * reallocated only when it outgrows its block, or when it shrinks to half of its capacity.
+ * The shifting costs O(entries of the node), which is efficient for small nodes, i.e. low
+ * dimensionality (the maximum number of entries of a node is {@code 2^dims}).
+ * A node must fit into one slab.
+ * <p>
+ * This tree supports only {@code CONCURRENCY_NONE}: it must not be modified concurrently,
+ * and iterators become invalid when the tree is modified.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class PhTree16OffHeap<T> extends PhTree16Flat<T> {
+
+	/** 2^20 longs = 8 MiB per slab. */
+	public static final int DEFAULT_SLAB_SHIFT = 20;
+
+	//The root pointer, offset 0 means 'no node'
+	private static final long ROOT_SLOT = 1;
+	private static final int MAX_SIZE_CLASSES = 64 + 4 * 32;
+
+	private final int slabShift;
+	private final long slabLongs;
+	//next unallocated offset
+	private long top;
+	//first free block of each size class, the first word of a free block points to the next
+	private final long[] freeHeads = new long[MAX_SIZE_CLASSES];
+	private long usedLongs;
+
+	//values, ref = -(index)-2
+	private Object[] values = new Object[16];
+	private int[] freeValues = new int[16];
+	private int nFreeValues = 0;
+	private int nValueSlots = 0;
+
+	private int size = 0;
+	private final long[] keyBuffer;
+
+	/**
+	 * Create an off-heap tree with the default slab size.
+	 * @param dims number of dimensions
+	 */
+	public PhTree16OffHeap(int dims) {
+		this(dims, DEFAULT_SLAB_SHIFT);
+	}
+
+	/**
+	 * Create an off-heap tree.
+	 * @param dims number of dimensions
+	 * @param slabShift every slab holds 2^slabShift longs
+	 */
+	public PhTree16OffHeap(int dims, int slabShift) {
+		super(dims, new LongBuffer[0], slabShift);
+		if (dims < 1 || dims > 60) {
+			throw new IllegalArgumentException("dims=" + dims);
+		}
+		if (slabShift < 10 || slabShift > 27) {
+			throw new IllegalArgumentException("slabShift=" + slabShift);
+		}
+		this.slabShift = slabShift;
+		this.slabLongs = 1L << slabShift;
+		this.keyBuffer = new long[dims];
+		clear();
+	}
+
+	// *****************************************
+	// Slab allocation
+	// *****************************************
+
+	static int sizeClass(int nLongs) {
+		if (nLongs <= 64) {
+			return nLongs;
+		}
+		int log = 31 - Integer.numberOfLeadingZeros(nLongs - 1);
+		int k = (nLongs - 1 - (1 << log)) >>> (log - 2);
+		return 64 + (log - 6) * 4 + k + 1;
+	}
+
+	static int classSize(int sizeClass) {
+		if (sizeClass <= 64) {
+			return sizeClass;
+		}
+		int log = (sizeClass - 65) / 4 + 6;
+		int k = (sizeClass - 65) % 4;
+		return (1 << log) + ((k + 1) << (log - 2));
+	}
+
+	private long allocate(int sizeClass) {
+		long block = freeHeads[sizeClass];
+		int blockSize = classSize(sizeClass);
+		usedLongs += blockSize;
+		if (block != 0) {
+			freeHeads[sizeClass] = word(block);
+			return block;
+		}
+		if (blockSize > slabLongs) {
+			throw new IllegalStateException("Node too large for slab: " + blockSize + " longs");
+		}
+		if ((top & (slabLongs - 1)) + blockSize > slabLongs) {
+			//start a new slab, the rest of the current slab is wasted
+			top = (top | (slabLongs - 1)) + 1;
+		}
+		int slab = (int) (top >>> slabShift);
+		if (slab == longs.length) {
+			LongBuffer[] newLongs = Arrays.copyOf(longs, slab + 1);
+			newLongs[slab] = ByteBuffer.allocateDirect((int) (slabLongs * 8))
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+			longs = newLongs;
+		}
+		block = top;
+		top += blockSize;
+		return block;
+	}
+
+	private void free(long block, int sizeClass) {
+		usedLongs -= classSize(sizeClass);
+		setWord(block, freeHeads[sizeClass]);
+		freeHeads[sizeClass] = block;
+	}
+
+	private int nodeLongs(int capacity) {
+		return 1 + capacity * (dims + 2);
+	}
+
+	/**
+	 * Allocate a node. Its capacity is the number of entries that fit into the block of the 
+	 * size class, this is at least 'nEntries'.
+	 */
+	private long newNode(int postLen, int infixLen, int nEntries) {
+		int sizeClass = sizeClass(nodeLongs(nEntries));
+		long node = allocate(sizeClass);
+		setWord(node, header(postLen, infixLen, sizeClass, nEntries));
+		return node;
+	}
+
+	private void freeNode(long node) {
+		free(node, nodeSizeClass(node));
+	}
+
+	private void setInfixLen(long node, int infixLen) {
+		setWord(node, (word(node) & ~0xFF00L) | ((long) infixLen << 8));
+	}
+
+	private void setEntryCount(long node, int nEntries) {
+		setWord(node, (word(node) & 0xFFFFFFFFL) | ((long) nEntries << 32));
+	}
+
+	private void writeEntry(long node, int cap, int i, long hcPos, long[] key, long ref) {
+		setWord(node + 1 + i, hcPos);
+		long kdPos = kdPos(node, cap, i);
+		for (int d = 0; d < dims; d++) {
+			setWord(kdPos + d, key[d]);
+		}
+		setWord(refPos(node, cap, i), ref);
+	}
+
+	/**
+	 * Copy the entries [srcI, srcI+n) of 'src' to 'dst', starting at 'dstI'.
+	 */
+	private void copyEntries(long src, int srcCap, int srcI, long dst, int dstCap, int dstI, 
+			int n) {
+		copyWords(src + 1 + srcI, dst + 1 + dstI, n);
+		copyWords(kdPos(src, srcCap, srcI), kdPos(dst, dstCap, dstI), n * dims);
+		copyWords(refPos(src, srcCap, srcI), refPos(dst, dstCap, dstI), n);
+	}
+
+	/**
+	 * Copy words inside a slab. The ranges may overlap.
+	 */
+	private void copyWords(long src, long dst, int n) {
+		if (dst > src) {
+			for (int i = n - 1; i >= 0; i--) {
+				setWord(dst + i, word(src + i));
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				setWord(dst + i, word(src + i));
+			}
+		}
+	}
+
+	/**
+	 * Insert an entry at position 'i'. If the node is full, it is replaced with a larger copy.
+	 * @param slot the position of the reference to the node
+	 */
+	private void insertEntry(long slot, long node, int i, long hcPos, long[] key, long ref) {
+		int n = entryCount(node);
+		int cap = capacity(node);
+		if (n < cap) {
+			copyEntries(node, cap, i, node, cap, i + 1, n - i);
+			writeEntry(node, cap, i, hcPos, key, ref);
+			setEntryCount(node, n + 1);
+			return;
+		}
+		long newNode = newNode(postLen(node), infixLen(node), n + 1);
+		int newCap = capacity(newNode);
+		copyEntries(node, cap, 0, newNode, newCap, 0, i);
+		writeEntry(newNode, newCap, i, hcPos, key, ref);
+		copyEntries(node, cap, i, newNode, newCap, i + 1, n - i);
+		setWord(slot, newNode);
+		freeNode(node);
+	}
+
+	/**
+	 * Remove the entry at position 'i'. If the node is less than half full afterwards, it is
+	 * replaced with a smaller copy.
+	 * @param slot the position of the reference to the node
+	 */
+	private void removeEntry(long slot, long node, int i) {
+		int n = entryCount(node);
+		int cap = capacity(node);
+		if (n - 1 > cap / 2) {
+			copyEntries(node, cap, i + 1, node, cap, i, n - i - 1);
+			setEntryCount(node, n - 1);
+			return;
+		}
+		long newNode = newNode(postLen(node), infixLen(node), n - 1);
+		int newCap = capacity(newNode);
+		copyEntries(node, cap, 0, newNode, newCap, 0, i);
+		copyEntries(node, cap, i + 1, newNode, newCap, i, n - i - 1);
+		setWord(slot, newNode);
+		freeNode(node);
+	}
+
+	// *****************************************
+	// Values
+	// *****************************************
+
+	private long newValueRef(T value) {
+		if (value == null) {
+			return NULL_REF;
+		}
+		int i;
+		if (nFreeValues > 0) {
+			i = freeValues[--nFreeValues];
+		} else {
+			if (nValueSlots == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			i = nValueSlots++;
+		}
+		values[i] = value;
+		return -i - 2L;
+	}
+
+	private void freeValueRef(long ref) {
+		if (ref == NULL_REF) {
+			return;
+		}
+		int i = (int) (-ref - 2);
+		values[i] = null;
+		if (nFreeValues == freeValues.length) {
+			freeValues = Arrays.copyOf(freeValues, freeValues.length * 2);
+		}
+		freeValues[nFreeValues++] = i;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	T value(long ref) {
+		return ref == NULL_REF ? null : (T) values[(int) (-ref - 2)];
+	}
+
+	@Override
+	long root() {
+		return word(ROOT_SLOT);
+	}
+
+	@Override
+	long storageSize() {
+		return usedLongs * 8;
+	}
+
+	// *****************************************
+	// PhTree
+	// *****************************************
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the bits in which the key at 'kdPos' and 'key' differ, restricted to 'mask'
+	 */
+	private long diffBits(long kdPos, long[] key, long mask) {
+		long diff = 0;
+		for (int d = 0; d < dims; d++) {
+			diff |= (word(kdPos + d) ^ key[d]) & mask;
+		}
+		return diff;
+	}
+
+	@Override
+	public T put(long[] key, T value) {
+		checkKey(key);
+		long oldRef = putRef(key, newValueRef(value));
+		if (oldRef == NOT_FOUND) {
+			return null;
+		}
+		T old = value(oldRef);
+		freeValueRef(oldRef);
+		return old;
+	}
+
+	/**
+	 * Insert or replace an entry.
+	 * @param key the key
+	 * @param valueRef the value reference of the new entry
+	 * @return the previous value reference of the key (the caller must release it) or
+	 * {@link #NOT_FOUND}
+	 */
+	private long putRef(long[] key, long valueRef) {
+		long slot = ROOT_SLOT;
+		long node = word(slot);
+		if (node == 0) {
+			node = newNode(PhTree16.DEPTH_64 - 1, 0, 1);
+			writeEntry(node, capacity(node), 0, posInArray(key, PhTree16.DEPTH_64 - 1), key, 
+					valueRef);
+			setWord(slot, node);
+			size++;
+			return NOT_FOUND;
+		}
+		while (true) {
+			int n = entryCount(node);
+			int postLen = postLen(node);
+			long hcPos = posInArray(key, postLen);
+			int i = find(node, n, hcPos);
+			if (i >= n || hcPos(node, i) != hcPos) {
+				insertEntry(slot, node, i, hcPos, key, valueRef);
+				size++;
+				return NOT_FOUND;
+			}
+			int cap = capacity(node);
+			long kdPos = kdPos(node, cap, i);
+			long refPos = refPos(node, cap, i);
+			long ref = word(refPos);
+			long diff;
+			if (ref > 0) {
+				diff = diffBits(kdPos, key, (-1L) << (postLen(ref) + 1));
+				if (diff == 0) {
+					slot = refPos;
+					node = ref;
+					continue;
+				}
+			} else {
+				diff = diffBits(kdPos, key, -1L);
+				if (diff == 0) {
+					setWord(refPos, valueRef);
+					return ref;
+				}
+			}
+			//Conflict with a sub-node with different infix or with a different key:
+			//insert a new node that contains both
+			int newPostLen = 63 - Long.numberOfLeadingZeros(diff);
+			long sub = newNode(newPostLen, postLen - newPostLen - 1, 2);
+			readKey(kdPos, keyBuffer);
+			long hcOld = posInArray(keyBuffer, newPostLen);
+			long hcNew = posInArray(key, newPostLen);
+			int iOld = hcOld < hcNew ? 0 : 1;
+			int subCap = capacity(sub);
+			writeEntry(sub, subCap, iOld, hcOld, keyBuffer, ref);
+			writeEntry(sub, subCap, 1 - iOld, hcNew, key, valueRef);
+			if (ref > 0) {
+				setInfixLen(ref, newPostLen - postLen(ref) - 1);
+			}
+			//The kd-key of the entry remains valid, it has the same prefix as the new node
+			setWord(refPos, sub);
+			size++;
+			return NOT_FOUND;
+		}
+	}
+
+	@Override
+	public T remove(long... key) {
+		checkKey(key);
+		long oldRef = removeRef(key);
+		if (oldRef == NOT_FOUND) {
+			return null;
+		}
+		T old = value(oldRef);
+		freeValueRef(oldRef);
+		return old;
+	}
+
+	/**
+	 * Remove an entry.
+	 * @param key the key
+	 * @return the value reference of the entry (the caller must release it) or
+	 * {@link #NOT_FOUND}
+	 */
+	private long removeRef(long[] key) {
+		long slot = ROOT_SLOT;
+		long node = word(slot);
+		long parent = 0;
+		long parentKdPos = 0;
+		while (node != 0) {
+			int n = entryCount(node);
+			long hcPos = posInArray(key, postLen(node));
+			int i = find(node, n, hcPos);
+			if (i >= n || hcPos(node, i) != hcPos) {
+				return NOT_FOUND;
+			}
+			int cap = capacity(node);
+			long kdPos = kdPos(node, cap, i);
+			long refPos = refPos(node, cap, i);
+			long ref = word(refPos);
+			if (ref > 0) {
+				if (!matches(kdPos, key, (-1L) << (postLen(ref) + 1))) {
+					return NOT_FOUND;
+				}
+				parent = node;
+				parentKdPos = kdPos;
+				slot = refPos;
+				node = ref;
+				continue;
+			}
+			if (!matches(kdPos, key, -1L)) {
+				return NOT_FOUND;
+			}
+			size--;
+			if (parent == 0 && n == 1) {
+				freeNode(node);
+				setWord(slot, 0);
+			} else if (parent == 0 || n > 2) {
+				removeEntry(slot, node, i);
+			} else {
+				//The node has only one entry left, move it into the parent
+				int j = 1 - i;
+				long kdPos2 = kdPos(node, cap, j);
+				for (int d = 0; d < dims; d++) {
+					setWord(parentKdPos + d, word(kdPos2 + d));
+				}
+				long ref2 = ref(node, cap, j);
+				if (ref2 > 0) {
+					setInfixLen(ref2, postLen(parent) - postLen(ref2) - 1);
+				}
+				setWord(slot, ref2);
+				freeNode(node);
+			}
+			return ref;
+		}
+		return NOT_FOUND;
+	}
+
+	@Override
+	public T update(long[] oldKey, long[] newKey) {
+		checkKey(newKey);
+		if (!contains(oldKey)) {
+			return null;
+		}
+		T value = remove(oldKey);
+		put(newKey, value);
+		return value;
+	}
+
+	@Override
+	public T putIfAbsent(long[] key, T value) {
+		long ref = lookup(key);
+		if (ref != NOT_FOUND) {
+			return value(ref);
+		}
+		put(key, value);
+		return null;
+	}
+
+	@Override
+	public boolean remove(long[] key, T value) {
+		long ref = lookup(key);
+		if (ref == NOT_FOUND || !Objects.equals(value(ref), value)) {
+			return false;
+		}
+		remove(key);
+		return true;
+	}
+
+	@Override
+	public boolean replace(long[] key, T oldValue, T newValue) {
+		long ref = lookup(key);
+		if (ref == NOT_FOUND || !Objects.equals(value(ref), oldValue)) {
+			return false;
+		}
+		put(key, newValue);
+		return true;
+	}
+
+	@Override
+	public T replace(long[] key, T value) {
+		return lookup(key) == NOT_FOUND ? null : put(key, value);
+	}
+
+	@Override
+	public T computeIfAbsent(long[] key, Function<long[], ? extends T> mappingFunction) {
+		long ref = lookup(key);
+		if (ref != NOT_FOUND) {
+			return value(ref);
+		}
+		T newValue = mappingFunction.apply(key);
+		if (newValue != null) {
+			put(key, newValue);
+		}
+		return newValue;
+	}
+
+	@Override
+	public T computeIfPresent(long[] key,
+			BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		long ref = lookup(key);
+		if (ref == NOT_FOUND) {
+			return null;
+		}
+		return computeValue(key, value(ref), remappingFunction);
+	}
+
+	@Override
+	public T compute(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		long ref = lookup(key);
+		if (ref == NOT_FOUND) {
+			T newValue = remappingFunction.apply(key, null);
+			if (newValue != null) {
+				put(key, newValue);
+			}
+			return newValue;
+		}
+		return computeValue(key, value(ref), remappingFunction);
+	}
+
+	private T computeValue(long[] key, T oldValue,
+			BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		T newValue = remappingFunction.apply(key, oldValue);
+		if (newValue == null) {
+			remove(key);
+		} else {
+			put(key, newValue);
+		}
+		return newValue;
+	}
+
+	/**
+	 * Remove all entries and release all slabs.
+	 */
+	@Override
+	public void clear() {
+		longs = new LongBuffer[0];
+		Arrays.fill(freeHeads, 0);
+		top = 0;
+		//reserve offset 0 ('no node') and the root pointer
+		allocate(sizeClass(2));
+		setWord(ROOT_SLOT, 0);
+		usedLongs = 0;
+		values = new Object[16];
+		nFreeValues = 0;
+		nValueSlots = 0;
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " dims=" + dims + " size=" + size +
+				" slabs=" + longs.length;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeSet;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * A {@link PhTreeSet} based on {@link PhTree16}.
+ * <p>
+ * All entries share the same value object, so there is no object per entry.
+ *
+ * @author ztilmann
+ */
+public class PhTree16Set implements PhTreeSet {
+
+	private static final Object PRESENT = new Object();
+
+	private final PhTree16<Object> tree;
+
+	/**
+	 * Create a set.
+	 * @param dims number of dimensions
+	 */
+	public PhTree16Set(int dims) {
+		this.tree = new PhTree16<>(dims);
+	}
+
+	@Override
+	public int size() {
+		return tree.size();
+	}
+
+	@Override
+	public int getDim() {
+		return tree.getDim();
+	}
+
+	@Override
+	public PhTreeStats getStats() {
+		return tree.getStats();
+	}
+
+	@Override
+	public boolean add(long... key) {
+		checkKey(key);
+		return tree.put(key, PRESENT) == null;
+	}
+
+	@Override
+	public boolean contains(long... key) {
+		checkKey(key);
+		return tree.contains(key);
+	}
+
+	@Override
+	public boolean remove(long... key) {
+		checkKey(key);
+		return tree.remove(key) != null;
+	}
+
+	@Override
+	public boolean update(long[] oldKey, long[] newKey) {
+		checkKey(oldKey);
+		checkKey(newKey);
+		return tree.update(oldKey, newKey) != null;
+	}
+
+	@Override
+	public PhIteratorSet queryExtent() {
+		return new WindowIterator(tree.queryExtent());
+	}
+
+	@Override
+	public PhIteratorSet query(long[] min, long[] max) {
+		return new WindowIterator(tree.query(min, max));
+	}
+
+	@Override
+	public PhIteratorSet nearestNeighbour(int nMin, long... key) {
+		checkKey(key);
+		return new KnnIterator(tree.nearestNeighbour(nMin, key));
+	}
+
+	@Override
+	public void clear() {
+		tree.clear();
+	}
+
+	@Override
+	public String toStringTree() {
+		return tree.toStringTree();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " dims=" + getDim() + " size=" + size();
+	}
+
+	private void checkKey(long[] key) {
+		if (key.length != tree.getDim()) {
+			throw new IllegalArgumentException("key.length=" + key.length + " dims=" + tree.getDim());
+		}
+	}
+
+	private static final class WindowIterator implements PhIteratorSet {
+
+		private final PhIterator<Object> iter;
+
+		WindowIterator(PhIterator<Object> iter) {
+			this.iter = iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public long[] nextKey() {
+			return iter.nextKey();
+		}
+
+		@Override
+		public void nextKey(long[] key) {
+			System.arraycopy(iter.nextEntryReuse().getKey(), 0, key, 0, key.length);
+		}
+	}
+
+	private static final class KnnIterator implements PhIteratorSet {
+
+		private final PhKnnQuery<Object> iter;
+
+		KnnIterator(PhKnnQuery<Object> iter) {
+			this.iter = iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public long[] nextKey() {
+			return iter.nextKey();
+		}
+
+		@Override
+		public void nextKey(long[] key) {
+			System.arraycopy(iter.nextEntryReuse().getKey(), 0, key, 0, key.length);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ch.ethz.globis.phtree.PhValueCodec;
+
+/**
+ * A read-only {@link PhTree16} that is memory-mapped from a snapshot file,
+ * see {@link PhTree16#writeSnapshot(Path, PhValueCodec)}.
+ * <p>
+ * Opening a snapshot only maps the file, queries read the nodes directly from the mapped
+ * memory. Only the values of results are decoded. Several processes that open the same
+ * file share the memory of the OS page cache.
+ * Snapshots are immutable, so they can be read concurrently by any number of threads.
+ * All write operations throw {@link UnsupportedOperationException}.
+ * <p>
+ * File format (little endian, all offsets are aligned to 8 bytes):
+ * <pre>
+ * Header: MAGIC, VERSION, dims, size, root, 3 x unused
+ * Node:   see {@link PhTree16Flat}, followed by the values of the node, encoded with a 
+ *         PhValueCodec and padded to 8 bytes. A value reference is
+ *         -(offset of the value in bytes)-2.
+ * </pre>
+ * The root is the offset of the root node in longs, or 0 if the tree is empty.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public final class PhTree16Snapshot<T> extends PhTree16Flat<T> {
+
+	static final long MAGIC = 0x50485431365350L;
+	static final long VERSION = 1;
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final int HEADER_LONGS = 8;
+	static final int H_MAGIC = 0;
+	static final int H_VERSION = 1;
+	static final int H_DIMS = 2;
+	static final int H_SIZE = 3;
+	static final int H_ROOT = 4;
+
+	//The file is mapped in chunks of 1 GiB (2^27 longs)
+	private static final int CHUNK_SHIFT = 27;
+	private static final long CHUNK_BYTES = 8L << CHUNK_SHIFT;
+
+	private final Path path;
+	private final ByteBuffer[] bytes;
+	private final long fileSize;
+	private final PhValueCodec<T> codec;
+	private final int size;
+	private final long root;
+
+	private PhTree16Snapshot(Path path, ByteBuffer[] bytes, long fileSize, PhValueCodec<T> codec)
+			throws IOException {
+		super(fileSize < HEADER_LONGS * 8 ? 0 : (int) bytes[0].getLong(H_DIMS * 8), 
+				longBuffers(bytes), CHUNK_SHIFT);
+		this.path = path;
+		this.bytes = bytes;
+		this.fileSize = fileSize;
+		this.codec = codec;
+		if (fileSize < HEADER_LONGS * 8 || word(H_MAGIC) != MAGIC) {
+			throw new IOException("Not a PH-Tree snapshot: " + path);
+		}
+		if (word(H_VERSION) != VERSION) {
+			throw new IOException("Unsupported snapshot version " + word(H_VERSION) + ": " + path);
+		}
+		this.size = (int) word(H_SIZE);
+		this.root = word(H_ROOT);
+	}
+
+	private static LongBuffer[] longBuffers(ByteBuffer[] bytes) {
+		LongBuffer[] longs = new LongBuffer[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			longs[i] = bytes[i].asLongBuffer();
+		}
+		return longs;
+	}
+
+	/**
+	 * Open a snapshot file.
+	 * @param path the file
+	 * @param codec the value codec, this must be the codec that was used for writing the file
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if the file cannot be mapped or is not a snapshot
+	 */
+	public static <T> PhTree16Snapshot<T> open(Path path, PhValueCodec<T> codec) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			ByteBuffer[] bytes = new ByteBuffer[(int) ((fileSize + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+			for (int i = 0; i < bytes.length; i++) {
+				long start = i * CHUNK_BYTES;
+				bytes[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(CHUNK_BYTES, fileSize - start)).order(ORDER);
+			}
+			//The mapping remains valid after the channel is closed
+			return new PhTree16Snapshot<>(path, bytes, fileSize, codec);
+		}
+	}
+
+	static long valueRef(long bytePos) {
+		return -bytePos - 2;
+	}
+
+	@Override
+	long root() {
+		return root;
+	}
+
+	@Override
+	long storageSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @param ref a value reference
+	 * @return the decoded value
+	 */
+	@Override
+	T value(long ref) {
+		if (ref == NULL_REF) {
+			return null;
+		}
+		try {
+			return codec.read(new DataInputStream(new MappedInputStream(-ref - 2)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private class MappedInputStream extends InputStream {
+		private long pos;
+
+		MappedInputStream(long pos) {
+			this.pos = pos;
+		}
+
+		@Override
+		public int read() {
+			if (pos >= fileSize) {
+				return -1;
+			}
+			int b = bytes[(int) (pos / CHUNK_BYTES)].get((int) (pos % CHUNK_BYTES)) & 0xFF;
+			pos++;
+			return b;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " file=" + path;
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("Snapshots are read-only");
+	}
+
+	@Override
+	public T put(long[] key, T value) {
+		throw readOnly();
+	}
+
+	@Override
+	public T remove(long... key) {
+		throw readOnly();
+	}
+
+	@Override
+	public T update(long[] oldKey, long[] newKey) {
+		throw readOnly();
+	}
+
+	@Override
+	public void clear() {
+		throw readOnly();
+	}
+}
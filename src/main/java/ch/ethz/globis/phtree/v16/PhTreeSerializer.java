@@ -0,0 +1,385 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.pre.PreProcessorPointF;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Serializes the node structure of a {@link PhTree16} to a stream.
+ * <p>
+ * Only the bits that are not implied by the position of a node are written: for every
+ * entry, the hc-position, the infix of sub-nodes and the postfix of values, bit-packed per
+ * node. Values are written with a {@link PhValueCodec}.
+ * Reading creates every node directly with its entries, see {@link BulkLoader}.
+ * <p>
+ * Trees of other types (or {@link PhTreeF} based on them) are first copied into a
+ * {@code PhTree16} with {@link PhTree#bulkLoad(Iterator)}. Trees with more than 60
+ * dimensions are not supported.
+ * <p>
+ * Format:
+ * <pre>
+ * MAGIC (int), VERSION (byte), dims (int), hasRoot (boolean), root node
+ * Node: nEntries (varint), length of bit block (varint), bit block, values, sub-nodes
+ * Bit block: for every entry: hcPos (dims bits), isSubNode (1 bit),
+ *            sub-node: postLen (6 bits), infix (infixLen bits per dimension)
+ *            value: isNull (1 bit), postfix (postLen bits per dimension)
+ * </pre>
+ * The streams are not buffered by the serializer, for example use a
+ * {@code DataOutputStream} with a {@code BufferedOutputStream}.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public final class PhTreeSerializer<T> {
+
+	private static final int MAGIC = 0x50485453;
+	private static final int VERSION = 1;
+
+	private final PhValueCodec<T> codec;
+	//Bit block of the current node
+	private byte[] block = new byte[256];
+	private int blockBytes;
+	private long bitBuffer;
+	private int nBits;
+
+	/**
+	 * @param codec the codec for the values
+	 */
+	public PhTreeSerializer(PhValueCodec<T> codec) {
+		this.codec = codec;
+	}
+
+	// *****************************************
+	// Writing
+	// *****************************************
+
+	/**
+	 * Write a tree.
+	 * @param tree the tree
+	 * @param out the output
+	 * @throws IOException if writing fails
+	 */
+	public void write(PhTree<T> tree, DataOutput out) throws IOException {
+		PhTree16<T> t16 = tree instanceof PhTree16 ? (PhTree16<T>) tree : copy(tree);
+		int dims = t16.getDim();
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(dims);
+		//read root only once, it may change concurrently (COW)
+		Node root = t16.getRoot();
+		out.writeBoolean(root != null);
+		if (root != null) {
+			writeNode(root, dims, out);
+		}
+	}
+
+	/**
+	 * Write a tree. The preprocessor is not written.
+	 * @param tree the tree
+	 * @param out the output
+	 * @throws IOException if writing fails
+	 */
+	public void write(PhTreeF<T> tree, DataOutput out) throws IOException {
+		write(tree.getInternalTree(), out);
+	}
+
+	private static <T> PhTree16<T> copy(PhTree<T> tree) {
+		if (tree.getDim() > 60) {
+			throw new UnsupportedOperationException("dims=" + tree.getDim());
+		}
+		PhTree16<T> copy = new PhTree16<>(tree.getDim());
+		PhExtent<T> extent = tree.queryExtent();
+		copy.bulkLoad(new Iterator<PhEntry<T>>() {
+			@Override
+			public boolean hasNext() {
+				return extent.hasNext();
+			}
+
+			@Override
+			public PhEntry<T> next() {
+				return extent.nextEntry();
+			}
+		});
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeNode(Node node, int dims, DataOutput out) throws IOException {
+		int postLen = node.getPostLen();
+		int n = node.getEntryCount();
+		Object[] values = new Object[n];
+		blockBytes = 0;
+		bitBuffer = 0;
+		nBits = 0;
+		BSTIteratorAll iter = node.iterator();
+		int i = 0;
+		while (iter.hasNextEntry()) {
+			BSTEntry e = iter.nextEntry();
+			Object v = e.getValue();
+			long[] key = e.getKdKey();
+			values[i++] = v;
+			writeBits(e.getKey(), dims);
+			if (v instanceof Node) {
+				int subPostLen = ((Node) v).getPostLen();
+				writeBits(1, 1);
+				writeBits(subPostLen, 6);
+				writeKeyBits(key, postLen - 1, subPostLen + 1);
+			} else {
+				writeBits(0, 1);
+				writeBits(v == PhTreeHelper.NULL ? 1 : 0, 1);
+				writeKeyBits(key, postLen - 1, 0);
+			}
+		}
+		if (i != n) {
+			throw new IllegalStateException("entryCount=" + n + " found=" + i);
+		}
+		if (nBits > 0) {
+			putByte((byte) (bitBuffer << (8 - nBits)));
+		}
+		writeVarInt(n, out);
+		writeVarInt(blockBytes, out);
+		out.write(block, 0, blockBytes);
+		for (Object v : values) {
+			if (!(v instanceof Node) && v != PhTreeHelper.NULL) {
+				codec.write((T) v, out);
+			}
+		}
+		for (Object v : values) {
+			if (v instanceof Node) {
+				writeNode((Node) v, dims, out);
+			}
+		}
+	}
+
+	/**
+	 * Write the bits 'high' to 'low' (inclusive) of every dimension.
+	 */
+	private void writeKeyBits(long[] key, int high, int low) {
+		int len = high - low + 1;
+		if (len <= 0) {
+			return;
+		}
+		long mask = len == 64 ? -1L : (1L << len) - 1;
+		for (long k : key) {
+			writeBits((k >>> low) & mask, len);
+		}
+	}
+
+	private void writeBits(long bits, int len) {
+		while (len > 0) {
+			int n = Math.min(len, 8 - nBits);
+			len -= n;
+			bitBuffer = (bitBuffer << n) | ((bits >>> len) & ((1L << n) - 1));
+			nBits += n;
+			if (nBits == 8) {
+				putByte((byte) bitBuffer);
+				bitBuffer = 0;
+				nBits = 0;
+			}
+		}
+	}
+
+	private void putByte(byte b) {
+		if (blockBytes == block.length) {
+			block = Arrays.copyOf(block, block.length * 2);
+		}
+		block[blockBytes++] = b;
+	}
+
+	private static void writeVarInt(int v, DataOutput out) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	// *****************************************
+	// Reading
+	// *****************************************
+
+	/**
+	 * Read a tree.
+	 * @param in the input
+	 * @return a new tree
+	 * @throws IOException if reading fails or if the input contains no tree
+	 */
+	public PhTree16<T> read(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a serialized PH-Tree");
+		}
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version: " + version);
+		}
+		int dims = in.readInt();
+		PhTree16<T> tree = new PhTree16<>(dims);
+		if (in.readBoolean()) {
+			long[] firstKey = new long[dims];
+			Node root = readNode(in, tree, 0, PhTree16.DEPTH_64 - 1, new long[dims], firstKey);
+			tree.setRoot(root, root.getSubtreeEntryCount());
+		}
+		return tree;
+	}
+
+	/**
+	 * Read a tree.
+	 * @param in the input
+	 * @return a new tree with the default preprocessor
+	 * @throws IOException if reading fails or if the input contains no tree
+	 */
+	public PhTreeF<T> readF(DataInput in) throws IOException {
+		return PhTreeF.wrap(read(in));
+	}
+
+	/**
+	 * Read a tree.
+	 * @param in the input
+	 * @param pre the preprocessor, this must be the preprocessor of the written tree
+	 * @return a new tree
+	 * @throws IOException if reading fails or if the input contains no tree
+	 */
+	public PhTreeF<T> readF(DataInput in, PreProcessorPointF pre) throws IOException {
+		return PhTreeF.wrap(read(in), pre);
+	}
+
+	/**
+	 * @param prefix Key with the bits above 'postLen' of the node
+	 * @param firstKey Returns the key of the first entry in the subtree
+	 */
+	private Node readNode(DataInput in, PhTree16<T> tree, int infixLen, int postLen,
+			long[] prefix, long[] firstKey) throws IOException {
+		int dims = prefix.length;
+		int n = readVarInt(in);
+		int len = readVarInt(in);
+		if (block.length < len) {
+			block = new byte[Math.max(len, block.length * 2)];
+		}
+		in.readFully(block, 0, len);
+		blockBytes = 0;
+		nBits = 0;
+
+		long maskPrefix = postLen == 63 ? 0 : (-1L) << (postLen + 1);
+		BSTEntry[] entries = new BSTEntry[n];
+		int[] subPostLens = new int[n];
+		for (int i = 0; i < n; i++) {
+			long hcPos = readBits(dims);
+			boolean isSubNode = readBits(1) != 0;
+			long[] key = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				key[d] = (prefix[d] & maskPrefix) | (((hcPos >>> (dims - 1 - d)) & 1L) << postLen);
+			}
+			Object value;
+			if (isSubNode) {
+				int subPostLen = (int) readBits(6);
+				readKeyBits(key, postLen - 1, subPostLen + 1);
+				subPostLens[i] = subPostLen;
+				value = null;
+			} else {
+				subPostLens[i] = -1;
+				value = readBits(1) != 0 ? PhTreeHelper.NULL : null;
+				readKeyBits(key, postLen - 1, 0);
+			}
+			BSTEntry e = tree.bstPool().getEntry();
+			e.set(hcPos, key, value);
+			entries[i] = e;
+		}
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			if (subPostLens[i] < 0) {
+				if (entries[i].getValue() == null) {
+					entries[i].setValue(codec.read(in));
+				}
+				size++;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			BSTEntry e = entries[i];
+			if (subPostLens[i] >= 0) {
+				int subPostLen = subPostLens[i];
+				long[] subFirst = new long[dims];
+				Node sub = readNode(in, tree, postLen - subPostLen - 1, subPostLen,
+						e.getKdKey(), subFirst);
+				//Like BulkLoader, sub-nodes use the key of an entry
+				e.set(e.getKey(), subFirst, sub);
+				size += sub.getSubtreeEntryCount();
+			}
+		}
+		if (n > 0) {
+			System.arraycopy(entries[0].getKdKey(), 0, firstKey, 0, dims);
+		}
+		Node node = Node.createNode(dims, infixLen, postLen, n > 0 ? firstKey : null, tree);
+		node.bstBulkLoad(entries, 0, n, tree);
+		node.setSubtreeEntryCount(size);
+		return node;
+	}
+
+	/**
+	 * Read the bits 'high' to 'low' (inclusive) of every dimension.
+	 */
+	private void readKeyBits(long[] key, int high, int low) {
+		int len = high - low + 1;
+		if (len <= 0) {
+			return;
+		}
+		for (int d = 0; d < key.length; d++) {
+			key[d] |= readBits(len) << low;
+		}
+	}
+
+	private long readBits(int len) {
+		long result = 0;
+		while (len > 0) {
+			if (nBits == 0) {
+				bitBuffer = block[blockBytes++] & 0xFF;
+				nBits = 8;
+			}
+			int n = Math.min(len, nBits);
+			nBits -= n;
+			result = (result << n) | ((bitBuffer >>> nBits) & ((1L << n) - 1));
+			len -= n;
+		}
+		return result;
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+	}
+}
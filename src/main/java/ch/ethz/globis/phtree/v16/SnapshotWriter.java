@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.v16.PhTree16Snapshot.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Writes a {@link PhTree16} in the snapshot format of {@link PhTree16Snapshot}.
+ * <p>
+ * Nodes are written depth-first, sub-nodes before their parent node, so that the file is
+ * written sequentially and the parent knows the offsets of its sub-nodes.
+ * The root node is written last, its offset is stored in the file header.
+ *
+ * @author ztilmann
+ */
+final class SnapshotWriter {
+
+	private final FileChannel channel;
+	private final PhValueCodec<Object> codec;
+	private final int dims;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ORDER);
+	//Position in the file in bytes
+	private long pos = 0;
+	//Number of entries written
+	private int size = 0;
+	//Value bytes of the current node
+	private final ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+	private final DataOutputStream valueOut = new DataOutputStream(valueBytes);
+
+	@SuppressWarnings("unchecked")
+	private SnapshotWriter(FileChannel channel, PhValueCodec<?> codec, int dims) {
+		this.channel = channel;
+		this.codec = (PhValueCodec<Object>) codec;
+		this.dims = dims;
+	}
+
+	/**
+	 * Write a snapshot of a tree.
+	 * @param tree the tree
+	 * @param root the root node or 'null'
+	 * @param path the file, an existing file is overwritten
+	 * @param codec the value codec
+	 * @throws IOException if writing fails
+	 */
+	static void write(PhTree16<?> tree, Node root, Path path, PhValueCodec<?> codec)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			SnapshotWriter w = new SnapshotWriter(channel, codec, tree.getDim());
+			for (int i = 0; i < HEADER_LONGS; i++) {
+				w.putLong(0);
+			}
+			long rootRef = root == null ? 0 : w.writeNode(root);
+			w.flushBuffer();
+			//header
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LONGS * 8).order(ORDER);
+			header.putLong(H_MAGIC * 8, MAGIC);
+			header.putLong(H_VERSION * 8, VERSION);
+			header.putLong(H_DIMS * 8, tree.getDim());
+			header.putLong(H_SIZE * 8, w.size);
+			header.putLong(H_ROOT * 8, rootRef);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * @return the offset (in longs) of the node
+	 */
+	private long writeNode(Node node) throws IOException {
+		int n = node.getEntryCount();
+		long[] hcPos = new long[n];
+		long[][] kdKeys = new long[n][];
+		long[] refs = new long[n];
+		Object[] values = new Object[n];
+		BSTIteratorAll iter = node.iterator();
+		int i = 0;
+		while (iter.hasNextEntry()) {
+			BSTEntry e = iter.nextEntry();
+			hcPos[i] = e.getKey();
+			kdKeys[i] = e.getKdKey().clone();
+			values[i] = e.getValue();
+			if (e.getValue() instanceof Node) {
+				refs[i] = writeNode((Node) e.getValue());
+			}
+			i++;
+		}
+		if (i != n) {
+			throw new IllegalStateException("entryCount=" + n + " found=" + i);
+		}
+
+		//The value bytes follow the refs
+		long nodePos = pos / 8;
+		long valuePos = pos + 8L * (1 + n + (long) n * dims + n);
+		valueBytes.reset();
+		for (i = 0; i < n; i++) {
+			Object v = values[i];
+			if (v instanceof Node) {
+				continue;
+			}
+			size++;
+			if (v == PhTreeHelper.NULL) {
+				refs[i] = NULL_REF;
+			} else {
+				refs[i] = valueRef(valuePos + valueBytes.size());
+				codec.write(v, valueOut);
+			}
+		}
+
+		putLong(header(node.getPostLen(), node.getInfixLen(), n));
+		for (i = 0; i < n; i++) {
+			putLong(hcPos[i]);
+		}
+		for (i = 0; i < n; i++) {
+			for (long k : kdKeys[i]) {
+				putLong(k);
+			}
+		}
+		for (i = 0; i < n; i++) {
+			putLong(refs[i]);
+		}
+		byte[] bytes = valueBytes.toByteArray();
+		for (byte b : bytes) {
+			putByte(b);
+		}
+		//align to 8 bytes
+		while ((pos & 7) != 0) {
+			putByte((byte) 0);
+		}
+		return nodePos;
+	}
+
+	private void putLong(long l) throws IOException {
+		if (buffer.remaining() < 8) {
+			flushBuffer();
+		}
+		buffer.putLong(l);
+		pos += 8;
+	}
+
+	private void putByte(byte b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flushBuffer();
+		}
+		buffer.put(b);
+		pos++;
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -11,6 +11,9 @@ import java.util.NoSuchElementException;
 import ch.ethz.globis.phtree.v16.Node.BSTEntry;
 
 /**
+ * Iterator over all entries of a node.
+ * The returned entry and its kd-key are reused, they are valid until the next call to
+ * {@link #nextEntry()}. 
  * 
  * @author Tilmann Zaeschke
  *
@@ -20,7 +23,9 @@ public class BSTIteratorAll {
 
 	private BSTreePage currentPage;
 	private int currentPos;
-	private BSTEntry nextValue;
+	private BSTreePage nextPage;
+	private int nextPos;
+	private final BSTEntry entry = new BSTEntry();
 	
 	public BSTIteratorAll() {
 		//nothing
@@ -60,8 +65,14 @@ public class BSTIteratorAll {
 				currentPos = 0;
 				continue;
 			}
+			if (currentPage.isHC() && currentPage.getValues()[currentPos] == null) {
+				//empty slot of a hypercube page
+				currentPos++;
+				continue;
+			}
 
-			nextValue = currentPage.getValues()[currentPos];
+			nextPage = currentPage;
+			nextPos = currentPos;
 			currentPos++;
 			return;
 		}
@@ -77,9 +88,10 @@ public class BSTIteratorAll {
 			throw new NoSuchElementException();
 		}
 
-        BSTEntry ret = nextValue;
+		BSTreePage page = nextPage;
+		int pos = nextPos;
 		findNext();
-		return ret;
+		return page.readEntry(pos, entry);
 	}
 
 }
\ No newline at end of file
@@ -9,8 +9,12 @@ package ch.ethz.globis.phtree.v16.bst;
 import java.util.NoSuchElementException;
 
 import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.PhTree16;
 
 /**
+ * Iterator over all entries of a node whose hc-position matches the masks.
+ * The returned entry and its kd-key are reused, they are valid until the next call to
+ * {@link #nextEntry()}. 
  * 
  * @author Tilmann Zaeschke
  *
@@ -21,7 +25,9 @@ public class BSTIteratorMask {
 	private int currentPos = 0;
 	private long minMask;
 	private long maxMask;
-	private BSTEntry nextValue;
+	private BSTreePage nextPage;
+	private int nextPos;
+	private final BSTEntry entry = new BSTEntry();
  	
 	public BSTIteratorMask() {
 		//nothing
@@ -43,7 +49,8 @@ public class BSTIteratorMask {
 			if (page != null) {
 				currentPos = page.binarySearch(key);
 				if (currentPos >= 0) {
-					nextValue = page.getValues()[currentPos];
+					nextPage = page;
+					nextPos = currentPos;
 					//This is a hack: We assign this to indicate whether there is a value.
 					currentPage = page;
 				} else {
@@ -57,6 +64,10 @@ public class BSTIteratorMask {
 		}
 		
 		if (findFirstLeafPage()) {
+			if (currentPage.isHC()) {
+				//start with the lowest matching hc-position, if any
+				currentPos = check(minMask) ? (int) minMask : -1;
+			}
 			findNext();
 		}
 
@@ -79,13 +90,18 @@ public class BSTIteratorMask {
 	}
 	
 	private void findNext() {
+		if (currentPage != null && currentPage.isHC()) {
+			findNextHC();
+			return;
+		}
 		while (currentPage != null) {
 		    int nKeys = currentPage.getNKeys();
 		    long[] keys = currentPage.getKeys();
 		    while (currentPos < nKeys) {
 				long key = keys[currentPos]; 
 		        if (check(key)) {
-					nextValue = currentPage.getValues()[currentPos];
+					nextPage = currentPage;
+					nextPos = currentPos;
 			        currentPos++;
 		            return;
 				} else if (key > maxMask) {
@@ -100,6 +116,29 @@ public class BSTIteratorMask {
 	}
 	
 
+	/**
+	 * Hypercube pages: 'currentPos' is the next matching hc-position, or -1 or 
+	 * Integer.MAX_VALUE (see reset()) if there is none. The matching hc-positions are 
+	 * enumerated with {@link PhTree16#inc(long, long, long)}, without looking at the other slots.
+	 */
+	private void findNextHC() {
+		Object[] values = currentPage.getValues();
+		int pos = currentPos;
+		while (pos >= 0 && pos < values.length) {
+			long next = PhTree16.inc(pos, minMask, maxMask);
+			//inc() overflows to minMask after the last matching position
+			int nextHC = next <= pos ? -1 : (int) next;
+			if (values[pos] != null) {
+				nextPage = currentPage;
+				nextPos = pos;
+				currentPos = nextHC;
+				return;
+			}
+			pos = nextHC;
+		}
+		currentPage = null;
+	}
+
 	public boolean hasNextEntry() {
 		return currentPage != null;
 	}
@@ -109,9 +148,10 @@ public class BSTIteratorMask {
 			throw new NoSuchElementException();
 		}
 
-        BSTEntry ret = nextValue;
+		BSTreePage page = nextPage;
+		int pos = nextPos;
 		findNext();
-		return ret;
+		return page.readEntry(pos, entry);
 	}
 
 	public void adjustMinMax(long maskLower, long maskUpper) {
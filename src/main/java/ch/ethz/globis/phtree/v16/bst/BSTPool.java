@@ -27,7 +27,7 @@ import ch.ethz.globis.phtree.v16.PhTree16;
 
 public class BSTPool {
 
-    private final ObjectArrayPool<BSTEntry> entryArrayPool = ObjectArrayPool.create(n -> new BSTEntry[n]);
+    private final ObjectArrayPool<Object> valueArrayPool = ObjectArrayPool.create(n -> new Object[n]);
     private final LongArrayPool keyPool = LongArrayPool.create();
 	private final ObjectArrayPool<BSTreePage> pageArrayPool = ObjectArrayPool.create(n -> new BSTreePage[n]);
 	private final ObjectPool<BSTreePage> pagePool = ObjectPool.create(null);
@@ -46,8 +46,8 @@ public class BSTPool {
      * @param newSize size
      * @return New array.
      */
-    public BSTEntry[] arrayCreateEntries(int newSize) {
-    	return entryArrayPool.getArray(newSize);
+    public Object[] arrayCreateValues(int newSize) {
+    	return valueArrayPool.getArray(newSize);
 	}
 
     /**
@@ -56,10 +56,10 @@ public class BSTPool {
      * @param newSize size
      * @return New array larger array.
      */
-    public BSTEntry[] arrayExpand(BSTEntry[] oldA, int newSize) {
-    	BSTEntry[] newA = entryArrayPool.getArray(newSize);
+    public Object[] arrayExpand(Object[] oldA, int newSize) {
+    	Object[] newA = valueArrayPool.getArray(newSize);
     	System.arraycopy(oldA, 0, newA, 0, oldA.length);
-    	entryArrayPool.offer(oldA);
+    	valueArrayPool.offer(oldA);
     	return newA;
 	}
 
@@ -87,6 +87,20 @@ public class BSTPool {
     	return newA;
 	}
 
+    /**
+     * Shrink an array.
+     * @param oldA old array
+     * @param newSize size
+     * @param nCopy number of elements to copy
+     * @return New smaller array.
+     */
+    public long[] arrayTrim(long[] oldA, int newSize, int nCopy) {
+    	long[] newA = keyPool.getArray(newSize);
+    	System.arraycopy(oldA, 0, newA, 0, nCopy);
+    	keyPool.offer(oldA);
+    	return newA;
+	}
+
 	
 	/**
      * Create an array.
@@ -112,10 +126,13 @@ public class BSTPool {
 
 	
 	public void reportFreeNode(BSTreePage p) {
-		keyPool.offer(p.getKeys());
+		if (!p.isHC()) {
+			keyPool.offer(p.getKeys());
+		}
 		if (p.isLeaf()) {
 			p.updateNeighborsRemove();
-			entryArrayPool.offer(p.getValues());
+			valueArrayPool.offer(p.getValues());
+			keyPool.offer(p.getPost());
 		} else {
 			pageArrayPool.offer(p.getSubPages());
 		}
@@ -123,11 +140,19 @@ public class BSTPool {
 		pagePool.offer(p);
 	}
 
+	/**
+	 * Return the key array of a page that becomes a hypercube page.
+	 * @param keys key array
+	 */
+	void reportFreeKeys(long[] keys) {
+		keyPool.offer(keys);
+	}
+
 	public BSTreePage getNode(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor,
 							  PhTree16<?> tree) {
 		BSTreePage p = pagePool.get();
 		if (p != null) {
-			p.init(ind, parent, isLeaf, leftPredecessor);
+			p.init(ind, parent, isLeaf, leftPredecessor, tree);
 			return p;
 		}
 		return new BSTreePage(ind, parent, isLeaf, leftPredecessor, tree);
@@ -136,9 +161,4 @@ public class BSTPool {
 	public BSTEntry getEntry() {
     	return entryPool.get();
 	}
-
-	void offerEntry(BSTEntry entry) {
-    	entry.set(0, null, null);
-    	entryPool.offer(entry);
-	}
 }
@@ -23,6 +23,7 @@ import java.util.function.BiFunction;
 
 import ch.ethz.globis.phtree.PhTreeHelper;
 import ch.ethz.globis.phtree.util.StringBuilderLn;
+import ch.ethz.globis.phtree.util.VolatileRefs;
 import ch.ethz.globis.phtree.v16.Node;
 import ch.ethz.globis.phtree.v16.Node.BSTEntry;
 import ch.ethz.globis.phtree.v16.Node.BSTStats;
@@ -30,43 +31,84 @@ import ch.ethz.globis.phtree.v16.Node.REMOVE_OP;
 import ch.ethz.globis.phtree.v16.PhTree16;
 
 
+/**
+ * Page of the BST of a {@link Node}.
+ * <p>
+ * Leaf pages store the entries of the node in three parallel arrays: the hc-positions in
+ * {@code keys}, the values (T or Node) in {@code values} and the postfixes of the kd-keys 
+ * in {@code post}. The postfixes are bit-packed, every entry uses {@code dims*postLen} bits,
+ * rounded up to whole longs. With whole longs per entry, entries are moved with 
+ * {@code System.arraycopy()} instead of bit shifting.
+ * The bits above the postfix are the same for all entries of a node, they are reconstructed
+ * from the hc-position and the prefix of the node, see {@link #getKdKey(int, long[])}.
+ * <p>
+ * Dense nodes (see {@code Node.isDense()}) have a single hypercube page instead of a BST.
+ * A hypercube page is a direct-address array: {@code values} and {@code post} are indexed 
+ * by hc-position, empty slots have the value {@code null} and there is no {@code keys} array.
+ * This corresponds to the AHC representation in PhTree13.
+ * <p>
+ * Trees with long values (see {@link PhTree16#hasLongValues()}) store {@code Long} values as
+ * an additional long after the postfix of each entry. The {@code values} array contains the
+ * marker {@link #LONG_VALUE} instead, the marker is never returned from a page.
+ */
 public class BSTreePage {
 
 	private static final int INITIAL_PAGE_SIZE = 4;
+	//Marker for values that are stored in 'post', see hasLongValues().
+	private static final Object LONG_VALUE = new Object();
 	
 	private BSTreePage parent;
 	private long[] keys;
-	private BSTEntry[] values;
+	private Object[] values;
+	/** Leaf pages: bit-packed postfixes of the kd-keys, 'entryWords' longs per entry. */
+	private long[] post;
 	/** number of keys. There are nEntries+1 subPages in any leaf page. */
 	private int nEntries;
 
 	private boolean isLeaf;
+	//Hypercube page: 'nEntries' is the number of slots (2^dims), 'keys' is null.
+	private boolean isHC;
+	//Values of type Long are stored in the last word of each entry in 'post'.
+	private boolean longValues;
 	private BSTreePage[] subPages;
 	private BSTreePage prevLeaf;
 	private BSTreePage nextLeaf;
-	private final PhTree16<?> tree;
+	//The tree is set in init(), because pages are pooled and may be reused by other trees.
+	private PhTree16<?> tree;
+	//Copied from the owner in init(): postfix length, longs per entry and prefix.
+	//Both lengths are <= 64, they are bytes to keep the page small.
+	private byte postLen;
+	private byte entryWords;
+	private long[] prefix;
 
 
 	BSTreePage(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor, PhTree16<?> tree) {
-	    this.tree = tree;
-		init(ind, parent, isLeaf, leftPredecessor);
+		init(ind, parent, isLeaf, leftPredecessor, tree);
 	}
 	
-	void init(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor) {
+	void init(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor, PhTree16<?> tree) {
+		this.tree = tree;
 		nextLeaf = null;
 		prevLeaf = null;
 		this.parent = parent;
+		this.postLen = (byte) ind.getPostLen();
+		this.longValues = tree.hasLongValues();
+		this.entryWords = (byte) (((tree.getDim() * postLen + 63) >>> 6) + (longValues ? 1 : 0));
+		this.prefix = ind.getPrefix();
+		this.isHC = false;
 		if (isLeaf) {
 			nEntries = 0;
 			int initialPageSize = ind.maxLeafN() <= 8 ? 2 : INITIAL_PAGE_SIZE;
 			keys = tree.bstPool().arrayCreateLong(initialPageSize);
-			values = tree.bstPool().arrayCreateEntries(initialPageSize);
+			values = tree.bstPool().arrayCreateValues(initialPageSize);
+			post = tree.bstPool().arrayCreateLong(postSize(initialPageSize));
 			subPages = null;
 			Node.statNLeaves++;
 		} else {
 			nEntries = -1;
 			keys = tree.bstPool().arrayCreateLong(ind.maxInnerN());
 			values = null;
+			post = null;
 			subPages = tree.bstPool().arrayCreateNodes(ind.maxInnerN() + 1);
 			Node.statNInner++;
 		}
@@ -86,17 +128,29 @@ public class BSTreePage {
 		}
 	}
 
-	public void init(BSTEntry e1, BSTEntry e2) {
+	/**
+	 * Initialize an empty leaf page with two entries.
+	 * The first entry must have the lower hc-position.
+	 * @param key1 hc-position of the first entry
+	 * @param kdKey1 kd-key of the first entry
+	 * @param value1 value of the first entry
+	 * @param key2 hc-position of the second entry
+	 * @param kdKey2 kd-key of the second entry
+	 * @param value2 value of the second entry
+	 */
+	public void init(long key1, long[] kdKey1, Object value1, long key2, long[] kdKey2, Object value2) {
 		if (!isLeaf) {
 			throw new IllegalStateException();
 		}
 		if (nEntries > 0) {
 			throw new IllegalStateException("nEntries=" + nEntries);
 		}
-		values[0] = e1;
-		keys[0] = e1.getKey();
-		values[1] = e2;
-		keys[1] = e2.getKey();
+		keys[0] = key1;
+		values[0] = encodeValue(0, value1);
+		setKdKey(0, kdKey1);
+		keys[1] = key2;
+		values[1] = encodeValue(1, value2);
+		setKdKey(1, kdKey2);
 		nEntries = 2;
 	}
 
@@ -118,6 +172,327 @@ public class BSTreePage {
 		return p;
 	}
 
+	/**
+	 * Bulk loading: Creates the pages for entries that are sorted by their key.
+	 * The entries are distributed evenly over the minimum number of leaf pages, there are no
+	 * page splits. If there is more than one leaf, the leaves are allocated with full capacity,
+	 * like pages that result from a split, because merging requires space on the previous page.
+	 * The entries are only read, the pages do not keep any reference to them or their kd-keys.
+	 * @param ind The owner of the pages
+	 * @param emptyRoot The current (empty) root page of the owner, it is reused as first leaf
+	 * @param entries The entries
+	 * @param from Position of the first entry
+	 * @param n Number of entries
+	 * @param tree The tree
+	 * @return The new root page.
+	 */
+	public static BSTreePage bulkLoad(Node ind, BSTreePage emptyRoot, BSTEntry[] entries, int from, int n,
+			PhTree16<?> tree) {
+		if (ind.isDense()) {
+			emptyRoot.fillHC(entries, from, n);
+			return emptyRoot;
+		}
+		//Leaves, the entries are distributed evenly
+		int nPages = (n + ind.maxLeafN() - 1) / ind.maxLeafN();
+		if (nPages <= 1) {
+			emptyRoot.fill(entries, from, n);
+			return emptyRoot;
+		}
+		BSTreePage[] pages = new BSTreePage[nPages];
+		BSTreePage prev = null;
+		int pos = from;
+		for (int i = 0; i < nPages; i++) {
+			int size = (int) ((long) n * (i + 1) / nPages - (long) n * i / nPages);
+			BSTreePage p = i == 0 ? emptyRoot : create(ind, null, true, prev, tree);
+			p.ensureSize(ind.maxLeafN(), 0);
+			p.fill(entries, pos, size);
+			pos += size;
+			pages[i] = p;
+			prev = p;
+		}
+
+		//Inner pages
+		int maxSubPages = ind.maxInnerN() + 1;
+		while (nPages > 1) {
+			int nParents = (nPages + maxSubPages - 1) / maxSubPages;
+			int k = 0;
+			for (int i = 0; i < nParents; i++) {
+				int size = nPages * (i + 1) / nParents - nPages * i / nParents;
+				BSTreePage p = create(ind, null, false, null, tree);
+				for (int j = 0; j < size; j++) {
+					BSTreePage sub = pages[k++];
+					if (j > 0) {
+						p.keys[j - 1] = sub.getMinKey();
+					}
+					p.subPages[j] = sub;
+					sub.setParent(p);
+				}
+				p.nEntries = size - 1;
+				pages[i] = p;
+			}
+			nPages = nParents;
+		}
+		return pages[0];
+	}
+
+	/**
+	 * Turns an empty leaf page into a hypercube page.
+	 */
+	private void fillHC(BSTEntry[] entries, int from, int n) {
+		int nSlots = 1 << tree.getDim();
+		tree.bstPool().reportFreeKeys(keys);
+		keys = null;
+		values = tree.bstPool().arrayExpand(values, nSlots);
+		post = tree.bstPool().arrayExpand(post, postSize(nSlots));
+		isHC = true;
+		for (int i = 0; i < n; i++) {
+			BSTEntry e = entries[from + i];
+			int pos = (int) e.getKey();
+			values[pos] = encodeValue(pos, e.getValue());
+			setKdKey(pos, e.getKdKey());
+		}
+		nEntries = nSlots;
+	}
+
+	private void fill(BSTEntry[] entries, int from, int n) {
+		ensureSize(n);
+		for (int i = 0; i < n; i++) {
+			BSTEntry e = entries[from + i];
+			keys[i] = e.getKey();
+			values[i] = encodeValue(i, e.getValue());
+			setKdKey(i, e.getKdKey());
+		}
+		nEntries = n;
+	}
+
+	/**
+	 * Creates a deep copy of this page and all its sub-pages. The keys and postfixes are copied, 
+	 * the values are shared with the original.
+	 * This is used for copy-on-write, see {@link Node#copy(PhTree16)}.
+	 * @param ind The owner of the copy
+	 * @param parent The parent of the copy
+	 * @param lastLeaf Holder for the last leaf page that has been copied so far. It is used to 
+	 * link the copied leaf pages. It is updated with the last leaf page that was copied by this call.
+	 * @return The copy.
+	 */
+	public BSTreePage copy(Node ind, BSTreePage parent, BSTreePage[] lastLeaf) {
+		BSTreePage p = create(ind, parent, isLeaf, lastLeaf[0], tree);
+		if (isHC) {
+			tree.bstPool().reportFreeKeys(p.keys);
+			p.keys = null;
+			p.values = tree.bstPool().arrayExpand(p.values, values.length);
+			p.post = tree.bstPool().arrayExpand(p.post, post.length);
+			System.arraycopy(values, 0, p.values, 0, values.length);
+			System.arraycopy(post, 0, p.post, 0, post.length);
+			p.isHC = true;
+		} else if (isLeaf) {
+			p.ensureSize(keys.length, postCapacity(nEntries));
+			copyEntries(this, 0, p, 0, nEntries);
+			lastLeaf[0] = p;
+		} else {
+			if (nEntries > 0) {
+				System.arraycopy(keys, 0, p.keys, 0, nEntries);
+			}
+			for (int i = 0; i <= nEntries; i++) {
+				p.subPages[i] = subPages[i].copy(ind, p, lastLeaf);
+			}
+		}
+		p.nEntries = nEntries;
+		return p;
+	}
+
+	private int postSize(int nEntries) {
+		return nEntries * entryWords;
+	}
+
+	/**
+	 * An entry of 'post' is much larger than an entry of 'keys' or 'values', so unused
+	 * capacity is expensive. 'post' grows by 25% instead of doubling.
+	 * @param nEntries number of entries
+	 * @return capacity of 'post' (in entries) for at least one more entry
+	 */
+	private static int postCapacity(int nEntries) {
+		return nEntries + 1 + (nEntries >> 2);
+	}
+
+	/**
+	 * Copy entries from a leaf page to a different leaf page, or to a lower position on the 
+	 * same page.
+	 */
+	private static void copyEntries(BSTreePage src, int srcPos, BSTreePage trg, int trgPos, int n) {
+		System.arraycopy(src.keys, srcPos, trg.keys, trgPos, n);
+		System.arraycopy(src.values, srcPos, trg.values, trgPos, n);
+		int w = src.entryWords;
+		System.arraycopy(src.post, srcPos * w, trg.post, trgPos * w, n * w);
+	}
+
+	/**
+	 * Stores a Long value in 'post' if the tree has long values.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param value The value (T or Node) of the entry
+	 * @return The object for the 'values' array.
+	 */
+	private Object encodeValue(int pos, Object value) {
+		if (longValues && value instanceof Long) {
+			post[pos * entryWords + entryWords - 1] = (Long) value;
+			return LONG_VALUE;
+		}
+		return value;
+	}
+
+	/**
+	 * @param pos position of the entry on this (leaf) page
+	 * @param value The object from the 'values' array
+	 * @return The value (T or Node) of the entry.
+	 */
+	private Object decodeValue(int pos, Object value) {
+		if (value == LONG_VALUE) {
+			return post[pos * entryWords + entryWords - 1];
+		}
+		return value;
+	}
+
+	/**
+	 * @param pos position of the entry on this (leaf) page
+	 * @return The value (T or Node) of the entry.
+	 */
+	public Object getValue(int pos) {
+		return decodeValue(pos, VolatileRefs.getAcquire(values, pos));
+	}
+
+	/**
+	 * Replaces the value with a release store, so lock-free readers see a complete sub-node.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param value The new value (T or Node) of the entry.
+	 */
+	public void setValue(int pos, Object value) {
+		VolatileRefs.setRelease(values, pos, encodeValue(pos, value));
+	}
+
+	/**
+	 * @param pos position of the entry on this (leaf) page
+	 * @return The hc-position of the entry.
+	 */
+	public long getKey(int pos) {
+		return isHC ? pos : keys[pos];
+	}
+
+	/**
+	 * Read an entry into a reusable {@link BSTEntry}.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param entry The entry, its kd-key array is reused if it has the correct size
+	 * @return the entry
+	 */
+	BSTEntry readEntry(int pos, BSTEntry entry) {
+		long[] kdKey = entry.getKdKey();
+		if (kdKey == null || kdKey.length != tree.getDim()) {
+			kdKey = new long[tree.getDim()];
+		}
+		entry.set(getKey(pos), getKdKey(pos, kdKey), getValue(pos));
+		return entry;
+	}
+
+	/**
+	 * Reconstructs the kd-key of an entry from the prefix of the node, the hc-position and
+	 * the stored postfix.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param kdKey The array for the kd-key
+	 * @return the kd-key
+	 */
+	public long[] getKdKey(int pos, long[] kdKey) {
+		final long hcPos = getKey(pos);
+		final int dims = kdKey.length;
+		final long maskPrefix = postLen == 63 ? 0 : (-1L) << (postLen + 1);
+		final long maskPost = ~((-1L) << postLen);
+		//Read the postfixes word by word, 'avail' bits of 'word' have not been read yet
+		int wPos = pos * entryWords;
+		long word = 0;
+		int avail = 0;
+		for (int d = 0; d < dims; d++) {
+			long hcBit = ((hcPos >>> (dims - 1 - d)) & 1L) << postLen;
+			long p;
+			if (postLen <= avail) {
+				avail -= postLen;
+				p = (word >>> avail) & maskPost;
+			} else {
+				//Remaining bits of this word plus leading bits of the next word
+				int need = postLen - avail;
+				p = (word & ~((-1L) << avail)) << need;
+				word = post[wPos++];
+				avail = 64 - need;
+				p |= word >>> avail;
+			}
+			kdKey[d] = (prefix[d] & maskPrefix) | hcBit | p;
+		}
+		return kdKey;
+	}
+
+	/**
+	 * Stores the postfix of a kd-key. The bits above the postfix are ignored, they must
+	 * match the prefix of the node and the hc-position of the entry.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param kdKey the kd-key
+	 */
+	public void setKdKey(int pos, long[] kdKey) {
+		if (postLen == 0) {
+			return;
+		}
+		final long maskPost = ~((-1L) << postLen);
+		//Write the postfixes word by word, 'free' bits of 'word' are not used yet
+		int wPos = pos * entryWords;
+		long word = 0;
+		int free = 64;
+		for (int d = 0; d < kdKey.length; d++) {
+			long p = kdKey[d] & maskPost;
+			if (postLen < free) {
+				free -= postLen;
+				word |= p << free;
+			} else {
+				//Fill this word, the remaining bits go into the next word
+				int spill = postLen - free;
+				post[wPos++] = word | (p >>> spill);
+				free = 64 - spill;
+				word = spill == 0 ? 0 : p << free;
+			}
+		}
+		if (free < 64) {
+			post[wPos] = word;
+		}
+	}
+
+	/**
+	 * Compares the postfix of an entry with a kd-key. Only bits of the postfix are compared,
+	 * the other bits of the key are expected to match the prefix and the hc-position.
+	 * @param pos position of the entry on this (leaf) page
+	 * @param kdKey the kd-key
+	 * @param mask bits to consider (1) and to ignore (0)
+	 * @return the position of the most significant conflicting bit (starting with 1) or
+	 * 0 in case of no conflicts.
+	 */
+	public int calcConflictingBits(int pos, long[] kdKey, long mask) {
+		final long maskPost = ~((-1L) << postLen);
+		int wPos = pos * entryWords;
+		long word = 0;
+		int avail = 0;
+		long diff = 0;
+		for (int d = 0; d < kdKey.length; d++) {
+			long p;
+			if (postLen <= avail) {
+				avail -= postLen;
+				p = (word >>> avail) & maskPost;
+			} else {
+				int need = postLen - avail;
+				p = (word & ~((-1L) << avail)) << need;
+				word = post[wPos++];
+				avail = 64 - need;
+				p |= word >>> avail;
+			}
+			diff |= p ^ kdKey[d];
+		}
+		//postLen is always < 64
+		return Long.SIZE - Long.numberOfLeadingZeros(diff & mask & maskPost);
+	}
+
 	private int maxInnerN() {
 		return keys.length;
 	}
@@ -137,12 +512,12 @@ public class BSTreePage {
         return subPages[pos]; 
 	}
 	
-	public BSTEntry findAndRemove(long key, long[] kdKey, Node node, PhTree16.UpdateInfo ui) {
+	public Object findAndRemove(long key, long[] kdKey, Node node, PhTree16.UpdateInfo ui) {
 		//The stored value[i] is the min-values of the according page[i+1} 
         int pos = binarySearchInnerNode(key);
         //read page before that value
         BSTreePage page = subPages[pos]; 
-        BSTEntry result;
+        Object result;
         if (page.isLeaf()) {
         	result = page.remove(key, kdKey, node, ui);
             checkUnderflowSubpageLeaf(pos, node);
@@ -154,30 +529,10 @@ public class BSTreePage {
 	}
 
 
-	public Object getOrCreate(long key, Node ind) {
-		//The stored value[i] is the min-values of the according page[i+1} 
-        int pos = binarySearchInnerNode(key);
-        //read page before that value
-        BSTreePage page = getPageByPos(pos);
-        if (page.isLeaf()) {
-    		BSTEntry o = page.getOrCreate(key, this, pos, ind);
-    		if (o.getKdKey() == null && o.getValue() instanceof BSTreePage) {
-    			//add page
-    			BSTreePage newPage = (BSTreePage) o.getValue();
-    			addSubPage(newPage, newPage.getMinKey(), pos, ind);
-    			o.setValue(null);
-    			return o;
-    		}
-    		return o;
-        }
-        return page;
-	}
-	
-
-	public BSTEntry getValueFromLeaf(long key) {
+	public Object getValueFromLeaf(long key) {
 		int pos = binarySearch(key);
 		if (pos >= 0) {
-            return values[pos];
+            return getValue(pos);
 		}
 		//If the value could is not on this page, it does not exist.
 		return null;
@@ -215,16 +570,41 @@ public class BSTreePage {
 
 	/**
 	 * Binary search.
+	 * <p>
+	 * The keys are unique, so the position of a key cannot be larger than its distance to the 
+	 * first key, and the distance to the last position cannot be larger than the distance to the 
+	 * last key. This limits the search to the 'gaps' in the keys. Dense pages (see 
+	 * {@code Node.isDense()}) have few gaps, full pages need no search.
 	 * 
 	 * @param key search key
+	 * @return The position of the key or {@code -(insertion point + 1)}.
 	 */
-	int binarySearch(long key) {
+	public int binarySearch(long key) {
+		if (isHC) {
+			int pos = (int) key;
+			return values[pos] != null ? pos : -(pos + 1);
+		}
 		if (nEntries <=8) {
 			return linearSearch(key);
 		}
 		long[] keys = this.keys;
 		int low = 0;
 		int high = nEntries - 1;
+		if (key < keys[0]) {
+			return -1;
+		}
+		if (key > keys[nEntries - 1]) {
+			return -(nEntries + 1);
+		}
+		//With 64 dimensions the distances may overflow, they are negative in this case
+		long distFirst = key - keys[0];
+		if (distFirst >= 0 && distFirst < high) {
+			high = (int) distFirst;
+		}
+		long distLast = keys[nEntries - 1] - key;
+		if (distLast >= 0 && distLast < nEntries - 1) {
+			low = nEntries - 1 - (int) distLast;
+		}
 
 		while (low <= high) {
 			int mid = (low + high) >>> 1;
@@ -251,11 +631,12 @@ public class BSTreePage {
 		return -(nEntries+1);  // key not found.
 	}
 
-	private void putUnchecked(int pos, long key, BSTEntry value, Node ind) {
+	private void putUnchecked(int pos, long key, long[] kdKey, Object value, Node ind) {
         //okay so we add it locally
         shiftArrayForInsertion(pos, ind);
         keys[pos] = key;
-        values[pos] = value;
+        values[pos] = encodeValue(pos, value);
+        setKdKey(pos, kdKey);
         nEntries++;
         ind.incEntryCount();
  	}
@@ -266,55 +647,91 @@ public class BSTreePage {
 		if (pos < nEntries) {
 			System.arraycopy(keys, pos, keys, pos+1, nEntries-pos);
 			System.arraycopy(values, pos, values, pos+1, nEntries-pos);
+			System.arraycopy(post, pos*entryWords, post, (pos+1)*entryWords, 
+					(nEntries-pos)*entryWords);
+		}
+	}
+
+	private void removeEntry(int pos) {
+		if (isHC) {
+			values[pos] = null;
+			return;
 		}
+		System.arraycopy(keys, pos+1, keys, pos, nEntries-pos-1);
+		System.arraycopy(values, pos+1, values, pos, nEntries-pos-1);
+		System.arraycopy(post, (pos+1)*entryWords, post, pos*entryWords, 
+				(nEntries-pos-1)*entryWords);
+		nEntries--;
+		values[nEntries] = null;
 	}
 	
 	private void ensureSizePlusOne(Node ind) {
 		if (nEntries + 1 > keys.length) {
 			int newLen = keys.length*2 > ind.maxLeafN() ? ind.maxLeafN() : keys.length*2;
-			keys = tree.bstPool().arrayExpand(keys, newLen);
-			values = tree.bstPool().arrayExpand(values, newLen);
+			ensureSize(newLen, 0);
+		}
+		if (postSize(nEntries + 1) > post.length) {
+			int n = postCapacity(nEntries);
+			ensureSize(0, n > ind.maxLeafN() ? ind.maxLeafN() : n);
 		}
 	}
 
 	private void ensureSize(int newLen) {
+		ensureSize(newLen, newLen);
+	}
+
+	/**
+	 * @param newLen new capacity of 'keys' and 'values'
+	 * @param newPostN new capacity of 'post' in entries
+	 */
+	private void ensureSize(int newLen, int newPostN) {
 		if (newLen > keys.length) {
 			keys = tree.bstPool().arrayExpand(keys, newLen);
 			values = tree.bstPool().arrayExpand(values, newLen);
 		}
+		if (postSize(newPostN) > post.length) {
+			post = tree.bstPool().arrayExpand(post, postSize(newPostN));
+		}
+	}
+
+	/**
+	 * Reduces the capacity of 'post' after entries have been moved to another page.
+	 */
+	private void trimPost() {
+		int n = postCapacity(nEntries);
+		if (postSize(n) < post.length) {
+			post = tree.bstPool().arrayTrim(post, postSize(n), postSize(nEntries));
+		}
 	}
 
-	public final BSTEntry getOrCreate(long key, BSTreePage parent, int posPageInParent, Node ind) {
+	/**
+	 * Insert a new entry into this leaf page. If the page is full, entries are moved to a 
+	 * neighbouring page or to a new page. A new page is added to the parent page, or, if this 
+	 * is the root page, a new root page is created.
+	 * @param key hc-position
+	 * @param pos (negative) result of the binary search for the key on this page
+	 * @param kdKey kd-key
+	 * @param value value
+	 * @param posPageInParent position of this page in the parent page
+	 * @param ind The owner of the page
+	 */
+	public void insert(long key, int pos, long[] kdKey, Object value, int posPageInParent, Node ind) {
 		if (!isLeaf) {
 			throw new IllegalStateException("Tree inconsistency.");
 		}
 
-		//in any case, check whether the key(+value) already exists
-        int pos = binarySearch(key);
-        //key found? -> pos >=0
-        if (pos >= 0) {
-        	return values[pos];
-        }
-		return create(key, pos, parent, posPageInParent, ind);
-	}
+		if (isHC) {
+			pos = -(pos+1);
+			values[pos] = encodeValue(pos, value);
+			setKdKey(pos, kdKey);
+			ind.incEntryCount();
+			return;
+		}
 
-	private BSTEntry create(long key, int pos, BSTreePage parent, int posPageInParent, Node ind) {
-		BSTEntry value = tree.bstPool().getEntry();
-		value.set(key, null, null);
-        
         if (nEntries < ind.maxLeafN()) {
         	//okay so we add it locally
-        	pos = -(pos+1);
-    		this.ensureSizePlusOne(ind);
-        	if (pos < nEntries) {
-        		System.arraycopy(keys, pos, keys, pos+1, nEntries-pos);
-        		System.arraycopy(values, pos, values, pos+1, nEntries-pos);
-        	}
-        	keys[pos] = key;
-        	values[pos] = value;
-        	nEntries++;
-        	ind.incEntryCount();
-        	return value;
+        	putUnchecked(-(pos+1), key, kdKey, value, ind);
+        	return;
         } 
 
         //treat page overflow
@@ -351,55 +768,59 @@ public class BSTreePage {
 	        }
         }
 
-        //Ensure all nodes have full capacity
-   		this.ensureSize(ind.maxLeafN());
-   		destP.ensureSize(ind.maxLeafN());
-
         //We move 50% of data. For bulkloading, we could keep 95% or so in old page. 100%? But there is no bulk loading.
         int nEntriesToKeep = (nEntries + destP.nEntries) >> 1;
        	int nEntriesToCopy = nEntries - nEntriesToKeep;
+
+        //Ensure all nodes have full capacity, except for the postfixes
+   		this.ensureSize(ind.maxLeafN(), 0);
+   		destP.ensureSize(ind.maxLeafN(), 
+   				Math.min(postCapacity(destP.nEntries + nEntriesToCopy), ind.maxLeafN()));
        	if (isNew) {
        		//works only if new page follows current page
-       		System.arraycopy(keys, nEntriesToKeep, destP.keys, 0, nEntriesToCopy);
-       		System.arraycopy(values, nEntriesToKeep, destP.values, 0, nEntriesToCopy);
+       		copyEntries(this, nEntriesToKeep, destP, 0, nEntriesToCopy);
        	} else if (isPrev) {
        		//copy element to previous page
-       		System.arraycopy(keys, 0, destP.keys, destP.nEntries, nEntriesToCopy);
-       		System.arraycopy(values, 0, destP.values, destP.nEntries, nEntriesToCopy);
+       		copyEntries(this, 0, destP, destP.nEntries, nEntriesToCopy);
        		//move element forward to beginning of page
-       		System.arraycopy(keys, nEntriesToCopy, keys, 0, nEntries-nEntriesToCopy);
-       		System.arraycopy(values, nEntriesToCopy, values, 0, nEntries-nEntriesToCopy);
+       		copyEntries(this, nEntriesToCopy, this, 0, nEntries-nEntriesToCopy);
        	} else {
        		//make space on next page
        		System.arraycopy(destP.keys, 0, destP.keys, nEntriesToCopy, destP.nEntries);
        		System.arraycopy(destP.values, 0, destP.values, nEntriesToCopy, destP.nEntries);
+       		System.arraycopy(destP.post, 0, destP.post, nEntriesToCopy*entryWords, 
+       				destP.nEntries*entryWords);
        		//insert element in next page
-       		System.arraycopy(keys, nEntriesToKeep, destP.keys, 0, nEntriesToCopy);
-       		System.arraycopy(values, nEntriesToKeep, destP.values, 0, nEntriesToCopy);
+       		copyEntries(this, nEntriesToKeep, destP, 0, nEntriesToCopy);
        	}
+       	//The entries that were moved away must not be referenced from this page
+       	Arrays.fill(values, nEntries-nEntriesToCopy, nEntries, null);
         pos = -(pos+1);
        	int oldNEntriesP = destP.nEntries;
        	nEntries = (short) nEntriesToKeep;
        	destP.nEntries = (short) (nEntriesToCopy + destP.nEntries);
+       	trimPost();
        	//New page and min key
        	if (isNew || !isPrev) {
        		if (destP.keys[0] > key) {
-       			putUnchecked(pos, key, value, ind);
+       			putUnchecked(pos, key, kdKey, value, ind);
        		} else {
-       			destP.putUnchecked(pos - nEntriesToKeep, key, value, ind);
+       			destP.putUnchecked(pos - nEntriesToKeep, key, kdKey, value, ind);
        		}
        	} else {
        		if (keys[0] > key) {
-       			destP.putUnchecked(pos + oldNEntriesP, key, value, ind);
+       			destP.putUnchecked(pos + oldNEntriesP, key, kdKey, value, ind);
        		} else {
-      			putUnchecked(pos - nEntriesToCopy, key, value, ind);
+      			putUnchecked(pos - nEntriesToCopy, key, kdKey, value, ind);
        		}
        	}
        	if (isNew) {
        		//own key remains unchanged
-       		//Hack: we return the new page as value of BSEntry
-       		value.setValue(destP);
-       		return value;
+   			if (parent != null) {
+   				parent.addSubPage(destP, destP.getMinKey(), posPageInParent, ind);
+   			} else {
+   				ind.bstSetRoot(create(ind, null, this, destP, tree));
+   			}
        	} else {
        		//change own key in parent?
        		if (isPrev) {
@@ -409,7 +830,6 @@ public class BSTreePage {
        			//change key of 'next' page
     			parent.updateKey(destP.getMinKey(), posPageInParent-1+1);
        		}
-       		return value;
        	}
 	}
 
@@ -517,7 +937,7 @@ public class BSTreePage {
 		if (isLeaf) {
 			System.out.println(indent + "Leaf page: nK=" + nEntries + " keys=" + 
 					Arrays.toString(keys));
-			System.out.println(indent + "                         " + Arrays.toString(values));
+			System.out.println(indent + "                         " + entriesToString());
 		} else {
 			System.out.println(indent + "Inner page: nK=" + nEntries + " keys=" + 
 					Arrays.toString(keys));
@@ -538,7 +958,7 @@ public class BSTreePage {
 		if (isLeaf) {
 			sb.appendLn(indent + "Leaf page: nK=" + nEntries + " keys=" + 
 					Arrays.toString(keys));
-			sb.appendLn(indent + "                         " + Arrays.toString(values));
+			sb.appendLn(indent + "                         " + entriesToString());
 		} else {
 			sb.appendLn(indent + "Inner page: nK=" + nEntries + " keys=" + 
 					Arrays.toString(keys));
@@ -560,7 +980,7 @@ public class BSTreePage {
 		if (isLeaf) {
 			System.out.println("Leaf page: nK=" + nEntries + " oids=" + 
 					Arrays.toString(keys));
-			System.out.println("                         " + Arrays.toString(values));
+			System.out.println("                         " + entriesToString());
 		} else {
 			System.out.println("Inner page: nK=" + nEntries + " oids=" + 
 					Arrays.toString(keys));
@@ -568,12 +988,27 @@ public class BSTreePage {
 		}
 	}
 
+	private String entriesToString() {
+		StringBuilder sb = new StringBuilder("[");
+		long[] kdKey = new long[tree.getDim()];
+		for (int i = 0; i < nEntries; i++) {
+			if (isHC && values[i] == null) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(Arrays.toString(getKdKey(i, kdKey))).append("->").append(decodeValue(i, values[i]));
+		}
+		return sb.append(']').toString();
+	}
+
 	public int getNKeys() {
 		return nEntries;
 	}
 	
 
-	public BSTEntry remove(long key, long[] kdKey, Node node, PhTree16.UpdateInfo ui) {
+	public Object remove(long key, long[] kdKey, Node node, PhTree16.UpdateInfo ui) {
 		int i = binarySearch(key);
 		if (i < 0) {
 			//key not found
@@ -581,13 +1016,11 @@ public class BSTreePage {
 		}
 
 		// first remove the element
-		BSTEntry prevValue = values[i];
-		REMOVE_OP op = node.bstInternalRemoveCallback(prevValue, kdKey, ui);
+		Object prevValue = decodeValue(i, values[i]);
+		REMOVE_OP op = node.bstInternalRemoveCallback(this, i, kdKey, ui);
 		switch (op) {
 			case REMOVE_RETURN:
-				System.arraycopy(keys, i+1, keys, i, nEntries-i-1);
-				System.arraycopy(values, i+1, values, i, nEntries-i-1);
-				nEntries--;
+				removeEntry(i);
 				node.decEntryCount();
 				return prevValue;
 			case KEEP_RETURN:
@@ -608,16 +1041,15 @@ public class BSTreePage {
 			if (doIfAbsent) {
 				T newValue = mappingFunction.apply(kdKey, null);
 				if (newValue != null) {
-					BSTEntry e = addForCompute(key, pos, posInParent, node);
-					e.set(key, kdKey, newValue);
+					Node.incEntryCountTree(tree);
+					insert(key, pos, kdKey, newValue, posInParent, node);
 					return newValue;
 				}
 			}
 			return null;
 		}
 
-		BSTEntry currentEntry = values[pos];
-		Object currentValue = currentEntry.getValue();
+		Object currentValue = decodeValue(pos, values[pos]);
 		if (currentValue instanceof Node) {
 			if (((Node) currentValue).getInfixLen() == 0) {
 				//Shortcut that avoid MCB calculation: No infix conflict, just traverse the subnode (=currentValue)
@@ -625,22 +1057,20 @@ public class BSTreePage {
 			}
 		}
 
-		long[] localKdKey = currentEntry.getKdKey();
-        int maxConflictingBits = Node.calcConflictingBits(kdKey, localKdKey);
+        int maxConflictingBits = calcConflictingBits(pos, kdKey, -1L);
         if (maxConflictingBits == 0) {
             if (currentValue instanceof Node) {
                 //return entry with subnode
                 return currentValue;
             }
-            T newValue = mappingFunction.apply(kdKey, PhTreeHelper.unmaskNull(currentEntry.getValue()));
+            T newValue = mappingFunction.apply(kdKey, PhTreeHelper.unmaskNull(currentValue));
             if (newValue == null) {
                 //remove
                 removeForCompute(key, pos, posInParent, node);
-                tree.bstPool().offerEntry(currentEntry);
                 return null;
             } else {
                 //replace (cannot be null)
-                currentEntry.setValue(newValue);
+                values[pos] = encodeValue(pos, newValue);
             }
             return newValue;
         }
@@ -658,7 +1088,7 @@ public class BSTreePage {
             //If the kdKey differs, we have to split, insert a newSubNode and return null.
 			T newValue = mappingFunction.apply(kdKey, null);
 			if (newValue != null) {
-				insertSplit(currentEntry, kdKey, newValue, tree, maxConflictingBits, node);
+				insertSplit(pos, kdKey, newValue, maxConflictingBits, node);
 				return newValue;
 			}
 			return null;
@@ -667,28 +1097,8 @@ public class BSTreePage {
         return null;
 	}
 
-	private BSTEntry addForCompute(long key, int pos, int posPageInParent, Node node) {
-		BSTEntry o = create(key, pos, parent, posPageInParent, node);
-		Node.incEntryCountTree(tree);
-		if (o.getKdKey() == null && o.getValue() instanceof BSTreePage) {
-			//add page
-			BSTreePage newPage = (BSTreePage) o.getValue();
-			if (parent != null) {
-				parent.addSubPage(newPage, newPage.getMinKey(), posPageInParent, node);
-			} else {
-				node.bstSetRoot( create(node, null, this, newPage, tree) );
-			}
-			o.setValue(null);
-			return o;
-		}
-		return o;
-	}
-
 	private void removeForCompute(long key, int pos, int posPageInParent, Node node) {
-		int i = pos;
-		System.arraycopy(keys, i+1, keys, i, nEntries-i-1);
-		System.arraycopy(values, i+1, values, i, nEntries-i-1);
-		nEntries--;
+		removeEntry(pos);
 		node.decEntryCountGlobal(tree);
 		if (parent == null) {
 			return;
@@ -705,12 +1115,13 @@ public class BSTreePage {
 	}
 
 
-    private void insertSplit(BSTEntry currentEntry, long[] newKey, Object newValue, PhTree16<?> tree,
-                               int maxConflictingBits, Node node) {
-        long[] localKdKey = currentEntry.getKdKey();
-        Node newNode = node.createNode(newKey, newValue, localKdKey, currentEntry.getValue(), maxConflictingBits, tree);
-        //replace local entry with new subnode
-        currentEntry.set(currentEntry.getKey(), tree.longPool().arrayClone(localKdKey), newNode);
+    private void insertSplit(int pos, long[] newKey, Object newValue, int maxConflictingBits, Node node) {
+        long[] localKdKey = getKdKey(pos, tree.longPool().getArray(tree.getDim()));
+        Node newNode = node.createNode(newKey, newValue, localKdKey, decodeValue(pos, values[pos]), 
+        		maxConflictingBits, tree);
+        tree.longPool().offer(localKdKey);
+        //replace local entry with new subnode, the postfix remains unchanged
+        values[pos] = newNode;
         Node.incEntryCountTree(tree);
     }
 
@@ -732,8 +1143,8 @@ public class BSTreePage {
         		if (subPage.nEntries + prevPage.nEntries < ind.maxLeafN()) {
         			//TODO for now this work only for leaves with the same root. We
         			//would need to update the min values in the inner nodes.
-        			System.arraycopy(subPage.keys, 0, prevPage.keys, prevPage.nEntries, subPage.nEntries);
-        			System.arraycopy(subPage.values, 0, prevPage.values, prevPage.nEntries, subPage.nEntries);
+        			prevPage.ensureSize(0, prevPage.nEntries + subPage.nEntries);
+        			copyEntries(subPage, 0, prevPage, prevPage.nEntries, subPage.nEntries);
         			prevPage.nEntries += subPage.nEntries;
         			Node.statNLeaves--;
         			removePage(pos);
@@ -837,10 +1248,14 @@ public class BSTreePage {
 		return keys;
 	}
 
-	final BSTEntry[] getValues() {
+	final Object[] getValues() {
 		return values;
 	}
 
+	final long[] getPost() {
+		return post;
+	}
+
 	private void setNEntries(int n) {
 		nEntries = (short) n;
 	}
@@ -954,8 +1369,32 @@ public class BSTreePage {
 		return isLeaf;
 	}
 
+	/**
+	 * @return 'true' if this is the hypercube page of a dense node, see {@link BSTreePage}.
+	 */
+	public boolean isHC() {
+		return isHC;
+	}
+
+	/**
+	 * @return The position of the first entry on this (leaf) page.
+	 */
+	public int getFirstPos() {
+		int pos = 0;
+		while (isHC && values[pos] == null) {
+			pos++;
+		}
+		return pos;
+	}
+
 	public void getStats(BSTStats stats) {
-		if (isLeaf()) {
+		if (isHC) {
+			stats.nNodesLeaf++;
+			for (int i = 0; i < nEntries; i++) {
+				stats.nEntriesLeaf += values[i] != null ? 1 : 0;
+			}
+			stats.capacityLeaf += nEntries;
+		} else if (isLeaf()) {
 			stats.nNodesLeaf++;
 			stats.nEntriesLeaf += nEntries;
 			stats.capacityLeaf += keys.length;
@@ -975,10 +1414,6 @@ public class BSTreePage {
 		}
 	}
 
-	public BSTEntry getFirstValue() {
-		return values[0];
-	}
-
 	public BSTreePage getFirstSubPage() {
 		return subPages[0];
 	}
@@ -990,10 +1425,13 @@ public class BSTreePage {
 	void nullify() {
 		keys = null;
 		values = null;
+		post = null;
+		prefix = null;
 		subPages = null;
 		nextLeaf = null;
 		prevLeaf = null;
 		parent = null;
+		tree = null;
 		nEntries = 0;
 	}
 
@@ -142,6 +142,10 @@ public class Node {
 		}			
 		Object v = removeEntry(hcBuf, keyToMatch, insertRequired, tree);
 		if (v != null && !(v instanceof Node)) {
+			if (insertRequired != null && !insertRequired.isInsertRequired()) {
+				//The key was replaced in place, the entry has not been removed.
+				return v;
+			}
 			//Found and removed entry.
 			tree.decreaseNrEntries();
 			if (getEntryCount() == 1) {
@@ -19,14 +19,12 @@
 package ch.ethz.globis.phtree.v16hd;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhEntryDist;
 import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.util.MinMaxHeapPool;
 import ch.ethz.globis.phtree.v16hd.Node.BSTEntry;
 import ch.ethz.globis.phtree.v16hd.bst.BSTIteratorAll;
 
@@ -35,22 +33,30 @@ import ch.ethz.globis.phtree.v16hd.bst.BSTIteratorAll;
  * 
  * Implementation after Hjaltason and Samet (with some deviations: no MinDist or MaxDist used).
  * G. R. Hjaltason and H. Samet., "Distance browsing in spatial databases.", ACM TODS 24(2):265--318. 1999
+ * <p>
+ * Nodes and entries are kept in separate pooled min-max heaps. The entry heap is bounded
+ * by the number of missing results and its maximum distance is used to prune nodes.
+ * The heaps and the result entries are reused, a query that is reused with 
+ * {@link #reset(int, PhDistance, long...)} does not allocate any objects. Entries returned 
+ * by {@link #nextEntryReuse()} are valid only until the next call to {@code reset()}.
  *
  * @param <T> value type
  */
 public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 
-	private static final PhDEComp COMP = new PhDEComp();
-	
 	private final int dims;
 	private PhTree16HD<T> pht;
 	private PhDistance distance;
 	private long[] center;
+	private final MinMaxHeapPool<NodeDist> queueN = 
+			MinMaxHeapPool.create((t1, t2) -> t1.dist < t2.dist, NodeDist::new);
+	private final MinMaxHeapPool<PhEntryDist<Object>> queueV;
+	private double maxNodeDist;
 	private final ArrayList<PhEntryDist<T>> results = new ArrayList<>(); 
-	private final ArrayList<PhEntryDist<Object>> pool = new ArrayList<>(); 
-	private final PriorityQueue<PhEntryDist<Object>> queue = new PriorityQueue<>(COMP);
+	private int nResults;
+	private int resultPos;
 	private final BSTIteratorAll iterNode = new BSTIteratorAll();
-	private Iterator<PhEntryDist<T>> iterResult;
+	private final long[] distBuffer;
 
 
 	/**
@@ -60,11 +66,14 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	public PhQueryKnnHS(PhTree16HD<T> pht) {
 		this.dims = pht.getDim();
 		this.pht = pht;
+		this.distBuffer = new long[dims];
+		this.queueV = MinMaxHeapPool.create((t1, t2) -> t1.dist() < t2.dist(), 
+				() -> new PhEntryDist<>(new long[dims], null, 0));
 	}
 
 	@Override
 	public long[] nextKey() {
-		return nextEntryReuse().getKey();
+		return nextEntryReuse().getKey().clone();
 	}
 
 	@Override
@@ -74,18 +83,20 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 
 	@Override
 	public PhEntryDist<T> nextEntry() {
-		return iterResult.next();
+		return new PhEntryDist<>(nextEntryReuse());
 	} 
 
 	@Override
 	public PhEntryDist<T> nextEntryReuse() {
-		//Reusing happens only via pooling
-		return iterResult.next();
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return results.get(resultPos++);
 	}
 
 	@Override
 	public boolean hasNext() {
-		return iterResult.hasNext();
+		return resultPos < nResults;
 	}
 
 	@Override
@@ -97,68 +108,96 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	public PhKnnQuery<T> reset(int nMin, PhDistance dist, long... center) {
 		this.distance = dist == null ? this.distance : dist;
 		this.center = center;
+		this.queueN.clear();
+		this.queueV.clear();
+		this.maxNodeDist = Double.POSITIVE_INFINITY;
+		this.nResults = 0;
+		this.resultPos = 0;
 		
-		//TODO pool entries??/
-		this.queue.clear();
-		this.results.clear();
-		
-		
-		if (nMin <= 0 || pht.size() == 0) {
-			iterResult = Collections.emptyIterator();
+		Node root = pht.getRoot();
+		if (nMin <= 0 || root == null || pht.size() == 0) {
 			return this;
 		}
 		
 		//Initialize queue
 		//use d=0 (lies in Node!!!)
-		PhEntryDist<Object> rootE = createEntry(new long[dims], pht.getRoot(), 0);
-		this.queue.add(rootE);
+		queueN.push(createEntry(0, root));
 		
 		search(nMin);
-		iterResult = results.iterator();
-		
 		return this;
 	}
 
 	
-	@SuppressWarnings("unchecked")
 	private void search(int k) {
-		while (!queue.isEmpty()) {
-			PhEntryDist<Object> candidate = queue.poll();
-			Object o = candidate.getValue();
-			if (!(o instanceof Node)) {
+		int remaining = k;
+		while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
+			boolean useV = !queueV.isEmpty();
+			if (useV && !queueN.isEmpty()) {
+				useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
+			}
+			if (useV) {
 				//data entry
-				results.add((PhEntryDist<T>) candidate);
-				if (results.size() >= k) {
-					return;
-				}
-			} else {
-				//inner node
-				Node node = (Node)o;
-				iterNode.reset(node.getRoot());
-				while (iterNode.hasNextEntry()) {
-					BSTEntry e2 = iterNode.nextEntry();
-					if (e2.getValue() instanceof Node) {
-						Node sub = (Node) e2.getValue();
-						double d = distToNode(e2.getKdKey(), sub.getPostLen() + 1);
-						queue.add(createEntry(e2.getKdKey(), e2.getValue(), d));
-					} else {
-						double d = distance.dist(center, e2.getKdKey());
-						queue.add(createEntry(e2.getKdKey(), e2.getValue(), d));
+				PhEntryDist<Object> candidate = queueV.peekMin();
+				addResult(candidate);
+				queueV.popMin();
+				remaining--;
+				continue;
+			}
+
+			//inner node
+			NodeDist top = queueN.peekMin();
+			Node node = top.node;
+			double dNode = top.dist;
+			queueN.popMin();
+			if (dNode > maxNodeDist && queueV.size() >= remaining) {
+				//ignore this node
+				continue;
+			}
+
+			iterNode.reset(node.getRoot());
+			while (iterNode.hasNextEntry()) {
+				BSTEntry e2 = iterNode.nextEntry();
+				if (e2.getValue() instanceof Node) {
+					Node sub = (Node) e2.getValue();
+					double d = distToNode(e2.getKdKey(), sub.getPostLen() + 1);
+					if (d <= maxNodeDist) {
+						queueN.push(createEntry(d, sub));
+					}
+				} else {
+					double d = distance.dist(center, e2.getKdKey());
+					//Using '<=' allows dealing with infinite distances.
+					if (d <= maxNodeDist) {
+						queueV.push(createEntry(e2.getKdKey(), e2.getValue(), d));
+						if (queueV.size() >= remaining) {
+							if (queueV.size() > remaining) {
+								queueV.popMax();
+							}
+							maxNodeDist = Math.min(maxNodeDist, queueV.peekMax().dist());
+						}
 					}
 				}
-				pool.add(candidate);
-			}				
+			}
 		}
 	}
 	
-	
-	private PhEntryDist<Object> createEntry(long[] key, Object val, double dist) {
-		if (pool.isEmpty()) {
-			return new PhEntryDist<>(key, val, dist);
+	@SuppressWarnings("unchecked")
+	private void addResult(PhEntryDist<Object> e) {
+		if (nResults == results.size()) {
+			results.add(new PhEntryDist<>(new long[dims], null, 0));
 		}
-		PhEntryDist<Object> e = pool.remove(pool.size() - 1);
-		e.setKeyInternal(key);
-		e.set(val, dist);
+		results.get(nResults++).setCopyKey(e.getKey(), (T) e.getValue(), e.dist());
+	}
+
+	private PhEntryDist<Object> createEntry(long[] key, Object val, double dist) {
+		PhEntryDist<Object> e = queueV.getObject();
+		e.setCopyKey(key, val, dist);
+		return e;
+	}
+
+	private NodeDist createEntry(double dist, Node node) {
+		NodeDist e = queueN.getObject();
+		e.node = node;
+		e.dist = dist;
 		return e;
 	}
 
@@ -166,7 +205,7 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	private double distToNode(long[] prefix, int bitsToIgnore) {
 		long maskMin = (-1L) << bitsToIgnore;
 		long maskMax = ~maskMin;
-		long[] buf = new long[prefix.length];
+		long[] buf = distBuffer;
 		for (int i = 0; i < buf.length; i++) {
 			//if v is outside the node, return distance to closest edge,
 			//otherwise return v itself (assume possible distance=0)
@@ -179,13 +218,9 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	}
 
 	
-	private static class PhDEComp implements Comparator<PhEntryDist<?>> {
-	    @Override
-		public int compare(PhEntryDist<?> a, PhEntryDist<?> b) {
-	    	double d1 = a.dist();
-	    	double d2 = b.dist();
-            return d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
-	    }
+	private static class NodeDist {
+		double dist;
+		Node node;
 	}
 
 }
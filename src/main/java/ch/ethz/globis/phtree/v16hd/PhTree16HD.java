@@ -25,6 +25,7 @@ import static ch.ethz.globis.phtree.PhTreeHelperHD.posInArrayHD;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhDistanceL;
@@ -36,6 +37,7 @@ import ch.ethz.globis.phtree.PhRangeQuery;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.PhTreeConfig;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PoolProvider;
 import ch.ethz.globis.phtree.util.PhMapper;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.util.StringBuilderLn;
@@ -122,17 +124,16 @@ public class PhTree16HD<T> implements PhTree<T> {
 		return root;
 	}
 
-    private final ObjectPool<Node> nodePool;
-    private final ObjectPool<UpdateInfo> uiPool;
-    private final LongArrayPool bitPool;
-    private final BSTPool bstPool;
+	//Object and array pools, see PhTreeConfig.setPoolProvider()
+	private final Supplier<Pools> pools;
 
 	public PhTree16HD(int dim) {
+		this(dim, PoolProvider.TREE);
+	}
+
+	private PhTree16HD(int dim, PoolProvider poolProvider) {
 		dims = dim;
-        this.nodePool = ObjectPool.create(Node::new);
-        this.uiPool = ObjectPool.create(UpdateInfo::new);
-        this.bitPool = LongArrayPool.create();
-        this.bstPool = BSTPool.create();
+		this.pools = poolProvider.getPools(Pools.class, Pools::new);
 		debugCheck();
 
 		switch (dims) {
@@ -153,7 +154,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 	}
 
 	public PhTree16HD(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
+		this(cnf.getDimActual(), cnf.getPoolProvider());
 		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
 			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
 		}
@@ -305,8 +306,12 @@ public class PhTree16HD<T> implements PhTree<T> {
 		int insertRequired = NO_INSERT_REQUIRED;
 		UpdateInfo init(long[] newKey) {
 			this.newKey = newKey;
+			this.insertRequired = NO_INSERT_REQUIRED;
 			return this;
 		}
+		boolean isInsertRequired() {
+			return insertRequired != NO_INSERT_REQUIRED;
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -318,7 +323,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 		
 		Object o = getRoot();
 		Node parentNode = null;
-		final UpdateInfo ui = uiPool.get().init(newKey);
+		final UpdateInfo ui = uiPool().get().init(newKey);
 		
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -349,7 +354,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 				}
 			}
 		}		
-		uiPool.offer(ui);
+		uiPool().offer(ui);
 		return (T) value;
 	}
 
@@ -551,7 +556,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 	@Override
 	public PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist,
 			PhFilter dimsFilter, long... center) {
-		return new PhIteratorKnn<>(this, nMin, center, dist);
+		return new PhIteratorKnn<>(this, nMin, center, dist == null ? PhDistanceL.THIS : dist, dimsFilter);
 		//return new PhQueryKnnHS<>(this).reset(nMin, dist, center);
 		//return new PhQueryKnnHSZ<>(this).reset(nMin, dist, center);
 	}
@@ -583,16 +588,31 @@ public class PhTree16HD<T> implements PhTree<T> {
 		nEntries = 0;
 	}
 
+	/**
+	 * The object and array pools of a tree. The pools may be shared with other trees, 
+	 * see {@link PoolProvider}.
+	 */
+	static final class Pools {
+		private final ObjectPool<Node> nodePool = ObjectPool.create(Node::new);
+		private final ObjectPool<UpdateInfo> uiPool = ObjectPool.create(UpdateInfo::new);
+		private final LongArrayPool bitPool = LongArrayPool.create();
+		private final BSTPool bstPool = BSTPool.create();
+	}
+
     ObjectPool<Node> nodePool() {
-        return nodePool;
+        return pools.get().nodePool;
+    }
+
+    private ObjectPool<UpdateInfo> uiPool() {
+        return pools.get().uiPool;
     }
 
     LongArrayPool longPool() {
-        return bitPool;
+        return pools.get().bitPool;
     }
 
     public BSTPool bstPool() {
-        return bstPool;
+        return pools.get().bstPool;
     }
 }
 
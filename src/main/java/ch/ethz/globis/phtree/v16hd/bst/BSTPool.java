@@ -123,7 +123,7 @@ public class BSTPool {
                               PhTree16HD<?> tree) {
         BSTreePage p = pagePool.get();
         if (p != null) {
-            p.init(ind, parent, isLeaf, leftPredecessor);
+            p.init(ind, parent, isLeaf, leftPredecessor, tree);
             return p;
         }
         return new BSTreePage(ind, parent, isLeaf, leftPredecessor, tree);
@@ -43,15 +43,16 @@ public class BSTreePage {
 	private BSTreePage[] subPages;
 	private BSTreePage prevLeaf;
 	private BSTreePage nextLeaf;
-	private final PhTree16HD<?> tree;
+	//The tree is set in init(), because pages are pooled and may be reused by other trees.
+	private PhTree16HD<?> tree;
 
 
 	BSTreePage(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor, PhTree16HD<?> tree) {
-	    this.tree = tree;
-		init(ind, parent, isLeaf, leftPredecessor);
+		init(ind, parent, isLeaf, leftPredecessor, tree);
 	}
 	
-	void init(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor) {
+	void init(Node ind, BSTreePage parent, boolean isLeaf, BSTreePage leftPredecessor, PhTree16HD<?> tree) {
+		this.tree = tree;
 		nextLeaf = null;
 		prevLeaf = null;
 		this.parent = parent;
@@ -821,6 +822,7 @@ public class BSTreePage {
 		nextLeaf = null;
 		prevLeaf = null;
 		parent = null;
+		tree = null;
 	}
 
 	BSTreePage getNextLeaf() {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Release/acquire access to elements of Object[], Java 17 version.
+ * <p>
+ * This uses a {@code VarHandle} instead of {@code sun.misc.Unsafe}.
+ *
+ * @author ztilmann
+ */
+public final class VolatileRefs {
+
+	private static final VarHandle AA = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private VolatileRefs() {
+		// static methods only
+	}
+
+	/**
+	 * Writes {@code a[i] = value}. All previous writes of this thread become visible before
+	 * the new value.
+	 * @param a array
+	 * @param i index
+	 * @param value new value
+	 */
+	public static void setRelease(Object[] a, int i, Object value) {
+		AA.setRelease(a, i, value);
+	}
+
+	/**
+	 * @param a array
+	 * @param i index
+	 * @return {@code a[i]}. Writes that were visible to the writer of the value before it
+	 * wrote the value with {@link #setRelease(Object[], int, Object)} are visible after this
+	 * call.
+	 */
+	public static Object getAcquire(Object[] a, int i) {
+		return AA.getAcquire(a, i);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Window checks of kd-keys, Java 17 version.
+ * <p>
+ * If the JVM runs with {@code --add-modules jdk.incubator.vector}, keys with 8 or more
+ * dimensions are compared with {@code LongVector} compare masks. Otherwise this is the same 
+ * scalar loop as the Java 8 version. The vector code is in a nested class, it is only loaded
+ * if the module is present.
+ *
+ * @author ztilmann
+ */
+public final class WindowOps {
+
+	private static final boolean VECTOR = 
+			ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+	
+	/** Below this, the scalar loop is as fast as the vector compares. */
+	private static final int MIN_DIM_VECTOR = 8;
+
+	private WindowOps() {
+		// static methods only
+	}
+
+	/**
+	 * Check whether a key lies inside a window. 
+	 * @param key The key
+	 * @param min Lower corner of the window (inclusive)
+	 * @param max Upper corner of the window (inclusive)
+	 * @return 'true' if the key lies inside the window 
+	 */
+	public static boolean checkRange(long[] key, long[] min, long[] max) {
+		if (VECTOR && key.length >= MIN_DIM_VECTOR) {
+			return Vector.checkRange(key, min, max);
+		}
+		return checkRange(key, min, max, 0);
+	}
+
+	private static boolean checkRange(long[] key, long[] min, long[] max, int start) {
+		for (int i = start; i < key.length; i++) {
+			long k = key[i];
+			if (k < min[i] || k > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Vector {
+
+		private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+		static boolean checkRange(long[] key, long[] min, long[] max) {
+			int i = 0;
+			int bound = SPECIES.loopBound(key.length);
+			for (; i < bound; i += SPECIES.length()) {
+				LongVector k = LongVector.fromArray(SPECIES, key, i);
+				if (k.compare(VectorOperators.LT, LongVector.fromArray(SPECIES, min, i))
+						.or(k.compare(VectorOperators.GT, LongVector.fromArray(SPECIES, max, i)))
+						.anyTrue()) {
+					return false;
+				}
+			}
+			return WindowOps.checkRange(key, min, max, i);
+		}
+	}
+}
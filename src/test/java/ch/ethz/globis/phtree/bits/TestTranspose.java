@@ -6,8 +6,11 @@
  */
 package ch.ethz.globis.phtree.bits;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Test;
 
 import ch.ethz.globis.phtree.PhTreeHelper;
@@ -43,6 +46,56 @@ public class TestTranspose {
 		check(tv, 0L, 0L, 0L, 0L, 1L, 5L, 11L, 31L);
 	}
 
+	@Test
+	public void testRandom() {
+		Random r = new Random(0);
+		for (int dims = 1; dims <= 64; dims++) {
+			for (int depth = 1; depth <= 64; depth++) {
+				long[] v = new long[dims];
+				for (int d = 0; d < dims; d++) {
+					v[d] = r.nextLong();
+				}
+				assertArrayEquals("dims=" + dims + " depth=" + depth, 
+						transposeSimple(v, depth), PhTreeHelper.transposeValue(v, depth));
+			}
+		}
+	}
+
+	@Test
+	public void testPosInArrayRandom() {
+		Random r = new Random(0);
+		for (int dims = 1; dims <= 10; dims++) {
+			for (int postLen = 0; postLen < 64; postLen++) {
+				long[] v = new long[dims];
+				for (int d = 0; d < dims; d++) {
+					v[d] = r.nextLong();
+				}
+				long expected = 0;
+				for (int d = 0; d < dims; d++) {
+					expected = (expected << 1) | ((v[d] >>> postLen) & 1L);
+				}
+				assertEquals("dims=" + dims + " postLen=" + postLen, 
+						expected, PhTreeHelper.posInArray(v, postLen));
+			}
+		}
+	}
+
+	/**
+	 * Bit-by-bit reference implementation.
+	 */
+	private static long[] transposeSimple(long[] valSet, int DEPTH) {
+		long[] tv = new long[DEPTH];
+		for (int j = 0; j < DEPTH; j++) {
+			int bit = DEPTH - 1 - j;
+			long pos = 0;
+			for (int i = 0; i < valSet.length; i++) {
+				pos = (pos << 1) | ((valSet[i] >>> bit) & 1L);
+			}
+			tv[j] = pos;
+		}
+		return tv;
+	}
+
 	private void check(long[] tv, long... v) {
 		int DEPTH = tv.length;
 		for (int i = 0; i < v.length; i++) {
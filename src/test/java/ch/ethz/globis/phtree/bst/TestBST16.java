@@ -86,12 +86,11 @@ public class TestBST16 {
 			//if (i%1000 == 0) 
 			//System.out.println("ins=" + i);
 			//ht.bstPut((Integer)i.getValue(), i);
-			BSTEntry newBE = ht.bstGetOrCreate((int)i.getValue(), tree);
-			newBE.set((int)i.getValue(), i.getKdKey(), i.getValue());
+			ht.bstPut((int)i.getValue(), i.getKdKey(), i.getValue());
 			
 			//Check
-			BSTEntry be = ht.bstGet((Integer)i.getValue());
-			assertEquals((int)i.getValue(), (int)be.getValue());
+			Object v = ht.bstGet((Integer)i.getValue());
+			assertEquals((int)i.getValue(), (int)v);
 		}
 		long l12 = System.currentTimeMillis();
 		assertEquals(list.size(), ht.getEntryCount());
@@ -101,9 +100,9 @@ public class TestBST16 {
 		//lookup
 		long l21 = System.currentTimeMillis();
 		for (BSTEntry i : list) {
-			BSTEntry e = ht.bstGet((Integer)i.getValue());
-			//assertNotNull("i=" + i, e);
-			int x = (int) e.getValue();
+			Object v = ht.bstGet((Integer)i.getValue());
+			//assertNotNull("i=" + i, v);
+			int x = (int) v;
 			assertEquals(i.getValue(), x);
 		}
 		long l22 = System.currentTimeMillis();
@@ -135,8 +134,7 @@ public class TestBST16 {
 		long l31 = System.currentTimeMillis();
 		for (BSTEntry i : list) {
 			//ht.bstPut((Integer)i.getValue(), new BSTEntry(i.getKdKey(), -(Integer)i.getValue()));
-			BSTEntry newBE = ht.bstGetOrCreate((Integer)i.getValue(), tree);
-			newBE.setValue(-(Integer)i.getValue());
+			ht.bstPut((Integer)i.getValue(), i.getKdKey(), -(Integer)i.getValue());
 		}
 		long l32 = System.currentTimeMillis();
 		assertEquals(list.size(), ht.getEntryCount());
@@ -144,7 +142,7 @@ public class TestBST16 {
 		//remove some
 		long l41 = System.currentTimeMillis();
 		for (BSTEntry i : list) {
-			assertEquals(-(Integer)i.getValue(), ht.bstRemove((Integer)i.getValue(), i.getKdKey(), null, tree).getValue());
+			assertEquals(-(Integer)i.getValue(), ht.bstRemove((Integer)i.getValue(), i.getKdKey(), null, tree));
 		}
 		long l42 = System.currentTimeMillis();
 		assertEquals(0, ht.getEntryCount());
@@ -181,13 +179,12 @@ public class TestBST16 {
 		for (int r = 0; r < 10; r++) {
 		
 			for (int i = 0; i < 100000; i++) {
-				BSTEntry e = ht.bstGetOrCreate(i, tree);
-				e.set(i, new long[] {i}, i);
+				ht.bstPut(i, key(i), i);
 			}
 			
 			for (int i = 0; i < 100000; i++) {
-				BSTEntry e = ht.bstRemove(i, new long[] {i}, null, tree);
-				assertEquals(i, (int)e.getValue());
+				Object v = ht.bstRemove(i, key(i), null, tree);
+				assertEquals(i, (int)v);
 			}
 		
 			checkEmpty(ht);
@@ -197,8 +194,8 @@ public class TestBST16 {
 	private void checkEmpty(Node ht) {
 		assertEquals(0, ht.getEntryCount());
 		
-		BSTEntry e = ht.bstGet(12345);
-		assertNull(e);
+		Object v = ht.bstGet(12345);
+		assertNull(v);
 		
 		//iterate
 		BSTIteratorAll iter = ht.iterator();
@@ -207,8 +204,14 @@ public class TestBST16 {
 		BSTIteratorMask iterMask = new BSTIteratorMask().reset(ht.getRoot(), 0, 0xFFFFFFFFFFFEL, ht.getEntryCount());
 		assertFalse(iterMask.hasNextEntry());
 				
-		BSTEntry e2 = ht.bstRemove(12345, null, null, tree);
-		assertNull(e2);
+		Object v2 = ht.bstRemove(12345, null, null, tree);
+		assertNull(v2);
+	}
+
+	private static long[] key(int i) {
+		long[] key = new long[DIM];
+		key[0] = i;
+		return key;
 	}
 
 }
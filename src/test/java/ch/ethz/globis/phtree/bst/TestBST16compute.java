@@ -91,8 +91,8 @@ public class TestBST16compute {
 			});
 
 			//Check
-			BSTEntry be = ht.bstGet((Integer)i.getValue());
-			assertEquals((int)i.getValue(), (int)be.getValue());
+			Object v = ht.bstGet((Integer)i.getValue());
+			assertEquals((int)i.getValue(), (int)v);
 		}
 		long l12 = System.currentTimeMillis();
 		assertEquals(list.size(), ht.getEntryCount());
@@ -102,9 +102,9 @@ public class TestBST16compute {
 		//lookup
 		long l21 = System.currentTimeMillis();
 		for (BSTEntry i : list) {
-			BSTEntry e = ht.bstGet((Integer)i.getValue());
-			//assertNotNull("i=" + i, e);
-			int x = (int) e.getValue();
+			Object v = ht.bstGet((Integer)i.getValue());
+			//assertNotNull("i=" + i, v);
+			int x = (int) v;
 			assertEquals(i.getValue(), x);
 		}
 		long l22 = System.currentTimeMillis();
@@ -189,13 +189,12 @@ public class TestBST16compute {
 		for (int r = 0; r < 10; r++) {
 		
 			for (int i = 0; i < 100000; i++) {
-				BSTEntry e = ht.bstGetOrCreate(i, tree);
-				e.set(i, new long[] {i}, i);
+				ht.bstPut(i, key(i), i);
 			}
 			
 			for (int i = 0; i < 100000; i++) {
-				BSTEntry e = ht.bstRemove(i, new long[] {i}, null, tree);
-				assertEquals(i, (int)e.getValue());
+				Object v = ht.bstRemove(i, key(i), null, tree);
+				assertEquals(i, (int)v);
 			}
 		
 			checkEmpty(ht);
@@ -205,8 +204,8 @@ public class TestBST16compute {
 	private void checkEmpty(Node ht) {
 		assertEquals(0, ht.getEntryCount());
 		
-		BSTEntry e = ht.bstGet(12345);
-		assertNull(e);
+		Object v = ht.bstGet(12345);
+		assertNull(v);
 		
 		//iterate
 		BSTIteratorAll iter = ht.iterator();
@@ -215,8 +214,14 @@ public class TestBST16compute {
 		BSTIteratorMask iterMask = new BSTIteratorMask().reset(ht.getRoot(), 0, 0xFFFFFFFFFFFEL, ht.getEntryCount());
 		assertFalse(iterMask.hasNextEntry());
 				
-		BSTEntry e2 = ht.bstRemove(12345, null, null, tree);
-		assertNull(e2);
+		Object v2 = ht.bstRemove(12345, null, null, tree);
+		assertNull(v2);
+	}
+
+	private static long[] key(int i) {
+		long[] key = new long[DIM];
+		key[0] = i;
+		return key;
 	}
 
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.util.VolatileRefs;
+import ch.ethz.globis.phtree.util.WindowOps;
+
+/**
+ * Tests for the multi-release jar. These run with the failsafe plugin against the packaged
+ * jar, see profile 'java17' in the pom. On Java 17+ they use the classes in
+ * {@code META-INF/versions/17}. The results of these classes are compared with the base 
+ * classes, which are loaded from the same jar with {@link BaseClassLoader}.
+ *
+ * @author ztilmann
+ */
+public class MultiReleaseJarIT {
+
+	private static final int N_THREADS = 4;
+	private static final int N_PER_THREAD = 5000;
+
+	private static boolean isJava17() {
+		String v = System.getProperty("java.specification.version");
+		return !v.startsWith("1.") && Integer.parseInt(v) >= 17;
+	}
+
+	private static boolean hasVectorModule() {
+		try {
+			Class.forName("jdk.incubator.vector.LongVector");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testVersionedClassIsLoaded() {
+		for (Class<?> c : new Class<?>[] {VolatileRefs.class, WindowOps.class}) {
+			URL url = c.getResource(c.getSimpleName() + ".class");
+			assertEquals(url.toString(), "jar", url.getProtocol());
+			String versioned = "!/META-INF/versions/17/";
+			assertEquals(url.toString(), isJava17(), url.toString().contains(versioned));
+		}
+		//failsafe runs with --add-modules jdk.incubator.vector
+		assertEquals("--add-modules jdk.incubator.vector", isJava17(), hasVectorModule());
+	}
+
+	@Test
+	public void testWindowOpsSameAsBase() throws ReflectiveOperationException, IOException {
+		Method base = baseClass(WindowOps.class).getMethod(
+				"checkRange", long[].class, long[].class, long[].class);
+		Random r = new Random(0);
+		int nInside = 0;
+		for (int i = 0; i < 100_000; i++) {
+			int dim = 1 + r.nextInt(70);
+			long[] key = new long[dim];
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				min[d] = r.nextInt(100) - 50;
+				max[d] = min[d] + r.nextInt(120);
+				//mostly inside, so that all dimensions are checked
+				key[d] = r.nextInt(4) == 0 ? r.nextInt(200) - 100 : (min[d] + max[d]) / 2;
+				if (r.nextInt(50) == 0) {
+					key[d] = r.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE;
+				}
+			}
+			boolean expected = (Boolean) invoke(base, key, min, max);
+			assertEquals("dim=" + dim, expected, WindowOps.checkRange(key, min, max));
+			nInside += expected ? 1 : 0;
+		}
+		assertTrue(nInside > 1000);
+	}
+
+	@Test
+	public void testVolatileRefsSameAsBase() throws ReflectiveOperationException, IOException {
+		Class<?> c = baseClass(VolatileRefs.class);
+		Method set = c.getMethod("setRelease", Object[].class, int.class, Object.class);
+		Method get = c.getMethod("getAcquire", Object[].class, int.class);
+		Object[] a1 = new Object[10];
+		Object[] a2 = new Object[10];
+		Random r = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			int pos = r.nextInt(a1.length);
+			Object o = r.nextBoolean() ? null : i;
+			invoke(set, a1, pos, o);
+			VolatileRefs.setRelease(a2, pos, o);
+			pos = r.nextInt(a1.length);
+			assertSame(invoke(get, a1, pos), VolatileRefs.getAcquire(a2, pos));
+		}
+		assertArrayEquals(a1, a2);
+	}
+
+	@Test
+	public void testVolatileRefs() {
+		Object[] a = new Object[3];
+		Object o = new Object();
+		VolatileRefs.setRelease(a, 1, o);
+		assertSame(o, a[1]);
+		assertSame(o, VolatileRefs.getAcquire(a, 1));
+		assertNull(VolatileRefs.getAcquire(a, 2));
+		VolatileRefs.setRelease(a, 1, null);
+		assertNull(VolatileRefs.getAcquire(a, 1));
+		try {
+			VolatileRefs.setRelease(a, 3, o);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// expected
+		}
+		try {
+			VolatileRefs.getAcquire(a, -1);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentOL() throws InterruptedException {
+		runConcurrent(PhTreeConfig.CONCURRENCY_OL_COW, 10);
+	}
+
+	@Test
+	public void testConcurrentHOH() throws InterruptedException {
+		runConcurrent(PhTreeConfig.CONCURRENCY_HOH_COW, 3);
+	}
+
+	/**
+	 * Writers insert disjoint keys while readers look them up. Both concurrency types publish
+	 * new nodes with {@link VolatileRefs}.
+	 */
+	private static void runConcurrent(int concurrencyType, int dim) throws InterruptedException {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(concurrencyType);
+		PhTree<long[]> tree = PhTree.create(cfg);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < N_THREADS; t++) {
+			final int id = t;
+			threads.add(new Thread(() -> {
+				try {
+					Random r = new Random(id);
+					List<long[]> keys = new ArrayList<>();
+					for (int i = 0; i < N_PER_THREAD; i++) {
+						long[] key = new long[dim];
+						for (int d = 0; d < dim; d++) {
+							key[d] = r.nextInt(1 << 20);
+						}
+						key[0] = (key[0] << 3) | id;
+						if (tree.put(key, key) == null) {
+							keys.add(key);
+						}
+						long[] k2 = keys.get(r.nextInt(keys.size()));
+						assertSame(k2, tree.get(k2));
+					}
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertTrue(tree.size() > N_THREADS * N_PER_THREAD * 9 / 10);
+	}
+
+	private static Object invoke(Method m, Object... args) throws IllegalAccessException {
+		try {
+			return m.invoke(null, args);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param c a class of the jar
+	 * @return The base version of the class, i.e. from the root of the jar
+	 */
+	private static Class<?> baseClass(Class<?> c) throws IOException, ClassNotFoundException {
+		try {
+			File jar = new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+			Class<?> base = new BaseClassLoader(jar).loadClass(c.getName());
+			assertTrue(base != c);
+			return base;
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Loads classes of the jar from the root of the jar, ignoring {@code META-INF/versions}.
+	 * The classes must not depend on other classes of the jar.
+	 */
+	private static final class BaseClassLoader extends ClassLoader {
+
+		private final File jar;
+
+		BaseClassLoader(File jar) {
+			super(null);
+			this.jar = jar;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			//JarFile(File) reads the base entries of a multi-release jar
+			try (JarFile jf = new JarFile(jar)) {
+				JarEntry e = jf.getJarEntry(name.replace('.', '/') + ".class");
+				if (e == null) {
+					throw new ClassNotFoundException(name);
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try (InputStream in = jf.getInputStream(e)) {
+					byte[] buf = new byte[4096];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						out.write(buf, 0, n);
+					}
+				}
+				byte[] b = out.toByteArray();
+				return defineClass(name, b, 0, b.length);
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+	}
+}
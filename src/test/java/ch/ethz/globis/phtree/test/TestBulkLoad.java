@@ -0,0 +1,319 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTree#bulkLoad(long[][], Object[])} and 
+ * {@link PhTree#bulkLoad(long[][], Object[], ForkJoinPool)}.
+ *
+ * @author ztilmann
+ */
+public class TestBulkLoad extends TestSuper {
+
+	private static long[][] randomKeys(Random r, int n, int dim, boolean negative) {
+		long[][] keys = new long[n][dim];
+		for (int i = 0; i < n; i++) {
+			for (int d = 0; d < dim; d++) {
+				keys[i][d] = negative ? r.nextLong() : r.nextInt(1 << 20);
+			}
+		}
+		return keys;
+	}
+
+	private static Integer[] values(int n) {
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = i;
+		}
+		return values;
+	}
+
+	@Test
+	public void testCompareWithPut() {
+		Random r = new Random(0);
+		for (int dim : new int[] {1, 2, 3, 4, 5, 6, 7, 8, 10, 12, 16, 20, 40}) {
+			for (int n : new int[] {1, 2, 10, 1000, 20000}) {
+				long[][] keys = randomKeys(r, n, dim, dim % 2 == 0);
+				PhTree16<Integer> tree = new PhTree16<>(dim);
+				tree.bulkLoad(keys, values(n));
+				PhTree16<Integer> ref = new PhTree16<>(dim);
+				for (int i = 0; i < n; i++) {
+					ref.put(keys[i], i);
+				}
+				assertEqualTrees(ref, tree);
+				checkQueries(ref, tree, r);
+				checkModifications(ref, tree, r);
+			}
+		}
+	}
+
+	@Test
+	public void testDuplicatesAndNull() {
+		int dim = 3;
+		long[][] keys = {{1, 2, 3}, {4, 5, 6}, {1, 2, 3}, {7, 8, 9}, {4, 5, 6}};
+		Integer[] values = {1, 2, 3, null, null};
+		PhTree16<Integer> tree = new PhTree16<>(dim);
+		tree.bulkLoad(keys, values);
+		assertEquals(3, tree.size());
+		assertEquals(3, (int) tree.get(keys[0]));
+		assertNull(tree.get(keys[1]));
+		assertTrue(tree.contains(keys[1]));
+		assertNull(tree.get(keys[3]));
+		assertTrue(tree.contains(keys[3]));
+	}
+
+	@Test
+	public void testEmptyInput() {
+		PhTree16<Integer> tree = new PhTree16<>(3);
+		tree.bulkLoad(new long[0][], new Integer[0]);
+		assertEquals(0, tree.size());
+		assertFalse(tree.queryExtent().hasNext());
+		assertNull(tree.put(new long[] {1, 2, 3}, 1));
+		assertEquals(1, tree.size());
+	}
+
+	@Test
+	public void testNonEmptyTree() {
+		Random r = new Random(0);
+		int dim = 5;
+		long[][] keys = randomKeys(r, 5000, dim, true);
+		PhTree16<Integer> tree = new PhTree16<>(dim);
+		PhTree16<Integer> ref = new PhTree16<>(dim);
+		for (int i = 0; i < 100; i++) {
+			tree.put(keys[i], -i);
+			ref.put(keys[i], -i);
+		}
+		tree.bulkLoad(keys, values(keys.length));
+		for (int i = 0; i < keys.length; i++) {
+			ref.put(keys[i], i);
+		}
+		assertEqualTrees(ref, tree);
+	}
+
+	@Test
+	public void testIterator() {
+		Random r = new Random(0);
+		int dim = 10;
+		long[][] keys = randomKeys(r, 10000, dim, false);
+		List<PhEntry<Integer>> entries = new ArrayList<>();
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		for (int i = 0; i < keys.length; i++) {
+			entries.add(new PhEntry<>(keys[i], i));
+			ref.put(keys[i], i);
+		}
+		PhTree<Integer> tree = new PhTree16<>(dim);
+		tree.bulkLoad(entries.stream().iterator());
+		assertEqualTrees(ref, tree);
+
+		//default implementation
+		PhTree<Integer> tree13 = new PhTree13<>(3);
+		tree13.bulkLoad(Arrays.asList(new PhEntry<>(new long[] {1, 2, 3}, 42)).iterator());
+		assertEquals(42, (int) tree13.get(1, 2, 3));
+	}
+
+	@Test
+	public void testCOW() {
+		Random r = new Random(0);
+		int dim = 4;
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		PhTree<Integer> tree = PhTree.create(cfg);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		long[][] keys = randomKeys(r, 5000, dim, false);
+		tree.bulkLoad(keys, values(keys.length));
+		for (int i = 0; i < keys.length; i++) {
+			ref.put(keys[i], i);
+		}
+		assertEqualTrees(ref, tree);
+		checkModifications(ref, tree, r);
+	}
+
+	@Test
+	public void testParallel() {
+		Random r = new Random(0);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int dim : new int[] {1, 3, 10, 20}) {
+				for (boolean negative : new boolean[] {false, true}) {
+					int n = 100_000;
+					long[][] keys = randomKeys(r, n, dim, negative);
+					//duplicates
+					for (int i = 0; i < 100; i++) {
+						keys[r.nextInt(n)] = keys[r.nextInt(n)].clone();
+					}
+					PhTree<Integer> tree = new PhTree16<>(dim);
+					tree.bulkLoad(keys, values(n), pool);
+					PhTree<Integer> ref = new PhTree16<>(dim);
+					for (int i = 0; i < n; i++) {
+						ref.put(keys[i], i);
+					}
+					assertEqualTrees(ref, tree);
+					checkModifications(ref, tree, r);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelCOW() {
+		Random r = new Random(0);
+		int dim = 3;
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		PhTree<Integer> tree = PhTree.create(cfg);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		long[][] keys = randomKeys(r, 50_000, dim, false);
+		tree.bulkLoad(keys, values(keys.length), ForkJoinPool.commonPool());
+		for (int i = 0; i < keys.length; i++) {
+			ref.put(keys[i], i);
+		}
+		assertEqualTrees(ref, tree);
+		checkModifications(ref, tree, r);
+
+		//non-empty tree
+		long[][] keys2 = randomKeys(r, 50_000, dim, false);
+		tree.bulkLoad(keys2, values(keys2.length), ForkJoinPool.commonPool());
+		for (int i = 0; i < keys2.length; i++) {
+			ref.put(keys2[i], i);
+		}
+		assertEqualTrees(ref, tree);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParallelWrongKey() {
+		long[][] keys = new long[50_000][3];
+		keys[1000] = new long[2];
+		new PhTree16<Integer>(3).bulkLoad(keys, values(keys.length), ForkJoinPool.commonPool());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongLength() {
+		new PhTree16<Integer>(3).bulkLoad(new long[2][3], new Integer[1]);
+	}
+
+	private static void assertEqualTrees(PhTree<Integer> ref, PhTree<Integer> tree) {
+		assertEquals(ref.size(), tree.size());
+		if (ref.size() <= 20_000) {
+			assertEquals(ref.toStringPlain(), tree.toStringPlain());
+		}
+		assertEquals(ref.getStats().getNodeCount(), tree.getStats().getNodeCount());
+		PhExtent<Integer> it = ref.queryExtent();
+		PhExtent<Integer> it2 = tree.queryExtent();
+		while (it.hasNext()) {
+			PhEntry<Integer> e = it.nextEntry();
+			PhEntry<Integer> e2 = it2.nextEntry();
+			assertArrayEquals(e.getKey(), e2.getKey());
+			assertEquals(e.getValue(), e2.getValue());
+		}
+		assertFalse(it2.hasNext());
+	}
+
+	private static void checkQueries(PhTree<Integer> ref, PhTree<Integer> tree, Random r) {
+		int dim = tree.getDim();
+		for (int i = 0; i < 10; i++) {
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				long a = r.nextInt(1 << 20);
+				long b = r.nextInt(1 << 20);
+				min[d] = Math.min(a, b);
+				max[d] = Math.max(a, b);
+			}
+			assertEquals(count(ref.query(min, max)), count(tree.query(min, max)));
+			PhKnnQuery<Integer> knn1 = ref.nearestNeighbour(3, min);
+			PhKnnQuery<Integer> knn2 = tree.nearestNeighbour(3, min);
+			while (knn1.hasNext()) {
+				assertEquals(knn1.nextEntry().dist(), knn2.nextEntry().dist(), 0.0);
+			}
+			assertFalse(knn2.hasNext());
+		}
+	}
+
+	private static int count(PhQuery<Integer> q) {
+		int n = 0;
+		while (q.hasNext()) {
+			q.next();
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * The bulk loaded tree must support all modifications, including splits and merges
+	 * of nodes and BST pages.
+	 */
+	private static void checkModifications(PhTree<Integer> ref, PhTree<Integer> tree, Random r) {
+		int dim = tree.getDim();
+		List<long[]> keys = new ArrayList<>();
+		PhExtent<Integer> it = ref.queryExtent();
+		while (it.hasNext()) {
+			keys.add(it.nextKey());
+		}
+		for (int i = 0; i < 2000; i++) {
+			long[] key = randomKeys(r, 1, dim, false)[0];
+			switch (r.nextInt(3)) {
+			case 0:
+				assertEquals(ref.put(key, -i), tree.put(key, -i));
+				keys.add(key);
+				break;
+			case 1: {
+				long[] k = keys.remove(r.nextInt(keys.size()));
+				assertEquals(ref.remove(k), tree.remove(k));
+				break;
+			}
+			case 2: {
+				long[] k = keys.get(r.nextInt(keys.size()));
+				assertEquals(ref.update(k, key), tree.update(k, key));
+				keys.add(key);
+				break;
+			}
+			default: throw new IllegalStateException();
+			}
+			if (keys.isEmpty()) {
+				break;
+			}
+		}
+		assertEqualTrees(ref, tree);
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.util.PhIteratorBase;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTreeConfig#CONCURRENCY_COW}.
+ *
+ * @author ztilmann
+ */
+public class TestConcurrencyCOW extends TestSuper {
+
+	private static final int N_STABLE = 2000;
+	private static final int N_VOLATILE = 500;
+	private static final long RANGE = 1L << 20;
+
+	private static <T> PhTree<T> createCOW(int dim) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		return PhTree.create(cfg);
+	}
+
+	/**
+	 * Keys of 'stable' entries have an even first coordinate, keys of 'volatile' entries
+	 * have an odd first coordinate.
+	 */
+	private static long[] randomKey(Random r, int dim, boolean stable) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = (long) (r.nextDouble() * RANGE);
+		}
+		key[0] = stable ? key[0] & ~1L : key[0] | 1L;
+		return key;
+	}
+
+	@Test
+	public void testCreate() {
+		assertTrue(createCOW(3) instanceof PhTree16);
+		assertTrue(createCOW(10) instanceof PhTree16);
+	}
+
+	@Test
+	public void testSnapshotIsolation() {
+		Random r = new Random(0);
+		int dim = 3;
+		PhTree<Integer> tree = createCOW(dim);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N_STABLE; i++) {
+			long[] key = randomKey(r, dim, true);
+			if (tree.put(key, i) == null) {
+				keys.add(key);
+			}
+		}
+		int n = keys.size();
+		assertEquals(n, tree.size());
+
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		Arrays.fill(max, RANGE);
+		PhExtent<Integer> ext = tree.queryExtent();
+		PhQuery<Integer> q = tree.query(min, max);
+		PhKnnQuery<Integer> knn = tree.nearestNeighbour(n, keys.get(0));
+
+		//modify the tree
+		for (long[] key : keys) {
+			assertTrue(tree.remove(key) != null);
+		}
+		for (int i = 0; i < N_VOLATILE; i++) {
+			tree.put(randomKey(r, dim, false), -i);
+		}
+		tree.update(keys.get(0), randomKey(r, dim, false));
+
+		//the iterators should see the old tree
+		assertEquals(n, count(ext));
+		assertEquals(n, count(q));
+		assertEquals(n, count(knn));
+
+		//new iterators should see the new tree
+		for (long[] key : keys) {
+			assertFalse(tree.contains(key));
+		}
+		assertEquals(tree.size(), count(tree.queryExtent()));
+
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertFalse(tree.queryExtent().hasNext());
+	}
+
+	private static int count(PhIteratorBase<?, ?> it) {
+		int n = 0;
+		while (it.hasNext()) {
+			PhEntry<?> e = (PhEntry<?>) it.nextEntry();
+			assertTrue(e.getValue() instanceof Integer);
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testCompareWithNonCOW() {
+		Random r = new Random(0);
+		int dim = 5;
+		PhTree<Integer> tree = createCOW(dim);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			int op = r.nextInt(6);
+			long[] key = keys.isEmpty() || r.nextBoolean() ?
+					randomKey(r, dim, r.nextBoolean()) : keys.get(r.nextInt(keys.size()));
+			switch (op) {
+			case 0:
+				assertEquals(ref.put(key, i), tree.put(key, i));
+				keys.add(key);
+				break;
+			case 1:
+				assertEquals(ref.remove(key), tree.remove(key));
+				break;
+			case 2: {
+				long[] key2 = randomKey(r, dim, r.nextBoolean());
+				assertEquals(ref.update(key, key2), tree.update(key, key2));
+				keys.add(key2);
+				break;
+			}
+			case 3: {
+				int v = i;
+				assertEquals(ref.compute(key, (k, old) -> old == null ? v : null),
+						tree.compute(key, (k, old) -> old == null ? v : null));
+				break;
+			}
+			case 4:
+				assertEquals(ref.putIfAbsent(key, i), tree.putIfAbsent(key, i));
+				break;
+			case 5:
+				assertEquals(ref.replace(key, i), tree.replace(key, i));
+				break;
+			default: throw new IllegalStateException();
+			}
+			assertEquals(ref.size(), tree.size());
+		}
+		assertEquals(ref.toStringPlain(), tree.toStringPlain());
+		tree.getStats();
+	}
+
+	@Test
+	public void testRollbackOnException() {
+		Random r = new Random(0);
+		int dim = 3;
+		PhTree<Integer> tree = createCOW(dim);
+		for (int i = 0; i < N_STABLE; i++) {
+			tree.put(randomKey(r, dim, true), i);
+		}
+		String before = tree.toStringPlain();
+		int size = tree.size();
+		long[] key = randomKey(r, dim, false);
+		try {
+			tree.computeIfAbsent(key, k -> {
+				throw new IllegalStateException();
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			//good
+		}
+		assertEquals(size, tree.size());
+		assertEquals(before, tree.toStringPlain());
+		assertNull(tree.get(key));
+		//tree is still writable
+		assertNull(tree.put(key, 42));
+		assertEquals(42, (int) tree.get(key));
+	}
+
+	@Test
+	public void testConcurrentReadersOneWriter() throws InterruptedException {
+		Random r = new Random(0);
+		int dim = 3;
+		PhTree<Integer> tree = createCOW(dim);
+		List<long[]> stable = new ArrayList<>();
+		while (stable.size() < N_STABLE) {
+			long[] key = randomKey(r, dim, true);
+			if (tree.put(key, stable.size()) == null) {
+				stable.add(key);
+			}
+		}
+
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t + 1;
+			threads.add(new Thread(() -> {
+				try {
+					read(tree, stable, dim, seed, done);
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+
+		//writer
+		try {
+			List<long[]> vol = new ArrayList<>();
+			for (int i = 0; i < 20000 && error.get() == null; i++) {
+				if (vol.size() < N_VOLATILE || r.nextInt(3) == 0) {
+					long[] key = randomKey(r, dim, false);
+					tree.put(key, -1);
+					vol.add(key);
+				} else if (r.nextBoolean()) {
+					tree.remove(vol.remove(r.nextInt(vol.size())));
+				} else {
+					int pos = r.nextInt(vol.size());
+					long[] key2 = randomKey(r, dim, false);
+					tree.update(vol.get(pos), key2);
+					vol.set(pos, key2);
+				}
+			}
+		} finally {
+			done.set(true);
+			for (Thread t : threads) {
+				t.join();
+			}
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		for (int i = 0; i < stable.size(); i++) {
+			assertEquals(i, (int) tree.get(stable.get(i)));
+		}
+	}
+
+	private static void read(PhTree<Integer> tree, List<long[]> stable, int dim, int seed,
+			AtomicBoolean done) {
+		Random r = new Random(seed);
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		while (!done.get()) {
+			//full extent: all stable entries must always be visible
+			int nStable = 0;
+			PhExtent<Integer> ext = tree.queryExtent();
+			while (ext.hasNext()) {
+				PhEntry<Integer> e = ext.nextEntry();
+				if ((e.getKey()[0] & 1L) == 0) {
+					assertArrayEquals(stable.get(e.getValue()), e.getKey());
+					nStable++;
+				} else {
+					assertEquals(-1, (int) e.getValue());
+				}
+			}
+			assertEquals(stable.size(), nStable);
+
+			//point queries
+			int pos = r.nextInt(stable.size());
+			long[] key = stable.get(pos);
+			assertEquals(pos, (int) tree.get(key));
+
+			//window queries
+			for (int d = 0; d < dim; d++) {
+				min[d] = key[d] - RANGE / 10;
+				max[d] = key[d] + RANGE / 10;
+			}
+			boolean found = false;
+			PhQuery<Integer> q = tree.query(min, max);
+			while (q.hasNext()) {
+				PhEntry<Integer> e = q.nextEntry();
+				for (int d = 0; d < dim; d++) {
+					assertTrue(e.getKey()[d] >= min[d] && e.getKey()[d] <= max[d]);
+				}
+				found |= e.getValue() == pos;
+			}
+			assertTrue(found);
+
+			//kNN
+			PhKnnQuery<Integer> knn = tree.nearestNeighbour(3, key);
+			assertTrue(knn.hasNext());
+			PhEntry<Integer> e = knn.nextEntry();
+			assertArrayEquals(key, e.getKey());
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+
+/**
+ * Stress tests for {@link PhTreeConfig#CONCURRENCY_HOH_COW}.
+ *
+ * @author ztilmann
+ */
+public class TestConcurrencyHOHCOW extends TestSuper {
+
+	private static final int N_THREADS = 4;
+	private static final int N_PER_THREAD = 2000;
+	private static final int N_OPS = 20000;
+	private static final long RANGE = 1L << 20;
+
+	private static <T> PhTree<T> createHOH(int dim) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_HOH_COW);
+		return PhTree.create(cfg);
+	}
+
+	/**
+	 * Each thread uses its own region, the thread ID is stored in the lowest bits of key[0].
+	 */
+	private static long[] randomKey(Random r, int dim, int threadId) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = (long) (r.nextDouble() * RANGE);
+		}
+		key[0] = (key[0] << 3) | threadId;
+		return key;
+	}
+
+	private static void runAll(List<Runnable> tasks) throws InterruptedException {
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (Runnable task : tasks) {
+			threads.add(new Thread(() -> {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+	}
+
+	@Test
+	public void testCreate() {
+		assertTrue(createHOH(3) instanceof PhTree13);
+		assertTrue(createHOH(10) instanceof PhTree13);
+	}
+
+	@Test
+	public void testParallelWritersDisjoint3D() throws InterruptedException {
+		testParallelWritersDisjoint(3);
+	}
+
+	@Test
+	public void testParallelWritersDisjoint10D() throws InterruptedException {
+		testParallelWritersDisjoint(10);
+	}
+
+	/**
+	 * Writers insert, move and remove entries in their own region while readers run queries.
+	 */
+	private void testParallelWritersDisjoint(int dim) throws InterruptedException {
+		PhTree<Integer> tree = createHOH(dim);
+		List<List<long[]>> expected = new ArrayList<>();
+		List<Runnable> tasks = new ArrayList<>();
+		AtomicBoolean done = new AtomicBoolean(false);
+		for (int t = 0; t < N_THREADS; t++) {
+			final int id = t;
+			List<long[]> keys = new ArrayList<>();
+			expected.add(keys);
+			tasks.add(() -> {
+				try {
+					write(tree, dim, id, keys);
+				} finally {
+					done.set(true);
+				}
+			});
+		}
+		for (int t = 0; t < 2; t++) {
+			final int seed = t;
+			tasks.add(() -> read(tree, dim, seed, done));
+		}
+		runAll(tasks);
+
+		int n = 0;
+		for (int t = 0; t < N_THREADS; t++) {
+			for (long[] key : expected.get(t)) {
+				assertEquals(t, (int) tree.get(key));
+			}
+			n += expected.get(t).size();
+		}
+		assertEquals(n, tree.size());
+		int n2 = 0;
+		PhExtent<Integer> it = tree.queryExtent();
+		while (it.hasNext()) {
+			it.next();
+			n2++;
+		}
+		assertEquals(n, n2);
+		tree.getStats();
+	}
+
+	private static void write(PhTree<Integer> tree, int dim, int id, List<long[]> keys) {
+		Random r = new Random(id);
+		for (int i = 0; i < N_OPS; i++) {
+			int op = keys.size() < N_PER_THREAD ? 0 : r.nextInt(3);
+			switch (op) {
+			case 0: {
+				long[] key = randomKey(r, dim, id);
+				assertNull(tree.put(key, id));
+				keys.add(key);
+				break;
+			}
+			case 1: {
+				long[] key = keys.remove(r.nextInt(keys.size()));
+				assertEquals(id, (int) tree.remove(key));
+				break;
+			}
+			case 2: {
+				int pos = r.nextInt(keys.size());
+				long[] key2 = randomKey(r, dim, id);
+				assertEquals(id, (int) tree.update(keys.get(pos), key2));
+				keys.set(pos, key2);
+				break;
+			}
+			default: throw new IllegalStateException();
+			}
+		}
+	}
+
+	private static void read(PhTree<Integer> tree, int dim, int seed, AtomicBoolean done) {
+		Random r = new Random(seed);
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		while (!done.get()) {
+			long[] center = randomKey(r, dim, r.nextInt(N_THREADS));
+			for (int d = 0; d < dim; d++) {
+				min[d] = center[d] - (d == 0 ? RANGE : RANGE / 10);
+				max[d] = center[d] + (d == 0 ? RANGE : RANGE / 10);
+			}
+			PhTree.PhQuery<Integer> q = tree.query(min, max);
+			while (q.hasNext()) {
+				PhEntry<Integer> e = q.nextEntry();
+				for (int d = 0; d < dim; d++) {
+					assertTrue(e.getKey()[d] >= min[d] && e.getKey()[d] <= max[d]);
+				}
+				assertEquals(e.getKey()[0] & 7, (long) e.getValue());
+			}
+			PhKnnQuery<Integer> knn = tree.nearestNeighbour(5, center);
+			while (knn.hasNext()) {
+				PhEntry<Integer> e = knn.nextEntry();
+				assertEquals(e.getKey()[0] & 7, (long) e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * All writers modify the same few entries, the result shows whether updates got lost.
+	 */
+	@Test
+	public void testParallelWritersContended() throws InterruptedException {
+		int dim = 3;
+		PhTree<Integer> tree = createHOH(dim);
+		List<long[]> keys = new ArrayList<>();
+		Random r = new Random(0);
+		for (int i = 0; i < 20; i++) {
+			keys.add(randomKey(r, dim, 0));
+		}
+		List<Runnable> tasks = new ArrayList<>();
+		for (int t = 0; t < N_THREADS; t++) {
+			final int seed = t;
+			tasks.add(() -> {
+				Random r2 = new Random(seed);
+				for (int i = 0; i < N_OPS; i++) {
+					tree.compute(keys.get(r2.nextInt(keys.size())), (k, v) -> v == null ? 1 : v + 1);
+				}
+			});
+		}
+		runAll(tasks);
+		int sum = 0;
+		for (long[] key : keys) {
+			Integer v = tree.get(key);
+			assertNotNull(v);
+			sum += v;
+		}
+		assertEquals(N_THREADS * N_OPS, sum);
+		assertEquals(keys.size(), tree.size());
+	}
+
+	/**
+	 * Writers insert and remove entries that are close to each other, this causes many
+	 * node splits and merges on shared nodes.
+	 */
+	@Test
+	public void testParallelWritersSplitMerge() throws InterruptedException {
+		int dim = 2;
+		PhTree<Integer> tree = createHOH(dim);
+		List<Runnable> tasks = new ArrayList<>();
+		for (int t = 0; t < N_THREADS; t++) {
+			final int id = t;
+			tasks.add(() -> {
+				Random r = new Random(id);
+				for (int i = 0; i < N_OPS; i++) {
+					long[] key = {r.nextInt(64) * N_THREADS + id, r.nextInt(64)};
+					if (r.nextBoolean()) {
+						tree.put(key, id);
+					} else {
+						tree.remove(key);
+					}
+				}
+			});
+		}
+		runAll(tasks);
+		int n = 0;
+		PhExtent<Integer> it = tree.queryExtent();
+		while (it.hasNext()) {
+			PhEntry<Integer> e = it.nextEntry();
+			assertEquals(e.getKey()[0] % N_THREADS, (long) e.getValue());
+			assertEquals(dim, e.getKey().length);
+			n++;
+		}
+		assertEquals(n, tree.size());
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertNull(tree.put(new long[] {1, 2}, 3));
+		assertEquals(1, tree.size());
+	}
+
+	/**
+	 * Writers move their entries by small distances, i.e. both keys of update() share
+	 * a long path while other writers modify the upper nodes of that path.
+	 */
+	@Test
+	public void testParallelUpdateNearby() throws InterruptedException {
+		int dim = 3;
+		PhTree<Integer> tree = createHOH(dim);
+		List<List<long[]>> expected = new ArrayList<>();
+		List<Runnable> tasks = new ArrayList<>();
+		for (int t = 0; t < N_THREADS; t++) {
+			final int id = t;
+			List<long[]> keys = new ArrayList<>();
+			Random r = new Random(id);
+			for (int i = 0; i < N_PER_THREAD; i++) {
+				long[] key = randomKey(r, dim, id);
+				if (tree.put(key, id) == null) {
+					keys.add(key);
+				}
+			}
+			expected.add(keys);
+			tasks.add(() -> {
+				for (int i = 0; i < N_OPS; i++) {
+					int pos = i % keys.size();
+					long[] key = keys.get(pos);
+					long[] key2 = key.clone();
+					key2[1] ^= 1L << (i % 8);
+					if (tree.get(key2) == null) {
+						assertEquals(id, (int) tree.update(key, key2));
+						keys.set(pos, key2);
+					}
+				}
+			});
+		}
+		runAll(tasks);
+		int n = 0;
+		for (int t = 0; t < N_THREADS; t++) {
+			for (long[] key : expected.get(t)) {
+				assertEquals(t, (int) tree.get(key));
+			}
+			n += expected.get(t).size();
+		}
+		assertEquals(n, tree.size());
+	}
+
+	@Test
+	public void testCompareWithNonHOH() {
+		Random r = new Random(0);
+		int dim = 5;
+		PhTree<Integer> tree = createHOH(dim);
+		PhTree<Integer> ref = new PhTree13<>(dim);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N_OPS; i++) {
+			long[] key = keys.isEmpty() || r.nextBoolean() ?
+					randomKey(r, dim, r.nextInt(N_THREADS)) : keys.get(r.nextInt(keys.size()));
+			switch (r.nextInt(6)) {
+			case 0:
+				assertEquals(ref.put(key, i), tree.put(key, i));
+				keys.add(key);
+				break;
+			case 1:
+				assertEquals(ref.remove(key), tree.remove(key));
+				break;
+			case 2: {
+				long[] key2 = randomKey(r, dim, r.nextInt(N_THREADS));
+				assertEquals(ref.update(key, key2), tree.update(key, key2));
+				keys.add(key2);
+				break;
+			}
+			case 3: {
+				int v = i;
+				assertEquals(ref.compute(key, (k, old) -> old == null ? v : null),
+						tree.compute(key, (k, old) -> old == null ? v : null));
+				break;
+			}
+			case 4:
+				assertEquals(ref.putIfAbsent(key, i), tree.putIfAbsent(key, i));
+				break;
+			case 5:
+				assertEquals(ref.computeIfPresent(key, (k, old) -> old + 1),
+						tree.computeIfPresent(key, (k, old) -> old + 1));
+				break;
+			default: throw new IllegalStateException();
+			}
+			assertEquals(ref.size(), tree.size());
+		}
+		assertEquals(ref.toStringPlain(), tree.toStringPlain());
+		tree.getStats();
+	}
+
+	@Test
+	public void testRollbackOnException() {
+		Random r = new Random(0);
+		int dim = 3;
+		PhTree<Integer> tree = createHOH(dim);
+		for (int i = 0; i < N_PER_THREAD; i++) {
+			tree.put(randomKey(r, dim, 0), i);
+		}
+		String before = tree.toStringPlain();
+		int size = tree.size();
+		long[] key = randomKey(r, dim, 1);
+		try {
+			tree.computeIfAbsent(key, k -> {
+				throw new IllegalStateException();
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			//good
+		}
+		assertEquals(size, tree.size());
+		assertEquals(before, tree.toStringPlain());
+		assertNull(tree.get(key));
+		//tree is still writable
+		assertNull(tree.put(key, 42));
+		assertEquals(42, (int) tree.get(key));
+	}
+}
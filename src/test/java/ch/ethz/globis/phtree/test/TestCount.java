@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTree#count(long[], long[])} and
+ * {@link PhTree#aggregate(long[], long[], Object, PhTree.PhAggregator)}.
+ *
+ * @author ztilmann
+ */
+public class TestCount extends TestSuper {
+
+	private static final int RANGE = 1000;
+
+	private static PhTree<Integer> create(int dim, int concurrency) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(concurrency);
+		return new PhTree16<>(cfg);
+	}
+
+	private static long[] randomKey(Random r, int dim) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = r.nextInt(RANGE) - RANGE / 5;
+		}
+		return key;
+	}
+
+	private static long countByQuery(PhTree<Integer> tree, long[] min, long[] max) {
+		PhQuery<Integer> q = tree.query(min, max);
+		long n = 0;
+		while (q.hasNext()) {
+			q.nextEntryReuse();
+			n++;
+		}
+		return n;
+	}
+
+	private static void checkCount(PhTree<Integer> tree, Random r) {
+		int dim = tree.getDim();
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		Arrays.fill(min, Long.MIN_VALUE);
+		Arrays.fill(max, Long.MAX_VALUE);
+		assertEquals(tree.size(), tree.count(min, max));
+		for (int i = 0; i < 20; i++) {
+			for (int d = 0; d < dim; d++) {
+				long a = r.nextInt(RANGE) - RANGE / 5;
+				long b = r.nextInt(RANGE) - RANGE / 5;
+				min[d] = Math.min(a, b);
+				max[d] = Math.max(a, b);
+			}
+			assertEquals(countByQuery(tree, min, max), tree.count(min, max));
+		}
+	}
+
+	@Test
+	public void testCount() {
+		Random r = new Random(0);
+		for (int dim : new int[] {1, 3, 10, 20}) {
+			for (int n : new int[] {0, 1, 10, 1000, 20_000}) {
+				PhTree<Integer> tree = new PhTree16<>(dim);
+				for (int i = 0; i < n; i++) {
+					tree.put(randomKey(r, dim), i);
+				}
+				checkCount(tree, r);
+			}
+		}
+	}
+
+	@Test
+	public void testModifications() {
+		for (int concurrency : new int[] {PhTreeConfig.CONCURRENCY_NONE,
+				PhTreeConfig.CONCURRENCY_COW, PhTreeConfig.CONCURRENCY_OL_COW}) {
+			for (int dim : new int[] {2, 10}) {
+				Random r = new Random(dim);
+				PhTree<Integer> tree = create(dim, concurrency);
+				for (int round = 0; round < 10; round++) {
+					for (int i = 0; i < 2000; i++) {
+						long[] key = randomKey(r, dim);
+						switch (r.nextInt(8)) {
+						case 0: tree.remove(key); break;
+						case 1: tree.update(key, randomKey(r, dim)); break;
+						case 2: tree.putIfAbsent(key, i); break;
+						case 3: tree.computeIfAbsent(key, k -> 1); break;
+						case 4: tree.computeIfPresent(key, (k, v) -> null); break;
+						case 5: tree.compute(key, (k, v) -> v == null ? 1 : null); break;
+						default: tree.put(key, i);
+						}
+					}
+					checkCount(tree, r);
+				}
+				//remove all
+				long[] min = new long[dim];
+				long[] max = new long[dim];
+				Arrays.fill(min, Long.MIN_VALUE);
+				Arrays.fill(max, Long.MAX_VALUE);
+				List<long[]> keys = new ArrayList<>();
+				PhExtent<Integer> extent = tree.queryExtent();
+				while (extent.hasNext()) {
+					keys.add(extent.nextKey());
+				}
+				for (long[] key : keys) {
+					tree.remove(key);
+					assertEquals(tree.size(), tree.count(min, max));
+				}
+				assertEquals(0, tree.count(min, max));
+			}
+		}
+	}
+
+	@Test
+	public void testBulkLoad() {
+		Random r = new Random(0);
+		int dim = 3;
+		long[][] keys = new long[50_000][];
+		Integer[] values = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = randomKey(r, dim);
+			values[i] = i;
+		}
+		PhTree<Integer> parallel = new PhTree16<>(dim);
+		parallel.bulkLoad(keys, values, ForkJoinPool.commonPool());
+		checkCount(parallel, r);
+		PhTree<Integer> tree = new PhTree16<>(dim);
+		tree.bulkLoad(keys, values);
+		checkCount(tree, r);
+		for (int i = 0; i < 1000; i++) {
+			tree.put(randomKey(r, dim), i);
+			tree.remove(randomKey(r, dim));
+		}
+		checkCount(tree, r);
+	}
+
+	@Test
+	public void testAggregate() {
+		Random r = new Random(0);
+		//3D: v13 (default implementation), 10D: v16
+		for (int dim : new int[] {3, 10}) {
+			PhTree<Integer> tree = PhTree.create(dim);
+			for (int i = 0; i < 10_000; i++) {
+				tree.put(randomKey(r, dim), i);
+			}
+			checkCount(tree, r);
+			for (int i = 0; i < 20; i++) {
+				long[] min = randomKey(r, dim);
+				long[] max = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					max[d] = min[d] + r.nextInt(RANGE);
+				}
+				LongSummaryStatistics expected = new LongSummaryStatistics();
+				long expectedKeySum = 0;
+				PhQuery<Integer> q = tree.query(min, max);
+				while (q.hasNext()) {
+					PhEntry<Integer> e = q.nextEntry();
+					expected.accept(e.getValue());
+					expectedKeySum += e.getKey()[0];
+				}
+				LongSummaryStatistics stats = tree.aggregate(min, max,
+						new LongSummaryStatistics(), (s, key, value) -> s.accept(value));
+				assertEquals(expected.toString(), stats.toString());
+				long[] keySum = tree.aggregate(min, max, new long[1], (s, key, value) -> s[0] += key[0]);
+				assertEquals(expectedKeySum, keySum[0]);
+			}
+		}
+	}
+
+	@Test
+	public void testNullValues() {
+		for (PhTree<Integer> tree : Arrays.<PhTree<Integer>>asList(new PhTree13<>(3), new PhTree16<>(3))) {
+			tree.put(new long[] {1, 2, 3}, null);
+			tree.put(new long[] {4, 5, 6}, 42);
+			long[] min = {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+			long[] max = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+			assertEquals(2, tree.count(min, max));
+			int[] nNull = new int[1];
+			tree.aggregate(min, max, nNull, (s, key, value) -> s[0] += value == null ? 1 : 0);
+			assertEquals(1, nNull[0]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongDim() {
+		new PhTree16<Integer>(3).count(new long[2], new long[3]);
+	}
+}
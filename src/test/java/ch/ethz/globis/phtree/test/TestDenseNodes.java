@@ -0,0 +1,283 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for switching nodes of {@code PhTree16} between BST and dense representation.
+ *
+ * @author ztilmann
+ */
+public class TestDenseNodes {
+
+	/**
+	 * @return All keys with coordinates in [0, width)
+	 */
+	private static List<long[]> grid(int dims, int width) {
+		List<long[]> keys = new ArrayList<>();
+		int n = 1;
+		for (int d = 0; d < dims; d++) {
+			n *= width;
+		}
+		for (int i = 0; i < n; i++) {
+			long[] key = new long[dims];
+			int x = i;
+			for (int d = 0; d < dims; d++) {
+				key[d] = x % width;
+				x /= width;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	private static void check(PhTree16<Integer> tree, HashMap<List<Long>, Integer> map) {
+		assertEquals(map.size(), tree.size());
+		int n = 0;
+		PhExtent<Integer> it = tree.queryExtent();
+		while (it.hasNext()) {
+			long[] key = it.nextKey();
+			assertEquals(map.get(toList(key)), tree.get(key));
+			n++;
+		}
+		assertEquals(map.size(), n);
+	}
+
+	private static List<Long> toList(long[] key) {
+		List<Long> list = new ArrayList<>();
+		for (long k : key) {
+			list.add(k);
+		}
+		return list;
+	}
+
+	@Test
+	public void testSwitch() {
+		for (int dims = 4; dims <= 10; dims++) {
+			PhTree16<Integer> tree = new PhTree16<>(dims);
+			List<long[]> keys = grid(dims, 2);
+			Collections.shuffle(keys, new Random(dims));
+			HashMap<List<Long>, Integer> map = new HashMap<>();
+			for (int i = 0; i < keys.size(); i++) {
+				assertNull(tree.put(keys.get(i), i));
+				map.put(toList(keys.get(i)), i);
+			}
+			check(tree, map);
+			PhTreeStats stats = tree.getStats();
+			assertEquals(1, stats.getDenseCount());
+			assertEquals(keys.size(), stats.getDenseEntryCount());
+			assertEquals(keys.size(), stats.getDenseSlotCount());
+			assertEquals(1, stats.getSwitchToDenseCount());
+			assertEquals(0, stats.getSwitchToBstCount());
+
+			//query
+			long[] min = new long[dims];
+			long[] max = new long[dims];
+			max[0] = 1;
+			PhQuery<Integer> q = tree.query(min, max);
+			int nQ = 0;
+			while (q.hasNext()) {
+				q.nextKey();
+				nQ++;
+			}
+			assertEquals(2, nQ);
+
+			//remove until the node switches back
+			for (int i = 0; i < keys.size() * 7 / 8; i++) {
+				assertEquals(map.remove(toList(keys.get(i))), tree.remove(keys.get(i)));
+				if (i % 5 == 0) {
+					check(tree, map);
+				}
+			}
+			check(tree, map);
+			stats = tree.getStats();
+			assertEquals(0, stats.getDenseCount());
+			assertEquals(1, stats.getSwitchToBstCount());
+		}
+	}
+
+	@Test
+	public void testQuery() {
+		Random r = new Random(0);
+		for (int dims = 2; dims <= 8; dims++) {
+			PhTree16<Integer> tree = new PhTree16<>(dims);
+			List<long[]> keys = grid(dims, 4);
+			for (int i = 0; i < keys.size(); i++) {
+				if (r.nextInt(8) != 0) {
+					tree.put(keys.get(i), i);
+				}
+			}
+			assertTrue(tree.getStats().getDenseCount() > 0);
+			for (int i = 0; i < 200; i++) {
+				long[] min = new long[dims];
+				long[] max = new long[dims];
+				for (int d = 0; d < dims; d++) {
+					min[d] = r.nextInt(4);
+					max[d] = min[d] + r.nextInt(4 - (int) min[d]);
+				}
+				int nExpected = 0;
+				for (long[] key : keys) {
+					if (tree.contains(key) && inside(key, min, max)) {
+						nExpected++;
+					}
+				}
+				int n = 0;
+				PhQuery<Integer> q = tree.query(min, max);
+				while (q.hasNext()) {
+					assertTrue(inside(q.nextKey(), min, max));
+					n++;
+				}
+				assertEquals(nExpected, n);
+			}
+		}
+	}
+
+	private static boolean inside(long[] key, long[] min, long[] max) {
+		for (int d = 0; d < key.length; d++) {
+			if (key[d] < min[d] || key[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void testMergeIntoParent() {
+		//Each 2x2 block becomes a dense node. Removing three entries of a block merges the 
+		//remaining entry into the parent.
+		PhTree16<Integer> tree = new PhTree16<>(2);
+		HashMap<List<Long>, Integer> map = new HashMap<>();
+		List<long[]> keys = grid(2, 8);
+		for (int i = 0; i < keys.size(); i++) {
+			tree.put(keys.get(i), i);
+			map.put(toList(keys.get(i)), i);
+		}
+		int nDense = tree.getStats().getDenseCount();
+		assertTrue(nDense >= 16);
+		for (long[] key : keys) {
+			if ((key[0] & key[1] & 1) == 0) {
+				assertEquals(map.remove(toList(key)), tree.remove(key));
+				check(tree, map);
+			}
+		}
+		assertEquals(nDense - 16, tree.getStats().getDenseCount());
+	}
+
+	@Test
+	public void testRandom() {
+		Random r = new Random(0);
+		for (int dims = 3; dims <= 8; dims++) {
+			PhTree16<Integer> tree = new PhTree16<>(dims);
+			HashMap<List<Long>, Integer> map = new HashMap<>();
+			List<long[]> keys = grid(dims, 4);
+			for (int i = 0; i < 20_000; i++) {
+				long[] key = keys.get(r.nextInt(keys.size()));
+				if (r.nextInt(3) == 0) {
+					assertEquals(map.remove(toList(key)), tree.remove(key));
+				} else if (r.nextBoolean()) {
+					assertEquals(map.put(toList(key), i), tree.put(key, i));
+				} else {
+					assertEquals(map.computeIfAbsent(toList(key), k -> -1),
+							tree.computeIfAbsent(key, k -> -1));
+				}
+			}
+			check(tree, map);
+			assertTrue(tree.getStats().getDenseCount() > 0);
+		}
+	}
+
+	/**
+	 * With 64 dimensions, the distances between hc-positions in the binary search overflow.
+	 */
+	@Test
+	public void testBinarySearch64() {
+		Random r = new Random(0);
+		int dims = 64;
+		PhTree16<Integer> tree = new PhTree16<>(dims);
+		HashMap<List<Long>, Integer> map = new HashMap<>();
+		for (int i = 0; i < 5_000; i++) {
+			long[] key = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				key[d] = r.nextInt(1000) - 300;
+			}
+			assertEquals(map.put(toList(key), i), tree.put(key, i));
+		}
+		check(tree, map);
+	}
+
+	@Test
+	public void testBulkLoad() {
+		int dims = 6;
+		List<long[]> keys = grid(dims, 2);
+		long[][] keyArray = keys.toArray(new long[0][]);
+		Integer[] values = new Integer[keyArray.length];
+		HashMap<List<Long>, Integer> map = new HashMap<>();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+			map.put(toList(keyArray[i]), i);
+		}
+		PhTree16<Integer> tree = new PhTree16<>(dims);
+		tree.bulkLoad(keyArray, values);
+		check(tree, map);
+		assertEquals(1, tree.getStats().getDenseCount());
+	}
+
+	@Test
+	public void testCOW() {
+		int dims = 6;
+		PhTreeConfig cfg = new PhTreeConfig(dims);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		PhTree16<Integer> tree = new PhTree16<>(cfg);
+		HashMap<List<Long>, Integer> map = new HashMap<>();
+		List<long[]> keys = grid(dims, 2);
+		for (int i = 0; i < keys.size(); i++) {
+			tree.put(keys.get(i), i);
+			map.put(toList(keys.get(i)), i);
+		}
+		assertEquals(1, tree.getStats().getDenseCount());
+		PhExtent<Integer> it = tree.queryExtent();
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals(map.remove(toList(keys.get(i))), tree.remove(keys.get(i)));
+		}
+		//The iterator still sees the old version
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		assertEquals(keys.size(), n);
+		check(tree, map);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.zoodb.index.critbit.BitTools;
+
+import ch.ethz.globis.phtree.PhDistanceF;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhFilterWindow;
+import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
+
+/**
+ * Tests for the block-wise window checks and distance functions.
+ *
+ * @author ztilmann
+ */
+public class TestFilterWindow {
+
+	private static boolean inside(long[] key, long[] min, long[] max, long mask) {
+		for (int d = 0; d < key.length; d++) {
+			long k = key[d] & mask;
+			if (k < (min[d] & mask) || k > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void testWindow() {
+		Random r = new Random(0);
+		PhFilterWindow filter = new PhFilterWindow();
+		for (int dims = 1; dims <= 20; dims++) {
+			long[] min = new long[dims];
+			long[] max = new long[dims];
+			for (int i = 0; i < 10_000; i++) {
+				long[] key = new long[dims];
+				for (int d = 0; d < dims; d++) {
+					min[d] = r.nextInt(100) - 50;
+					max[d] = min[d] + 80;
+					key[d] = r.nextInt(200) - 100;
+				}
+				//Make some keys fail only in the last dimension
+				if (i % 3 == 0) {
+					for (int d = 0; d < dims - 1; d++) {
+						key[d] = min[d];
+					}
+				}
+				boolean expected = inside(key, min, max, -1L);
+				assertEquals(expected, LongArrayOps.checkRange(key, min, max));
+				filter.set(min, max);
+				assertEquals(expected, filter.isValid(key));
+				int bitsToIgnore = r.nextInt(8);
+				assertEquals(inside(key, min, max, (-1L) << bitsToIgnore),
+						filter.isValid(bitsToIgnore, key));
+			}
+		}
+	}
+
+	@Test
+	public void testDistance() {
+		Random r = new Random(0);
+		for (int dims = 1; dims <= 20; dims++) {
+			for (int i = 0; i < 1000; i++) {
+				long[] l1 = new long[dims];
+				long[] l2 = new long[dims];
+				long[] f1 = new long[dims];
+				long[] f2 = new long[dims];
+				double dL = 0;
+				double dF = 0;
+				for (int d = 0; d < dims; d++) {
+					l1[d] = r.nextInt(1_000_000);
+					l2[d] = r.nextInt(1_000_000);
+					double x = l1[d] - l2[d];
+					dL += x * x;
+					double x1 = r.nextDouble();
+					double x2 = r.nextDouble();
+					dF += (x1 - x2) * (x1 - x2);
+					f1[d] = BitTools.toSortableLong(x1);
+					f2[d] = BitTools.toSortableLong(x2);
+				}
+				//Sums of integers below 2^53 are exact
+				assertEquals(Math.sqrt(dL), PhDistanceL.THIS.dist(l1, l2), 0.0);
+				assertEquals(Math.sqrt(dF), PhDistanceF.THIS.dist(f1, f2), 1e-12);
+			}
+		}
+	}
+}
@@ -21,6 +21,8 @@ import org.zoodb.index.critbit.BitTools;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.test.util.TestSuper;
 import ch.ethz.globis.phtree.test.util.TestUtil;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
 
 public class TestIndexUpdate extends TestSuper {
 
@@ -257,4 +259,23 @@ public class TestIndexUpdate extends TestSuper {
         assertEquals(5, (int)phTree.get(key2b));
         assertNull(phTree.get(key2a));
     }
+
+    @Test
+    public void testUpdateInPlaceSize() {
+        testUpdateInPlaceSize(new PhTree16<>(2));
+        testUpdateInPlaceSize(new PhTree16HD<>(2));
+    }
+
+    private void testUpdateInPlaceSize(PhTree<Integer> phTree) {
+        long[] key00 = {0, 0};
+        long[] key11 = {1, 1};
+        long[] key88 = {8, 8};
+        phTree.put(key00, 1);
+        phTree.put(key88, 2);
+        //the new key differs only in the postfix, it is updated in place
+        assertEquals(1, (int)phTree.update(key00, key11));
+        assertEquals(2, phTree.size());
+        assertEquals(1, (int)phTree.get(key11));
+        assertNull(phTree.get(key00));
+    }
 }
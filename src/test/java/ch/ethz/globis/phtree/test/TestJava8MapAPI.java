@@ -19,6 +19,7 @@
 package ch.ethz.globis.phtree.test;
 
 import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeConfig;
 import ch.ethz.globis.phtree.test.util.TestSuper;
 import ch.ethz.globis.phtree.v13.PhTree13;
 import ch.ethz.globis.phtree.v16.PhTree16;
@@ -49,6 +50,21 @@ public class TestJava8MapAPI extends TestSuper {
         return Arrays.asList(new Object[][] {
             { (IntFunction<PhTree<?>>) (dim) -> new PhTree13<>(dim) },
             { (IntFunction<PhTree<?>>) (dim) -> new PhTree16<>(dim) },
+            { (IntFunction<PhTree<?>>) (dim) -> {
+                PhTreeConfig cfg = new PhTreeConfig(dim);
+                cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+                return new PhTree16<>(cfg);
+            } },
+            { (IntFunction<PhTree<?>>) (dim) -> {
+                PhTreeConfig cfg = new PhTreeConfig(dim);
+                cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_OL_COW);
+                return new PhTree16<>(cfg);
+            } },
+            { (IntFunction<PhTree<?>>) (dim) -> {
+                PhTreeConfig cfg = new PhTreeConfig(dim);
+                cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_HOH_COW);
+                return new PhTree13<>(cfg);
+            } },
         });
     }
     
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhKnnBatchResult;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+
+/**
+ * Tests for {@link PhTree#nearestNeighbourBatch(int, PhDistance, long[][], ForkJoinPool)}.
+ *
+ * @author ztilmann
+ */
+public class TestKnnBatch extends TestSuper {
+
+	private static long[][] randomKeys(Random r, int n, int dim) {
+		long[][] keys = new long[n][dim];
+		for (int i = 0; i < n; i++) {
+			for (int d = 0; d < dim; d++) {
+				keys[i][d] = r.nextInt(100_000) - 20_000;
+			}
+		}
+		return keys;
+	}
+
+	@Test
+	public void testSequential() {
+		//3D: v13, 10D: v16, 70D: v16HD (default implementation)
+		for (int dim : new int[] {3, 10, 70}) {
+			check(dim, null);
+		}
+	}
+
+	@Test
+	public void testParallel() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int dim : new int[] {3, 10, 70}) {
+				check(dim, pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void check(int dim, ForkJoinPool pool) {
+		Random r = new Random(dim);
+		PhTree<Integer> tree = PhTree.create(dim);
+		long[][] keys = randomKeys(r, 10_000, dim);
+		for (int i = 0; i < keys.length; i++) {
+			tree.put(keys[i], i);
+		}
+		long[][] centers = randomKeys(r, 2_000, dim);
+		for (int k : new int[] {1, 10}) {
+			PhKnnBatchResult<Integer> result = tree.nearestNeighbourBatch(k, null, centers, pool);
+			assertEquals(centers.length, result.size());
+			assertEquals(k, result.getK());
+			for (int q = 0; q < centers.length; q++) {
+				PhKnnQuery<Integer> knn = tree.nearestNeighbour(k, centers[q]);
+				assertEquals(k, result.count(q));
+				for (int i = 0; i < k; i++) {
+					PhEntryDist<Integer> e = knn.nextEntry();
+					//keys may differ if several entries have the same distance
+					assertEquals(e.dist(), result.dist(q, i), 0.0);
+					long[] key = result.key(q, i);
+					assertEquals(result.dist(q, i), PhDistanceL.THIS.dist(centers[q], key), 0.0);
+					assertEquals(key[dim - 1], result.key(q, i, dim - 1));
+					assertEquals(tree.get(key), result.value(q, i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSmallTree() {
+		PhTree<Integer> tree = PhTree.create(10);
+		long[][] centers = randomKeys(new Random(0), 1000, 10);
+		PhKnnBatchResult<Integer> result = tree.nearestNeighbourBatch(3, centers);
+		assertEquals(0, result.count(0));
+
+		tree.put(centers[0], null);
+		tree.put(centers[1], 1);
+		result = tree.nearestNeighbourBatch(3, null, centers, ForkJoinPool.commonPool());
+		for (int q = 0; q < centers.length; q++) {
+			assertEquals(2, result.count(q));
+		}
+		assertEquals(0, result.dist(0, 0), 0.0);
+		assertNull(result.value(0, 0));
+		assertEquals(1, (int) result.value(0, 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongDim() {
+		PhTree<Integer> tree = PhTree.create(10);
+		tree.put(new long[10], 1);
+		tree.nearestNeighbourBatch(3, new long[][] {new long[10], new long[9]});
+	}
+}
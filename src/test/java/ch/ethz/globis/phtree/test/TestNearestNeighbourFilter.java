@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhFilterWindow;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16.PhTree16OffHeap;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+
+/**
+ * Tests for kNN queries with a {@code PhFilter}.
+ *
+ * @author ztilmann
+ */
+public class TestNearestNeighbourFilter {
+
+	private static final int N = 20_000;
+
+	/**
+	 * Window filter that counts how many entries it has to check.
+	 */
+	private static class CountingFilter extends PhFilterWindow {
+		int nKeys = 0;
+
+		@Override
+		public boolean isValid(long[] key) {
+			nKeys++;
+			return super.isValid(key);
+		}
+	}
+
+	private static long[][] fill(PhTree<Integer> tree, Random r) {
+		long[][] keys = new long[N][];
+		for (int i = 0; i < N; i++) {
+			long[] key = new long[tree.getDim()];
+			for (int d = 0; d < key.length; d++) {
+				key[d] = r.nextInt(10_000);
+			}
+			keys[i] = key;
+			tree.put(key, i);
+		}
+		return keys;
+	}
+
+	private static boolean inside(long[] key, long[] min, long[] max) {
+		for (int d = 0; d < key.length; d++) {
+			if (key[d] < min[d] || key[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void check(PhTree<Integer> tree) {
+		Random r = new Random(0);
+		long[][] keys = fill(tree, r);
+		int dim = tree.getDim();
+		CountingFilter filter = new CountingFilter();
+		for (int i = 0; i < 50; i++) {
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			long[] center = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				min[d] = r.nextInt(8_000);
+				max[d] = min[d] + 2_000;
+				center[d] = r.nextInt(10_000);
+			}
+			filter.set(min, max);
+			filter.nKeys = 0;
+
+			//brute force
+			double[] expected = Arrays.stream(keys)
+					.filter(k -> inside(k, min, max))
+					.mapToDouble(k -> PhDistanceL.THIS.dist(center, k))
+					.sorted().toArray();
+
+			int k = 10;
+			PhKnnQuery<Integer> q = tree.nearestNeighbour(k, PhDistanceL.THIS, filter, center);
+			int n = 0;
+			while (q.hasNext()) {
+				PhEntryDist<Integer> e = q.nextEntry();
+				assertTrue(inside(e.getKey(), min, max));
+				assertEquals(expected[n], e.dist(), 0.0);
+				n++;
+			}
+			assertEquals(Math.min(k, expected.length), n);
+			//sub-nodes outside the filter must be pruned
+			assertTrue(filter.nKeys + " / " + N, filter.nKeys < N / 4);
+		}
+
+		//nothing passes the filter
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		Arrays.fill(min, -10);
+		Arrays.fill(max, -5);
+		filter.set(min, max);
+		assertFalse(tree.nearestNeighbour(5, null, filter, new long[dim]).hasNext());
+	}
+
+	@Test
+	public void testV16() {
+		check(new PhTree16<>(3));
+	}
+
+	@Test
+	public void testV16HD() {
+		check(new PhTree16HD<>(3));
+	}
+
+	@Test
+	public void testOffHeap() {
+		check(new PhTree16OffHeap<>(3));
+	}
+}
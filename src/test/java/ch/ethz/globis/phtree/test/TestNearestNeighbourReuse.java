@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.v16.PhQueryKnnHS;
+import ch.ethz.globis.phtree.v16.PhQueryKnnHSZ;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+
+/**
+ * Tests for kNN query objects that are reused with {@code reset()}.
+ *
+ * @author ztilmann
+ */
+public class TestNearestNeighbourReuse {
+
+	private static final int N = 10_000;
+
+	private static long[][] fill(PhTree<Integer> tree, Random r) {
+		long[][] keys = new long[N][];
+		for (int i = 0; i < N; i++) {
+			long[] key = new long[tree.getDim()];
+			for (int d = 0; d < key.length; d++) {
+				key[d] = r.nextInt(10_000);
+			}
+			keys[i] = key;
+			tree.put(key, i);
+		}
+		return keys;
+	}
+
+	private static double[] sortedDistances(long[][] keys, long[] center) {
+		double[] dists = new double[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			dists[i] = PhDistanceL.THIS.dist(center, keys[i]);
+		}
+		Arrays.sort(dists);
+		return dists;
+	}
+
+	private static void check(PhTree<Integer> tree, long[][] keys, PhKnnQuery<Integer> q, 
+			Random r) {
+		int dims = tree.getDim();
+		for (int i = 0; i < 50; i++) {
+			long[] center = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				center[d] = r.nextInt(10_000);
+			}
+			int k = 1 + r.nextInt(20);
+			double[] expected = sortedDistances(keys, center);
+			q.reset(k, PhDistanceL.THIS, center);
+			PhEntryDist<Integer> first = null;
+			for (int j = 0; j < k; j++) {
+				assertTrue(q.hasNext());
+				PhEntryDist<Integer> e = j == 0 ? (first = q.nextEntry()) : q.nextEntryReuse();
+				assertEquals(expected[j], e.dist(), 0.0);
+				assertEquals(e.dist(), PhDistanceL.THIS.dist(center, e.getKey()), 0.0);
+				assertEquals(e.getValue(), tree.get(e.getKey()));
+			}
+			assertFalse(q.hasNext());
+			//nextEntry() returns entries that are not reused
+			assertEquals(expected[0], first.dist(), 0.0);
+		}
+	}
+
+	@Test
+	public void testHS() {
+		for (int dims : new int[] {2, 3, 10}) {
+			Random r = new Random(dims);
+			PhTree16<Integer> tree = new PhTree16<>(dims);
+			long[][] keys = fill(tree, r);
+			check(tree, keys, new PhQueryKnnHS<>(tree), r);
+		}
+	}
+
+	@Test
+	public void testHSZ() {
+		for (int dims : new int[] {2, 3, 10}) {
+			Random r = new Random(dims);
+			PhTree16<Integer> tree = new PhTree16<>(dims);
+			long[][] keys = fill(tree, r);
+			check(tree, keys, new PhQueryKnnHSZ<>(tree), r);
+		}
+	}
+
+	@Test
+	public void testHD() {
+		for (int dims : new int[] {2, 10, 70}) {
+			Random r = new Random(dims);
+			PhTree16HD<Integer> tree = new PhTree16HD<>(dims);
+			long[][] keys = fill(tree, r);
+			check(tree, keys, new ch.ethz.globis.phtree.v16hd.PhQueryKnnHS<>(tree), r);
+			check(tree, keys, new ch.ethz.globis.phtree.v16hd.PhQueryKnnHSZ<>(tree), r);
+			check(tree, keys, tree.nearestNeighbour(1, PhDistanceL.THIS, null, new long[dims]), r);
+		}
+	}
+
+	@Test
+	public void testCustomDistance() {
+		int dims = 3;
+		Random r = new Random(0);
+		PhTree16<Integer> tree = new PhTree16<>(dims);
+		long[][] keys = fill(tree, r);
+		check(tree, keys, tree.nearestNeighbour(1, PhDistanceL.THIS, null, new long[dims]), r);
+	}
+}
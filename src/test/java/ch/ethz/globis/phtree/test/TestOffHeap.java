@@ -0,0 +1,233 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.unmaskNull;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16.PhTree16OffHeap;
+
+/**
+ * Tests for {@link PhTree16OffHeap}.
+ *
+ * @author ztilmann
+ */
+public class TestOffHeap extends TestSuper {
+
+	private static long[] randomKey(Random r, int dim, boolean large) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = large ? r.nextLong() : r.nextInt(1000) - 300;
+		}
+		return key;
+	}
+
+	private static void modify(PhTree<Integer> ref, PhTree<Integer> tree, Random r, int n,
+			boolean large) {
+		int dim = ref.getDim();
+		for (int i = 0; i < n; i++) {
+			long[] key = randomKey(r, dim, large);
+			Object expected;
+			Integer actual;
+			int op = r.nextInt(8);
+			switch (op) {
+			case 0:
+			case 1:
+				expected = ref.remove(key);
+				actual = tree.remove(key);
+				break;
+			case 2:
+				long[] newKey = randomKey(r, dim, large);
+				expected = ref.update(key, newKey);
+				actual = tree.update(key, newKey);
+				break;
+			case 3:
+				expected = ref.compute(key, (k, v) -> v == null ? 1 : null);
+				actual = tree.compute(key, (k, v) -> v == null ? 1 : null);
+				break;
+			case 4:
+				expected = ref.putIfAbsent(key, i);
+				actual = tree.putIfAbsent(key, i);
+				break;
+			case 5:
+				expected = ref.put(key, null);
+				actual = tree.put(key, null);
+				break;
+			default:
+				expected = ref.put(key, i);
+				actual = tree.put(key, i);
+			}
+			//PhTree16 may return its internal marker for 'null' values
+			assertEquals(unmaskNull(expected), actual);
+			assertEquals(ref.size(), tree.size());
+		}
+	}
+
+	private static void check(PhTree<Integer> ref, PhTree<Integer> tree, Random r, boolean large) {
+		int dim = ref.getDim();
+		assertEquals(ref.size(), tree.size());
+		PhExtent<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			assertTrue(tree.contains(e.getKey()));
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+		//same iteration order
+		PhExtent<Integer> ex1 = ref.queryExtent();
+		PhExtent<Integer> ex2 = tree.queryExtent();
+		while (ex1.hasNext()) {
+			assertArrayEquals(ex1.nextKey(), ex2.nextKey());
+		}
+		assertFalse(ex2.hasNext());
+		//The PH-Tree is canonical, the structure must be the same
+		assertEquals(ref.getStats().nNodes, tree.getStats().nNodes);
+		assertArrayEquals(ref.getStats().infixHist, tree.getStats().infixHist);
+
+		for (int i = 0; i < 20; i++) {
+			long[] min = randomKey(r, dim, large);
+			long[] max = randomKey(r, dim, large);
+			for (int d = 0; d < dim; d++) {
+				if (min[d] > max[d]) {
+					long x = min[d];
+					min[d] = max[d];
+					max[d] = x;
+				}
+			}
+			List<PhEntry<Integer>> l1 = ref.queryAll(min, max);
+			List<PhEntry<Integer>> l2 = tree.queryAll(min, max);
+			assertEquals(l1.size(), l2.size());
+			for (int j = 0; j < l1.size(); j++) {
+				assertArrayEquals(l1.get(j).getKey(), l2.get(j).getKey());
+				assertEquals(l1.get(j).getValue(), l2.get(j).getValue());
+			}
+
+			long[] center = randomKey(r, dim, large);
+			PhKnnQuery<Integer> knn1 = ref.nearestNeighbour(5, center);
+			PhKnnQuery<Integer> knn2 = tree.nearestNeighbour(5, center);
+			while (knn1.hasNext()) {
+				assertTrue(knn2.hasNext());
+				assertEquals(knn1.nextEntry().dist(), knn2.nextEntry().dist(), 0.0);
+			}
+			assertFalse(knn2.hasNext());
+
+			if (!large) {
+				PhRangeQuery<Integer> rq1 = ref.rangeQuery(100, center);
+				PhRangeQuery<Integer> rq2 = tree.rangeQuery(100, center);
+				int n = 0;
+				while (rq1.hasNext()) {
+					rq1.next();
+					n++;
+				}
+				while (rq2.hasNext()) {
+					rq2.next();
+					n--;
+				}
+				assertEquals(0, n);
+			}
+		}
+	}
+
+	@Test
+	public void testOperations() {
+		for (int dim : new int[] {1, 2, 3, 6}) {
+			for (boolean large : new boolean[] {false, true}) {
+				Random r = new Random(dim);
+				PhTree<Integer> ref = new PhTree16<>(dim);
+				PhTree<Integer> tree = new PhTree16OffHeap<>(dim);
+				modify(ref, tree, r, 20_000, large);
+				check(ref, tree, r, large);
+				modify(ref, tree, r, 10_000, large);
+				check(ref, tree, r, large);
+			}
+		}
+	}
+
+	@Test
+	public void testSmallSlabs() {
+		int dim = 3;
+		Random r = new Random(0);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		PhTree<Integer> tree = new PhTree16OffHeap<>(dim, 10);
+		modify(ref, tree, r, 20_000, true);
+		check(ref, tree, r, true);
+	}
+
+	@Test
+	public void testMemoryReuse() {
+		int dim = 2;
+		Random r = new Random(0);
+		PhTree16OffHeap<Integer> tree = new PhTree16OffHeap<>(dim);
+		long[][] keys = new long[10_000][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = randomKey(r, dim, true);
+			tree.put(keys[i], i);
+		}
+		long used = tree.getStats().size;
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i, (int) tree.remove(keys[i]));
+		}
+		assertEquals(0, tree.size());
+		assertEquals(0, tree.getStats().size);
+		for (int i = 0; i < keys.length; i++) {
+			tree.put(keys[i], i);
+		}
+		assertEquals(used, tree.getStats().size);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i, (int) tree.get(keys[i]));
+		}
+	}
+
+	@Test
+	public void testClear() {
+		PhTree16OffHeap<String> tree = new PhTree16OffHeap<>(3);
+		assertNull(tree.get(1, 2, 3));
+		assertFalse(tree.queryExtent().hasNext());
+		assertFalse(tree.nearestNeighbour(1, 1, 2, 3).hasNext());
+		tree.put(new long[] {1, 2, 3}, "a");
+		tree.put(new long[] {-1, 2, 3}, null);
+		assertEquals(2, tree.size());
+		assertEquals("a", tree.get(1, 2, 3));
+		assertTrue(tree.contains(-1, 2, 3));
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertFalse(tree.contains(1, 2, 3));
+		tree.put(new long[] {1, 2, 3}, "b");
+		assertEquals("b", tree.get(1, 2, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidKey() {
+		new PhTree16OffHeap<Integer>(3).put(new long[] {1, 2}, 1);
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.globis.phtree.PersistenceProviderFile;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PersistenceProviderFile}.
+ *
+ * @author ztilmann
+ */
+public class TestPersistenceFile extends TestSuper {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int RANGE = 10_000;
+
+	private Path file() throws IOException {
+		return folder.newFile().toPath();
+	}
+
+	private static PersistenceProviderFile open(Path path) {
+		//small cache, this forces page I/O and unloading of nodes
+		return new PersistenceProviderFile(path, PhValueCodec.INTEGER, 256, 64, 20);
+	}
+
+	private static PhTree<Integer> create(PersistenceProviderFile pp, int dim) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setPersistenceProvider(pp);
+		return PhTree.create(cfg);
+	}
+
+	private static long[] randomKey(Random r, int dim) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = r.nextInt(RANGE) - RANGE / 5;
+		}
+		return key;
+	}
+
+	private static void check(PhTree<Integer> ref, PhTree<Integer> tree, Random r) {
+		int dim = ref.getDim();
+		assertEquals(ref.size(), tree.size());
+		Map<String, Integer> expected = new HashMap<>();
+		PhExtent<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			expected.put(Arrays.toString(e.getKey()), e.getValue());
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+		int n = 0;
+		extent = tree.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			assertEquals(expected.get(Arrays.toString(e.getKey())), e.getValue());
+			n++;
+		}
+		assertEquals(ref.size(), n);
+		for (int i = 0; i < 10; i++) {
+			long[] min = randomKey(r, dim);
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				max[d] = min[d] + RANGE / 4;
+			}
+			assertEquals(ref.count(min, max), tree.count(min, max));
+			assertEquals(ref.queryAll(min, max).size(), tree.queryAll(min, max).size());
+			long[] center = randomKey(r, dim);
+			PhKnnQuery<Integer> knn1 = ref.nearestNeighbour(3, center);
+			PhKnnQuery<Integer> knn2 = tree.nearestNeighbour(3, center);
+			while (knn1.hasNext()) {
+				assertEquals(knn1.nextEntry().dist(), knn2.nextEntry().dist(), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testInsertRemoveReopen() throws IOException {
+		for (int dim : new int[] {2, 10}) {
+			Random r = new Random(dim);
+			Path path = file();
+			PersistenceProviderFile pp = open(path);
+			PhTree<Integer> tree = create(pp, dim);
+			assertTrue(tree instanceof PhTree16);
+			PhTree<Integer> ref = new PhTree16<>(dim);
+			for (int i = 0; i < 5000; i++) {
+				long[] key = randomKey(r, dim);
+				switch (r.nextInt(6)) {
+				case 0: assertEquals(ref.remove(key), tree.remove(key)); break;
+				case 1:
+					long[] newKey = randomKey(r, dim);
+					assertEquals(ref.update(key, newKey), tree.update(key, newKey));
+					break;
+				case 2: assertEquals(ref.compute(key, (k, v) -> v == null ? 1 : null),
+						tree.compute(key, (k, v) -> v == null ? 1 : null));
+					break;
+				default: assertEquals(ref.put(key, i), tree.put(key, i));
+				}
+			}
+			check(ref, tree, r);
+			assertTrue(pp.statsGetPageReads() > 0);
+			assertTrue(pp.statsGetPageWrites() > 0);
+			pp.close();
+
+			pp = open(path);
+			tree = pp.loadTree();
+			check(ref, tree, r);
+			//modify reopened tree
+			for (int i = 0; i < 2000; i++) {
+				long[] key = randomKey(r, dim);
+				assertEquals(ref.put(key, -i), tree.put(key, -i));
+				key = randomKey(r, dim);
+				assertEquals(ref.remove(key), tree.remove(key));
+			}
+			pp.close();
+			pp = open(path);
+			tree = create(pp, dim);
+			check(ref, tree, r);
+			tree.clear();
+			assertEquals(0, tree.size());
+			assertNull(tree.get(randomKey(r, dim)));
+			tree.put(new long[dim], null);
+			pp.close();
+
+			pp = open(path);
+			tree = pp.loadTree();
+			assertEquals(1, tree.size());
+			assertTrue(tree.contains(new long[dim]));
+			assertNull(tree.get(new long[dim]));
+			pp.close();
+		}
+	}
+
+	@Test
+	public void testBulkLoad() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		long[][] keys = new long[20_000][];
+		Integer[] values = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = randomKey(r, dim);
+			values[i] = i;
+		}
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		ref.bulkLoad(keys, values);
+		Path path = file();
+		PersistenceProviderFile pp = open(path);
+		PhTree<Integer> tree = create(pp, dim);
+		tree.bulkLoad(keys, values, ForkJoinPool.commonPool());
+		assertEquals(ref.stream().count(), tree.stream().parallel().count());
+		pp.close();
+		pp = open(path);
+		check(ref, pp.loadTree(), r);
+		pp.close();
+	}
+
+	@Test
+	public void testWriteTree() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		PhTree<Integer> ref = new PhTree13<>(dim);
+		for (int i = 0; i < 3000; i++) {
+			ref.put(randomKey(r, dim), i);
+		}
+		Path path = file();
+		PersistenceProviderFile pp = open(path);
+		assertNull(pp.loadTree());
+		pp.writeTree(ref, dim);
+		pp.close();
+		pp = open(path);
+		check(ref, pp.loadTree(), r);
+		pp.close();
+	}
+
+	private static class Point implements Externalizable {
+		long x;
+		long y;
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeLong(x);
+			out.writeLong(y);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			x = in.readLong();
+			y = in.readLong();
+		}
+	}
+
+	@Test
+	public void testExternalizable() throws IOException {
+		Path path = file();
+		PersistenceProviderFile pp = open(path);
+		Point p = new Point();
+		p.x = 3;
+		p.y = 4;
+		Object id = pp.registerNode(p);
+		p.y = 5;
+		pp.updateNode(p);
+		Point p2 = new Point();
+		p2.readExternal((ObjectInput) pp.loadNode(id));
+		assertEquals(3, p2.x);
+		assertEquals(5, p2.y);
+		pp.close();
+	}
+
+	@Test
+	public void testConcurrencyNotSupported() throws IOException {
+		for (int type : new int[] {PhTreeConfig.CONCURRENCY_COW, PhTreeConfig.CONCURRENCY_OL_COW}) {
+			PhTreeConfig cfg = new PhTreeConfig(10);
+			cfg.setConcurrencyType(type);
+			cfg.setPersistenceProvider(open(file()));
+			try {
+				PhTree.create(cfg);
+				fail();
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("PersistenceProviderFile"));
+				assertTrue(e.getMessage(), e.getMessage().contains(
+						type == PhTreeConfig.CONCURRENCY_COW ? "CONCURRENCY_COW" : "CONCURRENCY_OL_COW"));
+			}
+		}
+	}
+}
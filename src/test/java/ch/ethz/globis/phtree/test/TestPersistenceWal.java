@@ -0,0 +1,560 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.globis.phtree.PersistenceProviderFile;
+import ch.ethz.globis.phtree.PersistenceProviderWal;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PersistenceProviderWal}.
+ *
+ * @author ztilmann
+ */
+public class TestPersistenceWal extends TestSuper {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int RANGE = 1000;
+
+	private static PhTree<Integer> create(PersistenceProviderWal wal, int dim, int concurrency) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(concurrency);
+		cfg.setWriteAheadLog(wal);
+		return PhTree.create(cfg);
+	}
+
+	private static long[] randomKey(Random r, int dim) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = r.nextInt(RANGE) - RANGE / 5;
+		}
+		return key;
+	}
+
+	private static void modify(PhTree<Integer> ref, PhTree<Integer> tree, Random r, int n) {
+		int dim = ref.getDim();
+		for (int i = 0; i < n; i++) {
+			long[] key = randomKey(r, dim);
+			switch (r.nextInt(10)) {
+			case 0: assertEquals(ref.remove(key), tree.remove(key)); break;
+			case 1:
+				long[] newKey = randomKey(r, dim);
+				assertEquals(ref.update(key, newKey), tree.update(key, newKey));
+				break;
+			case 2: assertEquals(ref.compute(key, (k, v) -> v == null ? 1 : null),
+					tree.compute(key, (k, v) -> v == null ? 1 : null));
+				break;
+			case 3: assertEquals(ref.computeIfPresent(key, (k, v) -> v == null ? 7 : v + 1),
+					tree.computeIfPresent(key, (k, v) -> v == null ? 7 : v + 1));
+				break;
+			case 4: assertEquals(ref.putIfAbsent(key, i), tree.putIfAbsent(key, i)); break;
+			case 5: assertEquals(ref.replace(key, -i), tree.replace(key, -i)); break;
+			case 6: assertEquals(ref.put(key, null), tree.put(key, null)); break;
+			default: assertEquals(ref.put(key, i), tree.put(key, i));
+			}
+		}
+	}
+
+	private static void check(PhTree<Integer> ref, PhTree<Integer> tree) {
+		assertEquals(ref.size(), tree.size());
+		PhExtent<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			assertTrue(tree.contains(e.getKey()));
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+	}
+
+	private static List<Path> files(Path dir, String prefix) throws IOException {
+		try (Stream<Path> s = Files.list(dir)) {
+			return s.filter(p -> p.getFileName().toString().startsWith(prefix))
+					.sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void testRecovery() throws IOException {
+		for (int dim : new int[] {3, 10}) {
+			for (int c : new int[] {PhTreeConfig.CONCURRENCY_NONE, PhTreeConfig.CONCURRENCY_COW}) {
+				Random r = new Random(dim);
+				Path dir = folder.newFolder().toPath();
+				PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+				PhTree<Integer> tree = create(wal, dim, c);
+				assertTrue(tree instanceof PhTree16);
+				PhTree<Integer> ref = new PhTree16<>(dim);
+				modify(ref, tree, r, 3000);
+				//'crash': the log is not closed
+				PersistenceProviderWal wal2 = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+				PhTree<Integer> tree2 = create(wal2, dim, c);
+				check(ref, tree2);
+				modify(ref, tree2, r, 1000);
+				tree2.clear();
+				ref.clear();
+				modify(ref, tree2, r, 1000);
+				wal2.close();
+				wal.close();
+
+				wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+				check(ref, wal.loadTree());
+				wal.close();
+			}
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 2000);
+		wal.checkpoint();
+		modify(ref, tree, r, 2000);
+		wal.checkpoint();
+		modify(ref, tree, r, 500);
+		assertEquals(1, files(dir, "snapshot-").size());
+		assertEquals(1, files(dir, "wal-").size());
+		wal.close();
+
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		tree = wal.loadTree();
+		check(ref, tree);
+		//the log of the previous session is still needed
+		assertEquals(2, files(dir, "wal-").size());
+		wal.checkpoint();
+		wal.close();
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testBulkLoad() throws IOException {
+		int dim = 4;
+		Random r = new Random(0);
+		long[][] keys = new long[5000][];
+		Integer[] values = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = randomKey(r, dim);
+			values[i] = i;
+		}
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		ref.bulkLoad(keys, values);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		create(wal, dim, PhTreeConfig.CONCURRENCY_NONE).bulkLoad(keys, values);
+		wal.close();
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 1000);
+		wal.close();
+		//incomplete record: length, checksum and part of the data
+		Path log = files(dir, "wal-").get(0);
+		Files.write(log, new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0}, StandardOpenOption.APPEND);
+
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		tree = wal.loadTree();
+		check(ref, tree);
+		modify(ref, tree, r, 100);
+		wal.close();
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testDamagedRecord() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		modify(new PhTree16<>(dim), create(wal, dim, PhTreeConfig.CONCURRENCY_NONE), r, 1000);
+		wal.close();
+		//damaged record in the middle of the log
+		Path log = files(dir, "wal-").get(0);
+		byte[] data = Files.readAllBytes(log);
+		data[data.length / 2] ^= 0x10;
+		Files.write(log, data);
+		try {
+			new PersistenceProviderWal(dir, PhValueCodec.INTEGER).loadTree();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getMessage().contains("Invalid log record at"));
+		}
+	}
+
+	@Test
+	public void testTornRecordBeforeLaterLog() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, create(wal, dim, PhTreeConfig.CONCURRENCY_NONE), r, 1000);
+		wal.close();
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		modify(ref, wal.loadTree(), r, 100);
+		wal.close();
+		//A damaged record is not the end of the log if a later log file exists
+		Path log = files(dir, "wal-").get(0);
+		Files.write(log, new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0}, StandardOpenOption.APPEND);
+		try {
+			new PersistenceProviderWal(dir, PhValueCodec.INTEGER).loadTree();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getMessage().contains("Invalid log record at"));
+		}
+	}
+
+	@Test
+	public void testCheckpointWhileWriting() throws Exception {
+		int dim = 3;
+		int nThreads = 4;
+		int nPerThread = 2000;
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_COW);
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < nPerThread; i++) {
+					tree.put(new long[] {id, i, 0}, i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			while (t.isAlive()) {
+				wal.checkpoint();
+			}
+		}
+		wal.close();
+
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree2 = wal.loadTree();
+		assertEquals(nThreads * nPerThread, tree2.size());
+		for (int t = 0; t < nThreads; t++) {
+			for (int i = 0; i < nPerThread; i++) {
+				assertEquals(i, (int) tree2.get(t, i, 0));
+			}
+		}
+		wal.close();
+	}
+
+	@Test
+	public void testAsync() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER, false, 5);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 3000);
+		wal.flush();
+		assertTrue(wal.statsGetSyncs() < wal.statsGetRecords());
+		wal.close();
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER, false, 5);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		int dim = 3;
+		int nThreads = 4;
+		int nPerThread = 500;
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_COW);
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < nPerThread; i++) {
+					tree.put(new long[] {id, i, 0}, i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(nThreads * nPerThread, wal.statsGetRecords());
+		assertTrue(wal.statsGetSyncs() <= wal.statsGetRecords());
+		wal.checkpoint();
+		wal.close();
+
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		PhTree<Integer> tree2 = wal.loadTree();
+		assertEquals(nThreads * nPerThread, tree2.size());
+		assertEquals(7, (int) tree2.get(2, 7, 0));
+		wal.close();
+	}
+
+	private static PersistenceProviderWal incremental(Path dir) {
+		return new PersistenceProviderWal(dir, PhValueCodec.INTEGER, true,
+				PersistenceProviderWal.DEFAULT_SYNC_INTERVAL_MILLIS, true);
+	}
+
+	private static long nodeFileSize(Path dir) throws IOException {
+		List<Path> nodes = files(dir, "nodes-");
+		assertEquals(1, nodes.size());
+		return Files.size(nodes.get(0));
+	}
+
+	@Test
+	public void testIncrementalCheckpoint() throws IOException {
+		for (int dim : new int[] {3, 10}) {
+			for (int c : new int[] {PhTreeConfig.CONCURRENCY_NONE, PhTreeConfig.CONCURRENCY_COW}) {
+				Random r = new Random(dim);
+				Path dir = folder.newFolder().toPath();
+				PersistenceProviderWal wal = incremental(dir);
+				PhTree<Integer> tree = create(wal, dim, c);
+				PhTree<Integer> ref = new PhTree16<>(dim);
+				modify(ref, tree, r, 3000);
+				wal.checkpoint();
+				modify(ref, tree, r, 1000);
+				wal.checkpoint();
+				modify(ref, tree, r, 500);
+				assertEquals(0, files(dir, "snapshot-").size());
+				assertEquals(1, files(dir, "wal-").size());
+				//'crash': the log is not closed
+				PersistenceProviderWal wal2 = incremental(dir);
+				PhTree<Integer> tree2 = create(wal2, dim, c);
+				check(ref, tree2);
+				//the loaded nodes are clean
+				long size = nodeFileSize(dir);
+				wal2.checkpoint();
+				modify(ref, tree2, r, 1000);
+				wal2.checkpoint();
+				assertTrue(nodeFileSize(dir) > size);
+				tree2.clear();
+				ref.clear();
+				wal2.checkpoint();
+				modify(ref, tree2, r, 100);
+				wal2.close();
+				wal.close();
+
+				wal = incremental(dir);
+				check(ref, wal.loadTree());
+				wal.close();
+			}
+		}
+	}
+
+	@Test
+	public void testIncrementalCheckpointSize() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = incremental(dir);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		for (int i = 0; i < 50_000; i++) {
+			long[] key = {r.nextLong(), r.nextLong(), r.nextLong()};
+			ref.put(key, i);
+			tree.put(key, i);
+		}
+		wal.checkpoint();
+		long full = nodeFileSize(dir);
+		for (int i = 0; i < 2; i++) {
+			modify(ref, tree, r, 10);
+			long before = nodeFileSize(dir);
+			wal.checkpoint();
+			//only the paths to the modified keys are written
+			long delta = nodeFileSize(dir) - before;
+			assertTrue(delta + " / " + full, delta > 0 && delta < full / 100);
+		}
+		//nothing modified
+		long before = nodeFileSize(dir);
+		wal.checkpoint();
+		assertEquals(before, nodeFileSize(dir));
+		wal.close();
+
+		wal = incremental(dir);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testIncrementalCompaction() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = incremental(dir);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_COW);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 5000);
+		wal.checkpoint();
+		long compacted = nodeFileSize(dir);
+		long prev = compacted;
+		int nCompactions = 0;
+		for (int i = 0; i < 30; i++) {
+			modify(ref, tree, r, 500);
+			wal.checkpoint();
+			long size = nodeFileSize(dir);
+			if (size < prev) {
+				compacted = size;
+				nCompactions++;
+			}
+			assertTrue(size + " / " + compacted, size < 3 * compacted);
+			prev = size;
+		}
+		assertTrue(nCompactions > 2);
+		assertEquals(1, files(dir, "wal-").size());
+		wal.close();
+
+		wal = incremental(dir);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testIncrementalTornCheckpoint() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = incremental(dir);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 1000);
+		wal.checkpoint();
+		modify(ref, tree, r, 1000);
+		wal.close();
+		//records of an incomplete checkpoint
+		Path nodes = files(dir, "nodes-").get(0);
+		Files.write(nodes, new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0}, StandardOpenOption.APPEND);
+
+		wal = incremental(dir);
+		tree = wal.loadTree();
+		check(ref, tree);
+		modify(ref, tree, r, 100);
+		wal.checkpoint();
+		wal.close();
+		wal = incremental(dir);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testSwitchCheckpointMode() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		Path dir = folder.newFolder().toPath();
+		PersistenceProviderWal wal = incremental(dir);
+		PhTree<Integer> tree = create(wal, dim, PhTreeConfig.CONCURRENCY_NONE);
+		PhTree<Integer> ref = new PhTree16<>(dim);
+		modify(ref, tree, r, 1000);
+		wal.checkpoint();
+		wal.close();
+
+		wal = new PersistenceProviderWal(dir, PhValueCodec.INTEGER);
+		tree = wal.loadTree();
+		check(ref, tree);
+		modify(ref, tree, r, 1000);
+		wal.checkpoint();
+		assertEquals(0, files(dir, "nodes-").size());
+		wal.close();
+
+		wal = incremental(dir);
+		tree = wal.loadTree();
+		check(ref, tree);
+		wal.checkpoint();
+		assertEquals(0, files(dir, "snapshot-").size());
+		wal.close();
+		wal = incremental(dir);
+		check(ref, wal.loadTree());
+		wal.close();
+	}
+
+	@Test
+	public void testEmptyDirectory() throws IOException {
+		PersistenceProviderWal wal = new PersistenceProviderWal(
+				folder.newFolder().toPath(), PhValueCodec.INTEGER);
+		assertNull(wal.loadTree());
+		assertEquals(0, wal.getStoredDims());
+		wal.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFileNotSupported() throws IOException {
+		PhTreeConfig cfg = new PhTreeConfig(3);
+		cfg.setPersistenceProvider(new PersistenceProviderFile(
+				folder.newFile().toPath(), PhValueCodec.INTEGER));
+		try (PersistenceProviderWal wal = 
+				new PersistenceProviderWal(folder.newFolder().toPath(), PhValueCodec.INTEGER)) {
+			cfg.setWriteAheadLog(wal);
+			PhTree.create(cfg);
+		}
+	}
+
+	@Test
+	public void testOptimisticLockingNotSupported() throws IOException {
+		PersistenceProviderWal wal = 
+				new PersistenceProviderWal(folder.newFolder().toPath(), PhValueCodec.INTEGER);
+		try {
+			create(wal, 10, PhTreeConfig.CONCURRENCY_OL_COW);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("PersistenceProviderWal"));
+			assertTrue(e.getMessage(), e.getMessage().contains("CONCURRENCY_OL_COW"));
+		}
+		wal.close();
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeLong;
+import ch.ethz.globis.phtree.PhTreeLong.PhIteratorLong;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTreeLong}.
+ *
+ * @author ztilmann
+ */
+public class TestPhTreeLong extends TestSuper {
+
+	private static long[] randomKey(Random r, int dim) {
+		return randomKey(r, dim, 1000);
+	}
+
+	private static long[] randomKey(Random r, int dim, int range) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = r.nextInt(range) - 300;
+		}
+		return key;
+	}
+
+	@Test
+	public void testOperations() {
+		for (int dim : new int[] {1, 2, 3, 5}) {
+			runOperations(dim, 1000, 30_000);
+		}
+	}
+
+	@Test
+	public void testHighDims() {
+		for (int dim : new int[] {16, 20, 64}) {
+			runOperations(dim, Integer.MAX_VALUE, 20_000);
+		}
+	}
+
+	/**
+	 * Small key ranges result in dense nodes, see TestDenseNodes.
+	 */
+	@Test
+	public void testDense() {
+		for (int dim : new int[] {2, 4, 6}) {
+			PhTreeLong tree = runOperations(dim, 6, 20_000);
+			assertTrue(tree.getStats().nSwitchToDense > 0);
+		}
+	}
+
+	/**
+	 * @param range range of the key values
+	 * @return the tree
+	 */
+	private static PhTreeLong runOperations(int dim, int range, int n) {
+		Random r = new Random(dim);
+		PhTree<Long> ref = new PhTree16<>(dim);
+		PhTreeLong tree = PhTreeLong.create(dim);
+		for (int i = 0; i < n; i++) {
+			long[] key = randomKey(r, dim, range);
+			long value = r.nextLong();
+			switch (r.nextInt(4)) {
+			case 0:
+				assertEquals(ref.remove(key) != null, tree.remove(key));
+				break;
+			case 1:
+				long[] newKey = randomKey(r, dim, range);
+				assertEquals(ref.update(key, newKey) != null, tree.update(key, newKey));
+				break;
+			default:
+				assertEquals(ref.put(key, value) == null, tree.put(key, value));
+			}
+			assertEquals(ref.size(), tree.size());
+		}
+		check(ref, tree, r, range);
+		return tree;
+	}
+
+	private static void check(PhTree<Long> ref, PhTreeLong tree, Random r, int range) {
+		int dim = ref.getDim();
+		PhExtent<Long> extent = ref.queryExtent();
+		PhIteratorLong iter = tree.queryExtent();
+		long[] key = new long[dim];
+		while (extent.hasNext()) {
+			PhEntry<Long> e = extent.nextEntry();
+			assertTrue(tree.contains(e.getKey()));
+			assertEquals((long) e.getValue(), tree.getOrDefault(e.getKey(), -1));
+			assertEquals((long) e.getValue(), iter.nextValueLong(key));
+			assertArrayEquals(e.getKey(), key);
+		}
+		assertFalse(iter.hasNext());
+
+		for (int i = 0; i < 20; i++) {
+			long[] min = randomKey(r, dim, range);
+			long[] max = randomKey(r, dim, range);
+			for (int d = 0; d < dim; d++) {
+				if (min[d] > max[d]) {
+					long x = min[d];
+					min[d] = max[d];
+					max[d] = x;
+				}
+			}
+			PhQuery<Long> q1 = ref.query(min, max);
+			PhIteratorLong q2 = tree.query(min, max);
+			while (q1.hasNext()) {
+				assertEquals((long) q1.nextValue(), q2.nextValueLong());
+			}
+			assertFalse(q2.hasNext());
+
+			long[] center = randomKey(r, dim, range);
+			PhKnnQuery<Long> knn1 = ref.nearestNeighbour(5, center);
+			PhIteratorLong knn2 = tree.nearestNeighbour(5, center);
+			while (knn1.hasNext()) {
+				PhEntryDist<Long> e = knn1.nextEntry();
+				long[] k2 = knn2.nextKey();
+				assertEquals(e.dist(), Math.sqrt(distSq(center, k2)), 0.0);
+			}
+			assertFalse(knn2.hasNext());
+		}
+	}
+
+	private static double distSq(long[] a, long[] b) {
+		double d = 0;
+		for (int i = 0; i < a.length; i++) {
+			double x = a[i] - b[i];
+			d += x * x;
+		}
+		return d;
+	}
+
+	@Test
+	public void testBasic() {
+		PhTreeLong tree = PhTreeLong.create(2);
+		assertEquals(-1, tree.getOrDefault(new long[] {1, 2}, -1));
+		assertTrue(tree.put(new long[] {1, 2}, Long.MIN_VALUE));
+		assertTrue(tree.put(new long[] {3, 4}, -1));
+		assertFalse(tree.put(new long[] {1, 2}, Long.MAX_VALUE));
+		assertEquals(2, tree.size());
+		assertEquals(Long.MAX_VALUE, tree.getOrDefault(new long[] {1, 2}, 0));
+		assertEquals(-1, tree.getOrDefault(new long[] {3, 4}, 0));
+		assertTrue(tree.update(new long[] {3, 4}, new long[] {1, 2}));
+		assertEquals(1, tree.size());
+		assertEquals(-1, tree.getOrDefault(new long[] {1, 2}, 0));
+		assertFalse(tree.remove(3, 4));
+		assertTrue(tree.remove(1, 2));
+		assertEquals(0, tree.size());
+		assertFalse(tree.queryExtent().hasNext());
+		tree.put(new long[] {5, 6}, 7);
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertFalse(tree.contains(5, 6));
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeSet;
+import ch.ethz.globis.phtree.PhTreeSet.PhIteratorSet;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTreeSet}.
+ *
+ * @author ztilmann
+ */
+public class TestPhTreeSet extends TestSuper {
+
+	private static long[] randomKey(Random r, int dim) {
+		return randomKey(r, dim, 1000);
+	}
+
+	private static long[] randomKey(Random r, int dim, int range) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = r.nextInt(range) - 300;
+		}
+		return key;
+	}
+
+	@Test
+	public void testOperations() {
+		for (int dim : new int[] {1, 2, 3, 5}) {
+			runOperations(dim, 1000, 30_000);
+		}
+	}
+
+	@Test
+	public void testHighDims() {
+		for (int dim : new int[] {16, 20, 64}) {
+			runOperations(dim, Integer.MAX_VALUE, 20_000);
+		}
+	}
+
+	/**
+	 * Small key ranges result in dense nodes, see TestDenseNodes.
+	 */
+	@Test
+	public void testDense() {
+		for (int dim : new int[] {2, 4, 6}) {
+			PhTreeSet tree = runOperations(dim, 6, 20_000);
+			assertTrue(tree.getStats().nSwitchToDense > 0);
+		}
+	}
+
+	/**
+	 * @param range range of the key values
+	 * @return the tree
+	 */
+	private static PhTreeSet runOperations(int dim, int range, int n) {
+		Random r = new Random(dim);
+		PhTree<Object> ref = new PhTree16<>(dim);
+		PhTreeSet tree = PhTreeSet.create(dim);
+		for (int i = 0; i < n; i++) {
+			long[] key = randomKey(r, dim, range);
+			switch (r.nextInt(4)) {
+			case 0:
+				assertEquals(ref.remove(key) != null, tree.remove(key));
+				break;
+			case 1:
+				long[] newKey = randomKey(r, dim, range);
+				assertEquals(ref.update(key, newKey) != null, tree.update(key, newKey));
+				break;
+			default:
+				assertEquals(ref.put(key, key) == null, tree.add(key));
+			}
+			assertEquals(ref.size(), tree.size());
+		}
+		check(ref, tree, r, range);
+		return tree;
+	}
+
+	private static void check(PhTree<Object> ref, PhTreeSet tree, Random r, int range) {
+		int dim = ref.getDim();
+		PhExtent<Object> extent = ref.queryExtent();
+		PhIteratorSet iter = tree.queryExtent();
+		long[] key = new long[dim];
+		while (extent.hasNext()) {
+			long[] k = extent.nextKey();
+			assertTrue(tree.contains(k));
+			iter.nextKey(key);
+			assertArrayEquals(k, key);
+		}
+		assertFalse(iter.hasNext());
+
+		for (int i = 0; i < 20; i++) {
+			long[] min = randomKey(r, dim, range);
+			long[] max = randomKey(r, dim, range);
+			for (int d = 0; d < dim; d++) {
+				if (min[d] > max[d]) {
+					long x = min[d];
+					min[d] = max[d];
+					max[d] = x;
+				}
+			}
+			PhQuery<Object> q1 = ref.query(min, max);
+			PhIteratorSet q2 = tree.query(min, max);
+			while (q1.hasNext()) {
+				assertArrayEquals(q1.nextKey(), q2.nextKey());
+			}
+			assertFalse(q2.hasNext());
+
+			long[] center = randomKey(r, dim, range);
+			PhKnnQuery<Object> knn1 = ref.nearestNeighbour(5, center);
+			PhIteratorSet knn2 = tree.nearestNeighbour(5, center);
+			while (knn1.hasNext()) {
+				double dist = knn1.nextEntry().dist();
+				knn2.nextKey(key);
+				assertEquals(dist, Math.sqrt(distSq(center, key)), 0.0);
+			}
+			assertFalse(knn2.hasNext());
+		}
+	}
+
+	private static double distSq(long[] a, long[] b) {
+		double d = 0;
+		for (int i = 0; i < a.length; i++) {
+			double x = a[i] - b[i];
+			d += x * x;
+		}
+		return d;
+	}
+
+	@Test
+	public void testBasic() {
+		PhTreeSet tree = PhTreeSet.create(2);
+		assertFalse(tree.contains(1, 2));
+		assertTrue(tree.add(1, 2));
+		assertTrue(tree.add(3, 4));
+		assertFalse(tree.add(1, 2));
+		assertEquals(2, tree.size());
+		assertTrue(tree.update(new long[] {3, 4}, new long[] {1, 2}));
+		assertEquals(1, tree.size());
+		assertFalse(tree.update(new long[] {3, 4}, new long[] {5, 6}));
+		assertFalse(tree.remove(3, 4));
+		assertTrue(tree.remove(1, 2));
+		assertEquals(0, tree.size());
+		assertFalse(tree.queryExtent().hasNext());
+		tree.add(5, 6);
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertFalse(tree.contains(5, 6));
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PoolProvider;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+
+/**
+ * Tests for {@link PoolProvider}.
+ *
+ * @author ztilmann
+ */
+public class TestPoolProvider extends TestSuper {
+
+	private static final int N_THREADS = 4;
+	private static final int N = 5000;
+
+	private static <T> PhTree<T> create(int dim, PoolProvider pp) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setPoolProvider(pp);
+		return PhTree.create(cfg);
+	}
+
+	@Test
+	public void testProviders() throws InterruptedException {
+		Supplier<Object> tree1 = PoolProvider.TREE.getPools(Object.class, Object::new);
+		Supplier<Object> tree2 = PoolProvider.TREE.getPools(Object.class, Object::new);
+		assertSame(tree1.get(), tree1.get());
+		assertNotSame(tree1.get(), tree2.get());
+
+		Supplier<Object> tl1 = PoolProvider.THREAD_LOCAL.getPools(Object.class, Object::new);
+		Supplier<Object> tl2 = PoolProvider.THREAD_LOCAL.getPools(Object.class, Object::new);
+		assertSame(tl1.get(), tl2.get());
+		AtomicReference<Object> other = new AtomicReference<>();
+		Thread t = new Thread(() -> other.set(tl1.get()));
+		t.start();
+		t.join();
+		assertNotSame(tl1.get(), other.get());
+	}
+
+	@Test
+	public void testThreadLocal3D() throws InterruptedException {
+		testConcurrentTrees(3);
+	}
+
+	@Test
+	public void testThreadLocal10D() throws InterruptedException {
+		testConcurrentTrees(10);
+	}
+
+	@Test
+	public void testThreadLocal70D() throws InterruptedException {
+		testConcurrentTrees(70);
+	}
+
+	/**
+	 * Every thread builds and modifies several trees, all trees share the pools of the thread.
+	 */
+	private static void testConcurrentTrees(int dim) throws InterruptedException {
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < N_THREADS; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				try {
+					buildTrees(dim, seed);
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+	}
+
+	private static void buildTrees(int dim, int seed) {
+		Random r = new Random(seed);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N; i++) {
+			long[] key = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				key[d] = r.nextInt(1 << 20);
+			}
+			keys.add(key);
+		}
+		PhTree<Integer> ref = create(dim, PoolProvider.TREE);
+		PhTree<Integer> tree1 = create(dim, PoolProvider.THREAD_LOCAL);
+		PhTree<Integer> tree2 = create(dim, PoolProvider.THREAD_LOCAL);
+		for (int i = 0; i < N; i++) {
+			assertEquals(ref.put(keys.get(i), i), tree1.put(keys.get(i), i));
+		}
+		//tree2 reuses the nodes and arrays of tree1
+		for (int i = 0; i < N; i++) {
+			long[] key = keys.get(i);
+			assertEquals(i, (int) tree1.remove(key));
+			assertNull(tree2.put(key, -i));
+			if (i % 2 == 0) {
+				long[] key2 = key.clone();
+				key2[0]++;
+				assertEquals(-i, (int) tree2.update(key, key2));
+				keys.set(i, key2);
+			}
+		}
+		assertEquals(0, tree1.size());
+		assertFalse(tree1.queryExtent().hasNext());
+		for (int i = 0; i < N; i++) {
+			assertEquals(-i, (int) tree2.get(keys.get(i)));
+		}
+		assertEquals(N, tree2.size());
+		//tree1 is still usable
+		assertNull(tree1.put(keys.get(0), 42));
+		assertEquals(42, (int) tree1.get(keys.get(0)));
+	}
+}
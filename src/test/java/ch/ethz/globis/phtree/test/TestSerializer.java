@@ -0,0 +1,177 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.pre.PreProcessorPointF;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16.PhTreeSerializer;
+
+/**
+ * Tests for {@link PhTreeSerializer}.
+ *
+ * @author ztilmann
+ */
+public class TestSerializer extends TestSuper {
+
+	private static final PhTreeSerializer<Integer> SER = new PhTreeSerializer<>(PhValueCodec.INTEGER);
+
+	private static byte[] write(PhTree<Integer> tree) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		SER.write(tree, new DataOutputStream(bos));
+		return bos.toByteArray();
+	}
+
+	private static PhTree16<Integer> read(byte[] data) throws IOException {
+		return SER.read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	private static long[] randomKey(Random r, int dim, boolean large) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = large ? r.nextLong() : r.nextInt(1000) - 300;
+		}
+		return key;
+	}
+
+	private static void check(PhTree<Integer> ref, PhTree<Integer> tree) {
+		assertEquals(ref.size(), tree.size());
+		PhExtent<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			assertTrue(tree.contains(e.getKey()));
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+		PhExtent<Integer> ex1 = ref.queryExtent();
+		PhExtent<Integer> ex2 = tree.queryExtent();
+		while (ex1.hasNext()) {
+			assertArrayEquals(ex1.nextKey(), ex2.nextKey());
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		for (int dim : new int[] {1, 3, 10}) {
+			for (boolean large : new boolean[] {false, true}) {
+				Random r = new Random(dim);
+				PhTree16<Integer> ref = new PhTree16<>(dim);
+				for (int i = 0; i < 20_000; i++) {
+					ref.put(randomKey(r, dim, large), i % 10 == 0 ? null : i);
+				}
+				PhTree16<Integer> tree = read(write(ref));
+				check(ref, tree);
+				//The PH-Tree is canonical, the structure must be the same
+				assertEquals(ref.getStats().nNodes, tree.getStats().nNodes);
+				assertArrayEquals(ref.getStats().infixHist, tree.getStats().infixHist);
+				assertArrayEquals(ref.getStats().nodeDepthHist, tree.getStats().nodeDepthHist);
+				assertEquals(ref.count(new long[dim], new long[dim]),
+						tree.count(new long[dim], new long[dim]));
+				//the deserialized tree must be fully functional
+				for (int i = 0; i < 5000; i++) {
+					long[] key = randomKey(r, dim, large);
+					if (i % 2 == 0) {
+						assertEquals(ref.put(key, -i), tree.put(key, -i));
+					} else {
+						assertEquals(ref.remove(key), tree.remove(key));
+					}
+				}
+				check(ref, tree);
+			}
+		}
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		int dim = 3;
+		int n = 10_000;
+		Random r = new Random(0);
+		PhTree16<Integer> ref = new PhTree16<>(dim);
+		while (ref.size() < n) {
+			ref.put(randomKey(r, dim, false), ref.size());
+		}
+		byte[] data = write(ref);
+		//much less than the raw keys (24 bytes) and values (4 bytes)
+		assertTrue("" + data.length, data.length < n * (4 + 8));
+		check(ref, read(data));
+	}
+
+	@Test
+	public void testOtherTree() throws IOException {
+		int dim = 3;
+		Random r = new Random(0);
+		PhTree<Integer> ref = new PhTree13<>(dim);
+		for (int i = 0; i < 5000; i++) {
+			ref.put(randomKey(r, dim, true), i);
+		}
+		check(ref, read(write(ref)));
+	}
+
+	@Test
+	public void testPhTreeF() throws IOException {
+		PreProcessorPointF pre = new PreProcessorPointF.Multiply(1000);
+		PhTreeF<Integer> ref = PhTreeF.create(2, pre);
+		Random r = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			ref.put(new double[] {r.nextDouble(), r.nextDouble()}, i);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		SER.write(ref, new DataOutputStream(bos));
+		PhTreeF<Integer> tree = SER.readF(
+				new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), pre);
+		assertEquals(ref.size(), tree.size());
+		PhTreeF.PhExtentF<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhTreeF.PhEntryF<Integer> e = extent.nextEntry();
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		PhTree16<Integer> tree = read(write(new PhTree16<>(5)));
+		assertEquals(0, tree.size());
+		assertEquals(5, tree.getDim());
+		assertNull(tree.put(new long[5], 1));
+		assertEquals(1, tree.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalid() throws IOException {
+		read(new byte[20]);
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTree16#writeSnapshot(Path)} and {@link PhTree#openSnapshot(Path)}.
+ *
+ * @author ztilmann
+ */
+public class TestSnapshot extends TestSuper {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file() throws IOException {
+		return folder.newFile().toPath();
+	}
+
+	private static long[] randomKey(Random r, int dim, boolean large) {
+		long[] key = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			key[d] = large ? r.nextLong() : r.nextInt(1000) - 300;
+		}
+		return key;
+	}
+
+	private static void check(PhTree<Integer> ref, PhTree<Integer> tree, Random r, boolean large) {
+		int dim = ref.getDim();
+		assertEquals(ref.size(), tree.size());
+		assertEquals(dim, tree.getDim());
+		PhExtent<Integer> extent = ref.queryExtent();
+		while (extent.hasNext()) {
+			PhEntry<Integer> e = extent.nextEntry();
+			assertTrue(tree.contains(e.getKey()));
+			assertEquals(e.getValue(), tree.get(e.getKey()));
+		}
+		assertEquals(ref.size(), tree.stream().count());
+		for (int i = 0; i < 50; i++) {
+			long[] key = randomKey(r, dim, large);
+			assertEquals(ref.contains(key), tree.contains(key));
+			assertEquals(ref.get(key), tree.get(key));
+
+			long[] min = randomKey(r, dim, large);
+			long[] max = randomKey(r, dim, large);
+			for (int d = 0; d < dim; d++) {
+				if (min[d] > max[d]) {
+					long x = min[d];
+					min[d] = max[d];
+					max[d] = x;
+				}
+			}
+			List<PhEntry<Integer>> l1 = ref.queryAll(min, max);
+			List<PhEntry<Integer>> l2 = tree.queryAll(min, max);
+			assertEquals(l1.size(), l2.size());
+			for (int j = 0; j < l1.size(); j++) {
+				assertArrayEquals(l1.get(j).getKey(), l2.get(j).getKey());
+				assertEquals(l1.get(j).getValue(), l2.get(j).getValue());
+			}
+			assertEquals(ref.count(min, max), tree.count(min, max));
+
+			long[] center = randomKey(r, dim, large);
+			PhKnnQuery<Integer> knn1 = ref.nearestNeighbour(5, center);
+			PhKnnQuery<Integer> knn2 = tree.nearestNeighbour(5, center);
+			while (knn1.hasNext()) {
+				assertTrue(knn2.hasNext());
+				assertEquals(knn1.nextEntry().dist(), knn2.nextEntry().dist(), 0.0);
+			}
+			assertFalse(knn2.hasNext());
+
+			if (!large) {
+				PhRangeQuery<Integer> rq1 = ref.rangeQuery(200, center);
+				PhRangeQuery<Integer> rq2 = tree.rangeQuery(200, center);
+				int n = 0;
+				while (rq1.hasNext()) {
+					rq1.next();
+					n++;
+				}
+				while (rq2.hasNext()) {
+					rq2.next();
+					n--;
+				}
+				assertEquals(0, n);
+			}
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		for (int dim : new int[] {2, 10}) {
+			for (boolean large : new boolean[] {false, true}) {
+				Random r = new Random(dim);
+				PhTree16<Integer> ref = new PhTree16<>(dim);
+				for (int i = 0; i < 20_000; i++) {
+					ref.put(randomKey(r, dim, large), i % 10 == 0 ? null : i);
+				}
+				Path path = file();
+				ref.writeSnapshot(path, PhValueCodec.INTEGER);
+				PhTree<Integer> tree = PhTree.openSnapshot(path, PhValueCodec.INTEGER);
+				check(ref, tree, r, large);
+				assertEquals(ref.getStats().nNodes, tree.getStats().nNodes);
+			}
+		}
+	}
+
+	@Test
+	public void testSerializable() throws IOException {
+		PhTree16<String> ref = new PhTree16<>(3);
+		ref.put(new long[] {1, 2, 3}, "x");
+		ref.put(new long[] {-1, 2, 3}, "y");
+		Path path = file();
+		ref.writeSnapshot(path);
+		PhTree<String> tree = PhTree.openSnapshot(path);
+		assertEquals(2, tree.size());
+		assertEquals("x", tree.get(1, 2, 3));
+		assertEquals("y", tree.get(-1, 2, 3));
+		assertNull(tree.get(1, 2, 4));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		Path path = file();
+		new PhTree16<Integer>(3).writeSnapshot(path, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = PhTree.openSnapshot(path, PhValueCodec.INTEGER);
+		assertEquals(0, tree.size());
+		assertNull(tree.get(1, 2, 3));
+		assertFalse(tree.queryExtent().hasNext());
+		assertFalse(tree.query(new long[] {0, 0, 0}, new long[] {5, 5, 5}).hasNext());
+		assertFalse(tree.nearestNeighbour(3, 1, 2, 3).hasNext());
+	}
+
+	@Test
+	public void testCOW() throws IOException {
+		int dim = 4;
+		Random r = new Random(0);
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		PhTree16<Integer> ref = (PhTree16<Integer>) PhTree.<Integer>create(cfg);
+		for (int i = 0; i < 5000; i++) {
+			ref.put(randomKey(r, dim, false), i);
+		}
+		Path path = file();
+		ref.writeSnapshot(path, PhValueCodec.INTEGER);
+		check(ref, PhTree.openSnapshot(path, PhValueCodec.INTEGER), r, false);
+	}
+
+	@Test
+	public void testReadOnly() throws IOException {
+		PhTree16<Integer> ref = new PhTree16<>(3);
+		ref.put(new long[] {1, 2, 3}, 1);
+		Path path = file();
+		ref.writeSnapshot(path, PhValueCodec.INTEGER);
+		PhTree<Integer> tree = PhTree.openSnapshot(path, PhValueCodec.INTEGER);
+		try {
+			tree.put(new long[] {1, 2, 3}, 2);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			//good
+		}
+		try {
+			tree.remove(1, 2, 3);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			//good
+		}
+		assertEquals(1, (int) tree.get(1, 2, 3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFile() throws IOException {
+		Path path = file();
+		Files.write(path, new byte[100]);
+		PhTree.openSnapshot(path, PhValueCodec.INTEGER);
+	}
+}
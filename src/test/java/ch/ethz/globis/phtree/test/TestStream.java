@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 Tilmann Zäschke. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Tests for {@link PhTree#stream()} and {@link PhTree#stream(long[], long[])}.
+ *
+ * @author ztilmann
+ */
+public class TestStream extends TestSuper {
+
+	private static PhTree<Integer> fill(PhTree<Integer> tree, int n, Random r) {
+		for (int i = 0; i < n; i++) {
+			long[] key = new long[tree.getDim()];
+			for (int d = 0; d < key.length; d++) {
+				key[d] = r.nextInt(1000) - 200;
+			}
+			tree.put(key, i);
+		}
+		return tree;
+	}
+
+	private static List<PhEntry<Integer>> toList(PhIterator<Integer> it) {
+		List<PhEntry<Integer>> list = new ArrayList<>();
+		while (it.hasNext()) {
+			list.add(it.nextEntry());
+		}
+		return list;
+	}
+
+	private static void assertEqualLists(List<PhEntry<Integer>> l1, List<PhEntry<Integer>> l2) {
+		assertEquals(l1.size(), l2.size());
+		for (int i = 0; i < l1.size(); i++) {
+			assertArrayEquals(l1.get(i).getKey(), l2.get(i).getKey());
+			assertEquals(l1.get(i).getValue(), l2.get(i).getValue());
+		}
+	}
+
+	@Test
+	public void testExtent() {
+		Random r = new Random(0);
+		for (int dim : new int[] {1, 3, 10, 20}) {
+			for (int n : new int[] {0, 1, 10, 1000, 50_000}) {
+				PhTree<Integer> tree = fill(new PhTree16<>(dim), n, r);
+				List<PhEntry<Integer>> expected = toList(tree.queryExtent());
+				assertEqualLists(expected, tree.stream().collect(Collectors.toList()));
+				assertEqualLists(expected, tree.stream().parallel().collect(Collectors.toList()));
+			}
+		}
+	}
+
+	@Test
+	public void testQuery() {
+		Random r = new Random(0);
+		for (int dim : new int[] {1, 3, 10, 20}) {
+			PhTree<Integer> tree = fill(new PhTree16<>(dim), 50_000, r);
+			for (int i = 0; i < 20; i++) {
+				long[] min = new long[dim];
+				long[] max = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					long a = r.nextInt(1000) - 200;
+					long b = r.nextInt(1000) - 200;
+					min[d] = Math.min(a, b);
+					max[d] = Math.max(a, b);
+				}
+				List<PhEntry<Integer>> expected = toList(tree.query(min, max));
+				assertEqualLists(expected, tree.stream(min, max).collect(Collectors.toList()));
+				assertEqualLists(expected,
+						tree.stream(min, max).parallel().collect(Collectors.toList()));
+			}
+		}
+	}
+
+	@Test
+	public void testSplit() {
+		PhTree<Integer> tree = fill(new PhTree16<>(3), 10_000, new Random(0));
+		Spliterator<PhEntry<Integer>> s1 = tree.stream().spliterator();
+		Spliterator<PhEntry<Integer>> s2 = s1.trySplit();
+		assertNotNull(s2);
+		long n = 0;
+		while (s2.tryAdvance(e -> {})) {
+			n++;
+		}
+		while (s1.tryAdvance(e -> {})) {
+			n++;
+		}
+		assertEquals(tree.size(), n);
+	}
+
+	@Test
+	public void testNullValues() {
+		PhTree<Integer> tree = new PhTree16<>(3);
+		tree.put(new long[] {1, 2, 3}, null);
+		tree.put(new long[] {4, 5, 6}, 42);
+		List<PhEntry<Integer>> list = tree.stream().parallel().collect(Collectors.toList());
+		assertEquals(2, list.size());
+		assertNull(list.get(0).getValue());
+		assertEquals(42, (int) list.get(1).getValue());
+	}
+
+	@Test
+	public void testDefaultImplementation() {
+		Random r = new Random(0);
+		PhTree<Integer> tree = fill(new PhTree13<>(3), 10_000, r);
+		long[] min = {0, 0, 0};
+		long[] max = {500, 500, 500};
+		assertEqualLists(toList(tree.queryExtent()),
+				tree.stream().parallel().collect(Collectors.toList()));
+		assertEqualLists(toList(tree.query(min, max)),
+				tree.stream(min, max).parallel().collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testCOWSnapshot() {
+		Random r = new Random(0);
+		PhTreeConfig cfg = new PhTreeConfig(10);
+		cfg.setConcurrencyType(PhTreeConfig.CONCURRENCY_COW);
+		PhTree<Integer> tree = fill(PhTree.create(cfg), 10_000, r);
+		List<PhEntry<Integer>> expected = toList(tree.queryExtent());
+		Spliterator<PhEntry<Integer>> s = tree.stream().spliterator();
+		fill(tree, 1000, r);
+		List<PhEntry<Integer>> list = new ArrayList<>();
+		Spliterator<PhEntry<Integer>> s2 = s.trySplit();
+		s2.forEachRemaining(list::add);
+		s.forEachRemaining(list::add);
+		assertEqualLists(expected, list);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongDim() {
+		new PhTree16<Integer>(3).stream(new long[2], new long[3]);
+	}
+}